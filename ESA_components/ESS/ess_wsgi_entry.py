@@ -152,6 +152,84 @@ def upload_sensor_data():
 	return return_string;
 	
 
+def parse_feedback(args):
+	'''
+		Parse the feedback of a single activity (from the url parameters of a user_labels request,
+		or from an item in the body of a user_labels_batch request).
+		Raise an exception if a required field is missing.
+	'''
+	fback = {}
+	# Check for required parameters
+	if 'uuid' not in args:
+		raise Exception( 'Missing uuid' )
+	if 'timestamp' not in args:
+		raise Exception( 'Missing timestamp')
+	if 'predicted_activity' not in args:
+		raise Exception( 'Missing predicted_activity' )
+	if 'corrected_activity' not in args:
+		raise Exception( 'Missing corrected_activity' )
+	if 'secondary_activities' not in args:
+		raise Exception( 'Missing secondary_activities' )
+	if 'moods' not in args:
+		raise Exception( 'Missing moods' )
+	if 'label_source' not in args:
+		raise Exception( 'Missing label_source' )
+
+	fback[ 'uuid' ]                 	= args.get( 'uuid' )
+	fback[ 'timestamp' ]		    	= args.get( 'timestamp' ) 
+	fback[ 'predicted_activity' ]   	= args.get( 'predicted_activity' ).upper()
+	fback[ 'corrected_activity' ]     	= args.get( 'corrected_activity' ).upper()
+	fback[ 'secondary_activities' ]     = args.get( 'secondary_activities' ).upper().split( ',' )
+	fback[ 'moods' ]                    = args.get( 'moods' ).upper().split( ',' )
+	fback[ 'label_source' ]             = args.get( 'label_source' ).upper();
+
+	# Are there any other properties in the request? Add them to the feedback object:
+	for key in args.keys():
+		if key not in fback:
+			fback[key] = args.get(key);
+			pass;
+		pass;
+
+	return fback;
+
+def save_feedback(fback):
+	'''
+		Add the feedback to the feedback history file of its instance.
+	'''
+	UUID 	= str(fback['uuid'])
+	UTime 	= str(fback['timestamp'])
+	instance_dir = get_and_create_upload_instance_dir(UUID,UTime);
+	#feats_path 	= os.path.join(current_app.config['CLASSIFIER_FOLDER'],'feats',UUID,UTime)
+	#if not os.path.exists(feats_path):
+	#	raise Exception( 'Can''t find corresponding data on the server' )
+	#else:
+	feedback_file = os.path.join(instance_dir,'feedback');
+	if os.path.exists(feedback_file):
+		fp_in = open(feedback_file,'r');
+		old_fback = json.load(fp_in);
+		fp_in.close();
+			
+		if type(old_fback) == list:
+			fbacks = old_fback;
+			pass;
+		else:
+			fbacks = [old_fback];
+			pass;
+		pass;
+	else:
+		# No older feedback file:
+		fbacks = [];
+		pass;
+
+	# Add the new feedback to the feedback history:
+	fbacks.append(fback);
+
+	fp = open(feedback_file,'w')
+	json.dump( fbacks, fp)
+	fp.close()
+	return;
+
+
 @app.route( '/extrasensory/user_labels' )
 def handle_user_labels():
 	print("-"*20);
@@ -182,72 +260,11 @@ def handle_user_labels():
 	'''
 
 	print("request was: |%s|" % request);
-	fback = {}
+	UTime = 0;
 	try:
-		# Check for required parameters
-		if 'uuid' not in request.args:
-			raise Exception( 'Missing uuid' )
-		if 'timestamp' not in request.args:
-			raise Exception( 'Missing timestamp')
-		if 'predicted_activity' not in request.args:
-			raise Exception( 'Missing predicted_activity' )
-		if 'corrected_activity' not in request.args:
-			raise Exception( 'Missing corrected_activity' )
-		if 'secondary_activities' not in request.args:
-			raise Exception( 'Missing secondary_activities' )
-		if 'moods' not in request.args:
-			raise Exception( 'Missing moods' )
-		if 'label_source' not in request.args:
-			raise Exception( 'Missing label_source' )
-
-		fback[ 'uuid' ]                 	= request.args.get( 'uuid' )
-		fback[ 'timestamp' ]		    	= request.args.get( 'timestamp' ) 
-		fback[ 'predicted_activity' ]   	= request.args.get( 'predicted_activity' ).upper()
-		fback[ 'corrected_activity' ]     	= request.args.get( 'corrected_activity' ).upper()
-		fback[ 'secondary_activities' ]     = request.args.get( 'secondary_activities' ).upper().split( ',' )
-		fback[ 'moods' ]                    = request.args.get( 'moods' ).upper().split( ',' )
-		fback[ 'label_source' ]             = request.args.get( 'label_source' ).upper();
-
-		# Are there any other properties in the request? Add them to the feedback object:
-		for key in request.args.keys():
-			if key not in fback:
-				fback[key] = request.args.get(key);
-				pass;
-			pass;
-		
-		
-		UUID 	= str(fback['uuid'])
+		fback	= parse_feedback(request.args);
 		UTime 	= str(fback['timestamp'])
-		instance_dir = get_and_create_upload_instance_dir(UUID,UTime);
-		#feats_path 	= os.path.join(current_app.config['CLASSIFIER_FOLDER'],'feats',UUID,UTime)
-		#if not os.path.exists(feats_path):
-		#	raise Exception( 'Can''t find corresponding data on the server' )
-		#else:
-		feedback_file = os.path.join(instance_dir,'feedback');
-		if os.path.exists(feedback_file):
-			fp_in = open(feedback_file,'r');
-			old_fback = json.load(fp_in);
-			fp_in.close();
-				
-			if type(old_fback) == list:
-				fbacks = old_fback;
-				pass;
-			else:
-				fbacks = [old_fback];
-				pass;
-			pass;
-		else:
-			# No older feedback file:
-			fbacks = [];
-			pass;
-
-		# Add the new feedback to the feedback history:
-		fbacks.append(fback);
-
-		fp = open(feedback_file,'w')
-		json.dump( fbacks, fp)
-		fp.close()
-
+		save_feedback(fback);
 
 		sys.stdout.flush();
 		pass;
@@ -265,5 +282,59 @@ def handle_user_labels():
 
 	return out_str;
 
+@app.route( '/extrasensory/user_labels_batch', methods=[ 'POST' ])
+def handle_user_labels_batch():
+	print("-"*20);
+	print '---- batch of feedbacks from user';
+	'''
+		Handles saving the feedback of many activities, sent from the app in a single request.
+		The body is a JSON object:
+		uuid                		- UUID of device sending the feedback
+		timestampOfSendingFeedback	- When the app sent this request
+		feedback					- List of objects, each with the same fields as the parameters of user_labels
+									(except uuid and timestampOfSendingFeedback)
+
+		Results
+		-------
+		JSON success (with the number of feedbacks saved) if all the feedbacks are correctly parsed
+		JSON failure if something is not present or incorrectly parsed
+	'''
+	try:
+		body		= request.get_json(force=True);
+		uuid		= body['uuid'];
+		send_time	= body.get('timestampOfSendingFeedback');
+		# First parse them all, so a bad item doesn't leave the batch half-saved:
+		fbacks		= [];
+		for item in body['feedback']:
+			item['uuid']						= uuid;
+			item['timestampOfSendingFeedback']	= send_time;
+			# Keep the timestamp a string, like in the url parameters of user_labels:
+			if 'timestamp' in item:
+				item['timestamp']				= str(item['timestamp']);
+				pass;
+			fbacks.append(parse_feedback(item));
+			pass;
+
+		for fback in fbacks:
+			save_feedback(fback);
+			pass;
+
+		print("Saved %d feedbacks for uuid %s" % (len(fbacks),uuid));
+		out_str		= json.dumps( {'api_type':'user_labels_batch','success': True, 'num_feedbacks': len(fbacks) } );
+		pass;
+	except Exception, exception:
+		print 'Caught exception:';
+		print exception;
+		traceback.print_exc();
+		out_str		= json.dumps( {'api_type':'user_labels_batch','success': False, 'msg': str( exception ) } );
+		pass;
+
+	sys.stdout.flush();
+	print("ESS returning response:");
+	print(out_str);
+	print("-"*20);
+
+	return out_str;
+
 if __name__ == '__main__':
 	app.run();
@@ -0,0 +1,12 @@
+#!/bin/sh
+# Compile the stand-in server and load driver, and run the load driver (from any directory).
+# The driver benchmarks the server side only: it has its own HTTP client and backoff, not the app's network classes.
+# All arguments are passed to the load driver, e.g.:
+#   ./run_load_test.sh --uploads 200 --latency-ms 100 --failure-rate 0.05
+#   ./run_load_test.sh --server http://localhost:8080/extrasensory/ --batch-size 1
+# To run the stand-in server alone:
+#   java -cp build edu.ucsd.calab.extrasensory.essstandin.ESStandinServer --port 8080 --failure-rate 0.1
+STANDIN_DIR="$(cd "$(dirname "$0")" && pwd)"
+mkdir -p "$STANDIN_DIR/build"
+javac -d "$STANDIN_DIR/build" "$STANDIN_DIR"/src/edu/ucsd/calab/extrasensory/essstandin/*.java || exit 1
+java -cp "$STANDIN_DIR/build" edu.ucsd.calab.extrasensory.essstandin.ESLoadDriver "$@"
@@ -0,0 +1,359 @@
+package edu.ucsd.calab.extrasensory.essstandin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * A load driver for the ExtraSensory server api (the real ESS, or the stand-in).
+ * It behaves like the app's network accessor (ESNetworkAccessor):
+ * it drains a queue of zip files by uploading them one at a time (the same multipart request as the app),
+ * backing off with jitter after failures, and then drains a queue of label feedbacks
+ * (in batches, falling back to single requests if the server doesn't have the batch api).
+ *
+ * It reports the client throughput, request latencies, failures, retries and the time to drain each queue.
+ *
+ * Notice that the driver has its own HTTP client and backoff loop (it doesn't run the app's ESHttpClient
+ * or ESNetworkRetryScheduler, which need Android), so its numbers describe the server (and the network to it)
+ * under the app's request pattern, not the app's own network layer.
+ *
+ * Options:
+ * --server: the api prefix (e.g. http://localhost:8080/extrasensory/). If missing, an embedded stand-in server
+ *   is started (and then the stand-in server's options apply too).
+ * --uploads, --zip-kb: how many zip files to upload, and of what size
+ * --feedbacks, --batch-size: how many activities to send labels for, and how many per request (1 for single requests)
+ * --keep-alive: reuse connections (default true)
+ * --backoff-base-ms, --backoff-max-ms: the retry backoff (the app uses 5 seconds up to 5 minutes)
+ *
+ * ========================================
+ * The ExtraSensory App
+ * Please see ExtraSensory App website for details and citation requirements:
+ * http://extrasensory.ucsd.edu/ExtraSensoryApp
+ * ========================================
+ */
+public class ESLoadDriver {
+
+    private static final String LINE_END = "\r\n";
+    private static final String TWO_HYPHENS = "--";
+    private static final String BOUNDARY = "0xKhTmLbOuNdArY";
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+    // The real server's json has a space after the colon, the stand-in's doesn't:
+    private static final Pattern SUCCESS_PATTERN = Pattern.compile("\"success\"\\s*:\\s*true");
+
+    private final String _apiPrefix;
+    private final long _backoffBaseMillis;
+    private final long _backoffMaxMillis;
+    private final String _uuid = UUID.randomUUID().toString().toUpperCase(Locale.US);
+    private final Random _random = new Random();
+
+    private ESLoadDriver(String apiPrefix,long backoffBaseMillis,long backoffMaxMillis) {
+        _apiPrefix = apiPrefix;
+        _backoffBaseMillis = backoffBaseMillis;
+        _backoffMaxMillis = backoffMaxMillis;
+    }
+
+    /**
+     * The measurements of draining one queue.
+     */
+    private static class ESDrainStats {
+        private final String _name;
+        private int _numItems = 0;
+        private long _numBytesSent = 0;
+        private int _numRequests = 0;
+        private int _numFailures = 0;
+        private long _drainTimeNanos = 0;
+        private final ArrayList<Long> _latenciesNanos = new ArrayList<>();
+
+        private ESDrainStats(String name) {
+            _name = name;
+        }
+
+        private double percentileMillis(double percentile) {
+            if (_latenciesNanos.isEmpty()) {
+                return 0;
+            }
+            long[] sorted = new long[_latenciesNanos.size()];
+            for (int i = 0; i < sorted.length; i ++) {
+                sorted[i] = _latenciesNanos.get(i);
+            }
+            Arrays.sort(sorted);
+            int index = (int)Math.min(sorted.length - 1,Math.round(percentile * (sorted.length - 1)));
+            return sorted[index] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = _drainTimeNanos / 1e9;
+            return String.format(Locale.US,
+                    "%s: %d items drained in %.2fs (%.1f items/s, %.1f KB/s). %d requests, %d failures (retried). " +
+                            "Latency p50 %.1fms, p95 %.1fms, p99 %.1fms.",
+                    _name,_numItems,seconds,_numItems / seconds,_numBytesSent / 1024.0 / seconds,
+                    _numRequests,_numFailures,percentileMillis(0.5),percentileMillis(0.95),percentileMillis(0.99));
+        }
+    }
+
+    private long backoffWithJitter(int consecutiveFailures) {
+        long backoff = _backoffBaseMillis;
+        for (int i = 1; i < consecutiveFailures && backoff < _backoffMaxMillis; i ++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff,_backoffMaxMillis);
+        return backoff / 2 + (long)(_random.nextDouble() * (backoff / 2));
+    }
+
+    private void backOff(int consecutiveFailures) {
+        try {
+            Thread.sleep(backoffWithJitter(consecutiveFailures));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ESDrainStats drainUploadQueue(int numUploads,int zipKB) {
+        ESDrainStats stats = new ESDrainStats("upload");
+        byte[] zipContent = new byte[zipKB * 1024];
+        _random.nextBytes(zipContent);
+        LinkedList<String> queue = new LinkedList<>();
+        int firstTimestamp = (int)(System.currentTimeMillis() / 1000) - 60 * numUploads;
+        for (int i = 0; i < numUploads; i ++) {
+            queue.add((firstTimestamp + 60 * i) + "-" + _uuid + ".zip");
+        }
+
+        long start = System.nanoTime();
+        int consecutiveFailures = 0;
+        while (!queue.isEmpty()) {
+            String zipFilename = queue.removeFirst();
+            stats._numRequests ++;
+            long requestStart = System.nanoTime();
+            boolean success = uploadZip(zipFilename,zipContent);
+            stats._latenciesNanos.add(System.nanoTime() - requestStart);
+            if (success) {
+                stats._numItems ++;
+                stats._numBytesSent += zipContent.length;
+                consecutiveFailures = 0;
+            }
+            else {
+                // Keep it at the end of the queue, like the app does:
+                queue.addLast(zipFilename);
+                stats._numFailures ++;
+                consecutiveFailures ++;
+                backOff(consecutiveFailures);
+            }
+        }
+        stats._drainTimeNanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    private boolean uploadZip(String zipFilename,byte[] zipContent) {
+        try {
+            HttpURLConnection conn = openConnection(_apiPrefix + "upload_sensor_data?classifier_type=es_mlp&classifier_name=es6sensors");
+            conn.setDoOutput(true);
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("ENCTYPE", "multipart/form-data");
+            conn.setRequestProperty("Content-Type", "multipart/form-data;boundary=" + BOUNDARY);
+            conn.setRequestProperty("uploaded_file", zipFilename);
+
+            // Prepare the whole multipart body, to send it with a known length
+            // (otherwise HttpURLConnection buffers it all and sends it in pieces after the headers):
+            ByteArrayOutputStream bodyStream = new ByteArrayOutputStream(zipContent.length + 256);
+            DataOutputStream dos = new DataOutputStream(bodyStream);
+            dos.writeBytes(TWO_HYPHENS + BOUNDARY + LINE_END);
+            dos.writeBytes("Content-Disposition: form-data; name=\"file\";filename=\"" + zipFilename + "\"" + LINE_END);
+            dos.writeBytes(LINE_END);
+            dos.write(zipContent);
+            dos.writeBytes(LINE_END);
+            dos.writeBytes(TWO_HYPHENS + BOUNDARY + TWO_HYPHENS + LINE_END);
+            byte[] body = bodyStream.toByteArray();
+            conn.setFixedLengthStreamingMode(body.length);
+            OutputStream outputStream = conn.getOutputStream();
+            outputStream.write(body);
+            outputStream.close();
+
+            return isSuccess(readResponse(conn));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private ESDrainStats drainFeedbackQueue(int numFeedbacks,int batchSize) {
+        ESDrainStats stats = new ESDrainStats(batchSize > 1 ? "feedback (batches of " + batchSize + ")" : "feedback (single)");
+        LinkedList<Integer> queue = new LinkedList<>();
+        int firstTimestamp = (int)(System.currentTimeMillis() / 1000) - 60 * numFeedbacks;
+        for (int i = 0; i < numFeedbacks; i ++) {
+            queue.add(firstTimestamp + 60 * i);
+        }
+
+        long start = System.nanoTime();
+        int consecutiveFailures = 0;
+        while (!queue.isEmpty()) {
+            int numToSend = Math.min(batchSize,queue.size());
+            ArrayList<Integer> timestamps = new ArrayList<>(queue.subList(0,numToSend));
+            stats._numRequests ++;
+            long requestStart = System.nanoTime();
+            int sentBytes = numToSend > 1 ? sendFeedbackBatch(timestamps) : sendFeedback(timestamps.get(0));
+            stats._latenciesNanos.add(System.nanoTime() - requestStart);
+            if (sentBytes == 0) {
+                System.out.println("Server doesn't have the feedback batch api. Falling back to single feedback requests.");
+                batchSize = 1;
+                continue;
+            }
+            if (sentBytes > 0) {
+                for (int i = 0; i < numToSend; i ++) {
+                    queue.removeFirst();
+                }
+                stats._numItems += numToSend;
+                stats._numBytesSent += sentBytes;
+                consecutiveFailures = 0;
+            }
+            else {
+                stats._numFailures ++;
+                consecutiveFailures ++;
+                backOff(consecutiveFailures);
+            }
+        }
+        stats._drainTimeNanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    private static String feedbackFields(int timestamp,String separator,String quote) {
+        String[][] fields = new String[][]{
+                {"timestamp","" + timestamp},{"label_source","LABEL_SOURCE_HISTORY"},
+                {"predicted_activity","Sitting"},{"corrected_activity","Sitting"},
+                {"secondary_activities","AT_HOME,WATCHING_TV,EATING"},{"moods","CALM"},
+                {"timestampOfOpeningFeedbackForm","null"},{"timestampOfPressingSendFeedbackButton","null"},
+                {"timestampOfNotificationAppear","null"},{"timestampOfUserRespondToNotification","null"}};
+        StringBuilder builder = new StringBuilder();
+        for (String[] field : fields) {
+            if (builder.length() > 0) {
+                builder.append(separator);
+            }
+            builder.append(quote).append(field[0]).append(quote).append(quote.isEmpty() ? "=" : ":")
+                    .append(quote).append(field[1]).append(quote);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return The number of bytes sent, or -1 for failure
+     */
+    private int sendFeedback(int timestamp) {
+        try {
+            String query = "uuid=" + URLEncoder.encode(_uuid,"UTF-8") + "&" + feedbackFields(timestamp,"&","") +
+                    "&timestampOfSendingFeedback=" + (System.currentTimeMillis() / 1000);
+            HttpURLConnection conn = openConnection(_apiPrefix + "user_labels?" + query);
+            conn.setRequestMethod("GET");
+            String response = readResponse(conn);
+            return isSuccess(response) ? query.length() : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return The number of bytes sent, 0 if the server doesn't have the batch api, or -1 for failure
+     */
+    private int sendFeedbackBatch(ArrayList<Integer> timestamps) {
+        try {
+            StringBuilder body = new StringBuilder();
+            body.append("{\"uuid\":\"").append(_uuid).append("\",\"timestampOfSendingFeedback\":\"")
+                    .append(System.currentTimeMillis() / 1000).append("\",\"feedback\":[");
+            for (int i = 0; i < timestamps.size(); i ++) {
+                body.append(i > 0 ? ",{" : "{").append(feedbackFields(timestamps.get(i),",","\"")).append('}');
+            }
+            body.append("]}");
+            byte[] bodyBytes = body.toString().getBytes("UTF-8");
+
+            HttpURLConnection conn = openConnection(_apiPrefix + "user_labels_batch");
+            conn.setDoOutput(true);
+            conn.setRequestMethod("POST");
+            conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            conn.setFixedLengthStreamingMode(bodyBytes.length);
+            DataOutputStream dos = new DataOutputStream(conn.getOutputStream());
+            dos.write(bodyBytes);
+            dos.close();
+
+            if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                readResponse(conn);
+                return 0;
+            }
+            // The server saves all of the batch or none of it, so anything but success means resending all of it:
+            String response = readResponse(conn);
+            return isSuccess(response) ? bodyBytes.length : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static boolean isSuccess(String response) {
+        return response != null && SUCCESS_PATTERN.matcher(response).find();
+    }
+
+    private static HttpURLConnection openConnection(String apiUrl) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(apiUrl).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+        conn.setUseCaches(false);
+        conn.setDoInput(true);
+        return conn;
+    }
+
+    /**
+     * Read the whole response (so the connection can be reused)
+     * @return The response body, or null if the server responded with an error
+     */
+    private static String readResponse(HttpURLConnection conn) throws IOException {
+        int responseCode = conn.getResponseCode();
+        InputStream inputStream = responseCode < 400 ? conn.getInputStream() : conn.getErrorStream();
+        String body = inputStream == null ? "" : new String(ESStandinServer.readFully(inputStream),"UTF-8");
+        return responseCode < 400 ? body : null;
+    }
+
+    public static void main(String[] args) throws IOException {
+        ESStandinOptions options = new ESStandinOptions(args);
+        // The JDK's HttpURLConnection reuses connections when http.keepAlive is on, like the app's does:
+        System.setProperty("http.keepAlive",String.valueOf(options.getBoolean("keep-alive",true)));
+
+        String apiPrefix = options.getString("server",null);
+        ESStandinServer embeddedServer = null;
+        if (apiPrefix == null) {
+            embeddedServer = new ESStandinServer(
+                    0,
+                    options.getLong("latency-ms",20),
+                    options.getLong("latency-jitter-ms",10),
+                    options.getDouble("failure-rate",0.0),
+                    options.getDouble("drop-rate",0.0),
+                    !options.getFlag("no-batch"),
+                    options.getInt("threads",4),
+                    options.getLabelsDir());
+            int port = embeddedServer.start();
+            apiPrefix = "http://localhost:" + port + "/extrasensory/";
+        }
+
+        ESLoadDriver driver = new ESLoadDriver(apiPrefix,
+                options.getLong("backoff-base-ms",100),
+                options.getLong("backoff-max-ms",5000));
+        System.out.println("Load driver against " + apiPrefix + " (keep-alive: " + System.getProperty("http.keepAlive") + ")");
+
+        ESDrainStats uploadStats = driver.drainUploadQueue(options.getInt("uploads",100),options.getInt("zip-kb",60));
+        System.out.println(uploadStats);
+        ESDrainStats feedbackStats = driver.drainFeedbackQueue(options.getInt("feedbacks",240),options.getInt("batch-size",120));
+        System.out.println(feedbackStats);
+
+        if (embeddedServer != null) {
+            embeddedServer.stop();
+        }
+    }
+}
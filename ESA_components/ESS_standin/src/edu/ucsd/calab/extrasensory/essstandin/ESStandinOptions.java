@@ -0,0 +1,87 @@
+package edu.ucsd.calab.extrasensory.essstandin;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.HashMap;
+
+/**
+ * Simple command line options of the form "--name value" (or just "--name" for flags),
+ * for the stand-in server and the load driver.
+ *
+ * ========================================
+ * The ExtraSensory App
+ * Please see ExtraSensory App website for details and citation requirements:
+ * http://extrasensory.ucsd.edu/ExtraSensoryApp
+ * ========================================
+ */
+class ESStandinOptions {
+
+    /**
+     * The label lists of the app, relative to ESA_components/ESS_standin
+     */
+    private static final String LABELS_DIR_FROM_STANDIN_DIR = "../../app/src/main/res/raw";
+
+    private final HashMap<String,String> _options = new HashMap<>();
+
+    ESStandinOptions(String[] args) {
+        for (int i = 0; i < args.length; i ++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            String name = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                _options.put(name,args[i + 1]);
+                i ++;
+            }
+            else {
+                _options.put(name,"true");
+            }
+        }
+    }
+
+    /**
+     * Get the directory of the app's label lists: the --labels-dir option if given,
+     * or else the app's raw resources, found relative to where these classes were loaded from
+     * (ESA_components/ESS_standin/build), so it doesn't matter what directory the tools are run from.
+     */
+    String getLabelsDir() {
+        if (_options.containsKey("labels-dir")) {
+            return _options.get("labels-dir");
+        }
+        CodeSource codeSource = ESStandinOptions.class.getProtectionDomain().getCodeSource();
+        if (codeSource != null) {
+            try {
+                File classesDir = new File(codeSource.getLocation().toURI());
+                return new File(classesDir.getParentFile(),LABELS_DIR_FROM_STANDIN_DIR).getPath();
+            } catch (URISyntaxException e) {
+                System.out.println("Couldn't find where the classes were loaded from: " + e);
+            }
+        }
+        return LABELS_DIR_FROM_STANDIN_DIR;
+    }
+
+    String getString(String name,String defaultValue) {
+        return _options.containsKey(name) ? _options.get(name) : defaultValue;
+    }
+
+    int getInt(String name,int defaultValue) {
+        return _options.containsKey(name) ? Integer.parseInt(_options.get(name)) : defaultValue;
+    }
+
+    long getLong(String name,long defaultValue) {
+        return _options.containsKey(name) ? Long.parseLong(_options.get(name)) : defaultValue;
+    }
+
+    double getDouble(String name,double defaultValue) {
+        return _options.containsKey(name) ? Double.parseDouble(_options.get(name)) : defaultValue;
+    }
+
+    boolean getFlag(String name) {
+        return _options.containsKey(name) && Boolean.parseBoolean(_options.get(name));
+    }
+
+    boolean getBoolean(String name,boolean defaultValue) {
+        return _options.containsKey(name) ? Boolean.parseBoolean(_options.get(name)) : defaultValue;
+    }
+}
@@ -0,0 +1,379 @@
+package edu.ucsd.calab.extrasensory.essstandin;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A lightweight stand-in for the ExtraSensory server (ESS), for offline end-to-end and load testing of the app's network code.
+ * It implements the same api endpoints as ESS/ess_wsgi_entry.py
+ * (upload_sensor_data, user_labels, user_labels_batch), with the same response fields,
+ * but instead of classifying the uploaded data it returns random predictions over the full label set.
+ *
+ * The latency of every response and the rate of failures can be configured, to see how the client behaves
+ * with a slow or failing server:
+ * --latency-ms, --latency-jitter-ms: delay before responding
+ * --failure-rate: probability to respond with HTTP 500
+ * --drop-rate: probability to close the connection without responding
+ * --no-batch: respond 404 to user_labels_batch (like a server that wasn't updated)
+ * --labels-dir: where the app's label lists are (default: the app's raw resources in this repository)
+ *
+ * ========================================
+ * The ExtraSensory App
+ * Please see ExtraSensory App website for details and citation requirements:
+ * http://extrasensory.ucsd.edu/ExtraSensoryApp
+ * ========================================
+ */
+public class ESStandinServer {
+
+    private static final String API_PREFIX = "/extrasensory/";
+    private static final String API_UPLOAD_ZIP = API_PREFIX + "upload_sensor_data";
+    private static final String API_FEEDBACK = API_PREFIX + "user_labels";
+    private static final String API_FEEDBACK_BATCH = API_PREFIX + "user_labels_batch";
+
+    private static final int PROB_SCALE = 10000;
+
+    private static final String[] REQUIRED_FEEDBACK_PARAMETERS = new String[]{
+            "uuid","timestamp","predicted_activity","corrected_activity","secondary_activities","moods","label_source"};
+
+    private final int _port;
+    private final long _latencyMillis;
+    private final long _latencyJitterMillis;
+    private final double _failureRate;
+    private final double _dropRate;
+    private final boolean _supportBatch;
+    private final int _numThreads;
+    private final String[] _labelNames;
+    private final String[] _mainActivities;
+    // The label names part of the upload response is the same for every response:
+    private final String _labelNamesJson;
+    private final Random _random = new Random();
+
+    private HttpServer _httpServer;
+    private ExecutorService _executor;
+
+    private final AtomicInteger _numUploads = new AtomicInteger(0);
+    private final AtomicInteger _numFeedbacks = new AtomicInteger(0);
+    private final AtomicInteger _numBatchFeedbacks = new AtomicInteger(0);
+    private final AtomicInteger _numFeedbacksInBatches = new AtomicInteger(0);
+    private final AtomicInteger _numInjectedFailures = new AtomicInteger(0);
+    private final AtomicInteger _numInjectedDrops = new AtomicInteger(0);
+
+    public ESStandinServer(int port,long latencyMillis,long latencyJitterMillis,double failureRate,double dropRate,
+                           boolean supportBatch,int numThreads,String labelsDir) throws IOException {
+        _port = port;
+        _latencyMillis = latencyMillis;
+        _latencyJitterMillis = latencyJitterMillis;
+        _failureRate = failureRate;
+        _dropRate = dropRate;
+        _supportBatch = supportBatch;
+        _numThreads = numThreads;
+
+        _mainActivities = standardizeLabels(readLabelsFromFile(new File(labelsDir,"main_activities_list.txt")));
+        ArrayList<String> labelNames = new ArrayList<>();
+        for (String label : _mainActivities) {
+            labelNames.add(label);
+        }
+        for (String label : standardizeLabels(readLabelsFromFile(new File(labelsDir,"secondary_activities_list.txt")))) {
+            labelNames.add(label);
+        }
+        for (String label : standardizeLabels(readLabelsFromFile(new File(labelsDir,"moods_list.txt")))) {
+            labelNames.add(label);
+        }
+        _labelNames = labelNames.toArray(new String[labelNames.size()]);
+
+        StringBuilder labelNamesJson = new StringBuilder(32 * _labelNames.length);
+        for (int i = 0; i < _labelNames.length; i ++) {
+            labelNamesJson.append(i > 0 ? ",\"" : "\"").append(_labelNames[i]).append('"');
+        }
+        _labelNamesJson = labelNamesJson.toString();
+    }
+
+    /**
+     * Start serving (in background threads).
+     * @return The port the server listens on (useful when asked for port 0)
+     * @throws IOException
+     */
+    public int start() throws IOException {
+        // The JDK's server writes the response headers and body separately. With Nagle's algorithm,
+        // the body then waits for the client's delayed ACK of the headers (tens of ms on every response):
+        System.setProperty("sun.net.httpserver.nodelay","true");
+        _httpServer = HttpServer.create(new InetSocketAddress(_port),128);
+        _httpServer.createContext(API_UPLOAD_ZIP,new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleUploadZip(exchange);
+            }
+        });
+        _httpServer.createContext(API_FEEDBACK_BATCH,new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleFeedbackBatch(exchange);
+            }
+        });
+        _httpServer.createContext(API_FEEDBACK,new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                handleFeedback(exchange);
+            }
+        });
+        _executor = Executors.newFixedThreadPool(_numThreads);
+        _httpServer.setExecutor(_executor);
+        _httpServer.start();
+        int port = _httpServer.getAddress().getPort();
+        System.out.println("ESS stand-in listening on port " + port + " with " + _labelNames.length + " labels. " + configString());
+        return port;
+    }
+
+    public void stop() {
+        _httpServer.stop(0);
+        _executor.shutdownNow();
+        System.out.println("ESS stand-in stopped. " + statsString());
+    }
+
+    public String configString() {
+        return String.format(Locale.US,"<latency: %d+-%dms, failure rate: %.3f, drop rate: %.3f, batch api: %b, threads: %d>",
+                _latencyMillis,_latencyJitterMillis,_failureRate,_dropRate,_supportBatch,_numThreads);
+    }
+
+    public String statsString() {
+        return "<uploads: " + _numUploads + ", feedbacks: " + _numFeedbacks + ", batch feedbacks: " + _numBatchFeedbacks +
+                " (with " + _numFeedbacksInBatches + " activities), injected failures: " + _numInjectedFailures +
+                ", injected drops: " + _numInjectedDrops + ">";
+    }
+
+    private void handleUploadZip(HttpExchange exchange) throws IOException {
+        byte[] body = readFully(exchange.getRequestBody());
+        if (injectLatencyAndFailures(exchange)) {
+            return;
+        }
+        HashMap<String,String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+        // The multipart part header has the zip filename, which is <timestamp>-<uuid>.zip
+        String filename = extractMultipartFilename(body);
+        if (filename == null) {
+            respond(exchange,200,"{\"api_type\":\"upload_sensor_data\",\"filename\":null,\"success\":false," +
+                    "\"predicted_activity\":\"none\",\"timestamp\":0,\"msg\":\"Missing file\"," +
+                    "\"label_names\":[],\"label_probs\":[],\"location_lat_long\":null}");
+            return;
+        }
+        int dash = filename.indexOf('-');
+        String timestamp = dash > 0 ? filename.substring(0,dash) : "0";
+        _numUploads.incrementAndGet();
+
+        StringBuilder json = new StringBuilder(64 * _labelNames.length);
+        // Probabilities with 4 decimal digits, kept as integers (formatting doubles would dominate the response time):
+        int[] probs = new int[_labelNames.length];
+        String predictedActivity = "none";
+        int bestMainProb = -1;
+        for (int i = 0; i < probs.length; i ++) {
+            probs[i] = _random.nextInt(PROB_SCALE);
+            if (i < _mainActivities.length && probs[i] > bestMainProb) {
+                bestMainProb = probs[i];
+                predictedActivity = _labelNames[i];
+            }
+        }
+        json.append("{\"api_type\":\"upload_sensor_data\",\"filename\":\"").append(filename)
+                .append("\",\"success\":true,\"predicted_activity\":\"").append(predictedActivity)
+                .append("\",\"timestamp\":").append(timestamp)
+                .append(",\"msg\":\"\",\"label_names\":[").append(_labelNamesJson);
+        json.append("],\"label_probs\":[");
+        for (int i = 0; i < probs.length; i ++) {
+            json.append(i > 0 ? ",0." : "0.");
+            for (int digit = PROB_SCALE / 10; digit > 1 && probs[i] < digit; digit /= 10) {
+                json.append('0');
+            }
+            json.append(probs[i]);
+        }
+        json.append("],\"location_lat_long\":[32.8801,-117.2340],\"classifier_type\":\"")
+                .append(query.get("classifier_type")).append("\",\"classifier_name\":\"")
+                .append(query.get("classifier_name")).append("\"}");
+        respond(exchange,200,json.toString());
+    }
+
+    private void handleFeedback(HttpExchange exchange) throws IOException {
+        readFully(exchange.getRequestBody());
+        if (injectLatencyAndFailures(exchange)) {
+            return;
+        }
+        HashMap<String,String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String timestamp = query.containsKey("timestamp") ? query.get("timestamp") : "0";
+        for (String parameter : REQUIRED_FEEDBACK_PARAMETERS) {
+            if (!query.containsKey(parameter)) {
+                respond(exchange,200,"{\"api_type\":\"user_labels\",\"success\":false,\"timestamp\":" + timestamp +
+                        ",\"msg\":\"Missing " + parameter + "\"}");
+                return;
+            }
+        }
+        _numFeedbacks.incrementAndGet();
+        respond(exchange,200,"{\"api_type\":\"user_labels\",\"success\":true,\"timestamp\":" + timestamp + "}");
+    }
+
+    private void handleFeedbackBatch(HttpExchange exchange) throws IOException {
+        byte[] body = readFully(exchange.getRequestBody());
+        if (!_supportBatch) {
+            respond(exchange,404,"Not Found");
+            return;
+        }
+        if (injectLatencyAndFailures(exchange)) {
+            return;
+        }
+        // Not a full JSON parse: every feedback item has a single timestamp field.
+        String bodyStr = new String(body,"UTF-8");
+        int numItems = countOccurrences(bodyStr,"\"timestamp\":");
+        _numBatchFeedbacks.incrementAndGet();
+        _numFeedbacksInBatches.addAndGet(numItems);
+        respond(exchange,200,"{\"api_type\":\"user_labels_batch\",\"success\":true,\"num_feedbacks\":" + numItems + "}");
+    }
+
+    /**
+     * Wait the configured latency, and possibly inject a failure.
+     * @return true iff a failure was injected (and the exchange is done)
+     */
+    private boolean injectLatencyAndFailures(HttpExchange exchange) throws IOException {
+        long delay = _latencyMillis;
+        if (_latencyJitterMillis > 0) {
+            delay += (long)((2 * _random.nextDouble() - 1) * _latencyJitterMillis);
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        double draw = _random.nextDouble();
+        if (draw < _dropRate) {
+            _numInjectedDrops.incrementAndGet();
+            // Close without any response:
+            exchange.close();
+            return true;
+        }
+        if (draw < _dropRate + _failureRate) {
+            _numInjectedFailures.incrementAndGet();
+            respond(exchange,500,"Internal Server Error (injected)");
+            return true;
+        }
+        return false;
+    }
+
+    private static void respond(HttpExchange exchange,int code,String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type",code == 200 ? "application/json" : "text/plain");
+        exchange.sendResponseHeaders(code,bytes.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(bytes);
+        outputStream.close();
+    }
+
+    private static String extractMultipartFilename(byte[] body) throws IOException {
+        // The part header is at the start of the body:
+        String head = new String(body,0,Math.min(body.length,1024),"ISO-8859-1");
+        String marker = "filename=\"";
+        int start = head.indexOf(marker);
+        if (start < 0) {
+            return null;
+        }
+        start += marker.length();
+        int end = head.indexOf('"',start);
+        return end > start ? head.substring(start,end) : null;
+    }
+
+    private static HashMap<String,String> parseQuery(String rawQuery) throws IOException {
+        HashMap<String,String> parameters = new HashMap<>();
+        if (rawQuery == null) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0,eq),"UTF-8"),URLDecoder.decode(pair.substring(eq + 1),"UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    private static int countOccurrences(String str,String pattern) {
+        int count = 0;
+        int index = str.indexOf(pattern);
+        while (index >= 0) {
+            count ++;
+            index = str.indexOf(pattern,index + pattern.length());
+        }
+        return count;
+    }
+
+    static byte[] readFully(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(4096);
+        byte[] buffer = new byte[8192];
+        int bytesRead;
+        while ((bytesRead = inputStream.read(buffer)) > 0) {
+            outputStream.write(buffer,0,bytesRead);
+        }
+        inputStream.close();
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Read the labels from one of the app's label list files (app/src/main/res/raw).
+     * Every line has a single label, possibly followed by a pipe and the label's subjects.
+     */
+    private static String[] readLabelsFromFile(File file) throws IOException {
+        ArrayList<String> labels = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),"UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String label = line.split("\\|")[0].trim();
+            if (!label.isEmpty()) {
+                labels.add(label);
+            }
+        }
+        reader.close();
+        return labels.toArray(new String[labels.size()]);
+    }
+
+    /**
+     * Standardize label names the way the app does before sending them on the network
+     * (see ESLabelStrings.standardizeLabelForNetwork()).
+     */
+    private static String[] standardizeLabels(String[] labels) {
+        String[] standardLabels = new String[labels.length];
+        for (int i = 0; i < labels.length; i ++) {
+            standardLabels[i] = labels[i].replace(' ','_').replace('\'','_').replace('(','_').replace(')','_').toUpperCase(Locale.US);
+        }
+        return standardLabels;
+    }
+
+    public static void main(String[] args) throws IOException {
+        ESStandinOptions options = new ESStandinOptions(args);
+        ESStandinServer server = new ESStandinServer(
+                options.getInt("port",8080),
+                options.getLong("latency-ms",200),
+                options.getLong("latency-jitter-ms",100),
+                options.getDouble("failure-rate",0.0),
+                options.getDouble("drop-rate",0.0),
+                !options.getFlag("no-batch"),
+                options.getInt("threads",4),
+                options.getLabelsDir());
+        server.start();
+    }
+}
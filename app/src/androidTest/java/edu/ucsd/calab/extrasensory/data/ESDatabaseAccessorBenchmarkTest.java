@@ -0,0 +1,368 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import android.util.Log;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Benchmark the database accessor on a separate database with a few days of minute-activities:
+ * single-minute lookups (like the feedback and notification flows do), day-range scans (like the history does)
+ * and label counts (like the summary does).
+ */
+public class ESDatabaseAccessorBenchmarkTest extends ESDatabaseTestCase {
+
+    private static final String LOG_TAG = "[ESDatabaseAccessorBenchmarkTest]";
+    private static final int SECONDS_IN_DAY = 86400;
+    private static final int NUM_DAYS = 3;
+    private static final int NUM_LOOKUPS = 2000;
+    private static final int NUM_DAY_SCANS = 20;
+
+    private int _firstTimestamp;
+    private int _numActivities;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        _firstTimestamp = new ESTimestamp().get_secondsSinceEpoch() - NUM_DAYS * SECONDS_IN_DAY;
+        _firstTimestamp -= _firstTimestamp % 60;
+        _numActivities = NUM_DAYS * SECONDS_IN_DAY / 60;
+        String[] mainActivities = ESLabelStrings.getMainActivities();
+        long start = System.nanoTime();
+        for (int i = 0; i < _numActivities; i ++) {
+            ESActivity activity = _accessor.createNewActivity(new ESTimestamp(_firstTimestamp + 60 * i));
+            if (i % 3 == 0) {
+                _accessor.setESActivityUserCorrectedValuesAndPossiblySendFeedback(activity,
+                        ESActivity.ESLabelSource.ES_LABEL_SOURCE_ACTIVE_START,
+                        mainActivities[(i / 30) % mainActivities.length],new String[]{},new String[]{},
+                        null,null,null,null,false);
+            }
+        }
+        logRate("inserts (with labels for a third)",_numActivities,System.nanoTime() - start);
+    }
+
+    public void testSingleMinuteLookups() {
+        Random random = new Random(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < NUM_LOOKUPS; i ++) {
+            ESTimestamp timestamp = new ESTimestamp(_firstTimestamp + 60 * random.nextInt(_numActivities));
+            ESActivity activity = _accessor.getESActivity(timestamp);
+            assertNotNull(activity);
+            assertEquals(timestamp,activity.get_timestamp());
+        }
+        logRate("single-minute lookups",NUM_LOOKUPS,System.nanoTime() - start);
+    }
+
+    public void testDayRangeScans() {
+        long start = System.nanoTime();
+        for (int i = 0; i < NUM_DAY_SCANS; i ++) {
+            int dayStart = _firstTimestamp + (i % NUM_DAYS) * SECONDS_IN_DAY;
+            ESActivity[] activities = _accessor.getActivitiesFromTimeRange(
+                    new ESTimestamp(dayStart),new ESTimestamp(dayStart + SECONDS_IN_DAY - 1));
+            assertEquals(SECONDS_IN_DAY / 60,activities.length);
+        }
+        logRate("day-range scans",NUM_DAY_SCANS,System.nanoTime() - start);
+    }
+
+    public void testVisitingAllHistoryInPages() {
+        final int[] numVisited = new int[1];
+        final int[] lastSeconds = new int[]{-1};
+        long start = System.nanoTime();
+        int numReported = _accessor.visitActivitiesInTimeRange(new ESTimestamp(0),new ESTimestamp(),
+                new ESDatabaseAccessor.ESActivityVisitor() {
+                    @Override
+                    public boolean visit(ESActivity activity) {
+                        int seconds = activity.get_timestamp().get_secondsSinceEpoch();
+                        assertTrue(seconds > lastSeconds[0]);
+                        lastSeconds[0] = seconds;
+                        numVisited[0] ++;
+                        return true;
+                    }
+                });
+        logRate("activities visited in pages",numReported,System.nanoTime() - start);
+        assertEquals(_numActivities,numReported);
+        assertEquals(_numActivities,numVisited[0]);
+        assertEquals(_firstTimestamp + 60 * (_numActivities - 1),lastSeconds[0]);
+
+        // The visitor can stop early:
+        int numBeforeStop = _accessor.visitActivitiesInTimeRange(new ESTimestamp(0),new ESTimestamp(),
+                new ESDatabaseAccessor.ESActivityVisitor() {
+                    private int _count = 0;
+                    @Override
+                    public boolean visit(ESActivity activity) {
+                        _count ++;
+                        return _count < 1234;
+                    }
+                });
+        assertEquals(1234,numBeforeStop);
+    }
+
+    public void testLabelCountsAndFiltering() {
+        int numLabeled = (_numActivities + 2) / 3;
+        long start = System.nanoTime();
+        Map<String,Integer> counts = _accessor.getLabelCounts(null,ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MAIN);
+        logRate("label counts of all history",1,System.nanoTime() - start);
+
+        int total = 0;
+        for (int count : counts.values()) {
+            total += count;
+        }
+        assertEquals(numLabeled,total);
+
+        String label = ESLabelStrings.getMainActivities()[0];
+        start = System.nanoTime();
+        ESTimestamp[] timestamps = _accessor.getTimestampsOfActivitiesWithLabel(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MAIN,label,
+                new ESTimestamp(_firstTimestamp),new ESTimestamp(_firstTimestamp + NUM_DAYS * SECONDS_IN_DAY));
+        logRate("label filters of all history",1,System.nanoTime() - start);
+        assertEquals(counts.get(label).intValue(),timestamps.length);
+    }
+
+    public void testLabelCountersFollowRelabeling() {
+        String[] mainActivities = ESLabelStrings.getMainActivities();
+        String oldLabel = mainActivities[0];
+        String newLabel = mainActivities[1];
+        Map<String,Integer> countsBefore = _accessor.getLabelCounts(null,ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MAIN);
+        ESActivity activity = _accessor.getESActivity(new ESTimestamp(_firstTimestamp));
+        assertEquals(oldLabel,activity.get_mainActivityUserCorrection());
+
+        _accessor.setESActivityUserCorrectedValuesAndPossiblySendFeedback(activity,
+                ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,newLabel,new String[]{},new String[]{},
+                null,null,null,null,false);
+        // Setting the same labels again shouldn't change the counts:
+        _accessor.setESActivityUserCorrectedValuesAndPossiblySendFeedback(activity,
+                ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,newLabel,new String[]{},new String[]{},
+                null,null,null,null,false);
+
+        Map<String,Integer> countsAfter = _accessor.getLabelCounts(null,ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MAIN);
+        assertEquals(countsBefore.get(oldLabel) - 1,countsAfter.get(oldLabel).intValue());
+        assertEquals(countsBefore.get(newLabel) + 1,countsAfter.get(newLabel).intValue());
+        // And the counters should agree with the aggregation over the activity-label table:
+        assertEquals(countsAfter,_accessor.getLabelCounts(new ESTimestamp(0),ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MAIN));
+    }
+
+    public void testActivityCacheWritesThroughAndCopiesOnRead() {
+        ESTimestamp timestamp = new ESTimestamp(_firstTimestamp + 60);
+        ESActivity activity = _accessor.getESActivity(timestamp);
+        int hitsBefore = _accessor.get_activityCacheHits();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < NUM_LOOKUPS; i ++) {
+            assertNotNull(_accessor.getESActivity(timestamp));
+        }
+        logRate("repeated lookups of the same minute",NUM_LOOKUPS,System.nanoTime() - start);
+        assertEquals(hitsBefore + NUM_LOOKUPS,_accessor.get_activityCacheHits());
+
+        // Changing a returned object shouldn't change the cached activity:
+        ESActivity readActivity = _accessor.getESActivity(timestamp);
+        readActivity.set_mainActivityUserCorrection("changed without the database");
+        assertNull(_accessor.getESActivity(timestamp).get_mainActivityUserCorrection());
+
+        // A write should be seen by the next read (from the cache):
+        String label = ESLabelStrings.getMainActivities()[0];
+        _accessor.setESActivityUserCorrectedValuesAndPossiblySendFeedback(activity,
+                ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,label,new String[]{},new String[]{},
+                null,null,null,null,false);
+        hitsBefore = _accessor.get_activityCacheHits();
+        ESActivity updated = _accessor.getESActivity(timestamp);
+        assertEquals(hitsBefore + 1,_accessor.get_activityCacheHits());
+        assertEquals(label,updated.get_mainActivityUserCorrection());
+        assertEquals(ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,updated.get_labelSource());
+        Log.i(LOG_TAG,"Activity cache: " + _accessor.get_activityCacheHits() + " hits, " +
+                _accessor.get_activityCacheMisses() + " misses");
+    }
+
+    public void testDayHistoryRefreshes() {
+        ESTimestamp dayStart = new ESTimestamp(_firstTimestamp + SECONDS_IN_DAY);
+        ESTimestamp dayEnd = new ESTimestamp(_firstTimestamp + 2 * SECONDS_IN_DAY - 1);
+        long start = System.nanoTime();
+        ESContinuousActivity[] cold = _accessor.getContinuousActivitiesFromTimeRange(dayStart,dayEnd,true);
+        logRate("full-day refreshes (read and merge)",1,System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < NUM_DAY_SCANS; i ++) {
+            assertEquals(cold.length,_accessor.getContinuousActivitiesFromTimeRange(dayStart,dayEnd,true).length);
+        }
+        logRate("full-day refreshes with no changes",NUM_DAY_SCANS,System.nanoTime() - start);
+
+        // Edit minutes in the middle of the day, and compare to merging the day from scratch:
+        String[] mainActivities = ESLabelStrings.getMainActivities();
+        start = System.nanoTime();
+        for (int i = 0; i < NUM_DAY_SCANS; i ++) {
+            ESActivity activity = _accessor.getESActivity(new ESTimestamp(dayStart.get_secondsSinceEpoch() + 60 * (100 + 37 * i)));
+            _accessor.setESActivityUserCorrectedValuesAndPossiblySendFeedback(activity,
+                    ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,mainActivities[i % mainActivities.length],
+                    new String[]{},new String[]{},null,null,null,null,false);
+            _accessor.getContinuousActivitiesFromTimeRange(dayStart,dayEnd,true);
+        }
+        logRate("edits followed by full-day refreshes",NUM_DAY_SCANS,System.nanoTime() - start);
+        assertSameContinuousActivities(
+                ESContinuousActivity.mergeContinuousActivities(_accessor.getActivitiesFromTimeRange(dayStart,dayEnd),true),
+                _accessor.getContinuousActivitiesFromTimeRange(dayStart,dayEnd,true));
+    }
+
+    public void testLabelingFourHourBlock() {
+        int blockMinutes = 4 * 60;
+        String[] mainActivities = ESLabelStrings.getMainActivities();
+        String[] secondaryActivities = ESLabelStrings.getSecondaryActivities();
+        ESActivity[] firstBlock = _accessor.getActivitiesFromTimeRange(new ESTimestamp(_firstTimestamp),
+                new ESTimestamp(_firstTimestamp + 60 * blockMinutes - 1));
+        ESActivity[] secondBlock = _accessor.getActivitiesFromTimeRange(new ESTimestamp(_firstTimestamp + 60 * blockMinutes),
+                new ESTimestamp(_firstTimestamp + 2 * 60 * blockMinutes - 1));
+        assertEquals(blockMinutes,firstBlock.length);
+        assertEquals(blockMinutes,secondBlock.length);
+
+        long start = System.nanoTime();
+        for (ESActivity activity : firstBlock) {
+            _accessor.setESActivityUserCorrectedValuesAndPossiblySendFeedback(activity,
+                    ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,mainActivities[1],
+                    new String[]{secondaryActivities[0]},new String[]{},null,null,null,null,false);
+        }
+        logRate("minutes labeled one by one",blockMinutes,System.nanoTime() - start);
+
+        start = System.nanoTime();
+        _accessor.setESActivitiesUserCorrectedValuesAndPossiblySendFeedback(secondBlock,
+                ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,mainActivities[1],
+                new String[]{secondaryActivities[0]},new String[]{},null,null,null,null,false);
+        logRate("minutes labeled in bulk",blockMinutes,System.nanoTime() - start);
+
+        ESTimestamp[] labeled = _accessor.getTimestampsOfActivitiesWithLabel(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_SECONDARY,
+                secondaryActivities[0],new ESTimestamp(_firstTimestamp),new ESTimestamp(_firstTimestamp + 2 * 60 * blockMinutes - 1));
+        assertEquals(2 * blockMinutes,labeled.length);
+        assertEquals(mainActivities[1],_accessor.getESActivity(secondBlock[blockMinutes - 1].get_timestamp()).get_mainActivityUserCorrection());
+    }
+
+    public void testPredictionsStorage() {
+        int dayMinutes = SECONDS_IN_DAY / 60;
+        String[] mainActivities = ESLabelStrings.getMainActivities();
+        String[] predictedLabelNames = ESLabelStrings.getSecondaryActivities();
+        Random random = new Random(0);
+        ESActivity[] day = _accessor.getActivitiesFromTimeRange(new ESTimestamp(_firstTimestamp),
+                new ESTimestamp(_firstTimestamp + SECONDS_IN_DAY - 1));
+        assertEquals(dayMinutes,day.length);
+
+        long numTextBytes = 0;
+        long numBlobBytes = 0;
+        double[][] probs = new double[dayMinutes][];
+        for (int i = 0; i < dayMinutes; i ++) {
+            probs[i] = new double[predictedLabelNames.length];
+            for (int j = 0; j < probs[i].length; j ++) {
+                probs[i][j] = random.nextDouble();
+            }
+            double[] latLong = new double[]{32.880 + random.nextDouble() / 100,-117.234 - random.nextDouble() / 100};
+            _accessor.setESActivityServerPrediction(day[i],mainActivities[0],predictedLabelNames,probs[i],latLong);
+            numTextBytes += ESLabelStrings.makeCSV(predictedLabelNames).length() + ESLabelStrings.makeCSV(probs[i]).length() +
+                    ESLabelStrings.makeCSV(latLong).length();
+            numBlobBytes += ESActivityRowMapper.encodeLatLong(latLong).length + 6 * predictedLabelNames.length;
+        }
+        Log.i(LOG_TAG,"Predictions and location of a day: " + numTextBytes + " bytes as text, " + numBlobBytes + " bytes encoded");
+        Log.i(LOG_TAG,"Database file size: " + getContext().getDatabasePath(getDatabaseName()).length() + " bytes");
+
+        long start = System.nanoTime();
+        for (int i = 0; i < NUM_DAY_SCANS; i ++) {
+            day = _accessor.getActivitiesFromTimeRange(new ESTimestamp(_firstTimestamp),
+                    new ESTimestamp(_firstTimestamp + SECONDS_IN_DAY - 1));
+        }
+        logRate("day-range scans with predictions",NUM_DAY_SCANS,System.nanoTime() - start);
+
+        // The predictions come back (in label-id order) with float precision, and the location with microdegree precision:
+        for (int i = 0; i < dayMinutes; i ++) {
+            Map<String,Double> predictions = day[i].get_predictedLabelNameAndProbPairs();
+            assertEquals(predictedLabelNames.length,predictions.size());
+            for (int j = 0; j < predictedLabelNames.length; j ++) {
+                assertEquals(probs[i][j],predictions.get(predictedLabelNames[j]),1e-6);
+            }
+            assertEquals(2,day[i].get_locationLatLong().length);
+            assertEquals(32.885,day[i].get_locationLatLong()[0],0.006);
+        }
+    }
+
+    public void testSwitchingHistoryTimeUnits() {
+        ESTimestamp dayStart = new ESTimestamp(_firstTimestamp + SECONDS_IN_DAY);
+        ESTimestamp dayEnd = new ESTimestamp(_firstTimestamp + 2 * SECONDS_IN_DAY - 1);
+        int[] timeUnits = new int[]{1,5,10,15,20,30};
+        int originalTimeUnit = ESSettings.historyTimeUnitInMinutes();
+        try {
+            // The first time each time unit is requested, the day is merged with it:
+            long start = System.nanoTime();
+            for (int timeUnit : timeUnits) {
+                ESSettings.setHistoryTimeUnitInMinutes(timeUnit);
+                _accessor.getContinuousActivitiesFromTimeRange(dayStart,dayEnd,true);
+            }
+            logRate("first switches of time unit",timeUnits.length,System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < NUM_DAY_SCANS; i ++) {
+                ESSettings.setHistoryTimeUnitInMinutes(timeUnits[i % timeUnits.length]);
+                _accessor.getContinuousActivitiesFromTimeRange(dayStart,dayEnd,true);
+            }
+            logRate("later switches of time unit",NUM_DAY_SCANS,System.nanoTime() - start);
+
+            // Edit a minute, and compare every time unit to merging the day from scratch:
+            ESActivity activity = _accessor.getESActivity(new ESTimestamp(dayStart.get_secondsSinceEpoch() + 60 * 500));
+            _accessor.setESActivityUserCorrectedValuesAndPossiblySendFeedback(activity,
+                    ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,ESLabelStrings.getMainActivities()[3],
+                    new String[]{},new String[]{},null,null,null,null,false);
+            ESActivity[] minuteActivities = _accessor.getActivitiesFromTimeRange(dayStart,dayEnd);
+            for (int timeUnit : timeUnits) {
+                ESSettings.setHistoryTimeUnitInMinutes(timeUnit);
+                assertSameContinuousActivities(ESContinuousActivity.mergeContinuousActivities(minuteActivities,true,timeUnit),
+                        _accessor.getContinuousActivitiesFromTimeRange(dayStart,dayEnd,true));
+            }
+        }
+        finally {
+            ESSettings.setHistoryTimeUnitInMinutes(originalTimeUnit);
+        }
+    }
+
+    public void testScrollingDayHistory() {
+        ESTimestamp dayStart = new ESTimestamp(_firstTimestamp);
+        ESTimestamp dayEnd = new ESTimestamp(_firstTimestamp + SECONDS_IN_DAY - 1);
+        ESContinuousActivity[] rows = _accessor.getContinuousActivitiesFromTimeRange(dayStart,dayEnd,true);
+
+        // Bind every row a few times, the way scrolling the history back and forth does:
+        int numBinds = 0;
+        long start = System.nanoTime();
+        for (int pass = 0; pass < 5; pass ++) {
+            for (ESContinuousActivity row : rows) {
+                if (row.isUnrecordedGap()) {
+                    continue;
+                }
+                row.getMainActivityUserCorrection();
+                row.getMainActivityServerPrediction();
+                row.getMoods();
+                row.getSecondaryActivitiesOrServerGuesses();
+                row.getPredictionLabelsSortedByProb();
+                numBinds ++;
+            }
+        }
+        logRate("history row binds",numBinds,System.nanoTime() - start);
+
+        // Changing the labels of the minutes should be reflected in the (memoized) aggregates:
+        ESContinuousActivity row = rows[0];
+        String mainActivity = ESLabelStrings.getMainActivities()[2];
+        String mood = ESLabelStrings.getMoods()[1];
+        _accessor.setESActivitiesUserCorrectedValuesAndPossiblySendFeedback(row.getMinuteActivities(),
+                ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,mainActivity,new String[]{},new String[]{mood},
+                null,null,null,null,false);
+        assertEquals(mainActivity,row.getMainActivityUserCorrection());
+        assertTrue(row.hasUserProvidedLabels());
+        assertEquals(1,row.getMoods().length);
+        assertEquals(mood,row.getMoods()[0]);
+    }
+
+    private static void assertSameContinuousActivities(ESContinuousActivity[] expected,ESContinuousActivity[] actual) {
+        assertEquals(expected.length,actual.length);
+        for (int i = 0; i < expected.length; i ++) {
+            assertEquals(expected[i].isUnrecordedGap(),actual[i].isUnrecordedGap());
+            assertEquals(expected[i].getStartTimestamp(),actual[i].getStartTimestamp());
+            assertEquals(expected[i].getEndTimestamp(),actual[i].getEndTimestamp());
+            assertEquals(expected[i].getMainActivityUserCorrection(),actual[i].getMainActivityUserCorrection());
+        }
+    }
+
+    private static void logRate(String what,int count,long nanos) {
+        Log.i(LOG_TAG,String.format("%d %s in %.1fms: %.1f per second",
+                count,what,nanos / 1e6,count / (nanos / 1e9)));
+    }
+}
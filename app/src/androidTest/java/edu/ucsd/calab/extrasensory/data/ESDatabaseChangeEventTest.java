@@ -0,0 +1,43 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import android.content.Intent;
+import android.test.AndroidTestCase;
+
+/**
+ * Check the coalescing of database change events, and passing them in the records-updated broadcast.
+ */
+public class ESDatabaseChangeEventTest extends AndroidTestCase {
+
+    public void testCoalescedChangeCoversAllChanges() {
+        ESDatabaseChangeEvent change = new ESDatabaseChangeEvent(new ESTimestamp(1000),
+                ESDatabaseChangeEvent.ESChangeKind.ES_CHANGE_KIND_CREATED);
+        for (int i = 1; i <= 10; i ++) {
+            change = change.mergedWith(new ESDatabaseChangeEvent(new ESTimestamp(1000 - 60 * i),
+                    ESDatabaseChangeEvent.ESChangeKind.ES_CHANGE_KIND_UPDATED));
+        }
+
+        assertEquals(11,change.get_numChanges());
+        assertEquals(new ESTimestamp(400),change.get_fromTimestamp());
+        assertEquals(new ESTimestamp(1000),change.get_toTimestamp());
+        assertTrue(change.includes(ESDatabaseChangeEvent.ESChangeKind.ES_CHANGE_KIND_CREATED));
+        assertTrue(change.includes(ESDatabaseChangeEvent.ESChangeKind.ES_CHANGE_KIND_UPDATED));
+        assertFalse(change.includes(ESDatabaseChangeEvent.ESChangeKind.ES_CHANGE_KIND_LABELS_CHANGED));
+        assertTrue(change.overlaps(new ESTimestamp(0),new ESTimestamp(400)));
+        assertFalse(change.overlaps(new ESTimestamp(1001),new ESTimestamp(2000)));
+    }
+
+    public void testChangeThroughIntent() {
+        ESDatabaseChangeEvent change = new ESDatabaseChangeEvent(new ESTimestamp(1000),
+                ESDatabaseChangeEvent.ESChangeKind.ES_CHANGE_KIND_UPDATED,ESDatabaseChangeEvent.ESChangeKind.ES_CHANGE_KIND_LABELS_CHANGED);
+        ESDatabaseChangeEvent received = ESDatabaseChangeEvent.fromIntent(change.toIntent());
+        assertEquals(change.get_fromTimestamp(),received.get_fromTimestamp());
+        assertEquals(change.get_toTimestamp(),received.get_toTimestamp());
+        assertTrue(received.includes(ESDatabaseChangeEvent.ESChangeKind.ES_CHANGE_KIND_LABELS_CHANGED));
+        assertFalse(received.includes(ESDatabaseChangeEvent.ESChangeKind.ES_CHANGE_KIND_CREATED));
+
+        // A broadcast without a change description should be treated as a change of anything:
+        ESDatabaseChangeEvent unknown = ESDatabaseChangeEvent.fromIntent(new Intent(ESDatabaseAccessor.BROADCAST_DATABASE_RECORDS_UPDATED));
+        assertTrue(unknown.includes(ESDatabaseChangeEvent.ESChangeKind.ES_CHANGE_KIND_LABELS_CHANGED));
+        assertTrue(unknown.overlaps(new ESTimestamp(),new ESTimestamp()));
+    }
+}
@@ -0,0 +1,143 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Benchmark the database accessor under contention, on a separate database:
+ * a recording thread creating minute-activities, an upload thread writing server predictions
+ * and a UI thread scanning the day's history, all at the same time.
+ * Reports the operations per second and the latencies of each kind.
+ */
+public class ESDatabaseContentionBenchmarkTest extends ESDatabaseTestCase {
+
+    private static final String LOG_TAG = "[ESDatabaseContentionBenchmarkTest]";
+    private static final int SECONDS_IN_DAY = 86400;
+    private static final long RUN_MILLIS = 5000;
+
+    private int _dayStart;
+    private String[] _labelNames;
+    private double[] _labelProbs;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        _dayStart = new ESTimestamp().get_secondsSinceEpoch() - 2 * SECONDS_IN_DAY;
+        _dayStart -= _dayStart % 60;
+        for (int i = 0; i < SECONDS_IN_DAY / 60; i ++) {
+            _accessor.createNewActivity(new ESTimestamp(_dayStart + 60 * i));
+        }
+        _labelNames = ESLabelStrings.getSecondaryActivities();
+        _labelProbs = new double[_labelNames.length];
+        Arrays.fill(_labelProbs,0.5);
+    }
+
+    /**
+     * Runs one kind of operation in a loop, and keeps its latencies.
+     */
+    private abstract class ESOperationLoop extends Thread {
+        private final String _name;
+        private final AtomicBoolean _stop;
+        private final CountDownLatch _done;
+        private long[] _latenciesNanos = new long[1024];
+        private int _count = 0;
+        private int _numFailed = 0;
+
+        ESOperationLoop(String name,AtomicBoolean stop,CountDownLatch done) {
+            _name = name;
+            _stop = stop;
+            _done = done;
+        }
+
+        /**
+         * @return Did the operation get the expected result?
+         */
+        abstract boolean runOperation(int iteration);
+
+        @Override
+        public void run() {
+            try {
+                while (!_stop.get()) {
+                    long start = System.nanoTime();
+                    if (!runOperation(_count)) {
+                        _numFailed ++;
+                    }
+                    if (_count == _latenciesNanos.length) {
+                        _latenciesNanos = Arrays.copyOf(_latenciesNanos,2 * _count);
+                    }
+                    _latenciesNanos[_count] = System.nanoTime() - start;
+                    _count ++;
+                }
+            }
+            finally {
+                _done.countDown();
+            }
+        }
+
+        String report(long runNanos) {
+            long[] sorted = Arrays.copyOf(_latenciesNanos,_count);
+            Arrays.sort(sorted);
+            double p50 = _count == 0 ? 0 : sorted[_count / 2] / 1e6;
+            double p99 = _count == 0 ? 0 : sorted[Math.min(_count - 1,(int)(0.99 * _count))] / 1e6;
+            double max = _count == 0 ? 0 : sorted[_count - 1] / 1e6;
+            return String.format("%s: %d ops (%.1f per second, %d failed). Latency p50 %.2fms, p99 %.2fms, max %.2fms",
+                    _name,_count,_count / (runNanos / 1e9),_numFailed,p50,p99,max);
+        }
+    }
+
+    public void testMixedRecordingUploadAndHistory() throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final CountDownLatch done = new CountDownLatch(3);
+        final int recordingStart = _dayStart + SECONDS_IN_DAY;
+        final Random random = new Random(0);
+
+        ESOperationLoop recording = new ESOperationLoop("recording ticks (create)",stop,done) {
+            @Override
+            boolean runOperation(int iteration) {
+                return _accessor.createNewActivity(new ESTimestamp(recordingStart + 60 * iteration)) != null;
+            }
+        };
+        ESOperationLoop upload = new ESOperationLoop("upload responses (prediction update)",stop,done) {
+            @Override
+            boolean runOperation(int iteration) {
+                ESActivity activity = new ESActivity(new ESTimestamp(_dayStart + 60 * (iteration % (SECONDS_IN_DAY / 60))));
+                _accessor.setESActivityValuesAndPossiblySendFeedback(activity,activity.get_labelSource(),
+                        _labelNames[iteration % _labelNames.length],null,null,null,
+                        _labelNames,_labelProbs,new double[]{32.88,-117.23},
+                        null,null,null,null,false);
+                return true;
+            }
+        };
+        ESOperationLoop history = new ESOperationLoop("history day scans (read)",stop,done) {
+            @Override
+            boolean runOperation(int iteration) {
+                int from = _dayStart + 60 * random.nextInt(60);
+                ESActivity[] activities = _accessor.getActivitiesFromTimeRange(
+                        new ESTimestamp(from),new ESTimestamp(from + SECONDS_IN_DAY / 2));
+                return activities.length > 0;
+            }
+        };
+
+        long start = System.nanoTime();
+        recording.start();
+        upload.start();
+        history.start();
+        Thread.sleep(RUN_MILLIS);
+        stop.set(true);
+        done.await();
+        long runNanos = System.nanoTime() - start;
+
+        Log.i(LOG_TAG,recording.report(runNanos));
+        Log.i(LOG_TAG,upload.report(runNanos));
+        Log.i(LOG_TAG,history.report(runNanos));
+        assertTrue(recording._count > 0);
+        assertTrue(upload._count > 0);
+        assertTrue(history._count > 0);
+        assertEquals(0,recording._numFailed + upload._numFailed + history._numFailed);
+    }
+}
@@ -0,0 +1,38 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import android.test.AndroidTestCase;
+
+/**
+ * A test case that works on its own database (named after the test class, so it never touches the app's data),
+ * which is created empty before each test and deleted after it.
+ */
+abstract class ESDatabaseTestCase extends AndroidTestCase {
+
+    protected ESDatabaseAccessor _accessor;
+
+    protected String getDatabaseName() {
+        return getClass().getSimpleName() + ".db";
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(getDatabaseName());
+        _accessor = new ESDatabaseAccessor(getContext(),getDatabaseName());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        _accessor.close();
+        getContext().deleteDatabase(getDatabaseName());
+        super.tearDown();
+    }
+
+    /**
+     * Close the database and open it again (like when the app process restarts).
+     */
+    protected void reopenDatabase() {
+        _accessor.close();
+        _accessor = new ESDatabaseAccessor(getContext(),getDatabaseName());
+    }
+}
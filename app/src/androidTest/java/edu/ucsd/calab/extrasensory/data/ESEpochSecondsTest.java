@@ -0,0 +1,35 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import android.test.AndroidTestCase;
+
+import java.util.Calendar;
+import java.util.Random;
+
+/**
+ * Check the epoch-seconds time arithmetic against Calendar (over two years, so daylight saving changes are included).
+ */
+public class ESEpochSecondsTest extends AndroidTestCase {
+    private static final int NUM_SAMPLES = 20000;
+    private static final int SECONDS_IN_TWO_YEARS = 2 * 365 * ESEpochSeconds.SECONDS_IN_24_HOURS;
+
+    public void testAgreesWithCalendar() {
+        Random random = new Random(0);
+        int now = ESEpochSeconds.now();
+        for (int i = 0; i < NUM_SAMPLES; i ++) {
+            int seconds = now - random.nextInt(SECONDS_IN_TWO_YEARS);
+            Calendar calendar = new ESTimestamp(seconds).toCalendar();
+            assertEquals(calendar.get(Calendar.HOUR_OF_DAY),ESEpochSeconds.hourOfDay(seconds));
+            assertEquals(calendar.get(Calendar.MINUTE),ESEpochSeconds.minuteOfHour(seconds));
+
+            calendar.set(Calendar.HOUR_OF_DAY,0);
+            calendar.set(Calendar.MINUTE,0);
+            calendar.set(Calendar.SECOND,0);
+            calendar.set(Calendar.MILLISECOND,0);
+            int startOfDay = (int)(calendar.getTimeInMillis() / 1000);
+            assertEquals(startOfDay,ESEpochSeconds.startOfLocalDay(seconds));
+
+            calendar.add(Calendar.DAY_OF_MONTH,1);
+            assertEquals((int)(calendar.getTimeInMillis() / 1000),ESEpochSeconds.addLocalDays(startOfDay,1));
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import java.util.Arrays;
+
+/**
+ * Check the ranking of frequently used labels (with recency decay) as labels are written and removed,
+ * and that it survives reopening the database.
+ */
+public class ESFrequentLabelsTrackerTest extends ESDatabaseTestCase {
+
+    private static final int SECONDS_BETWEEN_ACTIVITIES = 60;
+
+    private int _nowSeconds;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        _nowSeconds = ESEpochSeconds.now();
+        _nowSeconds -= _nowSeconds % SECONDS_BETWEEN_ACTIVITIES;
+    }
+
+    /**
+     * Create activities at a given age, and label them all with the same mood.
+     */
+    private ESActivity[] labelActivities(int ageInDays,int numActivities,String mood) {
+        int firstSeconds = _nowSeconds - ageInDays * ESEpochSeconds.SECONDS_IN_24_HOURS;
+        ESActivity[] activities = new ESActivity[numActivities];
+        for (int i = 0; i < numActivities; i ++) {
+            activities[i] = _accessor.createNewActivity(new ESTimestamp(firstSeconds + i * SECONDS_BETWEEN_ACTIVITIES));
+        }
+        _accessor.setESActivitiesUserCorrectedValuesAndPossiblySendFeedback(activities,
+                ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,null,new String[]{},new String[]{mood},
+                null,null,null,null,false);
+        return activities;
+    }
+
+    private String[] topMoods() {
+        return _accessor.getFrequentlyUsedLabels(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MOOD,10);
+    }
+
+    public void testRecentUseOutweighsOldUse() {
+        String[] moods = ESLabelStrings.getMoods();
+        // Four half-lives ago, 10 uses weigh less than 1 recent use:
+        int oldAgeInDays = 4 * ESFrequentLabelsTracker.HALF_LIFE_SECONDS / ESEpochSeconds.SECONDS_IN_24_HOURS;
+        labelActivities(oldAgeInDays,10,moods[0]);
+        assertTrue(Arrays.equals(new String[]{moods[0]},topMoods()));
+
+        ESActivity[] recent = labelActivities(0,2,moods[1]);
+        assertTrue(Arrays.equals(new String[]{moods[1],moods[0]},topMoods()));
+
+        // Removing the mood of the recent activities takes them out of that mood's score, exactly:
+        _accessor.setESActivitiesUserCorrectedValuesAndPossiblySendFeedback(recent,
+                ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,null,new String[]{},new String[]{},
+                null,null,null,null,false);
+        assertTrue(Arrays.equals(new String[]{moods[0]},topMoods()));
+    }
+
+    public void testScoresSurviveReopening() {
+        String[] moods = ESLabelStrings.getMoods();
+        labelActivities(60,30,moods[0]);
+        labelActivities(30,10,moods[1]);
+        labelActivities(1,3,moods[2]);
+        String[] before = topMoods();
+        assertEquals(3,before.length);
+
+        // Reopening loads the scores from the label count table:
+        reopenDatabase();
+        assertTrue(Arrays.equals(before,topMoods()));
+    }
+}
@@ -0,0 +1,63 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Check the matching and ranking of the label search index, on a small vocabulary and on the secondary activities.
+ */
+public class ESLabelSearchIndexTest extends AndroidTestCase {
+
+    private static final String[] LABELS = {"On a bus","Drive - I'm the driver","Drive - I'm a passenger","Shopping","Shower","Drink (alcohol)"};
+
+    private ESLabelSearchIndex createIndex() {
+        TreeMap<String,String[]> labelsPerSubject = new TreeMap<>();
+        labelsPerSubject.put("Transportation",new String[]{"On a bus","Drive - I'm the driver","Drive - I'm a passenger"});
+        labelsPerSubject.put("Hygiene",new String[]{"Shower"});
+        return new ESLabelSearchIndex(LABELS,labelsPerSubject);
+    }
+
+    public void testPrefixMatches() {
+        ESLabelSearchIndex index = createIndex();
+        assertEquals(Arrays.asList("Drink (alcohol)","Drive - I'm a passenger","Drive - I'm the driver"),index.search("dri",10,null,null));
+        assertEquals(Arrays.asList("Drive - I'm the driver"),index.search("drive the",10,null,null));
+        // Words of a subject match its labels:
+        assertEquals(Arrays.asList("Drive - I'm a passenger","Drive - I'm the driver","On a bus"),index.search("transp",10,null,null));
+        assertTrue(index.search("  ",10,null,null).isEmpty());
+    }
+
+    public void testTrigramsMatchTypos() {
+        ESLabelSearchIndex index = createIndex();
+        assertEquals(Arrays.asList("Shopping"),index.search("shoping",10,null,null));
+        // (But only when no label matches by word prefixes):
+        assertEquals(Arrays.asList("Shower"),index.search("showe",10,null,null));
+    }
+
+    public void testRankingBlendsFrequencyAndPrediction() {
+        ESLabelSearchIndex index = createIndex();
+        assertEquals("Drive - I'm the driver",index.search("drive",10,Arrays.asList("Drive - I'm the driver"),null).get(0));
+
+        HashMap<String,Double> predictionProbs = new HashMap<>();
+        predictionProbs.put("Drive - I'm a passenger",0.9);
+        assertEquals("Drive - I'm a passenger",
+                index.search("drive",10,Arrays.asList("Drive - I'm the driver"),predictionProbs).get(0));
+        assertEquals(1,index.search("drive",1,null,null).size());
+    }
+
+    public void testSearchingSecondaryActivities() {
+        ESLabelSearchIndex index = ESLabelSearchIndex.getIndex(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_SECONDARY);
+        List<String> vocabulary = Arrays.asList(ESLabelStrings.getSecondaryActivities());
+        for (String query : new String[]{"s","phone","with"}) {
+            List<String> results = index.search(query,5,null,null);
+            assertEquals(5,results.size());
+            assertTrue(vocabulary.containsAll(results));
+        }
+        assertEquals(Arrays.asList("Phone in hand"),index.search("phone hand",5,null,null));
+        assertEquals(Arrays.asList("Bathing - shower"),index.search("show",5,null,null));
+        assertEquals("Cooking",index.search("cookng",5,null,null).get(0));
+    }
+}
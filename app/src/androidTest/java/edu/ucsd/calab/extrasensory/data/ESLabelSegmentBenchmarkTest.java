@@ -0,0 +1,234 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Check the label segments (the maintained uninterrupted runs of each label) against the labels they were built from
+ * (also as activities are relabeled and orphan records are deleted),
+ * and benchmark the segment range queries on a synthetic year of labeled activities
+ * against scanning the activities of the range.
+ */
+public class ESLabelSegmentBenchmarkTest extends ESDatabaseTestCase {
+
+    private static final String LOG_TAG = "[ESLabelSegmentBenchmarkTest]";
+    private static final int SECONDS_IN_DAY = 86400;
+    private static final int SECONDS_IN_MONTH = 30 * SECONDS_IN_DAY;
+    // A year of activities, one every five minutes (close enough to be uninterrupted runs):
+    private static final int NUM_DAYS = 365;
+    private static final int SECONDS_BETWEEN_ACTIVITIES = 300;
+    private static final int MAX_BLOCK_ACTIVITIES = 36;
+    private static final int NUM_LABELS = 3;
+    private static final int NUM_MONTH_QUERIES = 12;
+
+    private int _firstTimestamp;
+    // The label of each synthetic activity (null for unlabeled activities):
+    private String[] _activityLabels;
+
+    /**
+     * Create the activities of the given number of days, and label them in blocks of random lengths
+     * (consecutive blocks may get the same label, and then they are a single run).
+     */
+    private void createLabeledDays(int numDays) {
+        _firstTimestamp = new ESTimestamp().get_secondsSinceEpoch() - (numDays + 1) * SECONDS_IN_DAY;
+        _firstTimestamp -= _firstTimestamp % SECONDS_BETWEEN_ACTIVITIES;
+        int numActivities = numDays * SECONDS_IN_DAY / SECONDS_BETWEEN_ACTIVITIES;
+        _activityLabels = new String[numActivities];
+        String[] mainActivities = ESLabelStrings.getMainActivities();
+        Random random = new Random(0);
+
+        long start = System.nanoTime();
+        int i = 0;
+        while (i < numActivities) {
+            int blockLength = Math.min(1 + random.nextInt(MAX_BLOCK_ACTIVITIES),numActivities - i);
+            String label = (random.nextInt(5) == 0) ? null : mainActivities[random.nextInt(NUM_LABELS)];
+            ESActivity[] block = new ESActivity[blockLength];
+            for (int j = 0; j < blockLength; j ++) {
+                block[j] = _accessor.createNewActivity(new ESTimestamp(timestampOf(i + j)));
+                _activityLabels[i + j] = label;
+            }
+            if (label != null) {
+                _accessor.setESActivitiesUserCorrectedValuesAndPossiblySendFeedback(block,
+                        ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,label,new String[]{},new String[]{},
+                        null,null,null,null,false);
+            }
+            i += blockLength;
+        }
+        logRate("activities created and labeled",numActivities,System.nanoTime() - start);
+    }
+
+    private int timestampOf(int activityIndex) {
+        return _firstTimestamp + SECONDS_BETWEEN_ACTIVITIES * activityIndex;
+    }
+
+    /**
+     * @return The runs of the label (as pairs of start and end timestamps) that overlap the range, from the synthetic labels
+     */
+    private ArrayList<int[]> expectedRuns(String label,int fromSeconds,int toSeconds) {
+        ArrayList<int[]> runs = new ArrayList<>();
+        int i = 0;
+        while (i < _activityLabels.length) {
+            if (!label.equals(_activityLabels[i])) {
+                i ++;
+                continue;
+            }
+            int first = i;
+            while (i < _activityLabels.length && label.equals(_activityLabels[i])) {
+                i ++;
+            }
+            int start = timestampOf(first);
+            int end = timestampOf(i - 1);
+            if (end >= fromSeconds && start <= toSeconds) {
+                runs.add(new int[]{start,end});
+            }
+        }
+        return runs;
+    }
+
+    private static void assertSameRuns(ArrayList<int[]> expected,ESLabelSegment[] actual) {
+        assertEquals(expected.size(),actual.length);
+        for (int i = 0; i < actual.length; i ++) {
+            assertEquals(expected.get(i)[0],actual[i].get_startTimestamp().get_secondsSinceEpoch());
+            assertEquals(expected.get(i)[1],actual[i].get_endTimestamp().get_secondsSinceEpoch());
+        }
+    }
+
+    public void testMonthQueriesOverAYear() {
+        createLabeledDays(NUM_DAYS);
+        String label = ESLabelStrings.getMainActivities()[0];
+
+        // The segments of each month (including the runs that cross into the month from the previous one):
+        long segmentNanos = 0;
+        long scanNanos = 0;
+        for (int month = 0; month < NUM_MONTH_QUERIES; month ++) {
+            int fromSeconds = _firstTimestamp + month * SECONDS_IN_MONTH;
+            int toSeconds = fromSeconds + SECONDS_IN_MONTH - 1;
+            long start = System.nanoTime();
+            ESLabelSegment[] segments = _accessor.getLabelSegmentsOverlappingTimeRange(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MAIN,
+                    label,new ESTimestamp(fromSeconds),new ESTimestamp(toSeconds));
+            segmentNanos += System.nanoTime() - start;
+            assertSameRuns(expectedRuns(label,fromSeconds,toSeconds),segments);
+
+            // What it took before: reading the month's activities and following the label through them:
+            start = System.nanoTime();
+            ESActivity[] activities = _accessor.getActivitiesFromTimeRange(new ESTimestamp(fromSeconds),new ESTimestamp(toSeconds));
+            int numRuns = 0;
+            boolean inRun = false;
+            for (ESActivity activity : activities) {
+                boolean hasLabel = label.equals(activity.get_mainActivityUserCorrection());
+                if (hasLabel && !inRun) {
+                    numRuns ++;
+                }
+                inRun = hasLabel;
+            }
+            scanNanos += System.nanoTime() - start;
+            assertEquals(segments.length,numRuns);
+        }
+        logRate("month segment queries",NUM_MONTH_QUERIES,segmentNanos);
+        logRate("month activity scans",NUM_MONTH_QUERIES,scanNanos);
+
+        // The longest run of each label in the whole year:
+        for (int l = 0; l < NUM_LABELS; l ++) {
+            String someLabel = ESLabelStrings.getMainActivities()[l];
+            int fromSeconds = _firstTimestamp;
+            int toSeconds = timestampOf(_activityLabels.length - 1);
+            int[] expectedLongest = null;
+            for (int[] run : expectedRuns(someLabel,fromSeconds,toSeconds)) {
+                if (expectedLongest == null || run[1] - run[0] > expectedLongest[1] - expectedLongest[0]) {
+                    expectedLongest = run;
+                }
+            }
+            long start = System.nanoTime();
+            ESLabelSegment longest = _accessor.getLongestLabelSegmentInTimeRange(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MAIN,
+                    someLabel,new ESTimestamp(fromSeconds),new ESTimestamp(toSeconds));
+            logRate("longest-run queries of a year",1,System.nanoTime() - start);
+            assertNotNull(expectedLongest);
+            assertEquals(expectedLongest[0],longest.get_startTimestamp().get_secondsSinceEpoch());
+            assertEquals(expectedLongest[1],longest.get_endTimestamp().get_secondsSinceEpoch());
+        }
+    }
+
+    public void testRelabelingSplitsAndJoinsSegments() {
+        createLabeledDays(2);
+        String[] mainActivities = ESLabelStrings.getMainActivities();
+        // Find a run of at least three activities:
+        String label = null;
+        int middle = -1;
+        for (int i = 1; i < _activityLabels.length - 1 && label == null; i ++) {
+            if (_activityLabels[i] != null && _activityLabels[i].equals(_activityLabels[i - 1]) && _activityLabels[i].equals(_activityLabels[i + 1])) {
+                label = _activityLabels[i];
+                middle = i;
+            }
+        }
+        assertNotNull(label);
+        String otherLabel = label.equals(mainActivities[NUM_LABELS]) ? mainActivities[NUM_LABELS + 1] : mainActivities[NUM_LABELS];
+        ESTimestamp from = new ESTimestamp(_firstTimestamp);
+        ESTimestamp to = new ESTimestamp(timestampOf(_activityLabels.length - 1));
+        int numSegmentsBefore = _accessor.getLabelSegmentsOverlappingTimeRange(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MAIN,
+                label,from,to).length;
+
+        // Labeling the middle activity differently splits the run:
+        ESActivity activity = _accessor.getESActivity(new ESTimestamp(timestampOf(middle)));
+        _accessor.setESActivityUserCorrectedValuesAndPossiblySendFeedback(activity,
+                ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,otherLabel,new String[]{},new String[]{},
+                null,null,null,null,false);
+        _activityLabels[middle] = otherLabel;
+        assertEquals(numSegmentsBefore + 1,_accessor.getLabelSegmentsOverlappingTimeRange(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MAIN,
+                label,from,to).length);
+        assertSameRuns(expectedRuns(label,from.get_secondsSinceEpoch(),to.get_secondsSinceEpoch()),
+                _accessor.getLabelSegmentsOverlappingTimeRange(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MAIN,label,from,to));
+        assertSameRuns(expectedRuns(otherLabel,from.get_secondsSinceEpoch(),to.get_secondsSinceEpoch()),
+                _accessor.getLabelSegmentsOverlappingTimeRange(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MAIN,otherLabel,from,to));
+
+        // And labeling it back joins the two parts again:
+        _accessor.setESActivityUserCorrectedValuesAndPossiblySendFeedback(activity,
+                ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,label,new String[]{},new String[]{},
+                null,null,null,null,false);
+        _activityLabels[middle] = label;
+        assertSameRuns(expectedRuns(label,from.get_secondsSinceEpoch(),to.get_secondsSinceEpoch()),
+                _accessor.getLabelSegmentsOverlappingTimeRange(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MAIN,label,from,to));
+        assertEquals(0,_accessor.getLabelSegmentsOverlappingTimeRange(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MAIN,
+                otherLabel,from,to).length);
+    }
+
+    public void testDeletingOrphanRecordJoinsSegments() {
+        int first = new ESTimestamp().get_secondsSinceEpoch() - 2 * SECONDS_IN_DAY;
+        first -= first % 60;
+        String label = ESLabelStrings.getMainActivities()[0];
+        // Two labeled activities (with server predictions, so they're not orphans) around an orphan record:
+        ESActivity[] activities = new ESActivity[3];
+        for (int i = 0; i < activities.length; i ++) {
+            activities[i] = _accessor.createNewActivity(new ESTimestamp(first + 60 * i));
+        }
+        ESActivity[] labeled = new ESActivity[]{activities[0],activities[2]};
+        for (ESActivity activity : labeled) {
+            _accessor.setESActivityServerPrediction(activity,label,new String[]{},new double[]{},null);
+        }
+        _accessor.setESActivitiesUserCorrectedValuesAndPossiblySendFeedback(labeled,
+                ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,label,new String[]{},new String[]{},
+                null,null,null,null,false);
+        ESTimestamp from = new ESTimestamp(first);
+        ESTimestamp to = new ESTimestamp(first + 120);
+        assertEquals(2,_accessor.getLabelSegmentsOverlappingTimeRange(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MAIN,
+                label,from,to).length);
+
+        // Once the orphan is gone, the labeled activities are consecutive records, in a single run:
+        _accessor.clearOrphanRecords(from);
+        assertNull(_accessor.getESActivity(new ESTimestamp(first + 60)));
+        ArrayList<int[]> expected = new ArrayList<>();
+        expected.add(new int[]{first,first + 120});
+        assertSameRuns(expected,_accessor.getLabelSegmentsOverlappingTimeRange(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MAIN,
+                label,from,to));
+        ESLabelSegment longest = _accessor.getLongestLabelSegmentInTimeRange(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MAIN,
+                label,from,to);
+        assertEquals(first,longest.get_startTimestamp().get_secondsSinceEpoch());
+        assertEquals(first + 120,longest.get_endTimestamp().get_secondsSinceEpoch());
+    }
+
+    private static void logRate(String what,int count,long nanos) {
+        Log.i(LOG_TAG,String.format("%d %s in %.1fms: %.1f per second",
+                count,what,nanos / 1e6,count / (nanos / 1e9)));
+    }
+}
@@ -0,0 +1,60 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Check the label sets (bits of vocabulary labels) against the string arrays they replace,
+ * including in the set comparisons that merging minute activities does.
+ */
+public class ESLabelSetTest extends AndroidTestCase {
+
+    public void testSetsIgnoreOrderAndRepetitions() {
+        String[] secondary = ESLabelStrings.getSecondaryActivities();
+        ESLabelSet set1 = ESLabelSet.fromLabels(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_SECONDARY,
+                new String[]{secondary[70],secondary[3],"Not in the vocabulary"});
+        ESLabelSet set2 = ESLabelSet.fromLabels(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_SECONDARY,
+                new String[]{"Not in the vocabulary",secondary[3],secondary[70],secondary[3]});
+        assertEquals(set1,set2);
+        assertEquals(set1.hashCode(),set2.hashCode());
+        assertEquals(3,set1.size());
+        assertTrue(set1.contains(secondary[70]));
+        assertFalse(set1.contains(secondary[4]));
+
+        // The labels come back in the order of the vocabulary, and then the labels outside it:
+        String[] labels = set2.getLabels();
+        assertEquals(secondary[3],labels[0]);
+        assertEquals(secondary[70],labels[1]);
+        assertEquals("Not in the vocabulary",labels[2]);
+
+        assertFalse(set1.equals(ESLabelSet.fromLabels(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_SECONDARY,
+                new String[]{secondary[3],secondary[70]})));
+        assertTrue(ESLabelSet.fromLabels(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MOOD,new String[]{}).isEmpty());
+        assertNull(ESLabelSet.fromLabels(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MOOD,null));
+    }
+
+    public void testNetworkNamesRoundTrip() {
+        for (String label : ESLabelStrings.getSecondaryActivities()) {
+            String networkName = ESLabelStrings.standardizeLabelForNetwork(label);
+            assertFalse(networkName.contains(" "));
+            assertEquals(label,ESLabelStrings.getLabelFromNetworkName(networkName));
+        }
+        assertEquals("SOME_NEW__LABEL_",ESLabelStrings.standardizeLabelForNetwork("Some new (label)"));
+    }
+
+    public void testMergingComparisons() {
+        String[] moods = ESLabelStrings.getMoods();
+        ESActivity first = new ESActivity(new ESTimestamp(0),ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,null,
+                ESLabelStrings.getMainActivities()[0],new String[]{ESLabelStrings.getSecondaryActivities()[5]},
+                new String[]{moods[2],moods[0]},null,null,null,null,null,null,null);
+        ESActivity second = new ESActivity(new ESTimestamp(60),ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,null,
+                ESLabelStrings.getMainActivities()[0],new String[]{ESLabelStrings.getSecondaryActivities()[5]},
+                new String[]{moods[0],moods[2]},null,null,null,null,null,null,null);
+        ESActivity third = new ESActivity(new ESTimestamp(120),ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,null,
+                ESLabelStrings.getMainActivities()[0],new String[]{ESLabelStrings.getSecondaryActivities()[5]},
+                new String[]{moods[0]},null,null,null,null,null,null,null);
+
+        // The same labels in a different order merge, a different set of labels doesn't:
+        assertTrue(ESContinuousActivity.shouldMergeTwoAtomicActivities(first,second,60));
+        assertFalse(ESContinuousActivity.shouldMergeTwoAtomicActivities(second,third,60));
+    }
+}
@@ -0,0 +1,65 @@
+package edu.ucsd.calab.extrasensory.data;
+
+/**
+ * Check the maintained latest verified activity as activities are labeled and unlabeled,
+ * and that it is restored when the database is opened again.
+ */
+public class ESLatestVerifiedActivityTest extends ESDatabaseTestCase {
+
+    private static final int NUM_ACTIVITIES = 10;
+
+    private ESActivity[] _activities;
+    private ESTimestamp _lookBackFrom;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        int firstSeconds = ESEpochSeconds.now() - NUM_ACTIVITIES * ESEpochSeconds.SECONDS_IN_MINUTE;
+        _lookBackFrom = new ESTimestamp(firstSeconds - 1);
+        _activities = new ESActivity[NUM_ACTIVITIES];
+        for (int i = 0; i < NUM_ACTIVITIES; i ++) {
+            _activities[i] = _accessor.createNewActivity(new ESTimestamp(firstSeconds + i * ESEpochSeconds.SECONDS_IN_MINUTE));
+        }
+    }
+
+    private void setMood(int activityIndex,String mood) {
+        _accessor.setESActivityUserCorrectedValuesAndPossiblySendFeedback(_activities[activityIndex],
+                ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY,null,new String[]{},
+                (mood == null) ? new String[]{} : new String[]{mood},
+                null,null,null,null,false);
+    }
+
+    private void assertLatestVerified(int expectedActivityIndex) {
+        ESActivity latestVerified = _accessor.getLatestVerifiedActivity(_lookBackFrom);
+        if (expectedActivityIndex < 0) {
+            assertNull(latestVerified);
+            return;
+        }
+        assertNotNull(latestVerified);
+        assertEquals(_activities[expectedActivityIndex].get_timestampSeconds(),latestVerified.get_timestampSeconds());
+    }
+
+    public void testFollowsLabelWrites() {
+        String mood = ESLabelStrings.getMoods()[0];
+        assertLatestVerified(-1);
+
+        setMood(2,mood);
+        assertLatestVerified(2);
+        setMood(6,mood);
+        assertLatestVerified(6);
+        // Labeling an earlier activity doesn't change it:
+        setMood(4,mood);
+        assertLatestVerified(6);
+
+        // Removing the labels of the latest verified activity falls back to the one before it:
+        setMood(6,null);
+        assertLatestVerified(4);
+
+        // And it is restored when the database is opened again:
+        reopenDatabase();
+        assertLatestVerified(4);
+
+        // Out of the look-back range, there is none:
+        assertNull(_accessor.getLatestVerifiedActivity(new ESTimestamp(_activities[5].get_timestampSeconds())));
+    }
+}
@@ -0,0 +1,159 @@
+package edu.ucsd.calab.extrasensory.network;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import edu.ucsd.calab.extrasensory.data.ESLabelStrings;
+
+/**
+ * Check the streaming decoding of server responses, and benchmark it against the previous
+ * (read to String, parse JSONObject, regex reverse-standardize) decoding, on responses with the full label set.
+ */
+public class ESServerResponseDecoderTest extends AndroidTestCase {
+
+    private static final String LOG_TAG = "[ESServerResponseDecoderTest]";
+    private static final int BENCHMARK_ITERATIONS = 500;
+
+    private String[] _allLabels;
+    private byte[] _responseBytes;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ArrayList<String> allLabels = new ArrayList<>();
+        allLabels.addAll(Arrays.asList(ESLabelStrings.getMainActivities()));
+        allLabels.addAll(Arrays.asList(ESLabelStrings.getSecondaryActivities()));
+        allLabels.addAll(Arrays.asList(ESLabelStrings.getMoods()));
+        _allLabels = allLabels.toArray(new String[allLabels.size()]);
+
+        JSONArray names = new JSONArray();
+        JSONArray probs = new JSONArray();
+        for (int i = 0; i < _allLabels.length; i ++) {
+            names.put(ESLabelStrings.standardizeLabelForNetwork(_allLabels[i]));
+            probs.put((double)i / _allLabels.length);
+        }
+        JSONObject response = new JSONObject();
+        response.put("success",true);
+        response.put("msg","ok");
+        response.put("timestamp",1445000000);
+        response.put("filename","1445000000-uuid.zip");
+        response.put("predicted_activity",ESLabelStrings.standardizeLabelForNetwork(_allLabels[0]));
+        response.put("label_names",names);
+        response.put("label_probs",probs);
+        response.put("location_lat_long",new JSONArray(Arrays.asList(32.88,-117.23)));
+        _responseBytes = response.toString().getBytes("UTF-8");
+    }
+
+    public void testDecodeFullLabelSet() throws Exception {
+        ESServerResponseDecoder.ESServerResponse response =
+                ESServerResponseDecoder.decode(new ByteArrayInputStream(_responseBytes));
+
+        assertTrue(response._success);
+        assertEquals(1445000000,response._timestamp);
+        assertEquals("1445000000-uuid.zip",response._zipFilename);
+        assertEquals(_allLabels[0],response._predictedMainActivity);
+        assertTrue(Arrays.equals(_allLabels,response._predictedLabelNames));
+        assertEquals(_allLabels.length,response._predictedLabelProbs.length);
+        assertEquals(2,response._locationLatLong.length);
+    }
+
+    public void testDecodeNullLocation() throws Exception {
+        String json = "{\"success\":false,\"msg\":\"bad zip\",\"location_lat_long\":null,\"extra\":{\"a\":[1,2]}}";
+        ESServerResponseDecoder.ESServerResponse response =
+                ESServerResponseDecoder.decode(new ByteArrayInputStream(json.getBytes("UTF-8")));
+
+        assertFalse(response._success);
+        assertEquals("bad zip",response._message);
+        assertFalse(response.hasTimestamp());
+        assertNull(response._locationLatLong);
+    }
+
+    public void testBenchmarkAgainstJSONObject() throws Exception {
+        // Both paths should decode the same payloads to the same responses:
+        byte[][] payloads = {
+                _responseBytes,
+                "{\"success\":false,\"msg\":\"bad zip\",\"timestamp\":1445000060,\"location_lat_long\":null}".getBytes("UTF-8"),
+                "{\"success\":true,\"label_names\":[],\"label_probs\":[],\"extra\":{\"a\":[1,2]}}".getBytes("UTF-8")
+        };
+        for (byte[] payload : payloads) {
+            assertSameResponse(decodeWithJSONObject(payload),ESServerResponseDecoder.decode(new ByteArrayInputStream(payload)));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i ++) {
+            decodeWithJSONObject(_responseBytes);
+        }
+        long jsonObjectNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i ++) {
+            ESServerResponseDecoder.decode(new ByteArrayInputStream(_responseBytes));
+        }
+        long streamingNanos = System.nanoTime() - start;
+
+        Log.i(LOG_TAG,"Decoding a response with " + _allLabels.length + " labels (" + _responseBytes.length + " bytes): " +
+                "JSONObject " + (jsonObjectNanos / BENCHMARK_ITERATIONS / 1000) + "us, " +
+                "streaming " + (streamingNanos / BENCHMARK_ITERATIONS / 1000) + "us per response.");
+    }
+
+    private static void assertSameResponse(ESServerResponseDecoder.ESServerResponse expected,
+                                           ESServerResponseDecoder.ESServerResponse actual) {
+        assertEquals(expected._success,actual._success);
+        assertEquals(expected._message,actual._message);
+        assertEquals(expected._timestamp,actual._timestamp);
+        assertEquals(expected._zipFilename,actual._zipFilename);
+        assertEquals(expected._predictedMainActivity,actual._predictedMainActivity);
+        assertTrue(Arrays.equals(expected._predictedLabelNames,actual._predictedLabelNames));
+        assertTrue(Arrays.equals(expected._predictedLabelProbs,actual._predictedLabelProbs));
+        assertTrue(Arrays.equals(expected._locationLatLong,actual._locationLatLong));
+    }
+
+    /**
+     * The previous decoding: read the body to a String, parse a JSONObject and reverse-standardize the labels.
+     */
+    private static ESServerResponseDecoder.ESServerResponse decodeWithJSONObject(byte[] payload) throws Exception {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(payload)));
+        StringBuilder stringBuilder = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            stringBuilder.append(line);
+        }
+        JSONObject json = new JSONObject(stringBuilder.toString());
+
+        ESServerResponseDecoder.ESServerResponse response = new ESServerResponseDecoder.ESServerResponse();
+        response._success = json.optBoolean("success");
+        response._message = json.isNull("msg") ? null : json.getString("msg");
+        response._timestamp = json.isNull("timestamp") ? -1 : json.getInt("timestamp");
+        response._zipFilename = json.isNull("filename") ? null : json.getString("filename");
+        if (!json.isNull("predicted_activity")) {
+            response._predictedMainActivity = ESLabelStrings.reverseStandardizeLabelFromNetwork(json.getString("predicted_activity"));
+        }
+        if (!json.isNull("label_names")) {
+            JSONArray names = json.getJSONArray("label_names");
+            response._predictedLabelNames = new String[names.length()];
+            for (int i = 0; i < names.length(); i ++) {
+                response._predictedLabelNames[i] = ESLabelStrings.reverseStandardizeLabelFromNetwork(names.getString(i));
+            }
+        }
+        response._predictedLabelProbs = json.isNull("label_probs") ? null : toDoubles(json.getJSONArray("label_probs"));
+        response._locationLatLong = json.isNull("location_lat_long") ? null : toDoubles(json.getJSONArray("location_lat_long"));
+        return response;
+    }
+
+    private static double[] toDoubles(JSONArray array) throws Exception {
+        double[] numbers = new double[array.length()];
+        for (int i = 0; i < numbers.length; i ++) {
+            numbers[i] = array.getDouble(i);
+        }
+        return numbers;
+    }
+}
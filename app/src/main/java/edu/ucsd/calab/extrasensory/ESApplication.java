@@ -24,6 +24,7 @@ import java.util.HashMap;
 
 import edu.ucsd.calab.extrasensory.data.ESActivity;
 import edu.ucsd.calab.extrasensory.data.ESDatabaseAccessor;
+import edu.ucsd.calab.extrasensory.data.ESEpochSeconds;
 import edu.ucsd.calab.extrasensory.data.ESLabelStruct;
 import edu.ucsd.calab.extrasensory.data.ESSettings;
 import edu.ucsd.calab.extrasensory.data.ESTimestamp;
@@ -419,13 +420,11 @@ public class ESApplication extends Application {
         }
 
         Log.i(LOG_TAG,"Notification: checkup.");
-        Date now = new Date();
-        Date recentTimeAgo = new Date(now.getTime() - RECENT_TIME_PERIOD_IN_MILLIS);
-        ESTimestamp lookBackFrom = new ESTimestamp(recentTimeAgo);
+        int nowSeconds = ESEpochSeconds.now();
+        ESTimestamp lookBackFrom = new ESTimestamp(nowSeconds - (int)(RECENT_TIME_PERIOD_IN_MILLIS / 1000));
 
         // check if there are currently valid predetermined labels:
-        ESTimestamp oneMinuteFromNow = new ESTimestamp(new ESTimestamp().get_secondsSinceEpoch() + 60);
-        if (_predeterminedLabels._validUntil.isLaterThan(oneMinuteFromNow)) {
+        if (_predeterminedLabels._validUntil.get_secondsSinceEpoch() > nowSeconds + ESEpochSeconds.SECONDS_IN_MINUTE) {
             Log.i(LOG_TAG,"We already have valid labels provided by the user for the near future. So no need to nag user now.");
             return;
         }
@@ -442,7 +441,7 @@ public class ESApplication extends Application {
                 Log.d(LOG_TAG,"Notification: near-future notifications are disabled.");
                 return;
             }
-            ESTimestamp timestampNotification = new ESTimestamp();
+            ESTimestamp timestampNotification = new ESTimestamp(nowSeconds);
             if (isAppInForeground()) {
                 // Don't deal with notifications. Send broadcast to show alert:
                 Intent broadcast = new Intent(ACTION_ALERT_ACTIVE_FEEDBACK);
@@ -479,9 +478,9 @@ public class ESApplication extends Application {
                 Log.d(LOG_TAG,"Notification: near-past notifications are disabled.");
                 return;
             }
-            ESTimestamp nowTimestamp = new ESTimestamp(now);
-            long millisPassed = now.getTime() - latestVerifiedActivity.get_timestamp().getDateOfTimestamp().getTime();
-            int minutesPassed = (int)(millisPassed / ESApplication.MILLISECONDS_IN_MINUTE);
+            ESTimestamp nowTimestamp = new ESTimestamp(nowSeconds);
+            int secondsPassed = nowSeconds - latestVerifiedActivity.get_timestamp().get_secondsSinceEpoch();
+            int minutesPassed = secondsPassed / ESEpochSeconds.SECONDS_IN_MINUTE;
             String question = getAlertQuestion(latestVerifiedActivity,minutesPassed);
 
             // Prepare the data required for the relevant alert dialog:
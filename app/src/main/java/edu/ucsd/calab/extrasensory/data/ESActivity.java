@@ -67,23 +67,34 @@ public class ESActivity {
         }
     }
 
+    private static final int NO_TIME = 0;
+
     // Data members of ESActivity:
+    // The times are kept as seconds since the epoch (the feedback times are 0 when missing),
+    // and the timestamp objects are only made when asked for:
+    private final int _timestampSeconds;
     private ESTimestamp _timestamp;
     private ESLabelSource _labelSource;
     private String _mainActivityServerPrediction;
     private String _mainActivityUserCorrection;
-    private String[] _secondaryActivities;
-    private String[] _moods;
+    // The secondary activities and moods are kept as (immutable) label sets:
+    private ESLabelSet _secondaryActivities;
+    private ESLabelSet _moods;
+    // Changes whenever the labels of this activity object change,
+    // so aggregates that were computed from it (see ESContinuousActivity) can tell they are stale.
+    // (The setters are only called by the DB accessor, one writer at a time):
+    private volatile int _labelsVersion = 0;
     private String[] _predictedLabelNames;
     private double[] _predictedLabelProbs;
     private double[] _locationLatLong;
-    private ESTimestamp _timestampOpenFeedbackForm;
-    private ESTimestamp _timestampPressSendButton;
-    private ESTimestamp _timestampNotification;
-    private ESTimestamp _timestampUserRespondToNotification;
+    private int _timeOpenFeedbackForm;
+    private int _timePressSendButton;
+    private int _timeNotification;
+    private int _timeUserRespondToNotification;
 
     // Constructors available only inside the package:
     ESActivity(ESTimestamp timestamp) {
+        _timestampSeconds = timestamp.get_secondsSinceEpoch();
         _timestamp = timestamp;
         _labelSource = ESLabelSource.ES_LABEL_SOURCE_DEFAULT;
         _mainActivityServerPrediction = null;
@@ -93,10 +104,10 @@ public class ESActivity {
         _predictedLabelNames = null;
         _predictedLabelProbs = null;
         _locationLatLong = null;
-        _timestampOpenFeedbackForm = null;
-        _timestampPressSendButton = null;
-        _timestampNotification = null;
-        _timestampUserRespondToNotification = null;
+        _timeOpenFeedbackForm = NO_TIME;
+        _timePressSendButton = NO_TIME;
+        _timeNotification = NO_TIME;
+        _timeUserRespondToNotification = NO_TIME;
     }
 
     ESActivity(ESTimestamp timestamp, ESLabelSource labelSource,
@@ -106,12 +117,31 @@ public class ESActivity {
                double[] locationLatLong,
                ESTimestamp timestampOpenFeedbackForm, ESTimestamp timestampPressSendButton,
                ESTimestamp timestampNotification, ESTimestamp timestampUserRespondToNotification) {
+        this(timestamp.get_secondsSinceEpoch(),labelSource,mainActivityServerPrediction,mainActivityUserCorrection,
+                secondaryActivities,moods,predictedLabelNames,predictedLabelProbs,locationLatLong,
+                secondsOrNoTime(timestampOpenFeedbackForm),secondsOrNoTime(timestampPressSendButton),
+                secondsOrNoTime(timestampNotification),secondsOrNoTime(timestampUserRespondToNotification));
         _timestamp = timestamp;
+    }
+
+    /**
+     * Construct an activity from the plain values of its record (see ESActivityRowMapper).
+     * The times are seconds since the epoch, and a feedback time that is not positive means there is no such time.
+     */
+    ESActivity(int timestampSeconds, ESLabelSource labelSource,
+               String mainActivityServerPrediction, String mainActivityUserCorrection,
+               String[] secondaryActivities, String[] moods,
+               String[] predictedLabelNames, double[] predictedLabelProbs,
+               double[] locationLatLong,
+               int timeOpenFeedbackForm, int timePressSendButton,
+               int timeNotification, int timeUserRespondToNotification) {
+        _timestampSeconds = timestampSeconds;
+        _timestamp = null;
         _labelSource = labelSource;
         _mainActivityServerPrediction = mainActivityServerPrediction;
         _mainActivityUserCorrection = mainActivityUserCorrection;
-        _secondaryActivities = secondaryActivities;
-        _moods = moods;
+        _secondaryActivities = ESLabelSet.fromLabels(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_SECONDARY,secondaryActivities);
+        _moods = ESLabelSet.fromLabels(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MOOD,moods);
         if ((predictedLabelNames==null && predictedLabelProbs!=null) || (predictedLabelNames!=null && predictedLabelProbs==null)) {
             Log.w(LOG_TAG, "Trying to construct ESActivity with one of predictedLabelNames and predictedLabelProbs being null. Setting them both to empty.");
             _predictedLabelNames = new String[]{};
@@ -134,15 +164,57 @@ public class ESActivity {
             _locationLatLong = locationLatLong;
         }
 
-        _timestampOpenFeedbackForm = timestampOpenFeedbackForm;
-        _timestampPressSendButton = timestampPressSendButton;
-        _timestampNotification = timestampNotification;
-        _timestampUserRespondToNotification = timestampUserRespondToNotification;
+        _timeOpenFeedbackForm = Math.max(timeOpenFeedbackForm,NO_TIME);
+        _timePressSendButton = Math.max(timePressSendButton,NO_TIME);
+        _timeNotification = Math.max(timeNotification,NO_TIME);
+        _timeUserRespondToNotification = Math.max(timeUserRespondToNotification,NO_TIME);
+    }
+
+    private static int secondsOrNoTime(ESTimestamp timestamp) {
+        return (timestamp == null) ? NO_TIME : timestamp.get_secondsSinceEpoch();
+    }
+
+    private static ESTimestamp timestampOrNull(int seconds) {
+        return (seconds <= NO_TIME) ? null : new ESTimestamp(seconds);
     }
 
     // Public getters:
+    /**
+     * Create a copy of this activity, with its own copies of the label arrays,
+     * so changes to one of them don't affect the other.
+     * @return The copy
+     */
+    ESActivity copy() {
+        ESActivity copy = new ESActivity(get_timestamp());
+        copy._labelSource = _labelSource;
+        copy._mainActivityServerPrediction = _mainActivityServerPrediction;
+        copy._mainActivityUserCorrection = _mainActivityUserCorrection;
+        copy._secondaryActivities = _secondaryActivities;
+        copy._moods = _moods;
+        copy._predictedLabelNames = (_predictedLabelNames == null) ? null : _predictedLabelNames.clone();
+        copy._predictedLabelProbs = (_predictedLabelProbs == null) ? null : _predictedLabelProbs.clone();
+        copy._locationLatLong = (_locationLatLong == null) ? null : _locationLatLong.clone();
+        copy._timeOpenFeedbackForm = _timeOpenFeedbackForm;
+        copy._timePressSendButton = _timePressSendButton;
+        copy._timeNotification = _timeNotification;
+        copy._timeUserRespondToNotification = _timeUserRespondToNotification;
+        return copy;
+    }
+
     public ESTimestamp get_timestamp() {
-        return _timestamp;
+        ESTimestamp timestamp = _timestamp;
+        if (timestamp == null) {
+            timestamp = new ESTimestamp(_timestampSeconds);
+            _timestamp = timestamp;
+        }
+        return timestamp;
+    }
+
+    /**
+     * @return The time of this activity, in seconds since the epoch (without making a timestamp object)
+     */
+    int get_timestampSeconds() {
+        return _timestampSeconds;
     }
 
     public ESLabelSource get_labelSource() {
@@ -158,10 +230,18 @@ public class ESActivity {
     }
 
     public String[] get_secondaryActivities() {
-        return _secondaryActivities;
+        return (_secondaryActivities == null) ? null : _secondaryActivities.getLabels().clone();
     }
 
     public String[] get_moods() {
+        return (_moods == null) ? null : _moods.getLabels().clone();
+    }
+
+    ESLabelSet get_secondaryActivitiesSet() {
+        return _secondaryActivities;
+    }
+
+    ESLabelSet get_moodsSet() {
         return _moods;
     }
 
@@ -179,13 +259,13 @@ public class ESActivity {
         return map;
     }
 
-    public ESTimestamp get_timestampOpenFeedbackForm() { return _timestampOpenFeedbackForm; }
+    public ESTimestamp get_timestampOpenFeedbackForm() { return timestampOrNull(_timeOpenFeedbackForm); }
 
-    public ESTimestamp get_timestampPressSendButton() { return _timestampPressSendButton; }
+    public ESTimestamp get_timestampPressSendButton() { return timestampOrNull(_timePressSendButton); }
 
-    public ESTimestamp get_timestampNotification() { return _timestampNotification; }
+    public ESTimestamp get_timestampNotification() { return timestampOrNull(_timeNotification); }
 
-    public ESTimestamp get_timestampUserRespondToNotification() { return _timestampUserRespondToNotification; }
+    public ESTimestamp get_timestampUserRespondToNotification() { return timestampOrNull(_timeUserRespondToNotification); }
 
     // Utility public info functions:
     public boolean hasUserProvidedLabels() {return hasUserCorrectedMainLabel(); }
@@ -198,11 +278,11 @@ public class ESActivity {
     }
 
     public boolean hasUserReportedSecondaryLabels() {
-        return (_secondaryActivities != null) && (_secondaryActivities.length > 0);
+        return (_secondaryActivities != null) && !_secondaryActivities.isEmpty();
     }
 
     public boolean hasUserReportedMoodLabels() {
-        return (_moods != null) && (_moods.length > 0);
+        return (_moods != null) && !_moods.isEmpty();
     }
 
     public boolean hasAnyUserReportedLabelsNotDummyLabel() {
@@ -212,7 +292,7 @@ public class ESActivity {
 
     @Override
     public String toString() {
-        return "<timestamp: " + _timestamp +
+        return "<timestamp: " + _timestampSeconds +
                 ", label source: " + _labelSource +
                 ", main activity prediction: " + _mainActivityServerPrediction +
                 ",main activity correction: " + _mainActivityUserCorrection +
@@ -221,10 +301,10 @@ public class ESActivity {
                 ",predicted label names: {" + _predictedLabelNames + "}" +
                 ",predicted label probs: {" + _predictedLabelProbs + "}" +
                 ",location lat long: (" + _locationLatLong + ")" +
-                ",time opened feedback form: " + _timestampOpenFeedbackForm +
-                ",time press send button: " + _timestampPressSendButton +
-                ",time notification showed: " + _timestampNotification +
-                ",time user respond to notification: " + _timestampUserRespondToNotification +
+                ",time opened feedback form: " + get_timestampOpenFeedbackForm() +
+                ",time press send button: " + get_timestampPressSendButton() +
+                ",time notification showed: " + get_timestampNotification() +
+                ",time user respond to notification: " + get_timestampUserRespondToNotification() +
                 ">";
     }
 
@@ -237,32 +317,41 @@ public class ESActivity {
         }
     }
 
+    int labelsVersion() {
+        return _labelsVersion;
+    }
+
     // Setters available only inside the package:
     void set_labelSource(ESLabelSource _labelSource) {
         this._labelSource = _labelSource;
+        _labelsVersion ++;
     }
 
     void set_mainActivityServerPrediction(String _mainActivityServerPrediction) {
         this._mainActivityServerPrediction = _mainActivityServerPrediction;
+        _labelsVersion ++;
     }
 
     void set_mainActivityUserCorrection(String _mainActivityUserCorrection) {
         this._mainActivityUserCorrection = _mainActivityUserCorrection;
+        _labelsVersion ++;
     }
 
     void set_secondaryActivities(String[] _secondaryActivities) {
-        this._secondaryActivities = _secondaryActivities;
+        this._secondaryActivities = ESLabelSet.fromLabels(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_SECONDARY,_secondaryActivities);
+        _labelsVersion ++;
     }
 
     void set_moods(String[] _moods) {
-        this._moods = _moods;
+        this._moods = ESLabelSet.fromLabels(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MOOD,_moods);
+        _labelsVersion ++;
     }
 
-    void set_timestampOpenFeedbackForm(ESTimestamp timestampOpenFeedbackForm) { this._timestampOpenFeedbackForm = timestampOpenFeedbackForm; }
+    void set_timestampOpenFeedbackForm(ESTimestamp timestampOpenFeedbackForm) { this._timeOpenFeedbackForm = secondsOrNoTime(timestampOpenFeedbackForm); }
 
-    void set_timestampPressSendButton(ESTimestamp timestampPressSendButton) { this._timestampPressSendButton = timestampPressSendButton; }
+    void set_timestampPressSendButton(ESTimestamp timestampPressSendButton) { this._timePressSendButton = secondsOrNoTime(timestampPressSendButton); }
 
-    void set_timestampNotification(ESTimestamp timestampNotification) { this._timestampNotification = timestampNotification; }
+    void set_timestampNotification(ESTimestamp timestampNotification) { this._timeNotification = secondsOrNoTime(timestampNotification); }
 
-    void set_timestampUserRespondToNotification(ESTimestamp timestampUserRespondToNotification) { this._timestampUserRespondToNotification = timestampUserRespondToNotification; }
+    void set_timestampUserRespondToNotification(ESTimestamp timestampUserRespondToNotification) { this._timeUserRespondToNotification = secondsOrNoTime(timestampUserRespondToNotification); }
 }
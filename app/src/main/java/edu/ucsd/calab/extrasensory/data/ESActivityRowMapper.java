@@ -0,0 +1,238 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class reads activity records from a cursor into ESActivity objects.
+ * A mapper is created for a cursor and looks up the column indices once, so reading many rows
+ * (e.g. a whole day) doesn't search the column names for every row.
+ *
+ * It also holds the binary encoding of the server predictions and the location columns:
+ * - The predictions are a sequence of (label id, probability) pairs, sorted by label id,
+ * where the label id is the id of the predicted label name in the label dictionary (2 bytes, unsigned)
+ * and the probability is a float (4 bytes).
+ * - The location is a sequence of coordinates (latitude, longitude), each as an int of microdegrees (4 bytes).
+ * Empty predictions or location are stored as NULL.
+ *
+ * ========================================
+ * The ExtraSensory App
+ * Please see ExtraSensory App website for details and citation requirements:
+ * http://extrasensory.ucsd.edu/ExtraSensoryApp
+ * ========================================
+ */
+class ESActivityRowMapper {
+
+    private static final String LOG_TAG = "[ESActivityRowMapper]";
+
+    private static final int MAX_PREDICTION_LABEL_ID = 0xFFFF;
+    private static final int PREDICTION_BYTES = 2 + 4;
+    private static final int COORDINATE_BYTES = 4;
+    private static final double MICRODEGREES_PER_DEGREE = 1e6;
+
+    private final ESLabelDictionary _labelDictionary;
+
+    private final int _timestampIndex;
+    private final int _labelSourceIndex;
+    private final int _serverMainIndex;
+    private final int _userMainIndex;
+    private final int _secondaryIndex;
+    private final int _moodsIndex;
+    private final int _predictionsIndex;
+    private final int _locationIndex;
+    private final int _timeOpenFeedbackFormIndex;
+    private final int _timePressSendButtonIndex;
+    private final int _timeNotificationIndex;
+    private final int _timeUserRespondToNotificationIndex;
+
+    /**
+     * @param cursor A cursor over activity records (with all the activity columns)
+     * @param labelDictionary The label dictionary, to translate the label ids of the predictions
+     */
+    ESActivityRowMapper(Cursor cursor,ESLabelDictionary labelDictionary) {
+        if (cursor == null) {
+            String msg = "null cursor given";
+            Log.e(LOG_TAG, msg);
+            throw new NullPointerException(msg);
+        }
+        _labelDictionary = labelDictionary;
+
+        _timestampIndex = cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP);
+        _labelSourceIndex = cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LABEL_SOURCE);
+        _serverMainIndex = cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_SERVER_PREDICTION);
+        _userMainIndex = cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_USER_CORRECTION);
+        _secondaryIndex = cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_SECONDARY_ACTIVITIES_CSV);
+        _moodsIndex = cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MOODS_CSV);
+        _predictionsIndex = cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTIONS_BLOB);
+        _locationIndex = cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LOCATION_LAT_LONG_BLOB);
+        _timeOpenFeedbackFormIndex = cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_OPEN_FEEDBACK_FORM);
+        _timePressSendButtonIndex = cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_PRESS_SEND_BUTTON);
+        _timeNotificationIndex = cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_NOTIFICATION);
+        _timeUserRespondToNotificationIndex = cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_USER_RESPOND_TO_NOTIFICATION);
+    }
+
+    /**
+     * Construct an ESActivity object representing the activity in the current record of the cursor.
+     * @param cursor The cursor this mapper was created for, currently pointing at the desired record.
+     * @return An ESActivity object for the current record pointed to by the cursor.
+     */
+    ESActivity map(Cursor cursor) {
+        int timestampSeconds = cursor.getInt(_timestampIndex);
+        ESActivity.ESLabelSource labelSource = ESActivity.ESLabelSource.labelSourceFromValue(cursor.getInt(_labelSourceIndex));
+        String serverMain = cursor.getString(_serverMainIndex);
+        String userMain = cursor.getString(_userMainIndex);
+        String[] secondaryActivities = ESDatabaseAccessor.parsePossiblyEmptyCSV(cursor.getString(_secondaryIndex));
+        String[] moods = ESDatabaseAccessor.parsePossiblyEmptyCSV(cursor.getString(_moodsIndex));
+
+        byte[] predictionsBlob = cursor.isNull(_predictionsIndex) ? null : cursor.getBlob(_predictionsIndex);
+        String[] predictedLabelNames = decodePredictedLabelNames(predictionsBlob,_labelDictionary);
+        double[] predictedLabelProbs = decodePredictedLabelProbs(predictionsBlob,_labelDictionary);
+        double[] locationLatLong = decodeLatLong(cursor.isNull(_locationIndex) ? null : cursor.getBlob(_locationIndex));
+
+        // (The times stay plain seconds: the activity only makes timestamp objects of them when they are asked for):
+        return new ESActivity(timestampSeconds,labelSource,serverMain,userMain,secondaryActivities,moods,
+                predictedLabelNames,predictedLabelProbs,locationLatLong,
+                cursor.getInt(_timeOpenFeedbackFormIndex),
+                cursor.getInt(_timePressSendButtonIndex),
+                cursor.getInt(_timeNotificationIndex),
+                cursor.getInt(_timeUserRespondToNotificationIndex));
+    }
+
+    // The binary encoding:
+
+    /**
+     * Encode server predictions. Predicted label names that are not in the label dictionary are added to it,
+     * so this should be called while holding the database write lock.
+     * @param db The database
+     * @param labelDictionary The label dictionary
+     * @param predictedLabelNames The predicted label names
+     * @param predictedLabelProbs The probabilities of the predicted labels (corresponding to the names)
+     * @return The encoded predictions, or null if there are no predictions
+     */
+    static byte[] encodePredictions(SQLiteDatabase db,ESLabelDictionary labelDictionary,
+                                    String[] predictedLabelNames,double[] predictedLabelProbs) {
+        if (predictedLabelNames == null || predictedLabelProbs == null ||
+                predictedLabelNames.length != predictedLabelProbs.length || predictedLabelNames.length <= 0) {
+            return null;
+        }
+
+        // Sort the predictions by label id (the id in the high bits, the position in the low bits):
+        long[] idAndPosition = new long[predictedLabelNames.length];
+        int numPredictions = 0;
+        for (int i = 0; i < predictedLabelNames.length; i ++) {
+            int labelId = labelDictionary.getOrAddLabelId(db,ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_PREDICTION,predictedLabelNames[i]);
+            if (labelId < 0 || labelId > MAX_PREDICTION_LABEL_ID) {
+                Log.e(LOG_TAG,"Can't encode prediction of label " + predictedLabelNames[i] + " (label id " + labelId + ")");
+                continue;
+            }
+            idAndPosition[numPredictions++] = ((long)labelId << 32) | i;
+        }
+        if (numPredictions <= 0) {
+            return null;
+        }
+        Arrays.sort(idAndPosition,0,numPredictions);
+
+        ByteBuffer buffer = ByteBuffer.allocate(numPredictions * PREDICTION_BYTES);
+        for (int i = 0; i < numPredictions; i ++) {
+            buffer.putShort((short)(idAndPosition[i] >>> 32));
+            buffer.putFloat((float)predictedLabelProbs[(int)idAndPosition[i]]);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param predictionsBlob Encoded predictions (or null)
+     * @param labelDictionary The label dictionary
+     * @return The predicted label names, in the order of their label ids
+     */
+    static String[] decodePredictedLabelNames(byte[] predictionsBlob,ESLabelDictionary labelDictionary) {
+        int numPredictions = numDecodablePredictions(predictionsBlob,labelDictionary);
+        String[] names = new String[numPredictions];
+        if (numPredictions <= 0) {
+            return names;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(predictionsBlob);
+        int i = 0;
+        while (buffer.remaining() >= PREDICTION_BYTES) {
+            String name = labelDictionary.getLabel(buffer.getShort() & MAX_PREDICTION_LABEL_ID);
+            buffer.getFloat();
+            if (name != null) {
+                names[i++] = name;
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param predictionsBlob Encoded predictions (or null)
+     * @param labelDictionary The label dictionary
+     * @return The probabilities of the predicted labels, corresponding to decodePredictedLabelNames()
+     */
+    static double[] decodePredictedLabelProbs(byte[] predictionsBlob,ESLabelDictionary labelDictionary) {
+        int numPredictions = numDecodablePredictions(predictionsBlob,labelDictionary);
+        double[] probs = new double[numPredictions];
+        if (numPredictions <= 0) {
+            return probs;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(predictionsBlob);
+        int i = 0;
+        while (buffer.remaining() >= PREDICTION_BYTES) {
+            boolean known = labelDictionary.getLabel(buffer.getShort() & MAX_PREDICTION_LABEL_ID) != null;
+            float prob = buffer.getFloat();
+            if (known) {
+                probs[i++] = prob;
+            }
+        }
+        return probs;
+    }
+
+    private static int numDecodablePredictions(byte[] predictionsBlob,ESLabelDictionary labelDictionary) {
+        if (predictionsBlob == null) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(predictionsBlob);
+        int numPredictions = 0;
+        while (buffer.remaining() >= PREDICTION_BYTES) {
+            if (labelDictionary.getLabel(buffer.getShort() & MAX_PREDICTION_LABEL_ID) != null) {
+                numPredictions ++;
+            }
+            buffer.getFloat();
+        }
+        return numPredictions;
+    }
+
+    /**
+     * @param locationLatLong The location coordinates, in decimal degrees
+     * @return The encoded location, or null if there is no location
+     */
+    static byte[] encodeLatLong(double[] locationLatLong) {
+        if (locationLatLong == null || locationLatLong.length <= 0) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(locationLatLong.length * COORDINATE_BYTES);
+        for (double coordinate : locationLatLong) {
+            buffer.putInt((int)Math.round(coordinate * MICRODEGREES_PER_DEGREE));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param locationBlob Encoded location (or null)
+     * @return The location coordinates, in decimal degrees (empty if there is no location)
+     */
+    static double[] decodeLatLong(byte[] locationBlob) {
+        if (locationBlob == null) {
+            return new double[0];
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(locationBlob);
+        double[] locationLatLong = new double[locationBlob.length / COORDINATE_BYTES];
+        for (int i = 0; i < locationLatLong.length; i ++) {
+            locationLatLong[i] = buffer.getInt() / MICRODEGREES_PER_DEGREE;
+        }
+        return locationLatLong;
+    }
+}
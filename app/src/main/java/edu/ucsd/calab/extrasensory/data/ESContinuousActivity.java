@@ -2,15 +2,14 @@ package edu.ucsd.calab.extrasensory.data;
 
 import android.util.Log;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * ESContinuousActivity represents an event that has a duration longer than a minute,
@@ -30,14 +29,15 @@ public class ESContinuousActivity {
 
     private static final String LOG_TAG = "[ESContinuousActivity]";
 
-    private static final int MAX_TIME_GAP_FOR_MERGING_ACTIVITIES = 370;
+    static final int MAX_TIME_GAP_FOR_MERGING_ACTIVITIES = 370;
 
-    private static int basicTimeUnitSeconds() {
-        return 60*ESSettings.historyTimeUnitInMinutes();
-    }
-
-    private static boolean needGap(int timeGapSeconds) {
-        return ((timeGapSeconds > MAX_TIME_GAP_FOR_MERGING_ACTIVITIES) && (timeGapSeconds > basicTimeUnitSeconds()));
+    /**
+     * @param timeGapSeconds The time between two consecutive activities
+     * @param timeUnitSeconds The basic time unit of the history
+     * @return Should the two activities be separated by a gap?
+     */
+    static boolean needGap(int timeGapSeconds,int timeUnitSeconds) {
+        return ((timeGapSeconds > MAX_TIME_GAP_FOR_MERGING_ACTIVITIES) && (timeGapSeconds > timeUnitSeconds));
     }
 
     private ESActivity[] _minuteActivities;
@@ -111,61 +111,172 @@ public class ESContinuousActivity {
     }
 
     /**
-     * Get a server prediction of the main activity label.
-     * Search for the first atomic activity that has a non-null server prediction.
-     *
-     * @return A server prediction of main activity, or null if none was found.
+     * The aggregates of the minute activities, computed once (when first needed) for all the aggregate getters.
+     * Prediction labels are given local ids (indices into the arrays), in the order they are first seen.
      */
-    public String getMainActivityServerPrediction() {
-        if (this.isEmpty()) {
-            return null;
-        }
+    private static final class ESAggregates {
+        // The sum of the minute activities' labelsVersion() when these aggregates were computed
+        // (the versions only grow, so any change to any of the minutes changes the sum):
+        private final long _labelsVersion;
+        private final String _mainActivityServerPrediction;
+        private final String _mainActivityUserCorrection;
+        // The first minute activity with user-provided labels, or -1:
+        private final int _firstUserLabeledIndex;
+        private final String[] _predictionLabels;
+        private final int[] _predictionCounts;
+        private final double[] _meanProbs;
+        // The prediction label ids, in descending order of mean probability:
+        private final int[] _sortedByMeanProb;
+        private List<Map.Entry<String,Double>> _sortedLabelsAndProbs = null;
+
+        ESAggregates(ESActivity[] minuteActivities,long labelsVersion) {
+            _labelsVersion = labelsVersion;
+
+            // Votes for the server's main activity, and the first user-provided labels:
+            HashMap<String,Integer> mainIds = new HashMap<>(16);
+            int[] votes = new int[minuteActivities.length];
+            int maxVotes = 0;
+            String winningLabel = null;
+            String userCorrection = null;
+            int firstUserLabeledIndex = -1;
+            // Prediction sums:
+            HashMap<String,Integer> predictionIds = new HashMap<>(64);
+            ArrayList<String> predictionLabels = new ArrayList<>(64);
+            int[] counts = new int[64];
+            double[] sums = new double[64];
+            for (int i = 0; i < minuteActivities.length; i ++) {
+                ESActivity minuteActivity = minuteActivities[i];
+                if (minuteActivity == null) {
+                    continue;
+                }
 
-        Map<String,Integer> labelCounts = new HashMap<>(_minuteActivities.length);
-        int maxCount = 0;
-        String winningLabel = null;
-        for (ESActivity minuteActivity : _minuteActivities) {
-            if (minuteActivity != null) {
                 String pred = minuteActivity.get_mainActivityServerPrediction();
                 if (pred != null) {
-                    if (labelCounts.containsKey(pred)) {
-                        labelCounts.put(pred,labelCounts.get(pred) + 1);
+                    Integer id = mainIds.get(pred);
+                    if (id == null) {
+                        id = mainIds.size();
+                        mainIds.put(pred,id);
                     }
-                    else {
-                        labelCounts.put(pred,1);
+                    votes[id] ++;
+                    if (votes[id] > maxVotes) {
+                        winningLabel = pred;
+                        maxVotes = votes[id];
                     }
+                }
+                if (userCorrection == null) {
+                    userCorrection = minuteActivity.get_mainActivityUserCorrection();
+                }
+                if (firstUserLabeledIndex < 0 && minuteActivity.hasUserProvidedLabels()) {
+                    firstUserLabeledIndex = i;
+                }
 
-                    if (labelCounts.get(pred) > maxCount) {
-                        winningLabel = pred;
-                        maxCount = labelCounts.get(pred);
+                String[] names = minuteActivity.get_predictedLabelNames();
+                double[] probs = minuteActivity.get_predictedLabelProbs();
+                if (names == null || probs == null) {
+                    continue;
+                }
+                for (int j = 0; j < names.length; j ++) {
+                    Integer id = predictionIds.get(names[j]);
+                    if (id == null) {
+                        id = predictionLabels.size();
+                        predictionIds.put(names[j],id);
+                        predictionLabels.add(names[j]);
+                        if (id >= counts.length) {
+                            counts = Arrays.copyOf(counts,2 * counts.length);
+                            sums = Arrays.copyOf(sums,2 * sums.length);
+                        }
                     }
+                    counts[id] ++;
+                    sums[id] += probs[j];
                 }
             }
+
+            _mainActivityServerPrediction = winningLabel;
+            _mainActivityUserCorrection = userCorrection;
+            _firstUserLabeledIndex = firstUserLabeledIndex;
+
+            int numLabels = predictionLabels.size();
+            _predictionLabels = predictionLabels.toArray(new String[numLabels]);
+            _predictionCounts = Arrays.copyOf(counts,numLabels);
+            _meanProbs = new double[numLabels];
+            for (int id = 0; id < numLabels; id ++) {
+                _meanProbs[id] = sums[id] / counts[id];
+            }
+            _sortedByMeanProb = sortByDescendingValue(_meanProbs);
         }
 
-        return winningLabel;
+        private static int[] sortByDescendingValue(final double[] values) {
+            Integer[] ids = new Integer[values.length];
+            for (int i = 0; i < ids.length; i ++) {
+                ids[i] = i;
+            }
+            Arrays.sort(ids,new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    // Make sure it's descending order:
+                    return Double.compare(values[rhs],values[lhs]);
+                }
+            });
+            int[] sorted = new int[ids.length];
+            for (int i = 0; i < ids.length; i ++) {
+                sorted[i] = ids[i];
+            }
+            return sorted;
+        }
+
+        synchronized List<Map.Entry<String,Double>> getSortedLabelsAndProbs() {
+            if (_sortedLabelsAndProbs == null) {
+                ArrayList<Map.Entry<String,Double>> sortedList = new ArrayList<>(_sortedByMeanProb.length);
+                for (int id : _sortedByMeanProb) {
+                    sortedList.add(new AbstractMap.SimpleImmutableEntry<>(_predictionLabels[id],_meanProbs[id]));
+                }
+                _sortedLabelsAndProbs = Collections.unmodifiableList(sortedList);
+            }
+            return _sortedLabelsAndProbs;
+        }
     }
 
+    private volatile ESAggregates _aggregates = null;
+
     /**
-     * Get the user correction of the main activity label.
-     *
-     * @return The user correction of main activity, or null if none was found.
+     * Get the aggregates of the minute activities, computing them if the labels of any of them changed since they were computed.
+     * @return The aggregates, or null if this continuous activity is empty
      */
-    public String getMainActivityUserCorrection() {
+    private ESAggregates getAggregates() {
         if (this.isEmpty()) {
             return null;
         }
-
-        for (ESActivity minuteActivity : _minuteActivities) {
-            if (minuteActivity != null) {
-                String correction = minuteActivity.get_mainActivityUserCorrection();
-                if (correction != null) {
-                    return correction;
-                }
-            }
+        long labelsVersion = 0;
+        for (ESActivity activity : _minuteActivities) {
+            labelsVersion += activity.labelsVersion();
         }
+        ESAggregates aggregates = _aggregates;
+        if (aggregates == null || aggregates._labelsVersion != labelsVersion) {
+            aggregates = new ESAggregates(_minuteActivities,labelsVersion);
+            _aggregates = aggregates;
+        }
+        return aggregates;
+    }
+
+    /**
+     * Get a server prediction of the main activity label:
+     * the prediction of the majority of the minute activities.
+     *
+     * @return A server prediction of main activity, or null if none was found.
+     */
+    public String getMainActivityServerPrediction() {
+        ESAggregates aggregates = getAggregates();
+        return (aggregates == null) ? null : aggregates._mainActivityServerPrediction;
+    }
 
-        return null;
+    /**
+     * Get the user correction of the main activity label.
+     *
+     * @return The user correction of main activity, or null if none was found.
+     */
+    public String getMainActivityUserCorrection() {
+        ESAggregates aggregates = getAggregates();
+        return (aggregates == null) ? null : aggregates._mainActivityUserCorrection;
     }
 
     /**
@@ -187,13 +298,8 @@ public class ESContinuousActivity {
      * @return
      */
     public boolean hasUserProvidedLabels() {
-        for (ESActivity activity : _minuteActivities) {
-            if (activity.hasUserProvidedLabels()) {
-                return true;
-            }
-        }
-
-        return false;
+        ESAggregates aggregates = getAggregates();
+        return (aggregates != null) && (aggregates._firstUserLabeledIndex >= 0);
     }
 
     /**
@@ -203,18 +309,12 @@ public class ESContinuousActivity {
      * @return The array of secondary activities
      */
     public String[] getSecondaryActivities() {
-        if (this.isEmpty()) {
+        // Take them from the first activity with user-provided labels:
+        ESAggregates aggregates = getAggregates();
+        if (aggregates == null || aggregates._firstUserLabeledIndex < 0) {
             return null;
         }
-
-        // Search for an activity with user-provided labels:
-        for (ESActivity activity : _minuteActivities) {
-            if (activity.hasUserProvidedLabels()) {
-                return activity.get_secondaryActivities();
-            }
-        }
-
-        return null;
+        return _minuteActivities[aggregates._firstUserLabeledIndex].get_secondaryActivities();
     }
 
     public String[] getSecondaryActivitiesOrServerGuesses() {
@@ -234,106 +334,58 @@ public class ESContinuousActivity {
      * @return The array of moods.
      */
     public String[] getMoods() {
-        if (this.isEmpty()) {
+        // Take them from the first activity with user-provided labels:
+        ESAggregates aggregates = getAggregates();
+        if (aggregates == null || aggregates._firstUserLabeledIndex < 0) {
             return null;
         }
-
-        for (ESActivity activity : _minuteActivities) {
-            // Search for activity with user-provided labels:
-            if (activity.hasUserProvidedLabels()) {
-                return activity.get_moods();
-            }
-        }
-
-        return null;
+        return _minuteActivities[aggregates._firstUserLabeledIndex].get_moods();
     }
 
     /**
-     *
-     * @return
+     * Get the average probability of each label that the server predicted (over the minutes in which it was predicted).
+     * @return A map from label to average probability, or null if this continuous activity is empty
      */
     public Map<String,Double> getServerPredictionLabelNamesAndProbs() {
-        if (this.isEmpty()) {
+        ESAggregates aggregates = getAggregates();
+        if (aggregates == null) {
             return null;
         }
 
-        Map<String,Double> maxProbMap = new HashMap<>(10);
-        Map<String,Double> sumProbMap = new HashMap<>(10);
-        Map<String,Integer> countProbMap = new HashMap<>(10);
-        for (ESActivity minuteActivity : _minuteActivities) {
-            if (minuteActivity != null) {
-                Map<String,Double> probMap = minuteActivity.get_predictedLabelNameAndProbPairs();
-                if (probMap == null) {
-                    continue;
-                }
-
-                for (Map.Entry<String,Double> labelAndProb : probMap.entrySet()) {
-                    String label = labelAndProb.getKey();
-                    Double prob = labelAndProb.getValue();
-
-                    int newCount;
-                    double newMaxProb;
-                    double newSumProb;
-                    if (!countProbMap.containsKey(label)) {
-                        // Add this label to the cummulators:
-                        newCount = 1;
-                        newMaxProb = prob;
-                        newSumProb = prob;
-                    }
-                    else {
-                        // Adjust the cummulative values:
-                        newCount = countProbMap.get(label) + 1;
-                        newMaxProb = Math.max(maxProbMap.get(label),prob);
-                        newSumProb = sumProbMap.get(label) + prob;
-                    }
-
-                    countProbMap.put(label,newCount);
-                    maxProbMap.put(label,newMaxProb);
-                    sumProbMap.put(label,newSumProb);
-                }
-            }
-
-        }
-
-        Map<String,Double> avrProbMap = new HashMap<>(countProbMap.size());
-        for (Map.Entry<String,Double> labelAndSumProb : sumProbMap.entrySet()) {
-            String label = labelAndSumProb.getKey();
-            double sum = labelAndSumProb.getValue().doubleValue();
-            double count = (double) countProbMap.get(label).intValue();
-            avrProbMap.put(label,sum/count);
+        Map<String,Double> avrProbMap = new HashMap<>(2 * aggregates._predictionLabels.length);
+        for (int id = 0; id < aggregates._predictionLabels.length; id ++) {
+            avrProbMap.put(aggregates._predictionLabels[id],aggregates._meanProbs[id]);
         }
-
         return avrProbMap;
     }
 
+    /**
+     * @return The predicted labels and their average probabilities, in descending order of probability.
+     * The list is shared, and can't be changed.
+     */
     public List<Map.Entry<String,Double>> getPredictionLabelsSortedByProb() {
-        Map<String,Double> probMap = getServerPredictionLabelNamesAndProbs();
-        List<Map.Entry<String,Double>> sortedLabelList = new LinkedList<>(probMap.entrySet());
-        Collections.sort(sortedLabelList,new Comparator<Map.Entry<String, Double>>() {
-            @Override
-            public int compare(Map.Entry<String, Double> lhs, Map.Entry<String, Double> rhs) {
-                // Make sure it's descending order:
-                return rhs.getValue().compareTo(lhs.getValue());
-            }
-        });
-
-        return sortedLabelList;
+        ESAggregates aggregates = getAggregates();
+        if (aggregates == null) {
+            return Collections.emptyList();
+        }
+        return aggregates.getSortedLabelsAndProbs();
     }
 
     public String[] getPredictionLabelNamesPredictedYes() {
-        List<Map.Entry<String,Double>> sortedLabels = getPredictionLabelsSortedByProb();
-        ArrayList<String> positiveLabelsList = new ArrayList<>(10);
-        for (int i = 0; i < sortedLabels.size(); i ++ ) {
-            if (sortedLabels.get(i).getValue() <= 0.5) {
-                break;
-            }
-            else {
-                positiveLabelsList.add(sortedLabels.get(i).getKey());
-            }
+        ESAggregates aggregates = getAggregates();
+        if (aggregates == null) {
+            return new String[0];
+        }
+        int numPositive = 0;
+        while (numPositive < aggregates._sortedByMeanProb.length &&
+                aggregates._meanProbs[aggregates._sortedByMeanProb[numPositive]] > 0.5) {
+            numPositive ++;
         }
 
-        String[] positiveLabels = new String[positiveLabelsList.size()];
-        positiveLabels = positiveLabelsList.toArray(positiveLabels);
+        String[] positiveLabels = new String[numPositive];
+        for (int i = 0; i < numPositive; i ++) {
+            positiveLabels[i] = aggregates._predictionLabels[aggregates._sortedByMeanProb[i]];
+        }
         return positiveLabels;
     }
 
@@ -377,6 +429,16 @@ public class ESContinuousActivity {
      * @return The sequence of continuous activities, sorted in ascending order of start-timestamp
      */
     public static ESContinuousActivity[] mergeContinuousActivities(ESActivity[] minuteActivities,boolean addGapDummies) {
+        return mergeContinuousActivities(minuteActivities,addGapDummies,ESSettings.historyTimeUnitInMinutes());
+    }
+
+    /**
+     * Like mergeContinuousActivities(minuteActivities,addGapDummies), with a given history time unit
+     * (instead of the one in the settings).
+     * @param timeUnitMinutes The basic time unit of the history, in minutes
+     */
+    static ESContinuousActivity[] mergeContinuousActivities(ESActivity[] minuteActivities,boolean addGapDummies,int timeUnitMinutes) {
+        int timeUnitSeconds = 60 * timeUnitMinutes;
         ArrayList<ESContinuousActivity> continuousActivities = new ArrayList<ESContinuousActivity>(minuteActivities.length);
         ArrayList<ESActivity> mergedActivities = new ArrayList<ESActivity>(minuteActivities.length);
 
@@ -389,7 +451,7 @@ public class ESContinuousActivity {
 
             // Currently-merged activities are not empty, so compare new activity to the latest one:
             ESActivity latestActivity = mergedActivities.get(mergedActivities.size() - 1);
-            if (shouldMergeTwoAtomicActivities(latestActivity, minuteActivity)) {
+            if (shouldMergeTwoAtomicActivities(latestActivity, minuteActivity, timeUnitSeconds)) {
                 mergedActivities.add(minuteActivity);
             } else {
                 // Then we should close the sequence of minute activities so far, and start a new one:
@@ -399,9 +461,9 @@ public class ESContinuousActivity {
 
                 // Should we insert a dummy-activity representing a gap?
                 if (addGapDummies) {
-                    int timeGap = minuteActivity.get_timestamp().differenceInSeconds(latestActivity.get_timestamp());
+                    int timeGap = minuteActivity.get_timestampSeconds() - latestActivity.get_timestampSeconds();
                     //if (timeGap > MAX_TIME_GAP_FOR_MERGING_ACTIVITIES) {
-                    if (needGap(timeGap)) {
+                    if (needGap(timeGap,timeUnitSeconds)) {
                         ESContinuousActivity dummy = new ESContinuousActivity(timeGap);
                         continuousActivities.add(dummy);
                     }
@@ -427,22 +489,16 @@ public class ESContinuousActivity {
      * Compare the two sets of labels, ignoring the orders,
      * to see if both sets contain exactly the same labels.
      *
-     * @param labelSet1 Array of labels of set1 (arbitrary order)
-     * @param labelSet2 Array of labels of set2 (arbitrary order)
+     * @param labelSet1 Set1 of labels (null is regarded as an empty set)
+     * @param labelSet2 Set2 of labels (null is regarded as an empty set)
      * @return True iff both sets contain exactly the same labels
      */
-    private static boolean areTwoSetsOfLabelsTheSame(String[] labelSet1,String[] labelSet2) {
-        Set<String> set1 = getSetFromArray(labelSet1);
-        Set<String> set2 = getSetFromArray(labelSet2);
-
-        return set1.equals(set2);
-    }
-
-    private static Set<String> getSetFromArray(String[] array) {
-        HashSet<String> set = new HashSet<String>();
-        Collections.addAll(set, array);
+    private static boolean areTwoSetsOfLabelsTheSame(ESLabelSet labelSet1,ESLabelSet labelSet2) {
+        if (labelSet1 == null || labelSet2 == null) {
+            return (labelSet1 == null || labelSet1.isEmpty()) && (labelSet2 == null || labelSet2.isEmpty());
+        }
 
-        return set;
+        return labelSet1.equals(labelSet2);
     }
 
     private static boolean exactSameUserReportedLabels(ESActivity firstActivity,ESActivity secondActivity) {
@@ -468,16 +524,16 @@ public class ESContinuousActivity {
         // If reached here, main activity compares fine (although they may be 'dummy label').
 
         // Compare secondary activities:
-        String[] firstActSecondaries = firstActivity.get_secondaryActivities();
+        ESLabelSet firstActSecondaries = firstActivity.get_secondaryActivitiesSet();
         if ((firstActSecondaries != null) &&
-                (!areTwoSetsOfLabelsTheSame(firstActSecondaries,secondActivity.get_secondaryActivities()))) {
+                (!areTwoSetsOfLabelsTheSame(firstActSecondaries,secondActivity.get_secondaryActivitiesSet()))) {
             return false;
         }
 
         // Compare moods:
-        String[] firstActMoods = firstActivity.get_moods();
+        ESLabelSet firstActMoods = firstActivity.get_moodsSet();
         if ((firstActMoods != null) &&
-                (!areTwoSetsOfLabelsTheSame(firstActMoods,secondActivity.get_moods()))) {
+                (!areTwoSetsOfLabelsTheSame(firstActMoods,secondActivity.get_moodsSet()))) {
             return false;
         }
 
@@ -485,10 +541,10 @@ public class ESContinuousActivity {
         return true;
     }
 
-    private static boolean shouldMergeTwoAtomicActivities(ESActivity firstActivity,ESActivity secondActivity) {
+    static boolean shouldMergeTwoAtomicActivities(ESActivity firstActivity,ESActivity secondActivity,int timeUnitSeconds) {
         // Compare timestamps:
-        int timeGap = secondActivity.get_timestamp().differenceInSeconds(firstActivity.get_timestamp());
-        if (needGap(timeGap)) {
+        int timeGap = secondActivity.get_timestampSeconds() - firstActivity.get_timestampSeconds();
+        if (needGap(timeGap,timeUnitSeconds)) {
             return false;
         }
 
@@ -507,9 +563,9 @@ public class ESContinuousActivity {
 
         // If reached here, both activities have no user-reported labels.
 
-        // If they both belong to the same time-slot, then merge them:
-        int firstTimeSlot = firstActivity.get_timestamp().get_secondsSinceEpoch() / basicTimeUnitSeconds();
-        int secondTimeSlot = secondActivity.get_timestamp().get_secondsSinceEpoch() / basicTimeUnitSeconds();
+        // If they both belong to the same time-slot (of the local clock), then merge them:
+        int firstTimeSlot = ESEpochSeconds.toLocalSeconds(firstActivity.get_timestampSeconds()) / timeUnitSeconds;
+        int secondTimeSlot = ESEpochSeconds.toLocalSeconds(secondActivity.get_timestampSeconds()) / timeUnitSeconds;
         if (firstTimeSlot == secondTimeSlot) {
             return true;
         }
@@ -527,11 +583,11 @@ public class ESContinuousActivity {
         }
     }
 
-    private static boolean shouldMergeTwoAtomicActivitiesOldMechanism(ESActivity firstActivity,ESActivity secondActivity) {
+    private static boolean shouldMergeTwoAtomicActivitiesOldMechanism(ESActivity firstActivity,ESActivity secondActivity,int timeUnitSeconds) {
         // Compare timestamps:
-        int timeGap = secondActivity.get_timestamp().differenceInSeconds(firstActivity.get_timestamp());
+        int timeGap = secondActivity.get_timestampSeconds() - firstActivity.get_timestampSeconds();
         //if (timeGap > MAX_TIME_GAP_FOR_MERGING_ACTIVITIES) {
-        if (needGap(timeGap)) {
+        if (needGap(timeGap,timeUnitSeconds)) {
             return false;
         }
 
@@ -557,12 +613,12 @@ public class ESContinuousActivity {
         // If reached here, main activity compares fine.
 
         // Compare secondary activities:
-        if (!areTwoSetsOfLabelsTheSame(firstActivity.get_secondaryActivities(),secondActivity.get_secondaryActivities())) {
+        if (!areTwoSetsOfLabelsTheSame(firstActivity.get_secondaryActivitiesSet(),secondActivity.get_secondaryActivitiesSet())) {
             return false;
         }
 
         // Compare moods:
-        if (!areTwoSetsOfLabelsTheSame(firstActivity.get_moods(),secondActivity.get_moods())) {
+        if (!areTwoSetsOfLabelsTheSame(firstActivity.get_moodsSet(),secondActivity.get_moodsSet())) {
             return false;
         }
 
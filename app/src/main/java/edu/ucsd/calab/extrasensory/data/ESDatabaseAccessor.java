@@ -2,27 +2,30 @@ package edu.ucsd.calab.extrasensory.data;
 
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.Intent;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.hardware.Sensor;
 import android.location.Location;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
+import android.util.LruCache;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 
 import java.io.File;
+import java.security.InvalidParameterException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
 
 import edu.ucsd.calab.extrasensory.ESApplication;
 import edu.ucsd.calab.extrasensory.R;
@@ -63,6 +66,8 @@ public class ESDatabaseAccessor {
     private static final boolean SAVE_PREDICTION_FILES_DEFAULT = true;
     private static final boolean SAVE_USER_LABELS_FILES_DEFAULT = false;
     private static final int HISTORY_TIME_UNIT_MINUTES_DEFAULT = 1;
+    // About 4 hours of minute-activities:
+    private static final int ACTIVITY_CACHE_MAX_ENTRIES = 256;
 
     private static ArrayList<Integer> defaultHFSensorsToRecord() {
         ArrayList<Integer> highFreqSensorTypesToRecordDefault = new ArrayList<>(2);
@@ -83,9 +88,51 @@ public class ESDatabaseAccessor {
 
     public static final String BROADCAST_DATABASE_RECORDS_UPDATED = "edu.ucsd.calab.extrasensory.broadcast.database_records_updated";
     public enum ESLabelType {
-        ES_LABEL_TYPE_MAIN,
-        ES_LABEL_TYPE_SECONDARY,
-        ES_LABEL_TYPE_MOOD
+        ES_LABEL_TYPE_MAIN(0),
+        ES_LABEL_TYPE_SECONDARY(1),
+        ES_LABEL_TYPE_MOOD(2),
+        // The label names of the server predictions (only used to encode the predictions compactly):
+        ES_LABEL_TYPE_PREDICTION(3);
+
+        private final int _value;
+        private ESLabelType(final int value) {
+            _value = value;
+        }
+
+        private static Map<Integer, ESLabelType> map = new HashMap<Integer, ESLabelType>();
+
+        static {
+            for (ESLabelType labelType : ESLabelType.values()) {
+                map.put(labelType._value, labelType);
+            }
+        }
+
+        static ESLabelType labelTypeFromValue(int value) {
+            if (map.containsKey(value)) {
+                return map.get(value);
+            }
+            else {
+                String msg = "Got unsupported label type value " + value;
+                Log.e(LOG_TAG, msg);
+                throw new InvalidParameterException(msg);
+            }
+        }
+
+        int get_value() {
+            return _value;
+        }
+    }
+
+    /**
+     * A visitor of activities, for going over a long time range without holding all its activities in memory.
+     */
+    public interface ESActivityVisitor {
+        /**
+         * Visit an activity.
+         * @param activity The activity (a fresh object, which the visitor may keep)
+         * @return Should we continue to the next activity?
+         */
+        boolean visit(ESActivity activity);
     }
 
     private static ESDatabaseAccessor _theSingleAccessor;
@@ -99,12 +146,412 @@ public class ESDatabaseAccessor {
         return _theSingleAccessor;
     }
 
+    private static final String[] ACTIVITY_PROJECTION = {
+            ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP,
+            ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LABEL_SOURCE,
+            ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_SERVER_PREDICTION,
+            ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_USER_CORRECTION,
+            ESDatabaseContract.ESActivityEntry.COLUMN_NAME_SECONDARY_ACTIVITIES_CSV,
+            ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MOODS_CSV,
+            ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTIONS_BLOB,
+            ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LOCATION_LAT_LONG_BLOB,
+            ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_OPEN_FEEDBACK_FORM,
+            ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_PRESS_SEND_BUTTON,
+            ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_NOTIFICATION,
+            ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_USER_RESPOND_TO_NOTIFICATION
+    };
+
+    // Selections use bound arguments, so the SQL text stays the same and the connection can reuse its prepared statement:
+    private static final String SELECTION_ACTIVITY_BY_TIMESTAMP =
+            ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + " = ?";
+    private static final String SELECTION_ACTIVITIES_IN_TIME_RANGE =
+            ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + " >= ? AND " +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + " <= ?";
+    // For reading a long time range in pages: the first argument is the last timestamp of the previous page.
+    private static final String SELECTION_ACTIVITIES_AFTER_TIMESTAMP_IN_TIME_RANGE =
+            ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + " > ? AND " +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + " <= ?";
+    private static final String SELECTION_ORPHAN_CANDIDATES = SELECTION_ACTIVITIES_AFTER_TIMESTAMP_IN_TIME_RANGE +
+            " AND " + ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_SERVER_PREDICTION + " IS NULL";
+    private static final String SORT_ORDER_TIMESTAMP_ASCENDING =
+            ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + " ASC";
+    // The number of records read at a time when going over a long time range:
+    private static final int RECORDS_PAGE_SIZE = 500;
+    private static final String RECORDS_PAGE_LIMIT = "" + RECORDS_PAGE_SIZE;
+
+    // The precompiled statements of the frequent writes (the minute-tick insert and the label updates):
+    private static final String SQL_COUNT_ACTIVITY_BY_TIMESTAMP =
+            "SELECT COUNT(*) FROM " + ESDatabaseContract.ESActivityEntry.TABLE_NAME +
+                    " WHERE " + SELECTION_ACTIVITY_BY_TIMESTAMP;
+    private static final String SQL_INSERT_NEW_ACTIVITY =
+            "INSERT INTO " + ESDatabaseContract.ESActivityEntry.TABLE_NAME + " (" +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + "," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LABEL_SOURCE + "," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_SERVER_PREDICTION + "," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_USER_CORRECTION + "," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_SECONDARY_ACTIVITIES_CSV + "," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MOODS_CSV + "," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTIONS_BLOB + "," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LOCATION_LAT_LONG_BLOB + "," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_OPEN_FEEDBACK_FORM + "," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_PRESS_SEND_BUTTON + "," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_NOTIFICATION + "," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_USER_RESPOND_TO_NOTIFICATION +
+                    ") VALUES (?,?,NULL,NULL,'','',NULL,NULL,-1,-1,-1,-1)";
+    private static final String SQL_UPDATE_ACTIVITY =
+            "UPDATE " + ESDatabaseContract.ESActivityEntry.TABLE_NAME + " SET " +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LABEL_SOURCE + " = ?," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_SERVER_PREDICTION + " = ?," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_USER_CORRECTION + " = ?," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_SECONDARY_ACTIVITIES_CSV + " = ?," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MOODS_CSV + " = ?," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTIONS_BLOB + " = ?," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LOCATION_LAT_LONG_BLOB + " = ?," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_OPEN_FEEDBACK_FORM + " = ?," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_PRESS_SEND_BUTTON + " = ?," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_NOTIFICATION + " = ?," +
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_USER_RESPOND_TO_NOTIFICATION + " = ?" +
+                    " WHERE " + SELECTION_ACTIVITY_BY_TIMESTAMP;
+    private static final String SQL_DELETE_ACTIVITY =
+            "DELETE FROM " + ESDatabaseContract.ESActivityEntry.TABLE_NAME +
+                    " WHERE " + SELECTION_ACTIVITY_BY_TIMESTAMP;
+    private static final String SQL_SELECT_ACTIVITY_LABEL_IDS =
+            "SELECT " + ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_LABEL_ID +
+                    " FROM " + ESDatabaseContract.ESActivityLabelEntry.TABLE_NAME +
+                    " WHERE " + ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_TIMESTAMP + " = ?";
+    private static final String SQL_DELETE_ACTIVITY_LABEL =
+            "DELETE FROM " + ESDatabaseContract.ESActivityLabelEntry.TABLE_NAME +
+                    " WHERE " + ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_TIMESTAMP + " = ?" +
+                    " AND " + ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_LABEL_ID + " = ?";
+    private static final String SQL_DELETE_ACTIVITY_LABELS =
+            "DELETE FROM " + ESDatabaseContract.ESActivityLabelEntry.TABLE_NAME +
+                    " WHERE " + ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_TIMESTAMP + " = ?";
+    private static final String SQL_ADD_LABEL_COUNTER =
+            "INSERT OR IGNORE INTO " + ESDatabaseContract.ESLabelCountEntry.TABLE_NAME + " (" +
+                    ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_LABEL_ID + "," +
+                    ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_COUNT + ") VALUES (?,0)";
+    // (When the count gets to zero, the decayed score is reset, rather than left with rounding errors):
+    private static final String SQL_ADJUST_LABEL_COUNT =
+            "UPDATE " + ESDatabaseContract.ESLabelCountEntry.TABLE_NAME +
+                    " SET " + ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_COUNT + " = " +
+                    ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_COUNT + " + ?1" +
+                    ", " + ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_DECAYED_SCORE + " = CASE WHEN " +
+                    ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_COUNT + " + ?1 > 0 THEN " +
+                    ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_DECAYED_SCORE + " + ?1 * ?2 ELSE 0 END" +
+                    " WHERE " + ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_LABEL_ID + " = ?3";
+    private static final String SQL_INSERT_ACTIVITY_LABEL =
+            "INSERT OR IGNORE INTO " + ESDatabaseContract.ESActivityLabelEntry.TABLE_NAME + " (" +
+                    ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_TIMESTAMP + "," +
+                    ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_LABEL_ID + ") VALUES (?,?)";
+
+    // Counting and filtering by label go through the index of the activity-label table:
+    private static final String SQL_COUNT_LABELS_FROM_TIME =
+            "SELECT d." + ESDatabaseContract.ESLabelDictionaryEntry.COLUMN_NAME_LABEL + ", COUNT(*)" +
+                    " FROM " + ESDatabaseContract.ESActivityLabelEntry.TABLE_NAME + " a" +
+                    " JOIN " + ESDatabaseContract.ESLabelDictionaryEntry.TABLE_NAME + " d" +
+                    " ON a." + ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_LABEL_ID +
+                    " = d." + ESDatabaseContract.ESLabelDictionaryEntry.COLUMN_NAME_LABEL_ID +
+                    " WHERE d." + ESDatabaseContract.ESLabelDictionaryEntry.COLUMN_NAME_LABEL_TYPE + " = ?" +
+                    " AND a." + ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_TIMESTAMP + " >= ?" +
+                    " GROUP BY d." + ESDatabaseContract.ESLabelDictionaryEntry.COLUMN_NAME_LABEL_ID;
+    // The counts of all history come from the maintained counters, which are per label (and not per activity):
+    private static final String SQL_ALL_TIME_LABEL_COUNTS =
+            "SELECT d." + ESDatabaseContract.ESLabelDictionaryEntry.COLUMN_NAME_LABEL +
+                    ", c." + ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_COUNT +
+                    " FROM " + ESDatabaseContract.ESLabelCountEntry.TABLE_NAME + " c" +
+                    " JOIN " + ESDatabaseContract.ESLabelDictionaryEntry.TABLE_NAME + " d" +
+                    " ON c." + ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_LABEL_ID +
+                    " = d." + ESDatabaseContract.ESLabelDictionaryEntry.COLUMN_NAME_LABEL_ID +
+                    " WHERE d." + ESDatabaseContract.ESLabelDictionaryEntry.COLUMN_NAME_LABEL_TYPE + " = ?" +
+                    " AND c." + ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_COUNT + " > 0" +
+                    " ORDER BY c." + ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_COUNT + " DESC";
+    // The latest activity with a user-reported label (other than the "not sure" main label), through the primary key:
+    private static final String SQL_SELECT_LATEST_VERIFIED_TIMESTAMP =
+            "SELECT " + ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_TIMESTAMP +
+                    " FROM " + ESDatabaseContract.ESActivityLabelEntry.TABLE_NAME +
+                    " WHERE " + ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_LABEL_ID + " != ?" +
+                    " ORDER BY " + ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_TIMESTAMP + " DESC LIMIT 1";
+    private static final String SELECTION_ACTIVITY_LABELS_BY_LABEL_IN_TIME_RANGE =
+            ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_LABEL_ID + " = ? AND " +
+                    ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_TIMESTAMP + " >= ? AND " +
+                    ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_TIMESTAMP + " <= ?";
+
+    // The segments of a label don't overlap, so the segments overlapping a time range are the last one that starts
+    // at or before the range's start, and the ones that start inside the range (both found on the segment table's key).
+    // Arguments: label id, range end, range start, label id, range start.
+    private static final String SQL_SELECT_LABEL_SEGMENTS_IN_TIME_RANGE =
+            "SELECT " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_START_TIMESTAMP + "," +
+                    ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_END_TIMESTAMP +
+                    " FROM " + ESDatabaseContract.ESLabelSegmentEntry.TABLE_NAME +
+                    " WHERE " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_LABEL_ID + " = ?" +
+                    " AND " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_START_TIMESTAMP + " <= ?" +
+                    " AND " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_START_TIMESTAMP + " >= (" +
+                    "SELECT IFNULL(MAX(" + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_START_TIMESTAMP + "),?)" +
+                    " FROM " + ESDatabaseContract.ESLabelSegmentEntry.TABLE_NAME +
+                    " WHERE " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_LABEL_ID + " = ?" +
+                    " AND " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_START_TIMESTAMP + " <= ?)" +
+                    " ORDER BY " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_START_TIMESTAMP + " ASC";
+
     // Data members:
     private Context _context;
     private ESDBHelper _dbHelper;
+    /**
+     * Concurrency: the reads don't take any lock. With write-ahead logging the database keeps a pool of connections,
+     * so reads from different threads run in parallel, and each query sees a consistent snapshot,
+     * even while a write is in progress (so a history scan doesn't hold back the recording's writes, and vice versa).
+     * The writes are serialised with this lock. It also guards the compiled statements (which are not thread safe),
+     * and makes check-then-write sequences atomic.
+     */
+    private final ReentrantLock _writeLock = new ReentrantLock();
+    /**
+     * The recently used activities, by timestamp (seconds). The cached objects are never handed out:
+     * readers get copies, so callers can't change what the cache holds.
+     * The activity writes update the cache too (write-through), while holding the write lock.
+     * A read that missed only caches what it read if no cache write happened meanwhile
+     * (otherwise it might put back an older version of the activity).
+     */
+    private final LruCache<Integer,ESActivity> _activityCache = new LruCache<>(ACTIVITY_CACHE_MAX_ENTRIES);
+    private long _numActivityCacheWrites = 0;
+    private final ESHistoryDayCache _historyDayCache = new ESHistoryDayCache();
+    private final ESDatabaseChangeNotifier _changeNotifier;
+    private SQLiteDatabase _db = null;
+    private SQLiteStatement _countActivityStatement = null;
+    private SQLiteStatement _insertActivityStatement = null;
+    private SQLiteStatement _updateActivityStatement = null;
+    private SQLiteStatement _deleteActivityStatement = null;
+    private SQLiteStatement _deleteActivityLabelsStatement = null;
+    private SQLiteStatement _insertActivityLabelStatement = null;
+    private SQLiteStatement _deleteActivityLabelStatement = null;
+    private SQLiteStatement _addLabelCounterStatement = null;
+    private SQLiteStatement _adjustLabelCountStatement = null;
+    private ESLabelDictionary _labelDictionary = null;
+    private ESLabelSegmentIndex _labelSegmentIndex = null;
+    private ESFrequentLabelsTracker _frequentLabelsTracker = null;
+    private static final int LATEST_VERIFIED_UNKNOWN = -2;
+    private static final int LATEST_VERIFIED_NONE = -1;
+    /**
+     * The timestamp (seconds) of the latest verified activity (with user-reported labels, other than "not sure"),
+     * kept up to date by the label writes (while holding the write lock).
+     * It is restored from the DB when the database is opened, and again after the latest verified activity lost its labels.
+     */
+    private volatile int _latestVerifiedSeconds = LATEST_VERIFIED_UNKNOWN;
+
     private ESDatabaseAccessor(Context context) {
+        this(context,context.getString(R.string.database_name));
+    }
+
+    /**
+     * Create an accessor to a database file with the given name.
+     * The app uses the single accessor (see getESDatabaseAccessor()). This is for tests and benchmarks,
+     * that work on a separate database.
+     * @param context The context
+     * @param databaseName The name of the database file
+     */
+    ESDatabaseAccessor(Context context,String databaseName) {
         _context = context;
-        _dbHelper = new ESDBHelper(_context);
+        _dbHelper = new ESDBHelper(_context,databaseName);
+        _changeNotifier = new ESDatabaseChangeNotifier(_context);
+    }
+
+    /**
+     * Get the database connection.
+     * The connection is opened once, with write-ahead logging, and then kept open for the lifetime of the app
+     * (instead of opening and closing the database around every query).
+     * The statements of the frequent writes are compiled once the connection is opened.
+     * @return The open database
+     */
+    private synchronized SQLiteDatabase getDatabase() {
+        if (_db == null || !_db.isOpen()) {
+            SQLiteDatabase db = _dbHelper.getWritableDatabase();
+            if (!db.enableWriteAheadLogging()) {
+                Log.w(LOG_TAG,"Couldn't enable write-ahead logging for the database");
+            }
+            _countActivityStatement = db.compileStatement(SQL_COUNT_ACTIVITY_BY_TIMESTAMP);
+            _insertActivityStatement = db.compileStatement(SQL_INSERT_NEW_ACTIVITY);
+            _updateActivityStatement = db.compileStatement(SQL_UPDATE_ACTIVITY);
+            _deleteActivityStatement = db.compileStatement(SQL_DELETE_ACTIVITY);
+            _deleteActivityLabelsStatement = db.compileStatement(SQL_DELETE_ACTIVITY_LABELS);
+            _insertActivityLabelStatement = db.compileStatement(SQL_INSERT_ACTIVITY_LABEL);
+            _deleteActivityLabelStatement = db.compileStatement(SQL_DELETE_ACTIVITY_LABEL);
+            _addLabelCounterStatement = db.compileStatement(SQL_ADD_LABEL_COUNTER);
+            _adjustLabelCountStatement = db.compileStatement(SQL_ADJUST_LABEL_COUNT);
+            _labelDictionary = new ESLabelDictionary(db);
+            _labelSegmentIndex = new ESLabelSegmentIndex(db);
+            _frequentLabelsTracker = new ESFrequentLabelsTracker(_labelDictionary);
+            _latestVerifiedSeconds = selectLatestVerifiedTimestamp(db,_labelDictionary,_context);
+            _db = db;
+            Log.i(LOG_TAG,"Opened the database " + _dbHelper.getDatabaseName());
+        }
+        return _db;
+    }
+
+    /**
+     * Close the database connection (the app keeps it open, so this is mostly for tests).
+     * The next call will reopen it.
+     * This should only be called when no reads are in progress.
+     */
+    void close() {
+        _writeLock.lock();
+        try {
+            synchronized (this) {
+                if (_db == null) {
+                    return;
+                }
+                _countActivityStatement.close();
+                _insertActivityStatement.close();
+                _updateActivityStatement.close();
+                _deleteActivityStatement.close();
+                _deleteActivityLabelsStatement.close();
+                _insertActivityLabelStatement.close();
+                _deleteActivityLabelStatement.close();
+                _addLabelCounterStatement.close();
+                _adjustLabelCountStatement.close();
+                _labelSegmentIndex.close();
+                _dbHelper.close();
+                _db = null;
+                _latestVerifiedSeconds = LATEST_VERIFIED_UNKNOWN;
+                invalidateCachedActivity(null);
+                _historyDayCache.invalidate(null);
+            }
+        }
+        finally {
+            _writeLock.unlock();
+        }
+    }
+
+    private static String[] timestampArgs(ESTimestamp timestamp) {
+        return new String[]{"" + timestamp.get_secondsSinceEpoch()};
+    }
+
+    private static String[] timeRangeArgs(int fromSeconds,int toSeconds) {
+        return new String[]{"" + fromSeconds,"" + toSeconds};
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement,int index,String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        }
+        else {
+            statement.bindString(index,value);
+        }
+    }
+
+    private static void bindBlobOrNull(SQLiteStatement statement,int index,byte[] value) {
+        if (value == null) {
+            statement.bindNull(index);
+        }
+        else {
+            statement.bindBlob(index,value);
+        }
+    }
+
+    private static int textLength(String text) {
+        return (text == null) ? 0 : text.length();
+    }
+
+    private static int blobLength(byte[] blob) {
+        return (blob == null) ? 0 : blob.length;
+    }
+
+    /**
+     * Create an activity object the way a newly created record would be read from the DB.
+     */
+    private static ESActivity newActivityAsStored(ESTimestamp timestamp) {
+        return new ESActivity(timestamp,ESActivity.ESLabelSource.ES_LABEL_SOURCE_DEFAULT,null,null,
+                new String[]{},new String[]{},new String[]{},new double[]{},new double[]{},
+                null,null,null,null);
+    }
+
+    /**
+     * Put an activity in the cache (write-through). Should be called while holding the write lock.
+     * @param activity The activity, as it is now in the DB. The cache keeps it, so no one else should hold it.
+     */
+    private void cacheWrittenActivity(ESActivity activity) {
+        synchronized (_activityCache) {
+            _numActivityCacheWrites ++;
+            _activityCache.put(activity.get_timestampSeconds(),activity);
+        }
+    }
+
+    /**
+     * Remove an activity from the cache. Should be called while holding the write lock.
+     * @param timestamp The timestamp of the activity, or null to clear the whole cache
+     */
+    private void invalidateCachedActivity(ESTimestamp timestamp) {
+        synchronized (_activityCache) {
+            _numActivityCacheWrites ++;
+            if (timestamp == null) {
+                _activityCache.evictAll();
+            }
+            else {
+                _activityCache.remove(timestamp.get_secondsSinceEpoch());
+            }
+        }
+    }
+
+    private long getNumActivityCacheWrites() {
+        synchronized (_activityCache) {
+            return _numActivityCacheWrites;
+        }
+    }
+
+    /**
+     * Cache an activity that was read from the DB, unless the cache was written since the read started.
+     */
+    private void cacheReadActivity(ESActivity activity,long numCacheWritesBeforeRead) {
+        synchronized (_activityCache) {
+            if (_numActivityCacheWrites == numCacheWritesBeforeRead) {
+                _activityCache.put(activity.get_timestampSeconds(),activity);
+            }
+        }
+    }
+
+    /**
+     * How many activity lookups (getESActivity()) were answered from the cache.
+     */
+    public int get_activityCacheHits() {
+        return _activityCache.hitCount();
+    }
+
+    /**
+     * How many activity lookups (getESActivity()) had to read from the DB.
+     */
+    public int get_activityCacheMisses() {
+        return _activityCache.missCount();
+    }
+
+    /**
+     * Get the label ids of the user-reported labels of an activity (adding new labels to the dictionary).
+     * @return The label ids, sorted and without repetitions
+     */
+    private static int[] collectLabelIds(SQLiteDatabase db,ESLabelDictionary labelDictionary,
+                                         String mainActivityUserCorrection,String[] secondaryActivities,String[] moods) {
+        int numLabels = (mainActivityUserCorrection == null ? 0 : 1) +
+                (secondaryActivities == null ? 0 : secondaryActivities.length) + (moods == null ? 0 : moods.length);
+        int[] labelIds = new int[numLabels];
+        int count = 0;
+        if (mainActivityUserCorrection != null) {
+            labelIds[count++] = labelDictionary.getOrAddLabelId(db,ESLabelType.ES_LABEL_TYPE_MAIN,mainActivityUserCorrection);
+        }
+        if (secondaryActivities != null) {
+            for (String secondary : secondaryActivities) {
+                labelIds[count++] = labelDictionary.getOrAddLabelId(db,ESLabelType.ES_LABEL_TYPE_SECONDARY,secondary);
+            }
+        }
+        if (moods != null) {
+            for (String mood : moods) {
+                labelIds[count++] = labelDictionary.getOrAddLabelId(db,ESLabelType.ES_LABEL_TYPE_MOOD,mood);
+            }
+        }
+        Arrays.sort(labelIds);
+        // Remove repetitions and failed ids (-1):
+        int numUnique = 0;
+        for (int i = 0; i < labelIds.length; i ++) {
+            if (labelIds[i] >= 0 && (numUnique == 0 || labelIds[numUnique - 1] != labelIds[i])) {
+                labelIds[numUnique++] = labelIds[i];
+            }
+        }
+        return Arrays.copyOf(labelIds,numUnique);
     }
 
     /**
@@ -112,7 +559,12 @@ public class ESDatabaseAccessor {
      */
     private class ESDBHelper extends SQLiteOpenHelper {
 
-        private static final int DATABASE_VERSION = 1;
+        // Version 2: added the label dictionary and activity-label tables
+        // Version 3: added the label count table
+        // Version 4: the server predictions and location are stored in binary columns (instead of text)
+        // Version 5: added the label segment table
+        // Version 6: added the decayed score column to the label count table
+        private static final int DATABASE_VERSION = 6;
         private static final String SQL_CREATE_ES_ACTIVITY_TABLE =
                 "CREATE TABLE " + ESDatabaseContract.ESActivityEntry.TABLE_NAME +
                         " (" +
@@ -122,14 +574,28 @@ public class ESDatabaseAccessor {
                         ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_USER_CORRECTION + " TEXT," +
                         ESDatabaseContract.ESActivityEntry.COLUMN_NAME_SECONDARY_ACTIVITIES_CSV + " TEXT," +
                         ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MOODS_CSV + " TEXT," +
-                        ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTED_LABEL_NAMES_CSV + " TEXT," +
-                        ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTED_LABEL_PROBS_CSV + " TEXT," +
-                        ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LOCATION_REPRESENTATIVE_LAT_LONG_CSV + " TEXT," +
+                        ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTIONS_BLOB + " BLOB," +
+                        ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LOCATION_LAT_LONG_BLOB + " BLOB," +
                         ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_OPEN_FEEDBACK_FORM + " INTEGER," +
                         ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_PRESS_SEND_BUTTON + " INTEGER," +
                         ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_NOTIFICATION + " INTEGER," +
                         ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_USER_RESPOND_TO_NOTIFICATION + " INTEGER" +
                         ")";
+        private static final String SQL_ADD_PREDICTIONS_BLOB_COLUMN =
+                "ALTER TABLE " + ESDatabaseContract.ESActivityEntry.TABLE_NAME +
+                        " ADD COLUMN " + ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTIONS_BLOB + " BLOB";
+        private static final String SQL_ADD_LOCATION_BLOB_COLUMN =
+                "ALTER TABLE " + ESDatabaseContract.ESActivityEntry.TABLE_NAME +
+                        " ADD COLUMN " + ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LOCATION_LAT_LONG_BLOB + " BLOB";
+        // Fill the binary columns of a record and clear its text columns:
+        private static final String SQL_MIGRATE_ACTIVITY_TO_BLOB_COLUMNS =
+                "UPDATE " + ESDatabaseContract.ESActivityEntry.TABLE_NAME + " SET " +
+                        ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTIONS_BLOB + " = ?," +
+                        ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LOCATION_LAT_LONG_BLOB + " = ?," +
+                        ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTED_LABEL_NAMES_CSV + " = NULL," +
+                        ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTED_LABEL_PROBS_CSV + " = NULL," +
+                        ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LOCATION_REPRESENTATIVE_LAT_LONG_CSV + " = NULL" +
+                        " WHERE " + SELECTION_ACTIVITY_BY_TIMESTAMP;
         private static final String SQL_DELETE_ES_ACTIVITY_TABLE =
                 "DROP TABLE IF EXISTS " + ESDatabaseContract.ESActivityEntry.TABLE_NAME;
 
@@ -160,8 +626,60 @@ public class ESDatabaseAccessor {
         private static final String SQL_DELETE_ES_SETTINGS_TABLE =
                 "DROP TABLE IF EXISTS " + ESDatabaseContract.ESSettingsEntry.TABLE_NAME;
 
-        public ESDBHelper(Context context) {
-            super(context, context.getString(R.string.database_name),null,DATABASE_VERSION);
+        private static final String SQL_CREATE_ES_LABEL_DICTIONARY_TABLE =
+                "CREATE TABLE " + ESDatabaseContract.ESLabelDictionaryEntry.TABLE_NAME +
+                        " (" +
+                        ESDatabaseContract.ESLabelDictionaryEntry.COLUMN_NAME_LABEL_ID + " INTEGER PRIMARY KEY," +
+                        ESDatabaseContract.ESLabelDictionaryEntry.COLUMN_NAME_LABEL_TYPE + " INTEGER NOT NULL," +
+                        ESDatabaseContract.ESLabelDictionaryEntry.COLUMN_NAME_LABEL + " TEXT NOT NULL," +
+                        "UNIQUE (" + ESDatabaseContract.ESLabelDictionaryEntry.COLUMN_NAME_LABEL_TYPE + "," +
+                        ESDatabaseContract.ESLabelDictionaryEntry.COLUMN_NAME_LABEL + ")" +
+                        ")";
+
+        private static final String SQL_CREATE_ES_ACTIVITY_LABEL_TABLE =
+                "CREATE TABLE " + ESDatabaseContract.ESActivityLabelEntry.TABLE_NAME +
+                        " (" +
+                        ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_TIMESTAMP + " INTEGER NOT NULL," +
+                        ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_LABEL_ID + " INTEGER NOT NULL," +
+                        "PRIMARY KEY (" + ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_TIMESTAMP + "," +
+                        ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_LABEL_ID + ")" +
+                        ")";
+        private static final String SQL_CREATE_ES_LABEL_COUNT_TABLE =
+                "CREATE TABLE " + ESDatabaseContract.ESLabelCountEntry.TABLE_NAME +
+                        " (" +
+                        ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_LABEL_ID + " INTEGER PRIMARY KEY," +
+                        ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_COUNT + " INTEGER NOT NULL," +
+                        ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_DECAYED_SCORE + " REAL NOT NULL DEFAULT 0" +
+                        ")";
+        private static final String SQL_ADD_DECAYED_SCORE_COLUMN =
+                "ALTER TABLE " + ESDatabaseContract.ESLabelCountEntry.TABLE_NAME +
+                        " ADD COLUMN " + ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_DECAYED_SCORE + " REAL NOT NULL DEFAULT 0";
+        private static final String SQL_POPULATE_ES_LABEL_COUNT_TABLE =
+                "INSERT INTO " + ESDatabaseContract.ESLabelCountEntry.TABLE_NAME + " (" +
+                        ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_LABEL_ID + "," +
+                        ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_COUNT + ")" +
+                        " SELECT " + ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_LABEL_ID + ", COUNT(*)" +
+                        " FROM " + ESDatabaseContract.ESActivityLabelEntry.TABLE_NAME +
+                        " GROUP BY " + ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_LABEL_ID;
+
+        private static final String SQL_CREATE_ES_ACTIVITY_LABEL_INDEX =
+                "CREATE INDEX " + ESDatabaseContract.ESActivityLabelEntry.INDEX_NAME_BY_LABEL +
+                        " ON " + ESDatabaseContract.ESActivityLabelEntry.TABLE_NAME + " (" +
+                        ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_LABEL_ID + "," +
+                        ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_TIMESTAMP + ")";
+
+        private static final String SQL_CREATE_ES_LABEL_SEGMENT_TABLE =
+                "CREATE TABLE " + ESDatabaseContract.ESLabelSegmentEntry.TABLE_NAME +
+                        " (" +
+                        ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_LABEL_ID + " INTEGER NOT NULL," +
+                        ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_START_TIMESTAMP + " INTEGER NOT NULL," +
+                        ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_END_TIMESTAMP + " INTEGER NOT NULL," +
+                        "PRIMARY KEY (" + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_LABEL_ID + "," +
+                        ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_START_TIMESTAMP + ")" +
+                        ")";
+
+        public ESDBHelper(Context context,String databaseName) {
+            super(context,databaseName,null,DATABASE_VERSION);
         }
 
         @Override
@@ -171,13 +689,114 @@ public class ESDatabaseAccessor {
             Log.d(LOG_TAG,"ESDatabaseAccessor: onCreate. after creating activity table, before creating settings table.");
             db.execSQL(SQL_CREATE_ES_SETTINGS_TABLE);
             Log.d(LOG_TAG,"ESDatabaseAccessor: onCreate. after creating activity table and settings table.");
+            createLabelTables(db);
+            db.execSQL(SQL_CREATE_ES_LABEL_COUNT_TABLE);
+            db.execSQL(SQL_CREATE_ES_LABEL_SEGMENT_TABLE);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            db.execSQL(SQL_DELETE_ES_ACTIVITY_TABLE);
-            db.execSQL(SQL_DELETE_ES_SETTINGS_TABLE);
-            onCreate(db);
+            Log.i(LOG_TAG,"Upgrading the database from version " + oldVersion + " to version " + newVersion);
+            if (oldVersion < 2) {
+                createLabelTables(db);
+                populateActivityLabelsFromCSVColumns(db);
+            }
+            if (oldVersion < 3) {
+                db.execSQL(SQL_CREATE_ES_LABEL_COUNT_TABLE);
+                db.execSQL(SQL_POPULATE_ES_LABEL_COUNT_TABLE);
+            }
+            if (oldVersion < 4) {
+                db.execSQL(SQL_ADD_PREDICTIONS_BLOB_COLUMN);
+                db.execSQL(SQL_ADD_LOCATION_BLOB_COLUMN);
+                migratePredictionsAndLocationToBlobColumns(db);
+            }
+            if (oldVersion < 5) {
+                db.execSQL(SQL_CREATE_ES_LABEL_SEGMENT_TABLE);
+                ESLabelSegmentIndex.populate(db);
+            }
+            if (oldVersion < 6) {
+                // (If the label count table was just created, it already has the column):
+                if (oldVersion >= 3) {
+                    db.execSQL(SQL_ADD_DECAYED_SCORE_COLUMN);
+                }
+                ESFrequentLabelsTracker.populate(db);
+            }
+        }
+
+        private void createLabelTables(SQLiteDatabase db) {
+            db.execSQL(SQL_CREATE_ES_LABEL_DICTIONARY_TABLE);
+            db.execSQL(SQL_CREATE_ES_ACTIVITY_LABEL_TABLE);
+            db.execSQL(SQL_CREATE_ES_ACTIVITY_LABEL_INDEX);
+            ESLabelDictionary.seedVocabulary(db);
+        }
+
+        /**
+         * Fill the activity-label table with the user-reported labels of the existing activity records.
+         */
+        private void populateActivityLabelsFromCSVColumns(SQLiteDatabase db) {
+            ESLabelDictionary labelDictionary = new ESLabelDictionary(db);
+            String[] projection = {
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP,
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_USER_CORRECTION,
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_SECONDARY_ACTIVITIES_CSV,
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MOODS_CSV
+            };
+            Cursor cursor = db.query(ESDatabaseContract.ESActivityEntry.TABLE_NAME,projection,
+                    null,null,null,null,null);
+            SQLiteStatement insertStatement = db.compileStatement(SQL_INSERT_ACTIVITY_LABEL);
+            int numLabels = 0;
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                int[] labelIds = collectLabelIds(db,labelDictionary,
+                        cursor.getString(1),parsePossiblyEmptyCSV(cursor.getString(2)),parsePossiblyEmptyCSV(cursor.getString(3)));
+                for (int labelId : labelIds) {
+                    insertStatement.bindLong(1,cursor.getInt(0));
+                    insertStatement.bindLong(2,labelId);
+                    insertStatement.executeInsert();
+                }
+                numLabels += labelIds.length;
+            }
+            insertStatement.close();
+            Log.i(LOG_TAG,"Migrated " + numLabels + " labels of " + cursor.getCount() + " activities to the activity-label table");
+            cursor.close();
+        }
+
+        /**
+         * Encode the server predictions and location of the existing activity records into the binary columns.
+         * The old text columns are cleared (SQLite can't drop columns), so they no longer take space.
+         */
+        private void migratePredictionsAndLocationToBlobColumns(SQLiteDatabase db) {
+            ESLabelDictionary labelDictionary = new ESLabelDictionary(db);
+            String[] projection = {
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP,
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTED_LABEL_NAMES_CSV,
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTED_LABEL_PROBS_CSV,
+                    ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LOCATION_REPRESENTATIVE_LAT_LONG_CSV
+            };
+            Cursor cursor = db.query(ESDatabaseContract.ESActivityEntry.TABLE_NAME,projection,
+                    null,null,null,null,null);
+            SQLiteStatement migrateStatement = db.compileStatement(SQL_MIGRATE_ACTIVITY_TO_BLOB_COLUMNS);
+            long numTextBytes = 0;
+            long numBlobBytes = 0;
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                String predictedLabelNamesCSV = cursor.getString(1);
+                String predictedLabelProbsCSV = cursor.getString(2);
+                String locationLatLongCSV = cursor.getString(3);
+                byte[] predictionsBlob = ESActivityRowMapper.encodePredictions(db,labelDictionary,
+                        parsePossiblyEmptyCSV(predictedLabelNamesCSV),parseCSVOfNumbers(predictedLabelProbsCSV));
+                byte[] locationBlob = ESActivityRowMapper.encodeLatLong(parseCSVOfNumbers(locationLatLongCSV));
+
+                bindBlobOrNull(migrateStatement,1,predictionsBlob);
+                bindBlobOrNull(migrateStatement,2,locationBlob);
+                migrateStatement.bindLong(3,cursor.getInt(0));
+                migrateStatement.executeUpdateDelete();
+
+                numTextBytes += textLength(predictedLabelNamesCSV) + textLength(predictedLabelProbsCSV) + textLength(locationLatLongCSV);
+                numBlobBytes += blobLength(predictionsBlob) + blobLength(locationBlob);
+            }
+            migrateStatement.close();
+            Log.i(LOG_TAG,"Migrated the predictions and location of " + cursor.getCount() + " activities to binary columns: " +
+                    numTextBytes + " bytes of text became " + numBlobBytes + " bytes");
+            cursor.close();
         }
     }
 
@@ -214,10 +833,14 @@ public class ESDatabaseAccessor {
      * This should only be called when there is no current record in the settings table.
      * The created record should be the only record in that table.
      *
-     * @return an ESSettings object to represent the settings record
+     * @return an ESSettings object to represent the settings record,
+     * or null if another thread already created the record
      */
-    private synchronized ESSettings createSettingsRecord() {
-        SQLiteDatabase db = _dbHelper.getWritableDatabase();
+    private ESSettings createSettingsRecord() {
+        SQLiteDatabase db = getDatabase();
+        if (DatabaseUtils.queryNumEntries(db,ESDatabaseContract.ESSettingsEntry.TABLE_NAME) > 0) {
+            return null;
+        }
 
         String uuid = generateUUID();
         ContentValues values = new ContentValues();
@@ -262,8 +885,6 @@ public class ESDatabaseAccessor {
                 HISTORY_TIME_UNIT_MINUTES_DEFAULT
                 );
 
-        _dbHelper.close();
-
         return settings;
     }
 
@@ -272,9 +893,9 @@ public class ESDatabaseAccessor {
      * If it wasn't created yet, create this record and get it.
      * @return the settings of the application
      */
-    synchronized ESSettings getTheSettings() {
+    ESSettings getTheSettings() {
         // Get the records (there should be zero or one records):
-        SQLiteDatabase db = _dbHelper.getReadableDatabase();
+        SQLiteDatabase db = getDatabase();
 
         String[] projection = {
                 ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_UUID,
@@ -306,8 +927,16 @@ public class ESDatabaseAccessor {
         if (count < 1) {
             Log.i(LOG_TAG,"There is no settings record yet. Creating one");
             cursor.close();
-            _dbHelper.close();
-            return createSettingsRecord();
+            ESSettings createdSettings;
+            _writeLock.lock();
+            try {
+                createdSettings = createSettingsRecord();
+            }
+            finally {
+                _writeLock.unlock();
+            }
+            // If another thread created the record in the meantime, read that record:
+            return createdSettings != null ? createdSettings : getTheSettings();
         }
         if (count > 1) {
             String msg = "Found more than one record for setting";
@@ -317,121 +946,120 @@ public class ESDatabaseAccessor {
         cursor.moveToFirst();
         ESSettings settings = extractSettingsFromCurrentRecord(cursor);
         cursor.close();
-        _dbHelper.close();
 
         return settings;
     }
 
     // Settings setters:
 
-    synchronized  ESSettings setSettingsMaxStoredExamples(int maxStoredExamples) {
+    ESSettings setSettingsMaxStoredExamples(int maxStoredExamples) {
         ContentValues values = new ContentValues();
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_MAX_STORED_EXAMPLES,maxStoredExamples);
         return updateSettingsAndReturnUpdatedRecord(values);
     }
 
-    synchronized ESSettings setSettingsUseNearPastNotifications(boolean useNearPastNotifications) {
+    ESSettings setSettingsUseNearPastNotifications(boolean useNearPastNotifications) {
         ContentValues values = new ContentValues();
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_USE_NEAR_PAST_NOTIFICATIONS,useNearPastNotifications ? 1 : 0);
         return updateSettingsAndReturnUpdatedRecord(values);
     }
 
-    synchronized ESSettings setSettingsUseNearFutureNotifications(boolean useNearFutureNotifications) {
+    ESSettings setSettingsUseNearFutureNotifications(boolean useNearFutureNotifications) {
         ContentValues values = new ContentValues();
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_USE_NEAR_FUTURE_NOTIFICATIONS,useNearFutureNotifications ? 1 : 0);
         return updateSettingsAndReturnUpdatedRecord(values);
     }
 
-    synchronized ESSettings setSettingsNotificationInterval(int notificationInterval) {
+    ESSettings setSettingsNotificationInterval(int notificationInterval) {
         ContentValues values = new ContentValues();
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_NOTIFICATION_INTERVAL_SECONDS,notificationInterval);
         return updateSettingsAndReturnUpdatedRecord(values);
     }
 
-    synchronized ESSettings setSettingsNumExamplesStoredBeforeSend(int numExamplesStoreBeforeSend) {
+    ESSettings setSettingsNumExamplesStoredBeforeSend(int numExamplesStoreBeforeSend) {
         ContentValues values = new ContentValues();
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_NUM_EXAMPLES_STORE_BEFORE_SEND,numExamplesStoreBeforeSend);
         return updateSettingsAndReturnUpdatedRecord(values);
     }
 
-    synchronized  ESSettings setSettingsAllowCellular(boolean allowCellular) {
+    ESSettings setSettingsAllowCellular(boolean allowCellular) {
         ContentValues values = new ContentValues();
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_ALLOW_CELLULAR,allowCellular ? 1 : 0);
         return updateSettingsAndReturnUpdatedRecord(values);
     }
 
-    synchronized ESSettings setSettingsUseLocationBubble(boolean locationBubbleUsed) {
+    ESSettings setSettingsUseLocationBubble(boolean locationBubbleUsed) {
         ContentValues values = new ContentValues();
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_BUBBLE_USED,locationBubbleUsed ? 1 : 0);
         return updateSettingsAndReturnUpdatedRecord(values);
     }
 
-    synchronized ESSettings setSettingsLocationBubbleCenterCoordinates(double locationBubbleCenterLat, double locationBubbleCenterLong) {
+    ESSettings setSettingsLocationBubbleCenterCoordinates(double locationBubbleCenterLat, double locationBubbleCenterLong) {
         ContentValues values = new ContentValues();
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_BUBBLE_CENTER_LAT,locationBubbleCenterLat);
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_BUBBLE_CENTER_LONG,locationBubbleCenterLong);
         return updateSettingsAndReturnUpdatedRecord(values);
     }
 
-    synchronized ESSettings setSettingsLocationBubbleCenter(Location locationBubbleCenter) {
+    ESSettings setSettingsLocationBubbleCenter(Location locationBubbleCenter) {
         double locationBubbleCenterLat = locationBubbleCenter == null ? LOCATION_BUBBLE_CENTER_LAT_DEFAULT : locationBubbleCenter.getLatitude();
         double locationBubbleCenterLong = locationBubbleCenter == null ? LOCATION_BUBBLE_CENTER_LONG_DEFAULT : locationBubbleCenter.getLongitude();
 
         return setSettingsLocationBubbleCenterCoordinates(locationBubbleCenterLat,locationBubbleCenterLong);
     }
 
-    synchronized ESSettings setClassifierSettings(String classifierType,String classifierName) {
+    ESSettings setClassifierSettings(String classifierType,String classifierName) {
         ContentValues values = new ContentValues();
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_CLASSIFIER_TYPE,classifierType);
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_CLASSIFIER_NAME,classifierName);
         return updateSettingsAndReturnUpdatedRecord(values);
     }
 
-    synchronized ESSettings setRecordAudio(boolean recordAudio) {
+    ESSettings setRecordAudio(boolean recordAudio) {
         ContentValues values = new ContentValues();
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_RECORD_AUDIO,recordAudio ? 1 : 0);
         return updateSettingsAndReturnUpdatedRecord(values);
     }
 
-    synchronized ESSettings setRecordLocation(boolean recordLocation) {
+    ESSettings setRecordLocation(boolean recordLocation) {
         ContentValues values = new ContentValues();
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_RECORD_LOCATION,recordLocation ? 1 : 0);
         return updateSettingsAndReturnUpdatedRecord(values);
     }
 
-    synchronized ESSettings setRecordWatch(boolean recordWatch) {
+    ESSettings setRecordWatch(boolean recordWatch) {
         ContentValues values = new ContentValues();
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_RECORD_WATCH,recordWatch ? 1 : 0);
         return updateSettingsAndReturnUpdatedRecord(values);
     }
 
-    synchronized ESSettings setHighFreqSensorsToRecord(ArrayList<Integer> hfSensorTypesToRecord) {
+    ESSettings setHighFreqSensorsToRecord(ArrayList<Integer> hfSensorTypesToRecord) {
         ContentValues values = new ContentValues();
         String hfSensorsJson = intArrayToJsonStr(hfSensorTypesToRecord);
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_HF_SENSOR_TYPES_TO_RECORD_JSON,hfSensorsJson);
         return updateSettingsAndReturnUpdatedRecord(values);
     }
 
-    synchronized ESSettings setLowFreqSensorsToRecord(ArrayList<Integer> lfSensorTypesToRecord) {
+    ESSettings setLowFreqSensorsToRecord(ArrayList<Integer> lfSensorTypesToRecord) {
         ContentValues values = new ContentValues();
         String lfSensorsJson = intArrayToJsonStr(lfSensorTypesToRecord);
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_LF_SENSOR_TYPES_TO_RECORD_JSON,lfSensorsJson);
         return updateSettingsAndReturnUpdatedRecord(values);
     }
 
-    synchronized ESSettings setSettingsSavePredictionFiles(boolean savePredictionFiles) {
+    ESSettings setSettingsSavePredictionFiles(boolean savePredictionFiles) {
         ContentValues values = new ContentValues();
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_SAVE_PREDICTION_FILES,savePredictionFiles ? 1 : 0);
         return updateSettingsAndReturnUpdatedRecord(values);
     }
 
-    synchronized ESSettings setSettingsSaveUserLabelsFiles(boolean saveUserLabelsFiles) {
+    ESSettings setSettingsSaveUserLabelsFiles(boolean saveUserLabelsFiles) {
         ContentValues values = new ContentValues();
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_SAVE_USER_LABELS_FILES,saveUserLabelsFiles ? 1 : 0);
         return updateSettingsAndReturnUpdatedRecord(values);
     }
 
-    synchronized ESSettings setHistoryTimeUnitInMinutes(int historyTimeUnitInMinutes) {
+    ESSettings setHistoryTimeUnitInMinutes(int historyTimeUnitInMinutes) {
         ContentValues values = new ContentValues();
         values.put(ESDatabaseContract.ESSettingsEntry.COLUMN_NAME_HISTORY_TIME_UNIT_MINUTES,historyTimeUnitInMinutes);
         return updateSettingsAndReturnUpdatedRecord(values);
@@ -439,9 +1067,16 @@ public class ESDatabaseAccessor {
 
 
 
-    private synchronized ESSettings updateSettingsAndReturnUpdatedRecord(ContentValues values) {
-        SQLiteDatabase db = _dbHelper.getWritableDatabase();
-        int affectedCount = db.update(ESDatabaseContract.ESSettingsEntry.TABLE_NAME,values,null,null);
+    private ESSettings updateSettingsAndReturnUpdatedRecord(ContentValues values) {
+        SQLiteDatabase db = getDatabase();
+        int affectedCount;
+        _writeLock.lock();
+        try {
+            affectedCount = db.update(ESDatabaseContract.ESSettingsEntry.TABLE_NAME,values,null,null);
+        }
+        finally {
+            _writeLock.unlock();
+        }
         if (affectedCount <= 0) {
             Log.e(LOG_TAG,"Settings update affected no records in the DB");
         }
@@ -449,8 +1084,6 @@ public class ESDatabaseAccessor {
             Log.e(LOG_TAG,"Settings update affected more than one record in the DB");
         }
 
-        _dbHelper.close();
-
         return getTheSettings();
     }
 
@@ -465,7 +1098,7 @@ public class ESDatabaseAccessor {
      * @param cursor A cursor, assumed currently pointing at the record of ESSettings.
      * @return The ESSettings object
      */
-    private synchronized ESSettings extractSettingsFromCurrentRecord(Cursor cursor) {
+    private ESSettings extractSettingsFromCurrentRecord(Cursor cursor) {
         if (cursor == null) {
             Log.e(LOG_TAG,"Given null cursor");
             return null;
@@ -528,38 +1161,40 @@ public class ESDatabaseAccessor {
      *
      * @return A new activity instance, with "now"'s timestamp and default values for all the properties.
      */
-    public synchronized ESActivity createNewActivity() {
-        ESTimestamp timestamp = new ESTimestamp();
-        // Make sure there is not already an existing record for this timestamp:
-        ESActivity existingActivity = getESActivity(timestamp);
-        if (existingActivity != null) {
-            Log.e(LOG_TAG,"Tried to create new activity with timestamp " + timestamp + " but there is already one.");
-            return null;
-        }
+    public ESActivity createNewActivity() {
+        return createNewActivity(new ESTimestamp());
+    }
 
-        SQLiteDatabase db = _dbHelper.getWritableDatabase();
+    /**
+     * Create a new record of an activity instance for the given timestamp.
+     * @param timestamp The timestamp of the new activity
+     * @return A new activity instance with default values, or null if there is already a record for the timestamp.
+     */
+    ESActivity createNewActivity(ESTimestamp timestamp) {
+        // Make sure the connection (and its compiled statements) is open:
+        getDatabase();
 
-        ContentValues values = new ContentValues();
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP,timestamp.get_secondsSinceEpoch());
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LABEL_SOURCE, ESActivity.ESLabelSource.ES_LABEL_SOURCE_DEFAULT.get_value());
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_SERVER_PREDICTION,(String)null);
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_USER_CORRECTION,(String)null);
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_SECONDARY_ACTIVITIES_CSV,"");
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MOODS_CSV,"");
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTED_LABEL_NAMES_CSV,"");
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTED_LABEL_PROBS_CSV,"");
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LOCATION_REPRESENTATIVE_LAT_LONG_CSV,"");
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_OPEN_FEEDBACK_FORM,-1);
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_PRESS_SEND_BUTTON,-1);
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_NOTIFICATION,-1);
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_USER_RESPOND_TO_NOTIFICATION,-1);
-
-        db.insert(ESDatabaseContract.ESActivityEntry.TABLE_NAME,null,values);
-        ESActivity newActivity = new ESActivity(timestamp);
+        _writeLock.lock();
+        try {
+            // Make sure there is not already an existing record for this timestamp:
+            _countActivityStatement.bindLong(1,timestamp.get_secondsSinceEpoch());
+            if (_countActivityStatement.simpleQueryForLong() > 0) {
+                Log.e(LOG_TAG,"Tried to create new activity with timestamp " + timestamp + " but there is already one.");
+                return null;
+            }
 
-        _dbHelper.close();
+            _insertActivityStatement.bindLong(1,timestamp.get_secondsSinceEpoch());
+            _insertActivityStatement.bindLong(2,ESActivity.ESLabelSource.ES_LABEL_SOURCE_DEFAULT.get_value());
+            _insertActivityStatement.executeInsert();
+            invalidateCachedActivity(timestamp);
+            _historyDayCache.activityWritten(newActivityAsStored(timestamp));
+        }
+        finally {
+            _writeLock.unlock();
+        }
+        ESActivity newActivity = new ESActivity(timestamp);
 
-        sendBroadcastDatabaseUpdate();
+        _changeNotifier.changed(new ESDatabaseChangeEvent(timestamp,ESDatabaseChangeEvent.ESChangeKind.ES_CHANGE_KIND_CREATED));
 
         return newActivity;
     }
@@ -572,33 +1207,22 @@ public class ESDatabaseAccessor {
      * @param timestamp The timestamp for the activity instance.
      * @return The desired activity, or null if there is no record for the timestamp.
      */
-    public synchronized ESActivity getESActivity(ESTimestamp timestamp) {
-        SQLiteDatabase db = _dbHelper.getReadableDatabase();
-
-        String[] projection = {
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LABEL_SOURCE,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_SERVER_PREDICTION,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_USER_CORRECTION,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_SECONDARY_ACTIVITIES_CSV,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MOODS_CSV,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTED_LABEL_NAMES_CSV,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTED_LABEL_PROBS_CSV,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LOCATION_REPRESENTATIVE_LAT_LONG_CSV,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_OPEN_FEEDBACK_FORM,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_PRESS_SEND_BUTTON,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_NOTIFICATION,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_USER_RESPOND_TO_NOTIFICATION
-        };
+    public ESActivity getESActivity(ESTimestamp timestamp) {
+        ESActivity cachedActivity = _activityCache.get(timestamp.get_secondsSinceEpoch());
+        if (cachedActivity != null) {
+            return cachedActivity.copy();
+        }
 
-        String selection = ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + " = " + timestamp.get_secondsSinceEpoch();
+        long numCacheWritesBeforeRead = getNumActivityCacheWrites();
+        SQLiteDatabase db = getDatabase();
 
         Cursor cursor = db.query(ESDatabaseContract.ESActivityEntry.TABLE_NAME,
-                projection,selection,null,null,null,null);
+                ACTIVITY_PROJECTION,SELECTION_ACTIVITY_BY_TIMESTAMP,timestampArgs(timestamp),null,null,null);
 
         int count = cursor.getCount();
         if (count < 1) {
             Log.i(LOG_TAG,"No matching ESActivity record for timestamp " + timestamp);
+            cursor.close();
             return null;
         }
         if (count > 1) {
@@ -607,9 +1231,9 @@ public class ESDatabaseAccessor {
         }
 
         cursor.moveToFirst();
-        ESActivity activity = extractActivityFromCurrentRecord(cursor);
+        ESActivity activity = new ESActivityRowMapper(cursor,_labelDictionary).map(cursor);
         cursor.close();
-        _dbHelper.close();
+        cacheReadActivity(activity.copy(),numCacheWritesBeforeRead);
 
         return activity;
     }
@@ -619,7 +1243,7 @@ public class ESDatabaseAccessor {
      * @param activity The ESActivity to set the prediction for
      * @param mainActivityServerPrediction The server prediction to assign to the activity
      */
-    public synchronized void setESActivityServerPrediction(ESActivity activity,String mainActivityServerPrediction,
+    public void setESActivityServerPrediction(ESActivity activity,String mainActivityServerPrediction,
                                                            String[] predictedLabelNames,double[] predictedLabelProbs,
                                                            double[] locationLatLong) {
         setESActivityValuesAndPossiblySendFeedback(activity,
@@ -662,7 +1286,7 @@ public class ESDatabaseAccessor {
      * @param timestampNotification The timestamp of the time the notification showed, which eventually yielded this activity's update, or null if this feedback was not initiated by notification
      * @param timestampUserRespondToNotification The timestamp of the time the user responded to the notification by pressing an answer button, which yielded this activity's update, or null if this feedback was not initiated by notification
      */
-    public synchronized void setESActivityValues(ESActivity activity,
+    public void setESActivityValues(ESActivity activity,
                                                  ESActivity.ESLabelSource labelSource,String mainActivityUserCorrection,
                                                  String[] secondaryActivities,String[] moods,
                                                  ESTimestamp timestampOpenFeedbackForm, ESTimestamp timestampPressSendButton,
@@ -691,7 +1315,7 @@ public class ESDatabaseAccessor {
      * @param timestampUserRespondToNotification The timestamp of the time the user responded to the notification by pressing an answer button, which yielded this activity's update, or null if this feedback was not initiated by notification
      * @param sendFeedback Should we send feedback update with this activity's labels?
      */
-    public synchronized void setESActivityUserCorrectedValuesAndPossiblySendFeedback(ESActivity activity, ESActivity.ESLabelSource labelSource,
+    public void setESActivityUserCorrectedValuesAndPossiblySendFeedback(ESActivity activity, ESActivity.ESLabelSource labelSource,
                                                                                      String mainActivityUserCorrection,
                                                                                      String[] secondaryActivities, String[] moods,
                                                                                      ESTimestamp timestampOpenFeedbackForm, ESTimestamp timestampPressSendButton,
@@ -716,6 +1340,172 @@ public class ESDatabaseAccessor {
         }
     }
 
+    /**
+     * Apply the same user-reported labels to many activities (e.g. all the minutes of a continuous activity).
+     * All the records are updated in a single transaction, with a single change announcement,
+     * and the labels of all the activities are added to the feedback queue together
+     * (so they can be sent to the server in a batch).
+     * The changes will be reflected both in the given ESActivity objects and in the corresponding records in the DB.
+     *
+     * @param activities The activity instances to set
+     * @param labelSource The label source value to assign to the activities
+     * @param mainActivityUserCorrection The user correction to assign to the activities
+     * @param secondaryActivities The array of secondary activities to assign to the activities
+     * @param moods The array of moods to assign to the activities
+     * @param timestampOpenFeedbackForm The timestamp of the time the user opened the feedback form for these activities (and actually sent feedback), or null in case this feedback did not involve the feedback form (e.g. confirmation-notification)
+     * @param timestampPressSendButton The timestamp of the time the user pressed the "send feedback" button for these activities, or null in case this feedback did not involve the feedback form (e.g. confirmation-notification)
+     * @param timestampNotification The timestamp of the time the notification showed, which eventually yielded this update, or null if this feedback was not initiated by notification
+     * @param timestampUserRespondToNotification The timestamp of the time the user responded to the notification by pressing an answer button, which yielded this update, or null if this feedback was not initiated by notification
+     */
+    public void setESActivitiesValues(ESActivity[] activities,
+                                      ESActivity.ESLabelSource labelSource,String mainActivityUserCorrection,
+                                      String[] secondaryActivities,String[] moods,
+                                      ESTimestamp timestampOpenFeedbackForm, ESTimestamp timestampPressSendButton,
+                                      ESTimestamp timestampNotification, ESTimestamp timestampUserRespondToNotification) {
+        setESActivitiesUserCorrectedValuesAndPossiblySendFeedback(activities,labelSource,mainActivityUserCorrection,
+                secondaryActivities,moods,
+                timestampOpenFeedbackForm,timestampPressSendButton,
+                timestampNotification,timestampUserRespondToNotification,
+                true);
+    }
+
+    /**
+     * Apply the same user-reported labels to all the activities in a time range.
+     * See setESActivitiesValues().
+     *
+     * @param fromTimestamp The earliest time in the range
+     * @param toTimestamp The latest time in the range
+     * @return The updated activities, in ascending order of time
+     */
+    public ESActivity[] setESActivitiesValuesInTimeRange(ESTimestamp fromTimestamp,ESTimestamp toTimestamp,
+                                                         ESActivity.ESLabelSource labelSource,String mainActivityUserCorrection,
+                                                         String[] secondaryActivities,String[] moods,
+                                                         ESTimestamp timestampOpenFeedbackForm, ESTimestamp timestampPressSendButton,
+                                                         ESTimestamp timestampNotification, ESTimestamp timestampUserRespondToNotification) {
+        ESActivity[] activities = getActivitiesFromTimeRange(fromTimestamp,toTimestamp);
+        setESActivitiesValues(activities,labelSource,mainActivityUserCorrection,secondaryActivities,moods,
+                timestampOpenFeedbackForm,timestampPressSendButton,
+                timestampNotification,timestampUserRespondToNotification);
+        return activities;
+    }
+
+    /**
+     * Apply the same user-reported labels to many activities (keeping each activity's server-predicted values),
+     * in a single transaction. See setESActivitiesValues().
+     * IFF sendFeedback: after setting the new values, this will trigger an API call to send the labels to the server.
+     *
+     * @param sendFeedback Should we send feedback update with these activities' labels?
+     */
+    public void setESActivitiesUserCorrectedValuesAndPossiblySendFeedback(ESActivity[] activities,ESActivity.ESLabelSource labelSource,
+                                                                          String mainActivityUserCorrection,
+                                                                          String[] secondaryActivities, String[] moods,
+                                                                          ESTimestamp timestampOpenFeedbackForm, ESTimestamp timestampPressSendButton,
+                                                                          ESTimestamp timestampNotification, ESTimestamp timestampUserRespondToNotification,
+                                                                          boolean sendFeedback) {
+        if (activities.length <= 0) {
+            return;
+        }
+
+        // Make sure the connection (and its compiled statements) is open:
+        SQLiteDatabase db = getDatabase();
+
+        ESTimestamp[] feedbackTimes = new ESTimestamp[]{timestampOpenFeedbackForm,timestampPressSendButton,
+                timestampNotification,timestampUserRespondToNotification};
+        String secondaryCSV = ESLabelStrings.makeCSV(secondaryActivities);
+        String moodCSV = ESLabelStrings.makeCSV(moods);
+        byte[][] predictionsBlobs = new byte[activities.length][];
+        byte[][] locationBlobs = new byte[activities.length][];
+        for (int i = 0; i < activities.length; i ++) {
+            locationBlobs[i] = ESActivityRowMapper.encodeLatLong(activities[i].get_locationLatLong());
+        }
+
+        boolean[] updated = new boolean[activities.length];
+        int numUpdated = 0;
+        boolean labelsChanged = false;
+        boolean committed = false;
+        _writeLock.lock();
+        db.beginTransaction();
+        try {
+            int[] labelIds = collectLabelIds(db,_labelDictionary,mainActivityUserCorrection,secondaryActivities,moods);
+            for (int i = 0; i < activities.length; i ++) {
+                ESActivity activity = activities[i];
+                // (Encoding the predictions may add label names to the dictionary, so it is done under the lock):
+                predictionsBlobs[i] = ESActivityRowMapper.encodePredictions(db,_labelDictionary,
+                        activity.get_predictedLabelNames(),activity.get_predictedLabelProbs());
+                int affectedCount = updateActivityRecord(activity.get_timestamp(),labelSource,
+                        activity.get_mainActivityServerPrediction(),mainActivityUserCorrection,secondaryCSV,moodCSV,
+                        predictionsBlobs[i],locationBlobs[i],feedbackTimes);
+                if (affectedCount <= 0) {
+                    Log.e(LOG_TAG,"Update didn't affect any records. Attempt for timestamp " + activity.get_timestamp());
+                    continue;
+                }
+                updated[i] = true;
+                numUpdated ++;
+                if (updateActivityLabels(db,activity.get_timestampSeconds(),labelIds)) {
+                    labelsChanged = true;
+                }
+            }
+            db.setTransactionSuccessful();
+            committed = true;
+        }
+        finally {
+            db.endTransaction();
+            _labelDictionary.transactionEnded(committed);
+            if (!committed) {
+                _frequentLabelsTracker.invalidate();
+            }
+            for (int i = 0; i < activities.length; i ++) {
+                cacheUpdateResult(activities[i].get_timestamp(),committed && updated[i],labelSource,
+                        activities[i].get_mainActivityServerPrediction(),mainActivityUserCorrection,secondaryCSV,moodCSV,
+                        predictionsBlobs[i],locationBlobs[i],feedbackTimes);
+            }
+            _writeLock.unlock();
+        }
+        Log.i(LOG_TAG,"Updated " + numUpdated + " of " + activities.length + " activities in a single transaction");
+
+        // Set the values of the ESActivity objects:
+        ESTimestamp firstUpdated = null;
+        ESTimestamp lastUpdated = null;
+        ArrayList<ESActivity> activitiesForFeedback = new ArrayList<>(activities.length);
+        for (int i = 0; i < activities.length; i ++) {
+            ESActivity activity = activities[i];
+            activity.set_labelSource(labelSource);
+            activity.set_mainActivityUserCorrection(mainActivityUserCorrection);
+            activity.set_secondaryActivities(copyStringArray(secondaryActivities));
+            activity.set_moods(copyStringArray(moods));
+            activity.set_timestampOpenFeedbackForm(timestampOpenFeedbackForm);
+            activity.set_timestampPressSendButton(timestampPressSendButton);
+            activity.set_timestampNotification(timestampNotification);
+            activity.set_timestampUserRespondToNotification(timestampUserRespondToNotification);
+            activitiesForFeedback.add(activity);
+            if (updated[i]) {
+                if (firstUpdated == null || activity.get_timestamp().isEarlierThan(firstUpdated)) {
+                    firstUpdated = activity.get_timestamp();
+                }
+                if (lastUpdated == null || activity.get_timestamp().isLaterThan(lastUpdated)) {
+                    lastUpdated = activity.get_timestamp();
+                }
+            }
+
+            // Write the user-provided labels to file that will be accessible to other apps:
+            if (ESSettings.saveUserLabelsFiles()) {
+                ESDataFilesAccessor.writeUserReportedLabels(activity.get_timestamp(),mainActivityUserCorrection,secondaryActivities,moods);
+            }
+        }
+
+        if (numUpdated > 0) {
+            _changeNotifier.changed(labelsChanged ?
+                    new ESDatabaseChangeEvent(firstUpdated,lastUpdated,numUpdated,ESDatabaseChangeEvent.ESChangeKind.ES_CHANGE_KIND_UPDATED,
+                            ESDatabaseChangeEvent.ESChangeKind.ES_CHANGE_KIND_LABELS_CHANGED) :
+                    new ESDatabaseChangeEvent(firstUpdated,lastUpdated,numUpdated,ESDatabaseChangeEvent.ESChangeKind.ES_CHANGE_KIND_UPDATED));
+        }
+
+        if (sendFeedback) {
+            // Since the labels of the activities were changed, send feedback API to the server:
+            ESNetworkAccessor.getESNetworkAccessor().addToFeedbackQueue(activitiesForFeedback);
+        }
+    }
+
     /**
      * Make changes to the values of the properties of an activity instance.
      * These changes will be reflected both in the given ESActivity object
@@ -736,7 +1526,7 @@ public class ESDatabaseAccessor {
      * @param timestampUserRespondToNotification The timestamp of the time the user responded to the notification by pressing an answer button, which yielded this activity's update, or null if this feedback was not initiated by notification
      * @param sendFeedback Should we send feedback update with this activity's labels?
      */
-    private synchronized void setESActivityValuesAndPossiblySendFeedback(ESActivity activity,ESActivity.ESLabelSource labelSource,
+    void setESActivityValuesAndPossiblySendFeedback(ESActivity activity,ESActivity.ESLabelSource labelSource,
                                                                         String mainActivityServerPrediction,String mainActivityUserCorrection,
                                                                         String[] secondaryActivities,String[] moods,
                                                                         String[] predictedLabelNames,double[] predictedLabelProbs,
@@ -745,44 +1535,46 @@ public class ESDatabaseAccessor {
                                                                         ESTimestamp timestampNotification, ESTimestamp timestampUserRespondToNotification,
                                                                         boolean sendFeedback) {
 
-        SQLiteDatabase db = _dbHelper.getWritableDatabase();
+        // Make sure the connection (and its compiled statements) is open:
+        SQLiteDatabase db = getDatabase();
 
         // Update the relevant DB record:
-        ContentValues values = new ContentValues();
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LABEL_SOURCE,labelSource.get_value());
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_SERVER_PREDICTION,mainActivityServerPrediction);
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_USER_CORRECTION,mainActivityUserCorrection);
-
+        ESTimestamp[] feedbackTimes = new ESTimestamp[]{timestampOpenFeedbackForm,timestampPressSendButton,
+                timestampNotification,timestampUserRespondToNotification};
         String secondaryCSV = ESLabelStrings.makeCSV(secondaryActivities);
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_SECONDARY_ACTIVITIES_CSV,secondaryCSV);
-
         String moodCSV = ESLabelStrings.makeCSV(moods);
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MOODS_CSV,moodCSV);
-
-        String predictedLabelNamesCSV = ESLabelStrings.makeCSV(predictedLabelNames);
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTED_LABEL_NAMES_CSV,predictedLabelNamesCSV);
-
-        String predictedLabelProbsCSV = ESLabelStrings.makeCSV(predictedLabelProbs);
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTED_LABEL_PROBS_CSV,predictedLabelProbsCSV);
-
-        String locationLatLongCSV = ESLabelStrings.makeCSV(locationLatLong);
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LOCATION_REPRESENTATIVE_LAT_LONG_CSV,locationLatLongCSV);
-
-        int timeOpenFeedbackForm = (timestampOpenFeedbackForm == null) ? -1 : timestampOpenFeedbackForm.get_secondsSinceEpoch();
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_OPEN_FEEDBACK_FORM,timeOpenFeedbackForm);
-
-        int timePressSendButton = (timestampPressSendButton == null) ? -1 : timestampPressSendButton.get_secondsSinceEpoch();
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_PRESS_SEND_BUTTON,timePressSendButton);
-
-        int timeNotification = (timestampNotification == null) ? -1 : timestampNotification.get_secondsSinceEpoch();
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_NOTIFICATION,timeNotification);
-
-        int timeUserResToNotif = (timestampUserRespondToNotification == null) ? -1 : timestampUserRespondToNotification.get_secondsSinceEpoch();
-        values.put(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_USER_RESPOND_TO_NOTIFICATION,timeUserResToNotif);
-
-        String selection = ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + " = " + activity.get_timestamp().get_secondsSinceEpoch();
-
-        int affectedCount = db.update(ESDatabaseContract.ESActivityEntry.TABLE_NAME,values,selection,null);
+        byte[] predictionsBlob = null;
+        byte[] locationBlob = ESActivityRowMapper.encodeLatLong(locationLatLong);
+
+        int affectedCount = 0;
+        boolean labelsChanged = false;
+        boolean committed = false;
+        _writeLock.lock();
+        db.beginTransaction();
+        try {
+            // (Encoding the predictions may add label names to the dictionary, so it is done under the lock):
+            predictionsBlob = ESActivityRowMapper.encodePredictions(db,_labelDictionary,predictedLabelNames,predictedLabelProbs);
+            affectedCount = updateActivityRecord(activity.get_timestamp(),labelSource,
+                    mainActivityServerPrediction,mainActivityUserCorrection,secondaryCSV,moodCSV,
+                    predictionsBlob,locationBlob,feedbackTimes);
+            if (affectedCount > 0) {
+                labelsChanged = updateActivityLabels(db,activity.get_timestampSeconds(),
+                        collectLabelIds(db,_labelDictionary,mainActivityUserCorrection,secondaryActivities,moods));
+            }
+            db.setTransactionSuccessful();
+            committed = true;
+        }
+        finally {
+            db.endTransaction();
+            _labelDictionary.transactionEnded(committed);
+            if (!committed) {
+                _frequentLabelsTracker.invalidate();
+            }
+            cacheUpdateResult(activity.get_timestamp(),committed && affectedCount > 0,labelSource,
+                    mainActivityServerPrediction,mainActivityUserCorrection,secondaryCSV,moodCSV,
+                    predictionsBlob,locationBlob,feedbackTimes);
+            _writeLock.unlock();
+        }
         if (affectedCount <= 0) {
             Log.e(LOG_TAG,"Update didn't affect any records. Attempt for timestamp " + activity.get_timestamp());
         }
@@ -801,9 +1593,12 @@ public class ESDatabaseAccessor {
         activity.set_timestampNotification(timestampNotification);
         activity.set_timestampUserRespondToNotification(timestampUserRespondToNotification);
 
-        _dbHelper.close();
-
-        sendBroadcastDatabaseUpdate();
+        if (affectedCount > 0) {
+            _changeNotifier.changed(labelsChanged ?
+                    new ESDatabaseChangeEvent(activity.get_timestamp(),ESDatabaseChangeEvent.ESChangeKind.ES_CHANGE_KIND_UPDATED,
+                            ESDatabaseChangeEvent.ESChangeKind.ES_CHANGE_KIND_LABELS_CHANGED) :
+                    new ESDatabaseChangeEvent(activity.get_timestamp(),ESDatabaseChangeEvent.ESChangeKind.ES_CHANGE_KIND_UPDATED));
+        }
 
         if (sendFeedback) {
             // Since the labels of the activity were changed, send feedback API to the server:
@@ -812,19 +1607,195 @@ public class ESDatabaseAccessor {
     }
 
 
+    /**
+     * Update the record of an activity with the given values.
+     * Should be called while holding the write lock, inside a transaction.
+     * @param feedbackTimes The timestamps of opening the feedback form, pressing the send button, the notification and the user's response to the notification (each may be null)
+     * @return The number of affected records
+     */
+    private int updateActivityRecord(ESTimestamp timestamp,ESActivity.ESLabelSource labelSource,
+                                     String mainActivityServerPrediction,String mainActivityUserCorrection,
+                                     String secondaryCSV,String moodCSV,
+                                     byte[] predictionsBlob,byte[] locationBlob,
+                                     ESTimestamp[] feedbackTimes) {
+        _updateActivityStatement.bindLong(1,labelSource.get_value());
+        bindStringOrNull(_updateActivityStatement,2,mainActivityServerPrediction);
+        bindStringOrNull(_updateActivityStatement,3,mainActivityUserCorrection);
+        _updateActivityStatement.bindString(4,secondaryCSV);
+        _updateActivityStatement.bindString(5,moodCSV);
+        bindBlobOrNull(_updateActivityStatement,6,predictionsBlob);
+        bindBlobOrNull(_updateActivityStatement,7,locationBlob);
+        for (int i = 0; i < feedbackTimes.length; i ++) {
+            _updateActivityStatement.bindLong(8 + i,(feedbackTimes[i] == null) ? -1 : feedbackTimes[i].get_secondsSinceEpoch());
+        }
+        _updateActivityStatement.bindLong(12,timestamp.get_secondsSinceEpoch());
+
+        return _updateActivityStatement.executeUpdateDelete();
+    }
+
+    /**
+     * Bring the caches up to date after an attempt to update an activity record.
+     * Should be called while holding the write lock, after the transaction ended.
+     * @param updated Was the record updated (and committed)? If not, the activity is dropped from the caches.
+     */
+    private void cacheUpdateResult(ESTimestamp timestamp,boolean updated,ESActivity.ESLabelSource labelSource,
+                                   String mainActivityServerPrediction,String mainActivityUserCorrection,
+                                   String secondaryCSV,String moodCSV,
+                                   byte[] predictionsBlob,byte[] locationBlob,
+                                   ESTimestamp[] feedbackTimes) {
+        if (!updated) {
+            invalidateCachedActivity(timestamp);
+            _historyDayCache.invalidate(timestamp);
+            return;
+        }
+        // The activity as it would now be read from the DB:
+        ESActivity writtenActivity = new ESActivity(timestamp,labelSource,
+                mainActivityServerPrediction,mainActivityUserCorrection,
+                parsePossiblyEmptyCSV(secondaryCSV),parsePossiblyEmptyCSV(moodCSV),
+                ESActivityRowMapper.decodePredictedLabelNames(predictionsBlob,_labelDictionary),
+                ESActivityRowMapper.decodePredictedLabelProbs(predictionsBlob,_labelDictionary),
+                ESActivityRowMapper.decodeLatLong(locationBlob),
+                storedTimestamp(feedbackTimes[0]),storedTimestamp(feedbackTimes[1]),
+                storedTimestamp(feedbackTimes[2]),storedTimestamp(feedbackTimes[3]));
+        cacheWrittenActivity(writtenActivity);
+        _historyDayCache.activityWritten(writtenActivity.copy());
+        latestVerifiedMaybeChanged(writtenActivity.get_timestampSeconds(),writtenActivity.hasAnyUserReportedLabelsNotDummyLabel());
+    }
+
+    /**
+     * Update the latest verified activity after an activity was written or deleted.
+     * Should be called while holding the write lock, after the change was committed.
+     * @param timestampSeconds The timestamp of the activity
+     * @param verified Does the activity now have user-reported labels (other than "not sure")?
+     */
+    private void latestVerifiedMaybeChanged(int timestampSeconds,boolean verified) {
+        int latestVerifiedSeconds = _latestVerifiedSeconds;
+        if (latestVerifiedSeconds == LATEST_VERIFIED_UNKNOWN) {
+            return;
+        }
+        if (verified && timestampSeconds > latestVerifiedSeconds) {
+            _latestVerifiedSeconds = timestampSeconds;
+        }
+        else if (!verified && timestampSeconds == latestVerifiedSeconds) {
+            // The latest verified activity lost its labels. The one before it will be looked up when needed:
+            _latestVerifiedSeconds = LATEST_VERIFIED_UNKNOWN;
+        }
+    }
+
+    /**
+     * @return The timestamp of the latest activity with user-reported labels (other than "not sure"), or LATEST_VERIFIED_NONE
+     */
+    private static int selectLatestVerifiedTimestamp(SQLiteDatabase db,ESLabelDictionary labelDictionary,Context context) {
+        int dummyLabelId = labelDictionary.getLabelId(ESLabelType.ES_LABEL_TYPE_MAIN,context.getString(R.string.not_sure_dummy_label));
+        Cursor cursor = db.rawQuery(SQL_SELECT_LATEST_VERIFIED_TIMESTAMP,new String[]{"" + dummyLabelId});
+        int latestVerifiedSeconds = cursor.moveToFirst() ? cursor.getInt(0) : LATEST_VERIFIED_NONE;
+        cursor.close();
+        return latestVerifiedSeconds;
+    }
+
+    private static ESTimestamp storedTimestamp(ESTimestamp timestamp) {
+        return (timestamp == null || timestamp.get_secondsSinceEpoch() <= 0) ? null : timestamp;
+    }
+
+    /**
+     * Update the labels of an activity in the activity-label table, and the label counts accordingly:
+     * only the labels that were removed or added are touched (an update that keeps the labels,
+     * like setting the server prediction, doesn't change anything).
+     * Should be called while holding the write lock, inside the transaction of the activity's update.
+     * @param db The database
+     * @param timestampSeconds The timestamp of the activity
+     * @param newLabelIds The new label ids of the activity (sorted, without repetitions)
+     * @return Did the labels of the activity change?
+     */
+    private boolean updateActivityLabels(SQLiteDatabase db,int timestampSeconds,int[] newLabelIds) {
+        int[] oldLabelIds = selectActivityLabelIds(db,timestampSeconds);
+        Arrays.sort(oldLabelIds);
+
+        boolean changed = false;
+        for (int oldLabelId : oldLabelIds) {
+            if (Arrays.binarySearch(newLabelIds,oldLabelId) < 0) {
+                _deleteActivityLabelStatement.bindLong(1,timestampSeconds);
+                _deleteActivityLabelStatement.bindLong(2,oldLabelId);
+                _deleteActivityLabelStatement.executeUpdateDelete();
+                adjustLabelCount(oldLabelId,-1,timestampSeconds);
+                _labelSegmentIndex.labelRemoved(timestampSeconds,oldLabelId);
+                changed = true;
+            }
+        }
+        for (int newLabelId : newLabelIds) {
+            if (Arrays.binarySearch(oldLabelIds,newLabelId) < 0) {
+                _insertActivityLabelStatement.bindLong(1,timestampSeconds);
+                _insertActivityLabelStatement.bindLong(2,newLabelId);
+                _insertActivityLabelStatement.executeInsert();
+                adjustLabelCount(newLabelId,1,timestampSeconds);
+                _labelSegmentIndex.labelAdded(timestampSeconds,newLabelId);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static int[] selectActivityLabelIds(SQLiteDatabase db,int timestampSeconds) {
+        Cursor cursor = db.rawQuery(SQL_SELECT_ACTIVITY_LABEL_IDS,new String[]{"" + timestampSeconds});
+        int[] labelIds = new int[cursor.getCount()];
+        int i = 0;
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            labelIds[i++] = cursor.getInt(0);
+        }
+        cursor.close();
+        return labelIds;
+    }
+
+    /**
+     * Count a label of an activity in (or out of) the label counts and the decayed scores.
+     * Should be called while holding the write lock, inside a transaction.
+     */
+    private void adjustLabelCount(int labelId,int delta,int timestampSeconds) {
+        _addLabelCounterStatement.bindLong(1,labelId);
+        _addLabelCounterStatement.executeInsert();
+        _adjustLabelCountStatement.bindLong(1,delta);
+        _adjustLabelCountStatement.bindDouble(2,ESFrequentLabelsTracker.weightOf(timestampSeconds));
+        _adjustLabelCountStatement.bindLong(3,labelId);
+        _adjustLabelCountStatement.executeUpdateDelete();
+        _frequentLabelsTracker.labelCountAdjusted(labelId,delta,timestampSeconds);
+    }
+
     /**
      * Get all the activities from the given time range, already merged to continuous activities.
      * This method will extract the relevant information from the DB
      * and return an array of corresponding objects in ascending order of time (timestamp).
+     * The merged continuous activities of recently requested ranges are kept and updated as activities change,
+     * so asking again for the same range (e.g. the history of today) doesn't have to re-read and re-merge it.
+     * The returned continuous activities may be shared, and should not be changed.
      *
      * @param fromTimestamp The earliest time in the desired range
      * @param toTimestamp The latest time in the desired range
      * @param addGapDummies Should we add dummy-activities to represent the gaps between continuous activities that are well separated in time?
      * @return An array of continuous activities from the desired time range, in ascending order of time
      */
-    public synchronized ESContinuousActivity[] getContinuousActivitiesFromTimeRange(ESTimestamp fromTimestamp,ESTimestamp toTimestamp,boolean addGapDummies) {
+    public ESContinuousActivity[] getContinuousActivitiesFromTimeRange(ESTimestamp fromTimestamp,ESTimestamp toTimestamp,boolean addGapDummies) {
+        ESContinuousActivity[] cachedActivities = _historyDayCache.getContinuousActivities(fromTimestamp,toTimestamp,addGapDummies,true);
+        if (cachedActivities != null) {
+            return cachedActivities;
+        }
+
+        long numWritesBeforeRead = _historyDayCache.getNumWrites();
         ESActivity[] minuteActivities = getActivitiesFromTimeRange(fromTimestamp,toTimestamp);
-        return ESContinuousActivity.mergeContinuousActivities(minuteActivities,addGapDummies);
+        return _historyDayCache.putMinuteActivities(fromTimestamp,toTimestamp,minuteActivities,numWritesBeforeRead,addGapDummies);
+    }
+
+    /**
+     * Get the continuous activities of a time range only if they are already in the history cache,
+     * without reading or merging anything (cheap enough for the UI thread).
+     * A cached range that wasn't merged yet with the current history time unit counts as not cached.
+     * See getContinuousActivitiesFromTimeRange().
+     * @param fromTimestamp The first timestamp in the desired time range
+     * @param toTimestamp The last timestamp in the desired time range
+     * @param addGapDummies Should we add dummy-activities to represent the gaps between continuous activities that are well separated in time?
+     * @return The continuous activities of the range, or null if the range is not cached
+     */
+    public ESContinuousActivity[] getCachedContinuousActivitiesFromTimeRange(ESTimestamp fromTimestamp,ESTimestamp toTimestamp,boolean addGapDummies) {
+        return _historyDayCache.getContinuousActivities(fromTimestamp,toTimestamp,addGapDummies,false);
     }
 
     /**
@@ -836,7 +1807,7 @@ public class ESDatabaseAccessor {
      * @param toTimestamp The last timestamp in the desired time range
      * @return A single continuous activity object, representing all the activities in the desired time range
      */
-    public synchronized ESContinuousActivity getSingleContinuousActivityFromTimeRange(ESTimestamp fromTimestamp,ESTimestamp toTimestamp) {
+    public ESContinuousActivity getSingleContinuousActivityFromTimeRange(ESTimestamp fromTimestamp,ESTimestamp toTimestamp) {
         ESActivity[] minuteActivities = getActivitiesFromTimeRange(fromTimestamp,toTimestamp);
         return new ESContinuousActivity(minuteActivities);
     }
@@ -845,110 +1816,83 @@ public class ESDatabaseAccessor {
      * Get all the activities from the given time range.
      * This method will extract the relevant information from the DB
      * and return an array of corresponding objects in ascending order of time (timestamp).
+     * For long time ranges, use visitActivitiesInTimeRange() instead.
      *
      * @param fromTimestamp The earliest time in the desired range
      * @param toTimestamp The latest time in the desired range
      * @return An array of the desired activities, sorted in ascending order of time.
      */
-    private synchronized ESActivity[] getActivitiesFromTimeRange(ESTimestamp fromTimestamp,ESTimestamp toTimestamp) {
+    ESActivity[] getActivitiesFromTimeRange(ESTimestamp fromTimestamp,ESTimestamp toTimestamp) {
         if (fromTimestamp.isLaterThan(toTimestamp)) {
             // Then there should be no records in the range
             return new ESActivity[0];
         }
 
-        SQLiteDatabase db = _dbHelper.getReadableDatabase();
+        SQLiteDatabase db = getDatabase();
 
-        String[] projection = {
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LABEL_SOURCE,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_SERVER_PREDICTION,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_USER_CORRECTION,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_SECONDARY_ACTIVITIES_CSV,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MOODS_CSV,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTED_LABEL_NAMES_CSV,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTED_LABEL_PROBS_CSV,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LOCATION_REPRESENTATIVE_LAT_LONG_CSV,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_OPEN_FEEDBACK_FORM,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_PRESS_SEND_BUTTON,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_NOTIFICATION,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_USER_RESPOND_TO_NOTIFICATION
-        };
-
-        String selection = ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + " >= " + fromTimestamp.get_secondsSinceEpoch() +
-                " AND " + ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + " <= " + toTimestamp.get_secondsSinceEpoch();
-
-        String sortOrder = ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + " ASC";
         Cursor cursor = db.query(ESDatabaseContract.ESActivityEntry.TABLE_NAME,
-                projection,selection,null,null,null,sortOrder);
+                ACTIVITY_PROJECTION,SELECTION_ACTIVITIES_IN_TIME_RANGE,
+                timeRangeArgs(fromTimestamp.get_secondsSinceEpoch(),toTimestamp.get_secondsSinceEpoch()),
+                null,null,SORT_ORDER_TIMESTAMP_ASCENDING);
 
         int count = cursor.getCount();
         ArrayList<ESActivity> activitiesList = new ArrayList<>(count);
+        ESActivityRowMapper rowMapper = new ESActivityRowMapper(cursor,_labelDictionary);
         for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-            ESActivity activity = extractActivityFromCurrentRecord(cursor);
+            ESActivity activity = rowMapper.map(cursor);
             activitiesList.add(activity);
         }
         cursor.close();
 
         ESActivity[] activities = activitiesList.toArray(new ESActivity[activitiesList.size()]);
-        _dbHelper.close();
 
         return activities;
     }
 
     /**
-     * Construct an ESActivity object representing the activity in a database record.
-     * This method assumes the cursor is active and pointing at a record.
+     * Go over all the activities from the given time range, in ascending order of time.
+     * The activities are read from the DB in pages of limited size (each page continuing after the last timestamp of the previous page),
+     * so even a very long range (like all the history) is visited without holding all its activities in memory,
+     * and without keeping a long query open while the visitor works.
      *
-     * @param cursor A cursor, currently pointing at the desired record.
-     * @return An ESActivity object for the current record pointed to by the cursor.
+     * @param fromTimestamp The earliest time in the desired range
+     * @param toTimestamp The latest time in the desired range
+     * @param visitor The visitor, to be called for each activity, until it asks to stop
+     * @return The number of visited activities
      */
-    private synchronized ESActivity extractActivityFromCurrentRecord(Cursor cursor) {
-        if (cursor == null) {
-            String msg = "null cursor given";
-            Log.e(LOG_TAG, msg);
-            throw new NullPointerException(msg);
+    public int visitActivitiesInTimeRange(ESTimestamp fromTimestamp,ESTimestamp toTimestamp,ESActivityVisitor visitor) {
+        if (fromTimestamp.isLaterThan(toTimestamp)) {
+            return 0;
         }
 
-        int timestampSeconds = cursor.getInt(cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP));
-        ESTimestamp timestamp = new ESTimestamp(timestampSeconds);
-        int labelSourceCode = cursor.getInt(cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LABEL_SOURCE));
-        ESActivity.ESLabelSource labelSource = ESActivity.ESLabelSource.labelSourceFromValue(labelSourceCode);
-        String serverMain = cursor.getString(cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_SERVER_PREDICTION));
-        String userMain = cursor.getString(cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_USER_CORRECTION));
-
-        String secondaryCSV = cursor.getString(cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_SECONDARY_ACTIVITIES_CSV));
-        String[] secondaryActivities = parsePossiblyEmptyCSV(secondaryCSV);
-        //String[] secondaryActivities = (secondaryCSV==null || secondaryCSV.isEmpty()) ? new String[]{} : parseCSV(secondaryCSV);
-
-        String moodCSV = cursor.getString(cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MOODS_CSV));
-        String[] moods = parsePossiblyEmptyCSV(moodCSV);
-        //String[] moods = (moodCSV==null || moodCSV.isEmpty()) ? new String[]{} : parseCSV(moodCSV);
-
-        String predictedLabelNamesCSV = cursor.getString(cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTED_LABEL_NAMES_CSV));
-        String[] predictedLabelNames = parsePossiblyEmptyCSV(predictedLabelNamesCSV);
-
-        String predictedLabelProbsCSV = cursor.getString(cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_PREDICTED_LABEL_PROBS_CSV));
-        double[] predictedLabelProbs = parseCSVOfNumbers(predictedLabelProbsCSV);
-
-        String locationLatLongCSV = cursor.getString(cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_LOCATION_REPRESENTATIVE_LAT_LONG_CSV));
-        double[] locationLatLong = parseCSVOfNumbers(locationLatLongCSV);
-
-        int timeOpenFeedbackForm = cursor.getInt(cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_OPEN_FEEDBACK_FORM));
-        ESTimestamp timestampOpenFeedbackForm = (timeOpenFeedbackForm <= 0) ? null : new ESTimestamp(timeOpenFeedbackForm);
-
-        int timePressSendButton = cursor.getInt(cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_PRESS_SEND_BUTTON));
-        ESTimestamp timestampPressSendButton = (timePressSendButton <= 0) ? null : new ESTimestamp(timePressSendButton);
-
-        int timeNotification = cursor.getInt(cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_NOTIFICATION));
-        ESTimestamp timestampNotification = (timeNotification <= 0) ? null : new ESTimestamp(timeNotification);
-
-        int timeUserResToNotif = cursor.getInt(cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP_USER_RESPOND_TO_NOTIFICATION));
-        ESTimestamp timestampUserResToNotif = (timeUserResToNotif <= 0) ? null : new ESTimestamp(timeUserResToNotif);
+        SQLiteDatabase db = getDatabase();
+        int afterSeconds = fromTimestamp.get_secondsSinceEpoch() - 1;
+        int numVisited = 0;
+        while (true) {
+            Cursor cursor = db.query(ESDatabaseContract.ESActivityEntry.TABLE_NAME,
+                    ACTIVITY_PROJECTION,SELECTION_ACTIVITIES_AFTER_TIMESTAMP_IN_TIME_RANGE,
+                    timeRangeArgs(afterSeconds,toTimestamp.get_secondsSinceEpoch()),
+                    null,null,SORT_ORDER_TIMESTAMP_ASCENDING,RECORDS_PAGE_LIMIT);
+            int pageSize = cursor.getCount();
+            try {
+                ESActivityRowMapper rowMapper = new ESActivityRowMapper(cursor,_labelDictionary);
+                for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                    ESActivity activity = rowMapper.map(cursor);
+                    afterSeconds = activity.get_timestampSeconds();
+                    numVisited ++;
+                    if (!visitor.visit(activity)) {
+                        return numVisited;
+                    }
+                }
+            }
+            finally {
+                cursor.close();
+            }
 
-        return new ESActivity(timestamp,labelSource,serverMain,userMain,secondaryActivities,moods,
-                predictedLabelNames,predictedLabelProbs,locationLatLong,
-                timestampOpenFeedbackForm,timestampPressSendButton,
-                timestampNotification,timestampUserResToNotif);
+            if (pageSize < RECORDS_PAGE_SIZE) {
+                return numVisited;
+            }
+        }
     }
 
     /**
@@ -975,18 +1919,24 @@ public class ESDatabaseAccessor {
      * @param labelType either main, secondary or mood
      * @return The labels used in the time period, in descending order of frequency.
      */
-    public synchronized String[] getFrequentlyUsedLabels(ESTimestamp fromTime,ESLabelType labelType) {
-        // Get a label->counts map:
-        Map<String,Integer> countsMap = getLabelCounts(fromTime, labelType);
-        // Sort the label-count pairs according to count value:
-        List<Map.Entry<String,Integer>> entryList = new LinkedList<>(countsMap.entrySet());
-        Collections.sort(entryList,new Comparator<Map.Entry<String, Integer>>() {
-            @Override
-            public int compare(Map.Entry<String, Integer> lhs, Map.Entry<String, Integer> rhs) {
-                // Make sure it's descending order:
-                return rhs.getValue().compareTo(lhs.getValue());
-            }
-        });
+    public String[] getFrequentlyUsedLabels(ESTimestamp fromTime,ESLabelType labelType) {
+        // Get the label-count pairs:
+        Cursor cursor = queryLabelCounts(fromTime,labelType);
+        ArrayList<Map.Entry<String,Integer>> entryList = new ArrayList<>(cursor.getCount());
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            entryList.add(new AbstractMap.SimpleImmutableEntry<>(cursor.getString(0),cursor.getInt(1)));
+        }
+        cursor.close();
+        // Sort the label-count pairs according to count value (the counts of all history already come sorted):
+        if (fromTime != null) {
+            Collections.sort(entryList,new Comparator<Map.Entry<String, Integer>>() {
+                @Override
+                public int compare(Map.Entry<String, Integer> lhs, Map.Entry<String, Integer> rhs) {
+                    // Make sure it's descending order:
+                    return rhs.getValue().compareTo(lhs.getValue());
+                }
+            });
+        }
 
         // Organize the array of sorted labels:
         String[] sortedLabels = new String[entryList.size()];
@@ -999,6 +1949,30 @@ public class ESDatabaseAccessor {
         return sortedLabels;
     }
 
+    /**
+     * Get the labels that the user used most frequently, giving more weight to recent use
+     * (the weight of a use halves every 30 days).
+     * The labels are ranked as they are written, so this doesn't go over the history.
+     *
+     * @param labelType either main, secondary or mood
+     * @param maxLabels The maximal number of labels to get
+     * @return The most frequently used labels, in descending order of (decayed) frequency.
+     */
+    public String[] getFrequentlyUsedLabels(ESLabelType labelType,int maxLabels) {
+        SQLiteDatabase db = getDatabase();
+        if (!_frequentLabelsTracker.isLoaded()) {
+            // (Load while no label changes are in progress, so none of them is missed or counted twice):
+            _writeLock.lock();
+            try {
+                _frequentLabelsTracker.loadIfNeeded(db);
+            }
+            finally {
+                _writeLock.unlock();
+            }
+        }
+        return _frequentLabelsTracker.getTopLabels(labelType,maxLabels);
+    }
+
     /**
      * Get counts of user-provided labels.
      * For each label, how many times (how many minute activities) was this label reported.
@@ -1006,53 +1980,121 @@ public class ESDatabaseAccessor {
      * @param labelType either main, secondary or mood
      * @return A map from label to count. Containing only the labels with non-zero counts.
      */
-    public synchronized Map<String,Integer> getLabelCounts(ESTimestamp fromTime,ESLabelType labelType) {
+    public Map<String,Integer> getLabelCounts(ESTimestamp fromTime,ESLabelType labelType) {
+        Cursor cursor = queryLabelCounts(fromTime,labelType);
+        HashMap<String,Integer> countsMap = new HashMap<>(cursor.getCount());
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            countsMap.put(cursor.getString(0),cursor.getInt(1));
+        }
+        cursor.close();
+
+        return countsMap;
+    }
+
+    /**
+     * Query the label counts: the counts of all history come from the maintained counters (in descending order of count),
+     * and the counts from a given time are aggregated from the activity-label table.
+     * @return A cursor of (label, count) records
+     */
+    private Cursor queryLabelCounts(ESTimestamp fromTime,ESLabelType labelType) {
+        SQLiteDatabase db = getDatabase();
         if (fromTime == null) {
-            fromTime = new ESTimestamp(0);
+            return db.rawQuery(SQL_ALL_TIME_LABEL_COUNTS,new String[]{"" + labelType.get_value()});
         }
-        ESActivity[] activities = getActivitiesFromTimeRange(fromTime,new ESTimestamp());
-        HashMap<String,Integer> countsMap = new HashMap<>(10);
+        return db.rawQuery(SQL_COUNT_LABELS_FROM_TIME,new String[]{"" + labelType.get_value(),"" + fromTime.get_secondsSinceEpoch()});
+    }
 
-        switch (labelType) {
-            case ES_LABEL_TYPE_MAIN:
-                for (ESActivity activity : activities) {
-                    String mainActivity = activity.get_mainActivityUserCorrection();
-                    if (mainActivity != null) {
-                        increaseLabelCount(countsMap,mainActivity);
-                    }
-                }
-                break;
-            case ES_LABEL_TYPE_SECONDARY:
-                for (ESActivity activity : activities) {
-                    String[] secondaries = activity.get_secondaryActivities();
-                    if (secondaries != null) {
-                        for (String secondary : secondaries) {
-                            increaseLabelCount(countsMap,secondary);
-                        }
-                    }
-                }
-                break;
-            case ES_LABEL_TYPE_MOOD:
-                for (ESActivity activity : activities) {
-                    String[] moods = activity.get_moods();
-                    if (moods != null) {
-                        for (String mood : moods) {
-                            increaseLabelCount(countsMap,mood);
-                        }
-                    }
-                }
-                break;
+    /**
+     * Get the timestamps of the activities that have a given user-reported label.
+     * @param labelType either main, secondary or mood
+     * @param label The label
+     * @param fromTimestamp The earliest time in the desired range
+     * @param toTimestamp The latest time in the desired range
+     * @return The timestamps of the activities with the label, in ascending order of time
+     */
+    public ESTimestamp[] getTimestampsOfActivitiesWithLabel(ESLabelType labelType,String label,
+                                                          ESTimestamp fromTimestamp,ESTimestamp toTimestamp) {
+        SQLiteDatabase db = getDatabase();
+        int labelId = _labelDictionary.getLabelId(labelType,label);
+        if (labelId < 0) {
+            return new ESTimestamp[0];
         }
 
-        return countsMap;
+        String[] projection = {ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_TIMESTAMP};
+        String[] selectionArgs = {"" + labelId,
+                "" + fromTimestamp.get_secondsSinceEpoch(),"" + toTimestamp.get_secondsSinceEpoch()};
+        Cursor cursor = db.query(ESDatabaseContract.ESActivityLabelEntry.TABLE_NAME,
+                projection,SELECTION_ACTIVITY_LABELS_BY_LABEL_IN_TIME_RANGE,selectionArgs,
+                null,null,ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_TIMESTAMP + " ASC");
+        ESTimestamp[] timestamps = new ESTimestamp[cursor.getCount()];
+        int i = 0;
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            timestamps[i] = new ESTimestamp(cursor.getInt(0));
+            i ++;
+        }
+        cursor.close();
+
+        return timestamps;
+    }
+
+    /**
+     * Get the uninterrupted runs of activities with a given user-reported label, that overlap a time range.
+     * The runs come from the maintained label segments, so this doesn't go over the activities of the range
+     * (and a run that started before the range, or continues after it, is returned whole).
+     * @param labelType either main, secondary or mood
+     * @param label The label
+     * @param fromTimestamp The earliest time in the desired range
+     * @param toTimestamp The latest time in the desired range
+     * @return The segments of the label that overlap the range, in ascending order of time
+     */
+    public ESLabelSegment[] getLabelSegmentsOverlappingTimeRange(ESLabelType labelType,String label,
+                                                                 ESTimestamp fromTimestamp,ESTimestamp toTimestamp) {
+        SQLiteDatabase db = getDatabase();
+        int labelId = _labelDictionary.getLabelId(labelType,label);
+        if (labelId < 0) {
+            return new ESLabelSegment[0];
+        }
+
+        int fromSeconds = fromTimestamp.get_secondsSinceEpoch();
+        String[] selectionArgs = {"" + labelId,"" + toTimestamp.get_secondsSinceEpoch(),
+                "" + fromSeconds,"" + labelId,"" + fromSeconds};
+        Cursor cursor = db.rawQuery(SQL_SELECT_LABEL_SEGMENTS_IN_TIME_RANGE,selectionArgs);
+        ArrayList<ESLabelSegment> segments = new ArrayList<>(cursor.getCount());
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            // (Only the segment that starts before the range may end before it):
+            if (cursor.getInt(1) >= fromSeconds) {
+                segments.add(new ESLabelSegment(labelType,label,new ESTimestamp(cursor.getInt(0)),new ESTimestamp(cursor.getInt(1))));
+            }
+        }
+        cursor.close();
+
+        return segments.toArray(new ESLabelSegment[segments.size()]);
     }
 
-    private void increaseLabelCount(HashMap<String,Integer> countsMap,String label) {
-        if (!countsMap.containsKey(label)) {
-            countsMap.put(label,0);
+    /**
+     * Get the longest uninterrupted run of activities with a given user-reported label, in a time range
+     * (e.g. the longest time the user was sleeping this month).
+     * Runs that cross the range's edges are measured by the part inside the range.
+     * @param labelType either main, secondary or mood
+     * @param label The label
+     * @param fromTimestamp The earliest time in the desired range
+     * @param toTimestamp The latest time in the desired range
+     * @return The (whole) segment with the longest part inside the range (the earliest of equally long ones),
+     * or null if the label wasn't reported in the range
+     */
+    public ESLabelSegment getLongestLabelSegmentInTimeRange(ESLabelType labelType,String label,
+                                                            ESTimestamp fromTimestamp,ESTimestamp toTimestamp) {
+        ESLabelSegment longest = null;
+        int longestSeconds = -1;
+        for (ESLabelSegment segment : getLabelSegmentsOverlappingTimeRange(labelType,label,fromTimestamp,toTimestamp)) {
+            int seconds = segment.getDurationInSecondsWithin(fromTimestamp,toTimestamp);
+            if (seconds > longestSeconds) {
+                longest = segment;
+                longestSeconds = seconds;
+            }
         }
 
-        countsMap.put(label,countsMap.get(label) + 1);
+        return longest;
     }
 
     /**
@@ -1062,61 +2104,124 @@ public class ESDatabaseAccessor {
      * Then delete these orphan records.
      * @param fromTimestamp The earliest time in the desired range to check
      */
-    public synchronized void clearOrphanRecords(ESTimestamp fromTimestamp) {
-        SQLiteDatabase db = _dbHelper.getWritableDatabase();
+    public void clearOrphanRecords(ESTimestamp fromTimestamp) {
+        SQLiteDatabase db = getDatabase();
+        _writeLock.lock();
+        try {
+            clearOrphanRecords(db,fromTimestamp);
+        }
+        finally {
+            _writeLock.unlock();
+        }
+    }
 
+    private void clearOrphanRecords(SQLiteDatabase db,ESTimestamp fromTimestamp) {
         String[] projection = {
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP,
-                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_SERVER_PREDICTION
+                ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP
         };
 
         int aMinuteAgoInSecondsSinceEpoch = new ESTimestamp().get_secondsSinceEpoch() - 60;
-        String selection = ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + " >= " + fromTimestamp.get_secondsSinceEpoch() +
-                " AND " + ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + " <= " + aMinuteAgoInSecondsSinceEpoch +
-                " AND " + ESDatabaseContract.ESActivityEntry.COLUMN_NAME_MAIN_ACTIVITY_SERVER_PREDICTION + " IS NULL";
-
-        String sortOrder = ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + " ASC";
-        Cursor cursor = db.query(ESDatabaseContract.ESActivityEntry.TABLE_NAME,
-                projection,selection,null,null,null,sortOrder);
-
-        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-            int timestampSeconds = cursor.getInt(cursor.getColumnIndexOrThrow(ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP));
-
-            // Check if this record has a corresponding zip file (if so, then it is still waiting to get server prediction from the server):
-            File possibleZipFile = ESSensorManager.getZipFileForRecord(new ESTimestamp(timestampSeconds));
-            if (possibleZipFile.exists()) {
-                // Then we're still waiting to get server prediction for this record, and we shouldn't delete it.
-                continue;
+        int afterSeconds = fromTimestamp.get_secondsSinceEpoch() - 1;
+        int numDeleted = 0;
+        int[] candidates;
+        // Go over the candidates a page at a time (reading a page before deleting from it):
+        do {
+            Cursor cursor = db.query(ESDatabaseContract.ESActivityEntry.TABLE_NAME,
+                    projection,SELECTION_ORPHAN_CANDIDATES,
+                    timeRangeArgs(afterSeconds,aMinuteAgoInSecondsSinceEpoch),
+                    null,null,SORT_ORDER_TIMESTAMP_ASCENDING,RECORDS_PAGE_LIMIT);
+            candidates = new int[cursor.getCount()];
+            int i = 0;
+            for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                candidates[i++] = cursor.getInt(0);
             }
-            else {
-                // Then probably this record represents a recording session that never finished,
-                // and we can get rid of it:
-                String whereToDelete = ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + " = " + timestampSeconds;
-                db.delete(ESDatabaseContract.ESActivityEntry.TABLE_NAME,whereToDelete,null);
+            cursor.close();
+            if (candidates.length <= 0) {
+                break;
             }
+            afterSeconds = candidates[candidates.length - 1];
+
+            boolean committed = false;
+            db.beginTransaction();
+            try {
+                for (int timestampSeconds : candidates) {
+                    // Check if this record has a corresponding zip file (if so, then it is still waiting to get server prediction from the server):
+                    File possibleZipFile = ESSensorManager.getZipFileForRecord(new ESTimestamp(timestampSeconds));
+                    if (possibleZipFile.exists()) {
+                        // Then we're still waiting to get server prediction for this record, and we shouldn't delete it.
+                        continue;
+                    }
+                    else {
+                        // Then probably this record represents a recording session that never finished,
+                        // and we can get rid of it (taking it out of its label segments while the record still exists):
+                        for (int labelId : selectActivityLabelIds(db,timestampSeconds)) {
+                            _labelSegmentIndex.labelRemoved(timestampSeconds,labelId);
+                            adjustLabelCount(labelId,-1,timestampSeconds);
+                        }
+                        _deleteActivityStatement.bindLong(1,timestampSeconds);
+                        numDeleted += _deleteActivityStatement.executeUpdateDelete();
+                        // Now its neighbours are consecutive records, which may join their label segments:
+                        int nextTimestampSeconds = _labelSegmentIndex.nextActivityTimestamp(timestampSeconds);
+                        _labelSegmentIndex.activityDeleted(timestampSeconds,nextTimestampSeconds,
+                                selectActivityLabelIds(db,nextTimestampSeconds));
+                        if (timestampSeconds == _latestVerifiedSeconds) {
+                            _latestVerifiedSeconds = LATEST_VERIFIED_UNKNOWN;
+                        }
+                        _deleteActivityLabelsStatement.bindLong(1,timestampSeconds);
+                        _deleteActivityLabelsStatement.executeUpdateDelete();
+                        invalidateCachedActivity(new ESTimestamp(timestampSeconds));
+                        _historyDayCache.invalidate(new ESTimestamp(timestampSeconds));
+                    }
+                }
+                db.setTransactionSuccessful();
+                committed = true;
+            }
+            finally {
+                db.endTransaction();
+                if (!committed) {
+                    _frequentLabelsTracker.invalidate();
+                }
+            }
+        } while (candidates.length >= RECORDS_PAGE_SIZE);
 
-
-        }
-        cursor.close();
-
-        _dbHelper.close();
-
+        Log.i(LOG_TAG,"Cleared " + numDeleted + " orphan records");
     }
 
     /**
      * Get the latest activity that has user provided labels.
+     * The latest verified activity is maintained as labels are written, so this doesn't go over the activities.
      * @param startFrom The earliest timestamp to check from
      * @return The latest verified activity, or null if no such activity was found in the desired time range.
      */
-    public synchronized ESActivity getLatestVerifiedActivity(ESTimestamp startFrom) {
-        ESActivity[] recentActivities = getActivitiesFromTimeRange(startFrom,new ESTimestamp());
-        for (int i = recentActivities.length - 1; i >= 0; i --) {
-            if (recentActivities[i].hasAnyUserReportedLabelsNotDummyLabel()) {
-                return recentActivities[i];
-            }
+    public ESActivity getLatestVerifiedActivity(ESTimestamp startFrom) {
+        int latestVerifiedSeconds = getLatestVerifiedTimestampSeconds();
+        if (latestVerifiedSeconds < startFrom.get_secondsSinceEpoch()) {
+            return null;
         }
+        // (Usually the latest verified activity is a recent one, which is in the activity cache):
+        return getESActivity(new ESTimestamp(latestVerifiedSeconds));
+    }
 
-        return null;
+    /**
+     * @return The timestamp (seconds) of the latest verified activity, or -1 if there is none
+     */
+    private int getLatestVerifiedTimestampSeconds() {
+        int latestVerifiedSeconds = _latestVerifiedSeconds;
+        if (latestVerifiedSeconds != LATEST_VERIFIED_UNKNOWN) {
+            return latestVerifiedSeconds;
+        }
+        SQLiteDatabase db = getDatabase();
+        // (Look it up while no label changes are in progress, so none of them is missed):
+        _writeLock.lock();
+        try {
+            if (_latestVerifiedSeconds == LATEST_VERIFIED_UNKNOWN) {
+                _latestVerifiedSeconds = selectLatestVerifiedTimestamp(db,_labelDictionary,_context);
+            }
+            return _latestVerifiedSeconds;
+        }
+        finally {
+            _writeLock.unlock();
+        }
     }
 
 
@@ -1124,7 +2229,7 @@ public class ESDatabaseAccessor {
         return csv.split(",");
     }
 
-    private static String[] parsePossiblyEmptyCSV(String csv) {
+    static String[] parsePossiblyEmptyCSV(String csv) {
         if (csv==null || csv.isEmpty()) {
             return new String[]{};
         }
@@ -1153,11 +2258,10 @@ public class ESDatabaseAccessor {
     }
 
     /**
-     * Announce, to whoever is interested, that there was some update to some ESActivity record in the DB.
+     * How many announcements of changes to ESActivity records were saved by coalescing them with other changes
+     * (each saves the listeners a refresh).
      */
-    private void sendBroadcastDatabaseUpdate() {
-        Intent intent = new Intent(BROADCAST_DATABASE_RECORDS_UPDATED);
-        LocalBroadcastManager localBroadcastManager = LocalBroadcastManager.getInstance(_context);
-        localBroadcastManager.sendBroadcast(intent);
+    public int get_numCoalescedChangeEvents() {
+        return _changeNotifier.get_numCoalescedChanges();
     }
 }
@@ -0,0 +1,156 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import android.content.Intent;
+
+/**
+ * This class describes a change (or several coalesced changes) to the activity records in the DB:
+ * the time range of the affected activities and the kinds of changes that were made.
+ * It is carried as extras of the database records-updated broadcast,
+ * so listeners can refresh only what the change affects.
+ *
+ * ========================================
+ * The ExtraSensory App
+ * Please see ExtraSensory App website for details and citation requirements:
+ * http://extrasensory.ucsd.edu/ExtraSensoryApp
+ * ========================================
+ */
+public class ESDatabaseChangeEvent {
+
+    private static final String EXTRA_FROM_TIMESTAMP = "edu.ucsd.calab.extrasensory.extra.change_from_timestamp";
+    private static final String EXTRA_TO_TIMESTAMP = "edu.ucsd.calab.extrasensory.extra.change_to_timestamp";
+    private static final String EXTRA_CHANGE_KINDS = "edu.ucsd.calab.extrasensory.extra.change_kinds";
+    private static final String EXTRA_NUM_CHANGES = "edu.ucsd.calab.extrasensory.extra.num_changes";
+
+    public enum ESChangeKind {
+        // New activity records were created:
+        ES_CHANGE_KIND_CREATED(1),
+        // Activity records were updated (labels, predictions or feedback times):
+        ES_CHANGE_KIND_UPDATED(2),
+        // The user-reported labels of activity records changed:
+        ES_CHANGE_KIND_LABELS_CHANGED(4);
+
+        private final int _flag;
+        private ESChangeKind(final int flag) {
+            _flag = flag;
+        }
+
+        int get_flag() {
+            return _flag;
+        }
+    }
+
+    private static final int ALL_KINDS = ESChangeKind.ES_CHANGE_KIND_CREATED.get_flag() |
+            ESChangeKind.ES_CHANGE_KIND_UPDATED.get_flag() |
+            ESChangeKind.ES_CHANGE_KIND_LABELS_CHANGED.get_flag();
+
+    private final int _fromSeconds;
+    private final int _toSeconds;
+    private final int _kinds;
+    private final int _numChanges;
+
+    private ESDatabaseChangeEvent(int fromSeconds,int toSeconds,int kinds,int numChanges) {
+        _fromSeconds = fromSeconds;
+        _toSeconds = toSeconds;
+        _kinds = kinds;
+        _numChanges = numChanges;
+    }
+
+    /**
+     * Describe a change to a single activity record.
+     * @param timestamp The timestamp of the changed activity
+     * @param kinds The kinds of change
+     */
+    ESDatabaseChangeEvent(ESTimestamp timestamp,ESChangeKind... kinds) {
+        this(timestamp.get_secondsSinceEpoch(),timestamp.get_secondsSinceEpoch(),flagsOf(kinds),1);
+    }
+
+    /**
+     * Describe a change to several activity records, made together.
+     * @param fromTimestamp The earliest timestamp of the changed activities
+     * @param toTimestamp The latest timestamp of the changed activities
+     * @param numChanges The number of changed activities
+     * @param kinds The kinds of change
+     */
+    ESDatabaseChangeEvent(ESTimestamp fromTimestamp,ESTimestamp toTimestamp,int numChanges,ESChangeKind... kinds) {
+        this(fromTimestamp.get_secondsSinceEpoch(),toTimestamp.get_secondsSinceEpoch(),flagsOf(kinds),numChanges);
+    }
+
+    private static int flagsOf(ESChangeKind[] kinds) {
+        int flags = 0;
+        for (ESChangeKind kind : kinds) {
+            flags |= kind.get_flag();
+        }
+        return flags;
+    }
+
+    /**
+     * Coalesce this change with another change.
+     * @param other The other change
+     * @return A change covering the time ranges and kinds of both changes
+     */
+    ESDatabaseChangeEvent mergedWith(ESDatabaseChangeEvent other) {
+        return new ESDatabaseChangeEvent(Math.min(_fromSeconds,other._fromSeconds),Math.max(_toSeconds,other._toSeconds),
+                _kinds | other._kinds,_numChanges + other._numChanges);
+    }
+
+    public ESTimestamp get_fromTimestamp() {
+        return new ESTimestamp(_fromSeconds);
+    }
+
+    public ESTimestamp get_toTimestamp() {
+        return new ESTimestamp(_toSeconds);
+    }
+
+    /**
+     * @return The number of single-record changes that were coalesced into this change
+     */
+    public int get_numChanges() {
+        return _numChanges;
+    }
+
+    /**
+     * @param kind A kind of change
+     * @return Does this change include changes of the given kind?
+     */
+    public boolean includes(ESChangeKind kind) {
+        return (_kinds & kind.get_flag()) != 0;
+    }
+
+    /**
+     * @param fromTimestamp The earliest time in a range
+     * @param toTimestamp The latest time in the range
+     * @return Can this change affect activities in the given time range?
+     */
+    public boolean overlaps(ESTimestamp fromTimestamp,ESTimestamp toTimestamp) {
+        return _fromSeconds <= toTimestamp.get_secondsSinceEpoch() && _toSeconds >= fromTimestamp.get_secondsSinceEpoch();
+    }
+
+    Intent toIntent() {
+        Intent intent = new Intent(ESDatabaseAccessor.BROADCAST_DATABASE_RECORDS_UPDATED);
+        intent.putExtra(EXTRA_FROM_TIMESTAMP,_fromSeconds);
+        intent.putExtra(EXTRA_TO_TIMESTAMP,_toSeconds);
+        intent.putExtra(EXTRA_CHANGE_KINDS,_kinds);
+        intent.putExtra(EXTRA_NUM_CHANGES,_numChanges);
+        return intent;
+    }
+
+    /**
+     * Get the change described by a database records-updated broadcast.
+     * @param intent The broadcast intent
+     * @return The change. If the broadcast doesn't describe the change, a change of anything at any time.
+     */
+    public static ESDatabaseChangeEvent fromIntent(Intent intent) {
+        if (!intent.hasExtra(EXTRA_CHANGE_KINDS)) {
+            return new ESDatabaseChangeEvent(0,Integer.MAX_VALUE,ALL_KINDS,1);
+        }
+        return new ESDatabaseChangeEvent(intent.getIntExtra(EXTRA_FROM_TIMESTAMP,0),
+                intent.getIntExtra(EXTRA_TO_TIMESTAMP,Integer.MAX_VALUE),
+                intent.getIntExtra(EXTRA_CHANGE_KINDS,ALL_KINDS),
+                intent.getIntExtra(EXTRA_NUM_CHANGES,1));
+    }
+
+    @Override
+    public String toString() {
+        return "<from: " + _fromSeconds + ", to: " + _toSeconds + ", kinds: " + _kinds + ", changes: " + _numChanges + ">";
+    }
+}
@@ -0,0 +1,88 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+/**
+ * This class announces changes to the activity records in the DB (with the records-updated broadcast).
+ * Changes are not broadcast right away: changes that happen within a short window of each other
+ * are coalesced into a single change event, covering all their time ranges and kinds,
+ * so a burst of writes (e.g. labeling all the minutes of a continuous activity) causes a single refresh of the listeners.
+ *
+ * ========================================
+ * The ExtraSensory App
+ * Please see ExtraSensory App website for details and citation requirements:
+ * http://extrasensory.ucsd.edu/ExtraSensoryApp
+ * ========================================
+ */
+class ESDatabaseChangeNotifier {
+
+    private static final String LOG_TAG = "[ESDatabaseChangeNotifier]";
+    private static final long COALESCING_WINDOW_MILLIS = 250;
+
+    private final Context _context;
+    private final Handler _handler;
+
+    private ESDatabaseChangeEvent _pendingChange = null;
+
+    // Metrics:
+    private int _numChanges = 0;
+    private int _numBroadcasts = 0;
+
+    private final Runnable _broadcastRunnable = new Runnable() {
+        @Override
+        public void run() {
+            broadcastPendingChange();
+        }
+    };
+
+    ESDatabaseChangeNotifier(Context context) {
+        _context = context;
+        _handler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Announce a change. It will be broadcast (possibly coalesced with other changes) after a short window.
+     * @param change The change
+     */
+    synchronized void changed(ESDatabaseChangeEvent change) {
+        _numChanges += change.get_numChanges();
+        if (_pendingChange != null) {
+            _pendingChange = _pendingChange.mergedWith(change);
+            return;
+        }
+        _pendingChange = change;
+        _handler.postDelayed(_broadcastRunnable,COALESCING_WINDOW_MILLIS);
+    }
+
+    private void broadcastPendingChange() {
+        ESDatabaseChangeEvent change;
+        synchronized (this) {
+            if (_pendingChange == null) {
+                return;
+            }
+            change = _pendingChange;
+            _pendingChange = null;
+            _numBroadcasts ++;
+        }
+        Log.v(LOG_TAG,"Broadcasting change " + change);
+        LocalBroadcastManager.getInstance(_context).sendBroadcast(change.toIntent());
+    }
+
+    /**
+     * @return How many single-record changes were announced
+     */
+    synchronized int get_numChanges() {
+        return _numChanges;
+    }
+
+    /**
+     * @return How many broadcasts were saved by coalescing changes
+     */
+    synchronized int get_numCoalescedChanges() {
+        return _numChanges - _numBroadcasts - (_pendingChange == null ? 0 : _pendingChange.get_numChanges());
+    }
+}
@@ -29,15 +29,63 @@ final class ESDatabaseContract {
         public static final String COLUMN_NAME_SECONDARY_ACTIVITIES_CSV = "secondary_activities";
         public static final String COLUMN_NAME_MOODS_CSV = "moods";
         public static final String COLUMN_NAME_LABEL_SOURCE = "label_source";
+        // The text columns of the server predictions and location (used until DB version 4, kept only for the upgrade):
         public static final String COLUMN_NAME_PREDICTED_LABEL_NAMES_CSV = "predicted_label_names";
         public static final String COLUMN_NAME_PREDICTED_LABEL_PROBS_CSV = "predicted_label_probs";
         public static final String COLUMN_NAME_LOCATION_REPRESENTATIVE_LAT_LONG_CSV = "location_rep_lat_long";
+        // The binary columns of the server predictions and location (see ESActivityRowMapper for the encoding):
+        public static final String COLUMN_NAME_PREDICTIONS_BLOB = "predictions";
+        public static final String COLUMN_NAME_LOCATION_LAT_LONG_BLOB = "location_lat_long";
         public static final String COLUMN_NAME_TIMESTAMP_OPEN_FEEDBACK_FORM = "timestamp_open_feedback_form";
         public static final String COLUMN_NAME_TIMESTAMP_PRESS_SEND_BUTTON = "timestamp_press_send_feedback_button";
         public static final String COLUMN_NAME_TIMESTAMP_NOTIFICATION = "timestamp_notification";
         public static final String COLUMN_NAME_TIMESTAMP_USER_RESPOND_TO_NOTIFICATION = "timestamp_user_respond_to_notification";
     }
 
+    /**
+     * Column names for table of the label dictionary: every label name (of each label type) gets an id
+     */
+    public static abstract class ESLabelDictionaryEntry {
+        public static final String TABLE_NAME = "es_label_dictionary";
+        public static final String COLUMN_NAME_LABEL_ID = "_id";
+        public static final String COLUMN_NAME_LABEL_TYPE = "label_type";
+        public static final String COLUMN_NAME_LABEL = "label";
+    }
+
+    /**
+     * Column names for the table of user-reported labels of activities (one record per activity and label)
+     */
+    public static abstract class ESActivityLabelEntry {
+        public static final String TABLE_NAME = "es_activity_label";
+        public static final String COLUMN_NAME_TIMESTAMP = "timestamp";
+        public static final String COLUMN_NAME_LABEL_ID = "label_id";
+        public static final String INDEX_NAME_BY_LABEL = "es_activity_label_by_label";
+    }
+
+    /**
+     * Column names for the table of label counts: how many activities have each user-reported label, over all history.
+     * These counters are maintained with every change of activity labels.
+     * The decayed score is the same count, with each activity weighted by how recent it is (see ESFrequentLabelsTracker).
+     */
+    public static abstract class ESLabelCountEntry {
+        public static final String TABLE_NAME = "es_label_count";
+        public static final String COLUMN_NAME_LABEL_ID = "label_id";
+        public static final String COLUMN_NAME_COUNT = "count";
+        public static final String COLUMN_NAME_DECAYED_SCORE = "decayed_score";
+    }
+
+    /**
+     * Column names for the table of label segments: for each user-reported label, the uninterrupted runs of activities with it.
+     * A segment is a maximal sequence of consecutive activity records that all have the label (and are close enough in time).
+     * The segments of a label never overlap. They are maintained with every change of activity labels (see ESLabelSegmentIndex).
+     */
+    public static abstract class ESLabelSegmentEntry {
+        public static final String TABLE_NAME = "es_label_segment";
+        public static final String COLUMN_NAME_LABEL_ID = "label_id";
+        public static final String COLUMN_NAME_START_TIMESTAMP = "start_timestamp";
+        public static final String COLUMN_NAME_END_TIMESTAMP = "end_timestamp";
+    }
+
     /**
      * Column names for table ESSettings (supposed to contain exactly a single record)
      */
@@ -0,0 +1,147 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * This class provides time arithmetic on plain seconds-since-epoch (int) values,
+ * for the frequent paths (sensor samples, reading and merging activity records, bucketing the history by day)
+ * that shouldn't allocate an ESTimestamp, Date or Calendar for every value.
+ * ESTimestamp remains the type of timepoints in the public interfaces.
+ *
+ * The local time of day comes from the offset of the default time zone, which is kept in a small table
+ * of quarter-hour slots (time zone transitions happen on quarter-hour boundaries),
+ * so the time zone rules are consulted once per slot, and not for every value.
+ * The table is dropped when the default time zone changes (it is checked at most once a minute).
+ *
+ * ========================================
+ * The ExtraSensory App
+ * Please see ExtraSensory App website for details and citation requirements:
+ * http://extrasensory.ucsd.edu/ExtraSensoryApp
+ * ========================================
+ */
+public final class ESEpochSeconds {
+
+    public static final int SECONDS_IN_MINUTE = 60;
+    public static final int SECONDS_IN_HOUR = 3600;
+    public static final int SECONDS_IN_24_HOURS = 86400;
+
+    private static final long MILLISECONDS_IN_SECOND = 1000L;
+    private static final int SECONDS_IN_SLOT = 900;
+    private static final int NUM_CACHED_SLOTS = 1024;
+    private static final long TIME_ZONE_CHECK_INTERVAL_MILLIS = 60000L;
+
+    // The offset table: the slot each entry was computed for, and the offset (seconds) in that slot:
+    private static final int[] _cachedSlots = new int[NUM_CACHED_SLOTS];
+    private static final int[] _cachedOffsets = new int[NUM_CACHED_SLOTS];
+    private static TimeZone _timeZone = null;
+    private static long _timeZoneCheckedAtMillis = 0;
+
+    private ESEpochSeconds() {}
+
+    /**
+     * @return The current time, in seconds since the epoch
+     */
+    public static int now() {
+        return (int)(System.currentTimeMillis() / MILLISECONDS_IN_SECOND);
+    }
+
+    /**
+     * Get the offset of the local time (of the default time zone) from UTC, at a given time.
+     * @param secondsSinceEpoch The time
+     * @return The local time minus UTC, in seconds (including daylight saving time, if in effect)
+     */
+    public static synchronized int localOffsetSeconds(int secondsSinceEpoch) {
+        checkTimeZone();
+        int slot = floorDiv(secondsSinceEpoch,SECONDS_IN_SLOT);
+        int entry = slot & (NUM_CACHED_SLOTS - 1);
+        // (A slot value of 0 is also the empty entry, so the epoch's own slot is always recomputed):
+        if (_cachedSlots[entry] != slot || slot == 0) {
+            _cachedSlots[entry] = slot;
+            _cachedOffsets[entry] = _timeZone.getOffset(MILLISECONDS_IN_SECOND * slot * SECONDS_IN_SLOT) / (int)MILLISECONDS_IN_SECOND;
+        }
+        return _cachedOffsets[entry];
+    }
+
+    private static void checkTimeZone() {
+        long nowMillis = System.currentTimeMillis();
+        if (_timeZone != null && Math.abs(nowMillis - _timeZoneCheckedAtMillis) < TIME_ZONE_CHECK_INTERVAL_MILLIS) {
+            return;
+        }
+        _timeZoneCheckedAtMillis = nowMillis;
+        TimeZone timeZone = TimeZone.getDefault();
+        if (_timeZone == null || !_timeZone.hasSameRules(timeZone)) {
+            _timeZone = timeZone;
+            Arrays.fill(_cachedSlots,0);
+        }
+    }
+
+    /**
+     * @param secondsSinceEpoch A time
+     * @return The time as seconds since the epoch of the local clock (for bucketing by local day or hour)
+     */
+    public static int toLocalSeconds(int secondsSinceEpoch) {
+        return secondsSinceEpoch + localOffsetSeconds(secondsSinceEpoch);
+    }
+
+    /**
+     * @param secondsSinceEpoch A time
+     * @return The number of the local day of the time (consecutive days have consecutive numbers)
+     */
+    public static int localDayNumber(int secondsSinceEpoch) {
+        return floorDiv(toLocalSeconds(secondsSinceEpoch),SECONDS_IN_24_HOURS);
+    }
+
+    /**
+     * @param secondsSinceEpoch A time
+     * @return The local hour of the day (0-23) of the time
+     */
+    public static int hourOfDay(int secondsSinceEpoch) {
+        return floorMod(toLocalSeconds(secondsSinceEpoch),SECONDS_IN_24_HOURS) / SECONDS_IN_HOUR;
+    }
+
+    /**
+     * @param secondsSinceEpoch A time
+     * @return The minute of the local hour (0-59) of the time
+     */
+    public static int minuteOfHour(int secondsSinceEpoch) {
+        return floorMod(toLocalSeconds(secondsSinceEpoch),SECONDS_IN_HOUR) / SECONDS_IN_MINUTE;
+    }
+
+    /**
+     * @param secondsSinceEpoch A time
+     * @return The time of the local midnight that starts the day of the given time
+     */
+    public static int startOfLocalDay(int secondsSinceEpoch) {
+        int offset = localOffsetSeconds(secondsSinceEpoch);
+        int localMidnight = floorDiv(secondsSinceEpoch + offset,SECONDS_IN_24_HOURS) * SECONDS_IN_24_HOURS;
+        int start = localMidnight - offset;
+        // If the offset changed (daylight saving) between midnight and the given time, midnight has the other offset:
+        int offsetAtStart = localOffsetSeconds(start);
+        if (offsetAtStart != offset) {
+            start = localMidnight - offsetAtStart;
+        }
+        return start;
+    }
+
+    /**
+     * Move a number of local days from a given time (so days with a daylight saving change are 23 or 25 hours long).
+     * @param startOfDaySeconds The start of a local day (see startOfLocalDay())
+     * @param days The number of days to move (negative to move back)
+     * @return The start of the local day that is the given number of days from the given day
+     */
+    public static int addLocalDays(int startOfDaySeconds,int days) {
+        // Aim at the middle of the desired day, which is safely inside it even if some days in between are shorter or longer:
+        return startOfLocalDay(startOfDaySeconds + days * SECONDS_IN_24_HOURS + SECONDS_IN_24_HOURS / 2);
+    }
+
+    private static int floorDiv(int value,int divisor) {
+        int quotient = value / divisor;
+        return (value % divisor < 0) ? quotient - 1 : quotient;
+    }
+
+    private static int floorMod(int value,int divisor) {
+        int remainder = value % divisor;
+        return (remainder < 0) ? remainder + divisor : remainder;
+    }
+}
@@ -0,0 +1,225 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * This class keeps the user-reported labels of each label type ranked by how frequently (and how recently) they were used,
+ * so the most frequent labels can be suggested without counting the history.
+ *
+ * Each use of a label (a minute activity with the label) counts with a weight that grows exponentially with
+ * the activity's time (forward decay): an activity from one half-life ago counts half as much as an activity from now.
+ * Since all the weights are relative to the same fixed landmark time, the ranking doesn't change as time passes,
+ * and a removed label is taken out exactly, by subtracting the weight of its activity.
+ * The decayed scores are kept in the label count table (updated with the counts, see ESDatabaseAccessor),
+ * and this class keeps them in memory, loaded once (it is as big as the label vocabulary, not the history),
+ * and updated with every label write.
+ *
+ * ========================================
+ * The ExtraSensory App
+ * Please see ExtraSensory App website for details and citation requirements:
+ * http://extrasensory.ucsd.edu/ExtraSensoryApp
+ * ========================================
+ */
+class ESFrequentLabelsTracker {
+
+    private static final String LOG_TAG = "[ESFrequentLabelsTracker]";
+    static final int HALF_LIFE_SECONDS = 30 * ESEpochSeconds.SECONDS_IN_24_HOURS;
+    // The landmark time of the weights (1/1/2015). A double can hold the weights of about 80 years (1000 half-lives) after it:
+    private static final int LANDMARK_SECONDS = 1420070400;
+
+    private static final String SQL_SELECT_LABEL_SCORES =
+            "SELECT " + ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_LABEL_ID +
+                    ", " + ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_COUNT +
+                    ", " + ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_DECAYED_SCORE +
+                    " FROM " + ESDatabaseContract.ESLabelCountEntry.TABLE_NAME +
+                    " WHERE " + ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_COUNT + " > 0";
+
+    private static class ESLabelScore {
+        private final int _labelId;
+        private final String _label;
+        private final ESDatabaseAccessor.ESLabelType _labelType;
+        private int _count;
+        private double _score;
+
+        private ESLabelScore(int labelId,String label,ESDatabaseAccessor.ESLabelType labelType) {
+            _labelId = labelId;
+            _label = label;
+            _labelType = labelType;
+        }
+
+        private boolean ranksAbove(ESLabelScore other) {
+            return (_score != other._score) ? _score > other._score : _count > other._count;
+        }
+    }
+
+    private final ESLabelDictionary _labelDictionary;
+    // Null until loaded from the DB:
+    private HashMap<Integer,ESLabelScore> _scoresByLabelId = null;
+    // For each label type, the labels that are in use, in descending rank:
+    private HashMap<ESDatabaseAccessor.ESLabelType,ArrayList<ESLabelScore>> _rankings = null;
+
+    ESFrequentLabelsTracker(ESLabelDictionary labelDictionary) {
+        _labelDictionary = labelDictionary;
+    }
+
+    /**
+     * @param timestampSeconds The time of an activity
+     * @return The weight that a label of the activity adds to the label's decayed score
+     */
+    static double weightOf(int timestampSeconds) {
+        return Math.pow(2.0,(double)(timestampSeconds - LANDMARK_SECONDS) / HALF_LIFE_SECONDS);
+    }
+
+    /**
+     * Calculate the decayed scores of all the labels from the activity-label table
+     * (for when the decayed score column is added to an existing database).
+     * @param db The database, where the label count table already has the decayed score column
+     */
+    static void populate(SQLiteDatabase db) {
+        HashMap<Integer,Double> scores = new HashMap<>();
+        Cursor cursor = db.query(ESDatabaseContract.ESActivityLabelEntry.TABLE_NAME,
+                new String[]{ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_LABEL_ID,ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_TIMESTAMP},
+                null,null,null,null,null);
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            int labelId = cursor.getInt(0);
+            Double score = scores.get(labelId);
+            scores.put(labelId,(score == null ? 0.0 : score) + weightOf(cursor.getInt(1)));
+        }
+        cursor.close();
+
+        for (int labelId : scores.keySet()) {
+            db.execSQL("UPDATE " + ESDatabaseContract.ESLabelCountEntry.TABLE_NAME +
+                    " SET " + ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_DECAYED_SCORE + " = ?" +
+                    " WHERE " + ESDatabaseContract.ESLabelCountEntry.COLUMN_NAME_LABEL_ID + " = ?",
+                    new Object[]{scores.get(labelId),labelId});
+        }
+        Log.i(LOG_TAG,"Calculated the decayed scores of " + scores.size() + " labels");
+    }
+
+    /**
+     * Load the scores from the DB, if they are not loaded yet.
+     * Should be called while holding the database write lock (so no label changes are in progress).
+     * @param db The database
+     */
+    synchronized void loadIfNeeded(SQLiteDatabase db) {
+        if (_scoresByLabelId != null) {
+            return;
+        }
+        _scoresByLabelId = new HashMap<>();
+        _rankings = new HashMap<>();
+        Cursor cursor = db.rawQuery(SQL_SELECT_LABEL_SCORES,null);
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            ESLabelScore labelScore = getOrAddLabelScore(cursor.getInt(0));
+            if (labelScore == null) {
+                continue;
+            }
+            labelScore._count = cursor.getInt(1);
+            labelScore._score = cursor.getDouble(2);
+            rank(labelScore);
+        }
+        cursor.close();
+        Log.v(LOG_TAG,"Loaded the scores of " + _scoresByLabelId.size() + " labels");
+    }
+
+    private ESLabelScore getOrAddLabelScore(int labelId) {
+        ESLabelScore labelScore = _scoresByLabelId.get(labelId);
+        if (labelScore != null) {
+            return labelScore;
+        }
+        String label = _labelDictionary.getLabel(labelId);
+        ESDatabaseAccessor.ESLabelType labelType = _labelDictionary.getLabelType(labelId);
+        if (label == null || labelType == null) {
+            Log.e(LOG_TAG,"Got label id that is not in the dictionary: " + labelId);
+            return null;
+        }
+        labelScore = new ESLabelScore(labelId,label,labelType);
+        _scoresByLabelId.put(labelId,labelScore);
+        return labelScore;
+    }
+
+    private ArrayList<ESLabelScore> getRanking(ESDatabaseAccessor.ESLabelType labelType) {
+        ArrayList<ESLabelScore> ranking = _rankings.get(labelType);
+        if (ranking == null) {
+            ranking = new ArrayList<>();
+            _rankings.put(labelType,ranking);
+        }
+        return ranking;
+    }
+
+    /**
+     * Put a label in its place in the ranking of its type (or take it out, if it is no longer used).
+     * The ranking is as long as the vocabulary that is in use, so this just walks to the place.
+     */
+    private void rank(ESLabelScore labelScore) {
+        ArrayList<ESLabelScore> ranking = getRanking(labelScore._labelType);
+        ranking.remove(labelScore);
+        if (labelScore._count <= 0) {
+            return;
+        }
+        int position = 0;
+        while (position < ranking.size() && ranking.get(position).ranksAbove(labelScore)) {
+            position ++;
+        }
+        ranking.add(position,labelScore);
+    }
+
+    /**
+     * Update the score of a label after a use of it was added or removed.
+     * Should be called while holding the database write lock, together with updating the label count table.
+     * @param labelId The label
+     * @param delta 1 if the label was added to an activity, -1 if it was removed from one
+     * @param timestampSeconds The time of the activity
+     */
+    synchronized void labelCountAdjusted(int labelId,int delta,int timestampSeconds) {
+        if (_scoresByLabelId == null) {
+            // Not loaded yet. When loaded, the scores will already include this change.
+            return;
+        }
+        ESLabelScore labelScore = getOrAddLabelScore(labelId);
+        if (labelScore == null) {
+            return;
+        }
+        labelScore._count += delta;
+        labelScore._score = (labelScore._count > 0) ? labelScore._score + delta * weightOf(timestampSeconds) : 0;
+        rank(labelScore);
+    }
+
+    /**
+     * Drop the in-memory scores, to be reloaded from the DB when next needed
+     * (for when a transaction that adjusted them was rolled back).
+     */
+    synchronized void invalidate() {
+        _scoresByLabelId = null;
+        _rankings = null;
+    }
+
+    /**
+     * @return Are the scores loaded? (if not, call loadIfNeeded() before getTopLabels())
+     */
+    synchronized boolean isLoaded() {
+        return _scoresByLabelId != null;
+    }
+
+    /**
+     * Get the most frequently used labels of a type.
+     * @param labelType The label type
+     * @param maxLabels The maximal number of labels to get
+     * @return The used labels, in descending order of decayed frequency (at most maxLabels of them), or none if not loaded
+     */
+    synchronized String[] getTopLabels(ESDatabaseAccessor.ESLabelType labelType,int maxLabels) {
+        if (_scoresByLabelId == null) {
+            return new String[0];
+        }
+        ArrayList<ESLabelScore> ranking = getRanking(labelType);
+        String[] topLabels = new String[Math.min(maxLabels,ranking.size())];
+        for (int i = 0; i < topLabels.length; i ++) {
+            topLabels[i] = ranking.get(i)._label;
+        }
+        return topLabels;
+    }
+}
@@ -0,0 +1,325 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps the merged continuous activities of the recently viewed days (time ranges),
+ * so the history doesn't have to re-read and re-merge a whole day every time a record changes.
+ * When an activity is added or changed, the days that contain it are updated incrementally:
+ * a new minute at the end of a day is appended to the last continuous activity (or starts a new one),
+ * and an edited (or inserted) minute causes re-merging of just the continuous activities around it.
+ * This works because the decision whether to merge two minutes depends only on those two consecutive minutes.
+ *
+ * The continuous activities are kept without the gap dummies, which are added when a day is requested.
+ * Each day keeps a level of continuous activities for every history time unit it was requested with (like zoom levels),
+ * and all the levels are updated incrementally, so switching back to a time unit doesn't re-merge the day.
+ *
+ * ========================================
+ * The ExtraSensory App
+ * Please see ExtraSensory App website for details and citation requirements:
+ * http://extrasensory.ucsd.edu/ExtraSensoryApp
+ * ========================================
+ */
+class ESHistoryDayCache {
+
+    private static final String LOG_TAG = "[ESHistoryDayCache]";
+    private static final int MAX_DAYS = 7;
+
+    /**
+     * The continuous activities of a day, merged with a single history time unit (a zoom level of the day).
+     */
+    private static class ESHistoryLevel {
+        private final int _timeUnitMinutes;
+        private final ArrayList<ESContinuousActivity> _continuousActivities;
+
+        ESHistoryLevel(int timeUnitMinutes,ESActivity[] minuteActivities) {
+            _timeUnitMinutes = timeUnitMinutes;
+            _continuousActivities = new ArrayList<>(Arrays.asList(
+                    ESContinuousActivity.mergeContinuousActivities(minuteActivities,false,timeUnitMinutes)));
+        }
+
+        /**
+         * Add a minute activity after the latest minute of the day.
+         * @param latestActivity The latest minute activity before the new one
+         * @param activity The new minute activity
+         */
+        void appendActivity(ESActivity latestActivity,ESActivity activity) {
+            if (ESContinuousActivity.shouldMergeTwoAtomicActivities(latestActivity,activity,60 * _timeUnitMinutes)) {
+                int lastIndex = _continuousActivities.size() - 1;
+                ESActivity[] lastMinutes = _continuousActivities.get(lastIndex).getMinuteActivities();
+                ESActivity[] extendedMinutes = Arrays.copyOf(lastMinutes,lastMinutes.length + 1);
+                extendedMinutes[lastMinutes.length] = activity;
+                _continuousActivities.set(lastIndex,new ESContinuousActivity(extendedMinutes));
+            }
+            else {
+                _continuousActivities.add(new ESContinuousActivity(new ESActivity[]{activity}));
+            }
+        }
+
+        /**
+         * Re-merge the continuous activities around a minute that was changed or inserted:
+         * the continuous activities that contain the minute and its two neighbours.
+         * @param minuteActivities The minute activities of the day (after the change)
+         * @param index The index of the changed minute (in the minute activities, after the change)
+         * @param inserted Was the minute inserted (rather than replaced)?
+         */
+        void remergeAround(ArrayList<ESActivity> minuteActivities,int index,boolean inserted) {
+            // The neighbourhood, in terms of the minutes before the change:
+            int numOldMinutes = minuteActivities.size() - (inserted ? 1 : 0);
+            if (numOldMinutes <= 0) {
+                _continuousActivities.clear();
+                _continuousActivities.add(new ESContinuousActivity(new ESActivity[]{minuteActivities.get(0)}));
+                return;
+            }
+            int firstNeighbour = Math.max(index - 1,0);
+            int lastNeighbour = Math.min(inserted ? index : index + 1,numOldMinutes - 1);
+
+            int firstContinuous = -1;
+            int lastContinuous = -1;
+            int firstMinute = 0;
+            int endMinute = 0;
+            int start = 0;
+            for (int i = 0; i < _continuousActivities.size(); i ++) {
+                int end = start + _continuousActivities.get(i).getDurationInMinutes();
+                if (firstContinuous < 0 && firstNeighbour < end) {
+                    firstContinuous = i;
+                    firstMinute = start;
+                }
+                if (lastNeighbour < end) {
+                    lastContinuous = i;
+                    endMinute = end;
+                    break;
+                }
+                start = end;
+            }
+            if (firstContinuous < 0 || lastContinuous < 0) {
+                Log.e(LOG_TAG,"Continuous activities don't cover the minute activities. Re-merging the whole range.");
+                firstContinuous = 0;
+                lastContinuous = _continuousActivities.size() - 1;
+                firstMinute = 0;
+                endMinute = numOldMinutes;
+            }
+            if (inserted) {
+                endMinute ++;
+            }
+
+            List<ESActivity> neighbourhood = minuteActivities.subList(firstMinute,endMinute);
+            ESContinuousActivity[] remerged = ESContinuousActivity.mergeContinuousActivities(
+                    neighbourhood.toArray(new ESActivity[neighbourhood.size()]),false,_timeUnitMinutes);
+            List<ESContinuousActivity> replaced = _continuousActivities.subList(firstContinuous,lastContinuous + 1);
+            replaced.clear();
+            replaced.addAll(Arrays.asList(remerged));
+        }
+
+        ESContinuousActivity[] getContinuousActivities(boolean addGapDummies) {
+            if (!addGapDummies) {
+                return _continuousActivities.toArray(new ESContinuousActivity[_continuousActivities.size()]);
+            }
+
+            ArrayList<ESContinuousActivity> withGaps = new ArrayList<>(2 * _continuousActivities.size());
+            ESContinuousActivity previous = null;
+            for (ESContinuousActivity continuousActivity : _continuousActivities) {
+                if (previous != null) {
+                    int timeGap = continuousActivity.getStartTimestamp().differenceInSeconds(previous.getEndTimestamp());
+                    if (ESContinuousActivity.needGap(timeGap,60 * _timeUnitMinutes)) {
+                        withGaps.add(new ESContinuousActivity(timeGap));
+                    }
+                }
+                withGaps.add(continuousActivity);
+                previous = continuousActivity;
+            }
+            return withGaps.toArray(new ESContinuousActivity[withGaps.size()]);
+        }
+    }
+
+    /**
+     * The minute activities of a single time range, and their merged continuous activities at each zoom level
+     * (history time unit) that was requested for the range.
+     */
+    private static class ESHistoryDay {
+        private final int _fromSeconds;
+        private final int _toSeconds;
+        private final ArrayList<ESActivity> _minuteActivities;
+        private final HashMap<Integer,ESHistoryLevel> _levels = new HashMap<>(8);
+
+        ESHistoryDay(int fromSeconds,int toSeconds,ESActivity[] minuteActivities) {
+            _fromSeconds = fromSeconds;
+            _toSeconds = toSeconds;
+            _minuteActivities = new ArrayList<>(Arrays.asList(minuteActivities));
+        }
+
+        boolean contains(int timestampSeconds) {
+            return timestampSeconds >= _fromSeconds && timestampSeconds <= _toSeconds;
+        }
+
+        /**
+         * Get the continuous activities of a zoom level, merging the minutes with its time unit if this is the first time it is needed.
+         */
+        ESHistoryLevel getLevel(int timeUnitMinutes) {
+            ESHistoryLevel level = _levels.get(timeUnitMinutes);
+            if (level == null) {
+                level = new ESHistoryLevel(timeUnitMinutes,_minuteActivities.toArray(new ESActivity[_minuteActivities.size()]));
+                _levels.put(timeUnitMinutes,level);
+            }
+            return level;
+        }
+
+        /**
+         * Find the position of a minute activity by its timestamp.
+         * @return The index of the minute, or (-(insertion point) - 1) if there is no such minute
+         */
+        int findMinute(int timestampSeconds) {
+            int low = 0;
+            int high = _minuteActivities.size() - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int middleSeconds = _minuteActivities.get(middle).get_timestampSeconds();
+                if (middleSeconds < timestampSeconds) {
+                    low = middle + 1;
+                }
+                else if (middleSeconds > timestampSeconds) {
+                    high = middle - 1;
+                }
+                else {
+                    return middle;
+                }
+            }
+            return -(low + 1);
+        }
+
+        void putActivity(ESActivity activity) {
+            int index = findMinute(activity.get_timestampSeconds());
+            if (index >= 0) {
+                _minuteActivities.set(index,activity);
+                for (ESHistoryLevel level : _levels.values()) {
+                    level.remergeAround(_minuteActivities,index,false);
+                }
+                return;
+            }
+
+            index = -(index + 1);
+            if (index == _minuteActivities.size() && !_minuteActivities.isEmpty()) {
+                ESActivity latestActivity = _minuteActivities.get(_minuteActivities.size() - 1);
+                _minuteActivities.add(activity);
+                for (ESHistoryLevel level : _levels.values()) {
+                    level.appendActivity(latestActivity,activity);
+                }
+                return;
+            }
+            _minuteActivities.add(index,activity);
+            for (ESHistoryLevel level : _levels.values()) {
+                level.remergeAround(_minuteActivities,index,true);
+            }
+        }
+    }
+
+    private final LinkedHashMap<Integer,ESHistoryDay> _days = new LinkedHashMap<Integer,ESHistoryDay>(MAX_DAYS + 1,0.75f,true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer,ESHistoryDay> eldest) {
+            return size() > MAX_DAYS;
+        }
+    };
+    private long _numWrites = 0;
+
+    /**
+     * Get the continuous activities of a time range, if they are in the cache.
+     * The returned continuous activities are shared with the cache, and should not be changed.
+     * @param fromTimestamp The earliest time in the range
+     * @param toTimestamp The latest time in the range
+     * @param addGapDummies Should we add dummy-activities to represent the gaps between continuous activities that are well separated in time?
+     * @param mergeMissingLevel If the range is cached but wasn't merged yet with the current history time unit, should we merge it now?
+     *                          If not, such a range is treated as missing (so the caller doesn't merge a whole day on the UI thread).
+     * @return The continuous activities of the range, or null if the range is not in the cache
+     */
+    ESContinuousActivity[] getContinuousActivities(ESTimestamp fromTimestamp,ESTimestamp toTimestamp,boolean addGapDummies,
+                                                   boolean mergeMissingLevel) {
+        // (Read the settings before taking this object's lock, since reading them may need the DB):
+        int timeUnitMinutes = ESSettings.historyTimeUnitInMinutes();
+        synchronized (this) {
+            ESHistoryDay day = _days.get(fromTimestamp.get_secondsSinceEpoch());
+            if (day == null || day._toSeconds != toTimestamp.get_secondsSinceEpoch()) {
+                return null;
+            }
+            ESHistoryLevel level = mergeMissingLevel ? day.getLevel(timeUnitMinutes) : day._levels.get(timeUnitMinutes);
+            if (level == null) {
+                return null;
+            }
+            return level.getContinuousActivities(addGapDummies);
+        }
+    }
+
+    /**
+     * @return The number of writes so far, to be given to putMinuteActivities() after reading a range from the DB.
+     */
+    synchronized long getNumWrites() {
+        return _numWrites;
+    }
+
+    /**
+     * Merge and keep the minute activities of a time range,
+     * unless there were writes since the range was read from the DB.
+     * @param fromTimestamp The earliest time in the range
+     * @param toTimestamp The latest time in the range
+     * @param minuteActivities The minute activities of the range, as read from the DB, in ascending order of time
+     * @param numWritesBeforeRead The value of getNumWrites() from before the range was read
+     * @param addGapDummies Should we add dummy-activities to the returned continuous activities?
+     * @return The continuous activities of the range
+     */
+    ESContinuousActivity[] putMinuteActivities(ESTimestamp fromTimestamp,ESTimestamp toTimestamp,
+                                               ESActivity[] minuteActivities,long numWritesBeforeRead,
+                                               boolean addGapDummies) {
+        // Merge before taking this object's lock:
+        ESHistoryDay day = new ESHistoryDay(fromTimestamp.get_secondsSinceEpoch(),toTimestamp.get_secondsSinceEpoch(),minuteActivities);
+        ESContinuousActivity[] continuousActivities =
+                day.getLevel(ESSettings.historyTimeUnitInMinutes()).getContinuousActivities(addGapDummies);
+        synchronized (this) {
+            if (_numWrites == numWritesBeforeRead) {
+                _days.put(day._fromSeconds,day);
+            }
+        }
+        return continuousActivities;
+    }
+
+    /**
+     * Update the days that contain an activity that was added or changed in the DB.
+     * Should be called while holding the database write lock.
+     * @param activity The activity, as it is now in the DB. The cache keeps it, so no one else should change it.
+     */
+    synchronized void activityWritten(ESActivity activity) {
+        _numWrites ++;
+        int timestampSeconds = activity.get_timestampSeconds();
+        for (ESHistoryDay day : _days.values()) {
+            if (day.contains(timestampSeconds)) {
+                day.putActivity(activity);
+            }
+        }
+    }
+
+    /**
+     * Forget the days that contain a timestamp (e.g. when its activity was deleted).
+     * Should be called while holding the database write lock.
+     * @param timestamp The timestamp, or null to forget all the days
+     */
+    synchronized void invalidate(ESTimestamp timestamp) {
+        _numWrites ++;
+        if (timestamp == null) {
+            _days.clear();
+            return;
+        }
+        int timestampSeconds = timestamp.get_secondsSinceEpoch();
+        Iterator<ESHistoryDay> iterator = _days.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().contains(timestampSeconds)) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * This class holds the dictionary of label names and their ids (the label dictionary table in the DB).
+ * Each label name of each label type (main, secondary, mood) has an id,
+ * and the table of activity labels refers to labels by these ids.
+ * The label names of the server predictions also get ids (of a separate label type), which the encoded predictions refer to.
+ * The dictionary is seeded with the label vocabulary, and labels that are not in the vocabulary
+ * get an id the first time they are used.
+ * Such a label is added inside the transaction of the write that uses it, so if that transaction is rolled back,
+ * the label is forgotten too (and its id, which the table may give again, isn't left pointing to it).
+ *
+ * ========================================
+ * The ExtraSensory App
+ * Please see ExtraSensory App website for details and citation requirements:
+ * http://extrasensory.ucsd.edu/ExtraSensoryApp
+ * ========================================
+ */
+class ESLabelDictionary {
+
+    private static final String LOG_TAG = "[ESLabelDictionary]";
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final HashMap<String,Integer> _keyToId = new HashMap<>(INITIAL_CAPACITY);
+    private String[] _idToLabel = new String[INITIAL_CAPACITY];
+    private ESDatabaseAccessor.ESLabelType[] _idToLabelType = new ESDatabaseAccessor.ESLabelType[INITIAL_CAPACITY];
+    // The ids of the labels that were added in the current transaction:
+    private final ArrayList<Integer> _idsAddedInTransaction = new ArrayList<>();
+
+    /**
+     * Load the dictionary from the label dictionary table.
+     * @param db The database, where the label dictionary table already exists
+     */
+    ESLabelDictionary(SQLiteDatabase db) {
+        String[] projection = {
+                ESDatabaseContract.ESLabelDictionaryEntry.COLUMN_NAME_LABEL_ID,
+                ESDatabaseContract.ESLabelDictionaryEntry.COLUMN_NAME_LABEL_TYPE,
+                ESDatabaseContract.ESLabelDictionaryEntry.COLUMN_NAME_LABEL
+        };
+        Cursor cursor = db.query(ESDatabaseContract.ESLabelDictionaryEntry.TABLE_NAME,projection,
+                null,null,null,null,null);
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            remember(cursor.getInt(0),ESDatabaseAccessor.ESLabelType.labelTypeFromValue(cursor.getInt(1)),cursor.getString(2));
+        }
+        cursor.close();
+        Log.v(LOG_TAG,"Loaded " + _keyToId.size() + " labels");
+    }
+
+    /**
+     * Add the labels of the vocabulary (main activities, secondary activities and moods) to the label dictionary table.
+     * @param db The database, where the label dictionary table already exists
+     */
+    static void seedVocabulary(SQLiteDatabase db) {
+        seedLabels(db,ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MAIN,ESLabelStrings.getMainActivities());
+        seedLabels(db,ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_SECONDARY,ESLabelStrings.getSecondaryActivities());
+        seedLabels(db,ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MOOD,ESLabelStrings.getMoods());
+    }
+
+    private static void seedLabels(SQLiteDatabase db,ESDatabaseAccessor.ESLabelType labelType,String[] labels) {
+        for (String label : labels) {
+            insertLabel(db,labelType,label);
+        }
+    }
+
+    private static long insertLabel(SQLiteDatabase db,ESDatabaseAccessor.ESLabelType labelType,String label) {
+        ContentValues values = new ContentValues();
+        values.put(ESDatabaseContract.ESLabelDictionaryEntry.COLUMN_NAME_LABEL_TYPE,labelType.get_value());
+        values.put(ESDatabaseContract.ESLabelDictionaryEntry.COLUMN_NAME_LABEL,label);
+        return db.insertWithOnConflict(ESDatabaseContract.ESLabelDictionaryEntry.TABLE_NAME,null,values,SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    private static String key(ESDatabaseAccessor.ESLabelType labelType,String label) {
+        return labelType.get_value() + ":" + label;
+    }
+
+    private void remember(int id,ESDatabaseAccessor.ESLabelType labelType,String label) {
+        if (id >= _idToLabel.length) {
+            int capacity = Math.max(2 * _idToLabel.length,id + 1);
+            _idToLabel = Arrays.copyOf(_idToLabel,capacity);
+            _idToLabelType = Arrays.copyOf(_idToLabelType,capacity);
+        }
+        _idToLabel[id] = label;
+        _idToLabelType[id] = labelType;
+        _keyToId.put(key(labelType,label),id);
+    }
+
+    /**
+     * Get the id of a label.
+     * @param labelType The type of the label
+     * @param label The label name
+     * @return The label's id, or -1 if the label is not in the dictionary
+     */
+    synchronized int getLabelId(ESDatabaseAccessor.ESLabelType labelType,String label) {
+        Integer id = _keyToId.get(key(labelType,label));
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Get the id of a label, adding the label to the dictionary (and its table) if it is not there yet.
+     * Should be called while holding the database write lock, inside a transaction that is followed by transactionEnded().
+     * @param db The database
+     * @param labelType The type of the label
+     * @param label The label name
+     * @return The label's id
+     */
+    synchronized int getOrAddLabelId(SQLiteDatabase db,ESDatabaseAccessor.ESLabelType labelType,String label) {
+        Integer id = _keyToId.get(key(labelType,label));
+        if (id != null) {
+            return id;
+        }
+        long newId = insertLabel(db,labelType,label);
+        if (newId < 0) {
+            Log.e(LOG_TAG,"Failed to add label " + label + " to the dictionary");
+            return -1;
+        }
+        Log.i(LOG_TAG,"Added label " + label + " (type " + labelType + ") to the dictionary with id " + newId);
+        remember((int)newId,labelType,label);
+        _idsAddedInTransaction.add((int)newId);
+        return (int)newId;
+    }
+
+    /**
+     * Mark the end of a transaction that may have added labels.
+     * If it was rolled back, the labels it added are forgotten (their rows were rolled back too).
+     * Should be called while still holding the database write lock.
+     * @param committed Was the transaction committed?
+     */
+    synchronized void transactionEnded(boolean committed) {
+        if (!committed) {
+            for (int id : _idsAddedInTransaction) {
+                Log.i(LOG_TAG,"Forgetting label " + _idToLabel[id] + " (id " + id + "), since its transaction was rolled back");
+                _keyToId.remove(key(_idToLabelType[id],_idToLabel[id]));
+                _idToLabel[id] = null;
+                _idToLabelType[id] = null;
+            }
+        }
+        _idsAddedInTransaction.clear();
+    }
+
+    /**
+     * @param id A label id
+     * @return The label name of this id, or null if there is no such id
+     */
+    synchronized String getLabel(int id) {
+        return (id >= 0 && id < _idToLabel.length) ? _idToLabel[id] : null;
+    }
+
+    /**
+     * @param id A label id
+     * @return The label type of this id, or null if there is no such id
+     */
+    synchronized ESDatabaseAccessor.ESLabelType getLabelType(int id) {
+        return (id >= 0 && id < _idToLabelType.length) ? _idToLabelType[id] : null;
+    }
+}
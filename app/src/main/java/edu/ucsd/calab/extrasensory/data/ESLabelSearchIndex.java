@@ -0,0 +1,307 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class is a search index over the labels of a vocabulary (and the subjects they are organized by),
+ * built once per label type, for searching labels as the user types.
+ *
+ * A query matches a label if each of its words is a prefix of a word of the label (or of the label's subjects).
+ * If no label matches so (e.g. a misspelled word), the labels that have enough of the query's trigrams
+ * (three-letter sequences) match instead.
+ * The matches are ranked by how well they match the text, blended with how frequently the user used the label
+ * and with the server's predicted probability for it.
+ *
+ * ========================================
+ * The ExtraSensory App
+ * Please see ExtraSensory App website for details and citation requirements:
+ * http://extrasensory.ucsd.edu/ExtraSensoryApp
+ * ========================================
+ */
+public class ESLabelSearchIndex {
+
+    private static final float LABEL_WORD_PREFIX_SCORE = 2;
+    private static final float SUBJECT_WORD_PREFIX_SCORE = 1;
+    private static final float LABEL_PREFIX_BONUS = 1;
+    private static final float TRIGRAM_SCORE = 1.5f;
+    private static final float MIN_TRIGRAM_FRACTION = 0.5f;
+    private static final float FREQUENCY_WEIGHT = 0.5f;
+    private static final float PREDICTION_WEIGHT = 1;
+    private static final int TRIGRAM_LENGTH = 3;
+
+    private static final HashMap<ESDatabaseAccessor.ESLabelType,ESLabelSearchIndex> _indices = new HashMap<>();
+
+    private final String[] _labels;
+    private final String[] _normalizedLabels;
+    // All the words of the labels and subjects, sorted (for prefix search), with the label each word belongs to:
+    private final String[] _words;
+    private final int[] _wordLabelIndices;
+    private final boolean[] _wordIsFromSubject;
+    // For each trigram, the (ascending) indices of the labels that have it:
+    private final HashMap<String,int[]> _trigramPostings;
+
+    /**
+     * Get the search index of a label type's vocabulary (built the first time it is needed).
+     * @param labelType either main, secondary or mood
+     * @return The index
+     */
+    public static synchronized ESLabelSearchIndex getIndex(ESDatabaseAccessor.ESLabelType labelType) {
+        ESLabelSearchIndex index = _indices.get(labelType);
+        if (index == null) {
+            Map<String,String[]> labelsPerSubject = (labelType == ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_SECONDARY) ?
+                    ESLabelStrings.getSecondaryActivitiesPerSubject() : null;
+            index = new ESLabelSearchIndex(ESLabelStrings.getVocabulary(labelType),labelsPerSubject);
+            _indices.put(labelType,index);
+        }
+        return index;
+    }
+
+    /**
+     * Build an index.
+     * @param labels The labels (without repetitions)
+     * @param labelsPerSubject The labels of each subject (may be null)
+     */
+    ESLabelSearchIndex(String[] labels,Map<String,String[]> labelsPerSubject) {
+        _labels = labels;
+        _normalizedLabels = new String[labels.length];
+        HashMap<String,Integer> labelIndices = new HashMap<>(2 * labels.length);
+        for (int i = 0; i < labels.length; i ++) {
+            _normalizedLabels[i] = normalize(labels[i]);
+            labelIndices.put(labels[i],i);
+        }
+
+        // Collect the words (and the text for trigrams) of each label, including the words of its subjects:
+        final ArrayList<String> words = new ArrayList<>();
+        final ArrayList<Integer> wordLabels = new ArrayList<>();
+        final ArrayList<Boolean> wordFromSubject = new ArrayList<>();
+        StringBuilder[] texts = new StringBuilder[labels.length];
+        for (int i = 0; i < labels.length; i ++) {
+            texts[i] = new StringBuilder(_normalizedLabels[i]);
+            addWords(_normalizedLabels[i],i,false,words,wordLabels,wordFromSubject);
+        }
+        if (labelsPerSubject != null) {
+            for (Map.Entry<String,String[]> subjectLabels : labelsPerSubject.entrySet()) {
+                String subject = normalize(subjectLabels.getKey());
+                for (String label : subjectLabels.getValue()) {
+                    Integer i = labelIndices.get(label);
+                    if (i == null) {
+                        continue;
+                    }
+                    texts[i].append(' ').append(subject);
+                    addWords(subject,i,true,words,wordLabels,wordFromSubject);
+                }
+            }
+        }
+
+        Integer[] order = new Integer[words.size()];
+        for (int w = 0; w < order.length; w ++) {
+            order[w] = w;
+        }
+        Arrays.sort(order,new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return words.get(lhs).compareTo(words.get(rhs));
+            }
+        });
+        _words = new String[order.length];
+        _wordLabelIndices = new int[order.length];
+        _wordIsFromSubject = new boolean[order.length];
+        for (int w = 0; w < order.length; w ++) {
+            _words[w] = words.get(order[w]);
+            _wordLabelIndices[w] = wordLabels.get(order[w]);
+            _wordIsFromSubject[w] = wordFromSubject.get(order[w]);
+        }
+
+        // The trigram postings (labels are visited in ascending order, so each posting list comes out sorted):
+        HashMap<String,ArrayList<Integer>> postings = new HashMap<>();
+        for (int i = 0; i < labels.length; i ++) {
+            for (String trigram : trigramsOf(texts[i].toString())) {
+                ArrayList<Integer> posting = postings.get(trigram);
+                if (posting == null) {
+                    posting = new ArrayList<>();
+                    postings.put(trigram,posting);
+                }
+                if (posting.isEmpty() || posting.get(posting.size() - 1) != i) {
+                    posting.add(i);
+                }
+            }
+        }
+        _trigramPostings = new HashMap<>(2 * postings.size());
+        for (Map.Entry<String,ArrayList<Integer>> posting : postings.entrySet()) {
+            int[] labelIds = new int[posting.getValue().size()];
+            for (int j = 0; j < labelIds.length; j ++) {
+                labelIds[j] = posting.getValue().get(j);
+            }
+            _trigramPostings.put(posting.getKey(),labelIds);
+        }
+    }
+
+    private static void addWords(String normalizedText,int labelIndex,boolean fromSubject,
+                                 ArrayList<String> words,ArrayList<Integer> wordLabels,ArrayList<Boolean> wordFromSubject) {
+        for (String word : splitWords(normalizedText)) {
+            words.add(word);
+            wordLabels.add(labelIndex);
+            wordFromSubject.add(fromSubject);
+        }
+    }
+
+    /**
+     * @return The text in lower case, with anything that isn't a letter or a digit turned to a single space
+     */
+    private static String normalize(String text) {
+        StringBuilder normalized = new StringBuilder(text.length());
+        boolean lastWasSpace = true;
+        for (int i = 0; i < text.length(); i ++) {
+            char c = text.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                normalized.append(Character.toLowerCase(c));
+                lastWasSpace = false;
+            }
+            else if (!lastWasSpace) {
+                normalized.append(' ');
+                lastWasSpace = true;
+            }
+        }
+        int length = normalized.length();
+        return (length > 0 && normalized.charAt(length - 1) == ' ') ? normalized.substring(0,length - 1) : normalized.toString();
+    }
+
+    private static String[] splitWords(String normalizedText) {
+        return normalizedText.isEmpty() ? new String[0] : normalizedText.split(" ");
+    }
+
+    private static ArrayList<String> trigramsOf(String normalizedText) {
+        ArrayList<String> trigrams = new ArrayList<>();
+        for (String word : splitWords(normalizedText)) {
+            // (Pad the word, so its beginning is a trigram of its own, and short words have trigrams too):
+            String padded = " " + word + " ";
+            for (int i = 0; i + TRIGRAM_LENGTH <= padded.length(); i ++) {
+                trigrams.add(padded.substring(i,i + TRIGRAM_LENGTH));
+            }
+        }
+        return trigrams;
+    }
+
+    /**
+     * Search the labels.
+     * @param query The text the user typed
+     * @param maxResults The maximal number of labels to return
+     * @param frequentLabels The labels the user frequently uses, most frequent first (may be null)
+     * @param predictionProbs The server's predicted probability of each label (may be null)
+     * @return The matching labels, best match first
+     */
+    public List<String> search(String query,int maxResults,List<String> frequentLabels,Map<String,Double> predictionProbs) {
+        String normalizedQuery = normalize(query);
+        if (normalizedQuery.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+        final float[] scores = new float[_labels.length];
+
+        // Each query word adds the best way it matches the start of a word of each label (and must match somehow):
+        float[] wordScores = new float[_labels.length];
+        boolean firstWord = true;
+        for (String queryWord : splitWords(normalizedQuery)) {
+            Arrays.fill(wordScores,0);
+            int w = lowerBound(queryWord);
+            for (; w < _words.length && _words[w].startsWith(queryWord); w ++) {
+                float score = _wordIsFromSubject[w] ? SUBJECT_WORD_PREFIX_SCORE : LABEL_WORD_PREFIX_SCORE;
+                int i = _wordLabelIndices[w];
+                wordScores[i] = Math.max(wordScores[i],score);
+            }
+            for (int i = 0; i < scores.length; i ++) {
+                scores[i] = (wordScores[i] > 0 && (firstWord || scores[i] > 0)) ? scores[i] + wordScores[i] : 0;
+            }
+            firstWord = false;
+        }
+        boolean anyPrefixMatch = false;
+        for (int i = 0; i < scores.length; i ++) {
+            if (scores[i] > 0) {
+                anyPrefixMatch = true;
+                if (_normalizedLabels[i].startsWith(normalizedQuery)) {
+                    scores[i] += LABEL_PREFIX_BONUS;
+                }
+            }
+        }
+
+        if (!anyPrefixMatch) {
+            // Then fall back to the labels that share enough of the query's trigrams:
+            ArrayList<String> queryTrigrams = trigramsOf(normalizedQuery);
+            int[] trigramHits = new int[_labels.length];
+            for (String trigram : queryTrigrams) {
+                int[] posting = _trigramPostings.get(trigram);
+                if (posting == null) {
+                    continue;
+                }
+                for (int i : posting) {
+                    trigramHits[i] ++;
+                }
+            }
+            for (int i = 0; i < scores.length; i ++) {
+                float fraction = (float)trigramHits[i] / queryTrigrams.size();
+                if (fraction >= MIN_TRIGRAM_FRACTION) {
+                    scores[i] = TRIGRAM_SCORE * fraction;
+                }
+            }
+        }
+
+        // Blend in the frequency of use and the server's prediction:
+        ArrayList<Integer> matches = new ArrayList<>();
+        HashMap<String,Integer> frequencyRanks = new HashMap<>();
+        if (frequentLabels != null) {
+            for (int rank = 0; rank < frequentLabels.size(); rank ++) {
+                frequencyRanks.put(frequentLabels.get(rank),rank);
+            }
+        }
+        for (int i = 0; i < scores.length; i ++) {
+            if (scores[i] <= 0) {
+                continue;
+            }
+            Integer rank = frequencyRanks.get(_labels[i]);
+            if (rank != null) {
+                scores[i] += FREQUENCY_WEIGHT * (1 - (float)rank / frequencyRanks.size());
+            }
+            Double prob = (predictionProbs == null) ? null : predictionProbs.get(_labels[i]);
+            if (prob != null) {
+                scores[i] += PREDICTION_WEIGHT * prob.floatValue();
+            }
+            matches.add(i);
+        }
+
+        Collections.sort(matches,new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                int byScore = Float.compare(scores[rhs],scores[lhs]);
+                return (byScore != 0) ? byScore : _labels[lhs].compareTo(_labels[rhs]);
+            }
+        });
+        ArrayList<String> results = new ArrayList<>(Math.min(maxResults,matches.size()));
+        for (int j = 0; j < matches.size() && j < maxResults; j ++) {
+            results.add(_labels[matches.get(j)]);
+        }
+        return results;
+    }
+
+    /**
+     * @return The position of the first word that is not smaller than the given prefix
+     */
+    private int lowerBound(String prefix) {
+        int low = 0;
+        int high = _words.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (_words[middle].compareTo(prefix) < 0) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,73 @@
+package edu.ucsd.calab.extrasensory.data;
+
+/**
+ * This class represents an uninterrupted run of activities with a user-reported label:
+ * consecutive activity records, from a start time to an end time, that all have the label.
+ * A segment may cross day boundaries, and may overlap segments of other labels.
+ * See ESDatabaseAccessor.getLabelSegmentsOverlappingTimeRange().
+ *
+ * ========================================
+ * The ExtraSensory App
+ * Please see ExtraSensory App website for details and citation requirements:
+ * http://extrasensory.ucsd.edu/ExtraSensoryApp
+ * ========================================
+ */
+public class ESLabelSegment {
+
+    private final ESDatabaseAccessor.ESLabelType _labelType;
+    private final String _label;
+    private final ESTimestamp _startTimestamp;
+    private final ESTimestamp _endTimestamp;
+
+    ESLabelSegment(ESDatabaseAccessor.ESLabelType labelType,String label,ESTimestamp startTimestamp,ESTimestamp endTimestamp) {
+        _labelType = labelType;
+        _label = label;
+        _startTimestamp = startTimestamp;
+        _endTimestamp = endTimestamp;
+    }
+
+    public ESDatabaseAccessor.ESLabelType get_labelType() {
+        return _labelType;
+    }
+
+    public String get_label() {
+        return _label;
+    }
+
+    /**
+     * @return The timestamp of the first activity in the segment
+     */
+    public ESTimestamp get_startTimestamp() {
+        return _startTimestamp;
+    }
+
+    /**
+     * @return The timestamp of the last activity in the segment
+     */
+    public ESTimestamp get_endTimestamp() {
+        return _endTimestamp;
+    }
+
+    /**
+     * @return The time from the first activity to the last activity of the segment (zero for a single activity)
+     */
+    public int getDurationInSeconds() {
+        return _endTimestamp.get_secondsSinceEpoch() - _startTimestamp.get_secondsSinceEpoch();
+    }
+
+    /**
+     * @param fromTimestamp The earliest time in a range
+     * @param toTimestamp The latest time in the range
+     * @return The duration of the part of the segment inside the range, or -1 if the segment doesn't overlap the range
+     */
+    public int getDurationInSecondsWithin(ESTimestamp fromTimestamp,ESTimestamp toTimestamp) {
+        int start = Math.max(_startTimestamp.get_secondsSinceEpoch(),fromTimestamp.get_secondsSinceEpoch());
+        int end = Math.min(_endTimestamp.get_secondsSinceEpoch(),toTimestamp.get_secondsSinceEpoch());
+        return (end >= start) ? end - start : -1;
+    }
+
+    @Override
+    public String toString() {
+        return "<" + _label + ": " + _startTimestamp + " - " + _endTimestamp + ">";
+    }
+}
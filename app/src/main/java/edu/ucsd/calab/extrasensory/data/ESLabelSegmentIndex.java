@@ -0,0 +1,321 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * This class maintains the label segment table: for each user-reported label, the uninterrupted runs of activities with it.
+ * Two activities are in the same segment of a label if they are consecutive activity records (no record between them),
+ * both have the label, and they are no more than MAX_GAP_IN_SEGMENT_SECONDS apart.
+ *
+ * Since the segments of a label never overlap, a segment is identified by its label and start time (the table's key),
+ * and the segments overlapping a time range are the last one that starts before the range and the ones starting inside it.
+ * So both the maintenance and the range queries only walk the key's index, and never the minute activities.
+ *
+ * Adding or removing a label of an activity changes at most two segments of that label
+ * (the neighbouring activity records tell whether the activity extends, joins or splits segments).
+ * Deleting an activity record makes its neighbours consecutive, which may join segments of the labels they share.
+ * The compiled statements are not thread safe: the maintenance methods should be called while holding the database write lock,
+ * inside the transaction that changes the activity-label table.
+ *
+ * ========================================
+ * The ExtraSensory App
+ * Please see ExtraSensory App website for details and citation requirements:
+ * http://extrasensory.ucsd.edu/ExtraSensoryApp
+ * ========================================
+ */
+class ESLabelSegmentIndex {
+
+    private static final String LOG_TAG = "[ESLabelSegmentIndex]";
+    // Activities further apart than this are not an uninterrupted run (the same gap the history merges across):
+    static final int MAX_GAP_IN_SEGMENT_SECONDS = ESContinuousActivity.MAX_TIME_GAP_FOR_MERGING_ACTIVITIES;
+    private static final int NO_TIMESTAMP = -1;
+
+    private static final String SQL_PREVIOUS_ACTIVITY_TIMESTAMP =
+            "SELECT IFNULL(MAX(" + ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + ")," + NO_TIMESTAMP + ")" +
+                    " FROM " + ESDatabaseContract.ESActivityEntry.TABLE_NAME +
+                    " WHERE " + ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + " < ?";
+    private static final String SQL_NEXT_ACTIVITY_TIMESTAMP =
+            "SELECT IFNULL(MIN(" + ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + ")," + NO_TIMESTAMP + ")" +
+                    " FROM " + ESDatabaseContract.ESActivityEntry.TABLE_NAME +
+                    " WHERE " + ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + " > ?";
+    private static final String SQL_LAST_SEGMENT_START_AT_OR_BEFORE =
+            "SELECT IFNULL(MAX(" + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_START_TIMESTAMP + ")," + NO_TIMESTAMP + ")" +
+                    " FROM " + ESDatabaseContract.ESLabelSegmentEntry.TABLE_NAME +
+                    " WHERE " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_LABEL_ID + " = ?" +
+                    " AND " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_START_TIMESTAMP + " <= ?";
+    private static final String SQL_SEGMENT_END =
+            "SELECT IFNULL(MAX(" + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_END_TIMESTAMP + ")," + NO_TIMESTAMP + ")" +
+                    " FROM " + ESDatabaseContract.ESLabelSegmentEntry.TABLE_NAME +
+                    " WHERE " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_LABEL_ID + " = ?" +
+                    " AND " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_START_TIMESTAMP + " = ?";
+    private static final String SQL_INSERT_SEGMENT =
+            "INSERT INTO " + ESDatabaseContract.ESLabelSegmentEntry.TABLE_NAME + " (" +
+                    ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_LABEL_ID + "," +
+                    ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_START_TIMESTAMP + "," +
+                    ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_END_TIMESTAMP + ") VALUES (?,?,?)";
+    private static final String SQL_SET_SEGMENT_START =
+            "UPDATE " + ESDatabaseContract.ESLabelSegmentEntry.TABLE_NAME +
+                    " SET " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_START_TIMESTAMP + " = ?" +
+                    " WHERE " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_LABEL_ID + " = ?" +
+                    " AND " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_START_TIMESTAMP + " = ?";
+    private static final String SQL_SET_SEGMENT_END =
+            "UPDATE " + ESDatabaseContract.ESLabelSegmentEntry.TABLE_NAME +
+                    " SET " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_END_TIMESTAMP + " = ?" +
+                    " WHERE " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_LABEL_ID + " = ?" +
+                    " AND " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_START_TIMESTAMP + " = ?";
+    private static final String SQL_DELETE_SEGMENT =
+            "DELETE FROM " + ESDatabaseContract.ESLabelSegmentEntry.TABLE_NAME +
+                    " WHERE " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_LABEL_ID + " = ?" +
+                    " AND " + ESDatabaseContract.ESLabelSegmentEntry.COLUMN_NAME_START_TIMESTAMP + " = ?";
+
+    private final SQLiteStatement _previousActivityStatement;
+    private final SQLiteStatement _nextActivityStatement;
+    private final SQLiteStatement _lastSegmentStartStatement;
+    private final SQLiteStatement _segmentEndStatement;
+    private final SQLiteStatement _insertSegmentStatement;
+    private final SQLiteStatement _setSegmentStartStatement;
+    private final SQLiteStatement _setSegmentEndStatement;
+    private final SQLiteStatement _deleteSegmentStatement;
+
+    /**
+     * Compile the statements of the segment maintenance.
+     * @param db The database, where the label segment table already exists
+     */
+    ESLabelSegmentIndex(SQLiteDatabase db) {
+        _previousActivityStatement = db.compileStatement(SQL_PREVIOUS_ACTIVITY_TIMESTAMP);
+        _nextActivityStatement = db.compileStatement(SQL_NEXT_ACTIVITY_TIMESTAMP);
+        _lastSegmentStartStatement = db.compileStatement(SQL_LAST_SEGMENT_START_AT_OR_BEFORE);
+        _segmentEndStatement = db.compileStatement(SQL_SEGMENT_END);
+        _insertSegmentStatement = db.compileStatement(SQL_INSERT_SEGMENT);
+        _setSegmentStartStatement = db.compileStatement(SQL_SET_SEGMENT_START);
+        _setSegmentEndStatement = db.compileStatement(SQL_SET_SEGMENT_END);
+        _deleteSegmentStatement = db.compileStatement(SQL_DELETE_SEGMENT);
+    }
+
+    void close() {
+        _previousActivityStatement.close();
+        _nextActivityStatement.close();
+        _lastSegmentStartStatement.close();
+        _segmentEndStatement.close();
+        _insertSegmentStatement.close();
+        _setSegmentStartStatement.close();
+        _setSegmentEndStatement.close();
+        _deleteSegmentStatement.close();
+    }
+
+    /**
+     * Update the segments after a label was added to an activity.
+     * The activity record should exist.
+     * @param timestampSeconds The timestamp of the activity
+     * @param labelId The id of the added label
+     */
+    void labelAdded(int timestampSeconds,int labelId) {
+        // Does the previous activity end a segment of this label, that this activity continues?
+        int previous = queryTimestamp(_previousActivityStatement,timestampSeconds);
+        int previousSegmentStart = NO_TIMESTAMP;
+        if (previous != NO_TIMESTAMP && timestampSeconds - previous <= MAX_GAP_IN_SEGMENT_SECONDS) {
+            int start = lastSegmentStartAtOrBefore(labelId,previous);
+            if (start != NO_TIMESTAMP && segmentEnd(labelId,start) == previous) {
+                previousSegmentStart = start;
+            }
+        }
+        // Does the next activity start a segment of this label, that this activity leads to?
+        int next = queryTimestamp(_nextActivityStatement,timestampSeconds);
+        int nextSegmentEnd = NO_TIMESTAMP;
+        if (next != NO_TIMESTAMP && next - timestampSeconds <= MAX_GAP_IN_SEGMENT_SECONDS) {
+            nextSegmentEnd = segmentEnd(labelId,next);
+        }
+
+        if (previousSegmentStart != NO_TIMESTAMP && nextSegmentEnd != NO_TIMESTAMP) {
+            // This activity joins the two segments:
+            deleteSegment(labelId,next);
+            setSegmentEnd(labelId,previousSegmentStart,nextSegmentEnd);
+        }
+        else if (previousSegmentStart != NO_TIMESTAMP) {
+            setSegmentEnd(labelId,previousSegmentStart,timestampSeconds);
+        }
+        else if (nextSegmentEnd != NO_TIMESTAMP) {
+            setSegmentStart(labelId,next,timestampSeconds);
+        }
+        else {
+            insertSegment(labelId,timestampSeconds,timestampSeconds);
+        }
+    }
+
+    /**
+     * Update the segments after a label was removed from an activity (or before removing an activity with the label).
+     * The activity record should still exist.
+     * @param timestampSeconds The timestamp of the activity
+     * @param labelId The id of the removed label
+     */
+    void labelRemoved(int timestampSeconds,int labelId) {
+        int start = lastSegmentStartAtOrBefore(labelId,timestampSeconds);
+        int end = (start == NO_TIMESTAMP) ? NO_TIMESTAMP : segmentEnd(labelId,start);
+        if (end < timestampSeconds) {
+            Log.w(LOG_TAG,"No segment of label " + labelId + " contains the activity of " + timestampSeconds);
+            return;
+        }
+
+        if (start == timestampSeconds && end == timestampSeconds) {
+            deleteSegment(labelId,start);
+        }
+        else if (start == timestampSeconds) {
+            setSegmentStart(labelId,start,queryTimestamp(_nextActivityStatement,timestampSeconds));
+        }
+        else if (end == timestampSeconds) {
+            setSegmentEnd(labelId,start,queryTimestamp(_previousActivityStatement,timestampSeconds));
+        }
+        else {
+            // This activity splits the segment in two:
+            setSegmentEnd(labelId,start,queryTimestamp(_previousActivityStatement,timestampSeconds));
+            insertSegment(labelId,queryTimestamp(_nextActivityStatement,timestampSeconds),end);
+        }
+    }
+
+    /**
+     * @param timestampSeconds A timestamp
+     * @return The timestamp of the first activity record after it, or a negative value if there is none
+     */
+    int nextActivityTimestamp(int timestampSeconds) {
+        return queryTimestamp(_nextActivityStatement,timestampSeconds);
+    }
+
+    /**
+     * Update the segments after an activity record was deleted (its labels should have been removed before, with labelRemoved()).
+     * Its previous and next records are now consecutive, so a segment ending at the previous record
+     * and a segment of the same label starting at the next record are joined, if the records are close enough.
+     * @param timestampSeconds The timestamp of the deleted activity
+     * @param nextTimestampSeconds The timestamp of the record after it (see nextActivityTimestamp()), or a negative value if there is none
+     * @param nextLabelIds The labels of the record after it
+     */
+    void activityDeleted(int timestampSeconds,int nextTimestampSeconds,int[] nextLabelIds) {
+        if (nextTimestampSeconds == NO_TIMESTAMP) {
+            return;
+        }
+        int previous = queryTimestamp(_previousActivityStatement,timestampSeconds);
+        if (previous == NO_TIMESTAMP || nextTimestampSeconds - previous > MAX_GAP_IN_SEGMENT_SECONDS) {
+            return;
+        }
+        for (int labelId : nextLabelIds) {
+            int nextSegmentEnd = segmentEnd(labelId,nextTimestampSeconds);
+            if (nextSegmentEnd == NO_TIMESTAMP) {
+                continue;
+            }
+            int previousSegmentStart = lastSegmentStartAtOrBefore(labelId,previous);
+            if (previousSegmentStart != NO_TIMESTAMP && segmentEnd(labelId,previousSegmentStart) == previous) {
+                deleteSegment(labelId,nextTimestampSeconds);
+                setSegmentEnd(labelId,previousSegmentStart,nextSegmentEnd);
+            }
+        }
+    }
+
+    private static int queryTimestamp(SQLiteStatement statement,int timestampSeconds) {
+        statement.bindLong(1,timestampSeconds);
+        return (int)statement.simpleQueryForLong();
+    }
+
+    private int lastSegmentStartAtOrBefore(int labelId,int timestampSeconds) {
+        _lastSegmentStartStatement.bindLong(1,labelId);
+        _lastSegmentStartStatement.bindLong(2,timestampSeconds);
+        return (int)_lastSegmentStartStatement.simpleQueryForLong();
+    }
+
+    private int segmentEnd(int labelId,int startSeconds) {
+        _segmentEndStatement.bindLong(1,labelId);
+        _segmentEndStatement.bindLong(2,startSeconds);
+        return (int)_segmentEndStatement.simpleQueryForLong();
+    }
+
+    private void insertSegment(int labelId,int startSeconds,int endSeconds) {
+        _insertSegmentStatement.bindLong(1,labelId);
+        _insertSegmentStatement.bindLong(2,startSeconds);
+        _insertSegmentStatement.bindLong(3,endSeconds);
+        _insertSegmentStatement.executeInsert();
+    }
+
+    private void setSegmentStart(int labelId,int oldStartSeconds,int newStartSeconds) {
+        _setSegmentStartStatement.bindLong(1,newStartSeconds);
+        _setSegmentStartStatement.bindLong(2,labelId);
+        _setSegmentStartStatement.bindLong(3,oldStartSeconds);
+        _setSegmentStartStatement.executeUpdateDelete();
+    }
+
+    private void setSegmentEnd(int labelId,int startSeconds,int newEndSeconds) {
+        _setSegmentEndStatement.bindLong(1,newEndSeconds);
+        _setSegmentEndStatement.bindLong(2,labelId);
+        _setSegmentEndStatement.bindLong(3,startSeconds);
+        _setSegmentEndStatement.executeUpdateDelete();
+    }
+
+    private void deleteSegment(int labelId,int startSeconds) {
+        _deleteSegmentStatement.bindLong(1,labelId);
+        _deleteSegmentStatement.bindLong(2,startSeconds);
+        _deleteSegmentStatement.executeUpdateDelete();
+    }
+
+    /**
+     * Fill the label segment table from the activity-label table (for the upgrade of existing databases).
+     * @param db The database, where the (empty) label segment table already exists
+     */
+    static void populate(SQLiteDatabase db) {
+        // The timestamps of all the activity records, to tell which labeled activities are consecutive records:
+        Cursor cursor = db.query(ESDatabaseContract.ESActivityEntry.TABLE_NAME,
+                new String[]{ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP},
+                null,null,null,null,ESDatabaseContract.ESActivityEntry.COLUMN_NAME_TIMESTAMP + " ASC");
+        int[] activityTimestamps = new int[cursor.getCount()];
+        int i = 0;
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            activityTimestamps[i++] = cursor.getInt(0);
+        }
+        cursor.close();
+
+        cursor = db.query(ESDatabaseContract.ESActivityLabelEntry.TABLE_NAME,
+                new String[]{ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_LABEL_ID,
+                        ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_TIMESTAMP},
+                null,null,null,null,
+                ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_LABEL_ID + " ASC," +
+                        ESDatabaseContract.ESActivityLabelEntry.COLUMN_NAME_TIMESTAMP + " ASC");
+        SQLiteStatement insertStatement = db.compileStatement(SQL_INSERT_SEGMENT);
+        int numSegments = 0;
+        int labelId = -1;
+        int start = NO_TIMESTAMP;
+        int end = NO_TIMESTAMP;
+        int endIndex = -1;
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            int rowLabelId = cursor.getInt(0);
+            int timestampSeconds = cursor.getInt(1);
+            int index = Arrays.binarySearch(activityTimestamps,timestampSeconds);
+            boolean continuesSegment = rowLabelId == labelId && endIndex >= 0 && index == endIndex + 1 &&
+                    timestampSeconds - end <= MAX_GAP_IN_SEGMENT_SECONDS;
+            if (!continuesSegment) {
+                if (start != NO_TIMESTAMP) {
+                    insertPopulatedSegment(insertStatement,labelId,start,end);
+                    numSegments ++;
+                }
+                labelId = rowLabelId;
+                start = timestampSeconds;
+            }
+            end = timestampSeconds;
+            endIndex = index;
+        }
+        if (start != NO_TIMESTAMP) {
+            insertPopulatedSegment(insertStatement,labelId,start,end);
+            numSegments ++;
+        }
+        insertStatement.close();
+        Log.i(LOG_TAG,"Built " + numSegments + " label segments from " + cursor.getCount() + " activity labels");
+        cursor.close();
+    }
+
+    private static void insertPopulatedSegment(SQLiteStatement insertStatement,int labelId,int startSeconds,int endSeconds) {
+        insertStatement.bindLong(1,labelId);
+        insertStatement.bindLong(2,startSeconds);
+        insertStatement.bindLong(3,endSeconds);
+        insertStatement.executeInsert();
+    }
+}
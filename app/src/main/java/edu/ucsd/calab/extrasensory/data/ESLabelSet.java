@@ -0,0 +1,143 @@
+package edu.ucsd.calab.extrasensory.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * This class represents a set of labels of a single label type (e.g. the secondary activities of an activity).
+ * The labels of the vocabulary (see ESLabelStrings) are kept as bits, by their index in the vocabulary,
+ * so comparing two sets takes just a few word comparisons.
+ * Labels that are not in the vocabulary (which shouldn't usually happen) are kept separately, sorted.
+ * A label set is immutable.
+ *
+ * ========================================
+ * The ExtraSensory App
+ * Please see ExtraSensory App website for details and citation requirements:
+ * http://extrasensory.ucsd.edu/ExtraSensoryApp
+ * ========================================
+ */
+final class ESLabelSet {
+
+    private static final String[] NO_LABELS = new String[0];
+
+    private final ESDatabaseAccessor.ESLabelType _labelType;
+    private final long[] _words;
+    private final String[] _extraLabels;
+    // The labels as an array (in the order of the vocabulary), prepared when first needed:
+    private String[] _labels = null;
+
+    private ESLabelSet(ESDatabaseAccessor.ESLabelType labelType,long[] words,String[] extraLabels) {
+        _labelType = labelType;
+        _words = words;
+        _extraLabels = extraLabels;
+    }
+
+    /**
+     * Create a label set.
+     * @param labelType The type of the labels
+     * @param labels The labels (repetitions are ignored)
+     * @return The set of the labels, or null if labels is null
+     */
+    static ESLabelSet fromLabels(ESDatabaseAccessor.ESLabelType labelType,String[] labels) {
+        if (labels == null) {
+            return null;
+        }
+
+        long[] words = new long[(ESLabelStrings.getVocabulary(labelType).length + 63) / 64];
+        ArrayList<String> extraLabels = null;
+        for (String label : labels) {
+            int index = ESLabelStrings.getVocabularyIndex(labelType,label);
+            if (index >= 0) {
+                words[index >>> 6] |= 1L << (index & 63);
+            }
+            else {
+                if (extraLabels == null) {
+                    extraLabels = new ArrayList<>(1);
+                }
+                if (!extraLabels.contains(label)) {
+                    extraLabels.add(label);
+                }
+            }
+        }
+
+        if (extraLabels == null) {
+            return new ESLabelSet(labelType,words,NO_LABELS);
+        }
+        Collections.sort(extraLabels);
+        return new ESLabelSet(labelType,words,extraLabels.toArray(new String[extraLabels.size()]));
+    }
+
+    ESDatabaseAccessor.ESLabelType get_labelType() {
+        return _labelType;
+    }
+
+    int size() {
+        int size = _extraLabels.length;
+        for (long word : _words) {
+            size += Long.bitCount(word);
+        }
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    boolean contains(String label) {
+        int index = ESLabelStrings.getVocabularyIndex(_labelType,label);
+        if (index >= 0) {
+            return (_words[index >>> 6] & (1L << (index & 63))) != 0;
+        }
+        return Arrays.binarySearch(_extraLabels,label) >= 0;
+    }
+
+    /**
+     * @return The labels in the set: the vocabulary labels (in the order of the vocabulary) and then the other labels.
+     * The array is shared, and should not be changed.
+     */
+    String[] getLabels() {
+        String[] labels = _labels;
+        if (labels != null) {
+            return labels;
+        }
+
+        String[] vocabulary = ESLabelStrings.getVocabulary(_labelType);
+        labels = new String[size()];
+        int i = 0;
+        for (int w = 0; w < _words.length; w ++) {
+            long word = _words[w];
+            while (word != 0) {
+                labels[i++] = vocabulary[(w << 6) + Long.numberOfTrailingZeros(word)];
+                word &= word - 1;
+            }
+        }
+        System.arraycopy(_extraLabels,0,labels,i,_extraLabels.length);
+        _labels = labels;
+        return labels;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ESLabelSet)) {
+            return false;
+        }
+        ESLabelSet otherSet = (ESLabelSet)other;
+        return _labelType == otherSet._labelType &&
+                Arrays.equals(_words,otherSet._words) &&
+                Arrays.equals(_extraLabels,otherSet._extraLabels);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(_words) + Arrays.hashCode(_extraLabels);
+    }
+
+    @Override
+    public String toString() {
+        return ESLabelStrings.makeCSV(getLabels());
+    }
+}
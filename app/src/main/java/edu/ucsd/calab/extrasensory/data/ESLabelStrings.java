@@ -33,14 +33,23 @@ public class ESLabelStrings {
     private static String[] _moods = null;
     private static TreeMap<String,String[]> _secondaryActivitiesPerSubject = null;
     private static HashMap<String,Integer> _mainActivity2color = null;
+    private static HashMap<String,String> _networkNameToLabel = null;
+    private static HashMap<String,String> _labelToNetworkName = null;
+    private static HashMap<String,Integer> _mainActivityIndices = null;
+    private static HashMap<String,Integer> _secondaryActivityIndices = null;
+    private static HashMap<String,Integer> _moodIndices = null;
 
 
-    private static void initializeColorMap() {
+    private static synchronized void initializeColorMap() {
+        if (_mainActivity2color != null) {
+            return;
+        }
         String[] mainActivities = getMainActivities();
         float maxHue = 250, minHue = 0;
         int numColors = mainActivities.length;
 
-        _mainActivity2color = new HashMap<>(numColors);
+        // (The history rows may be built in the background, so only publish the map once it is full):
+        HashMap<String,Integer> mainActivity2color = new HashMap<>(numColors);
 
         float decrement = (maxHue - minHue) / (numColors - 1);
         float[] hsv = new float[3];
@@ -49,8 +58,9 @@ public class ESLabelStrings {
         int alpha = 100;
         for (int i = 0; i < numColors; i ++) {
             hsv[0] = maxHue - i*decrement;
-            _mainActivity2color.put(mainActivities[i], Color.HSVToColor(alpha,hsv));
+            mainActivity2color.put(mainActivities[i], Color.HSVToColor(alpha,hsv));
         }
+        _mainActivity2color = mainActivity2color;
     }
 
     public static int getColorForMainActivity(String mainActivity) {
@@ -102,6 +112,68 @@ public class ESLabelStrings {
     }
 
 
+    /**
+     * Get the vocabulary of a label type. The index of a label in its vocabulary is a stable id of the label
+     * (as long as the label list files only grow at their end).
+     * @param labelType The label type
+     * @return The labels of the vocabulary (empty for label types that have no vocabulary)
+     */
+    static String[] getVocabulary(ESDatabaseAccessor.ESLabelType labelType) {
+        switch (labelType) {
+            case ES_LABEL_TYPE_MAIN:
+                return getMainActivities();
+            case ES_LABEL_TYPE_SECONDARY:
+                return getSecondaryActivities();
+            case ES_LABEL_TYPE_MOOD:
+                return getMoods();
+            default:
+                return new String[0];
+        }
+    }
+
+    /**
+     * Get the index of a label in the vocabulary of its type.
+     * @param labelType The label type
+     * @param label The label
+     * @return The index of the label in the vocabulary, or -1 if it is not in the vocabulary
+     */
+    static int getVocabularyIndex(ESDatabaseAccessor.ESLabelType labelType,String label) {
+        Integer index = getVocabularyIndices(labelType).get(label);
+        return (index == null) ? -1 : index;
+    }
+
+    private static synchronized HashMap<String,Integer> getVocabularyIndices(ESDatabaseAccessor.ESLabelType labelType) {
+        switch (labelType) {
+            case ES_LABEL_TYPE_MAIN:
+                if (_mainActivityIndices == null) {
+                    _mainActivityIndices = indexLabels(getMainActivities());
+                }
+                return _mainActivityIndices;
+            case ES_LABEL_TYPE_SECONDARY:
+                if (_secondaryActivityIndices == null) {
+                    _secondaryActivityIndices = indexLabels(getSecondaryActivities());
+                }
+                return _secondaryActivityIndices;
+            case ES_LABEL_TYPE_MOOD:
+                if (_moodIndices == null) {
+                    _moodIndices = indexLabels(getMoods());
+                }
+                return _moodIndices;
+            default:
+                return new HashMap<>(0);
+        }
+    }
+
+    private static HashMap<String,Integer> indexLabels(String[] labels) {
+        HashMap<String,Integer> indices = new HashMap<>(2 * labels.length);
+        for (int i = 0; i < labels.length; i ++) {
+            if (!indices.containsKey(labels[i])) {
+                indices.put(labels[i],i);
+            }
+        }
+        return indices;
+    }
+
     /**
      * Create a single String representation of the labels in the array, using Comma Separated Values.
      * This function assumes non of the components of the array are null
@@ -155,10 +227,19 @@ public class ESLabelStrings {
      * @return
      */
     public static String standardizeLabelForNetwork(String label) {
-        label = label.replaceAll(" ", "_");
-        label = label.replaceAll("\\'", "_");
-        label = label.replaceAll("\\(", "_");
-        label = label.replaceAll("\\)", "_");
+        // The labels of the vocabulary are standardized in advance:
+        String networkName = getLabelToNetworkNameMap().get(label);
+        if (networkName != null) {
+            return networkName;
+        }
+        return standardizeLabelByRules(label);
+    }
+
+    private static String standardizeLabelByRules(String label) {
+        label = label.replace(' ', '_');
+        label = label.replace('\'', '_');
+        label = label.replace('(', '_');
+        label = label.replace(')', '_');
         label = label.toUpperCase();
 
         return label;
@@ -205,6 +286,49 @@ public class ESLabelStrings {
         return label;
     }
 
+    /**
+     * Get the label name for a label name we got from the network.
+     * For the labels in our vocabulary (main, secondary, moods) this is a table lookup,
+     * and the result is exactly the label as it appears in the vocabulary.
+     * Other labels are reverse-standardized (see reverseStandardizeLabelFromNetwork()).
+     * @param labelFromNetwork The label name in the standardized network format
+     * @return The label name in the original format
+     */
+    public static String getLabelFromNetworkName(String labelFromNetwork) {
+        String label = getNetworkNameToLabelMap().get(labelFromNetwork);
+        if (label != null) {
+            return label;
+        }
+        return reverseStandardizeLabelFromNetwork(labelFromNetwork);
+    }
+
+    private static synchronized HashMap<String,String> getNetworkNameToLabelMap() {
+        prepareNetworkNameMaps();
+        return _networkNameToLabel;
+    }
+
+    private static synchronized HashMap<String,String> getLabelToNetworkNameMap() {
+        prepareNetworkNameMaps();
+        return _labelToNetworkName;
+    }
+
+    private static void prepareNetworkNameMaps() {
+        if (_networkNameToLabel != null) {
+            return;
+        }
+        HashMap<String,String> networkNameToLabel = new HashMap<>(256);
+        HashMap<String,String> labelToNetworkName = new HashMap<>(256);
+        for (String[] labels : new String[][]{getMainActivities(),getSecondaryActivities(),getMoods()}) {
+            for (String label : labels) {
+                String networkName = standardizeLabelByRules(label);
+                networkNameToLabel.put(networkName,label);
+                labelToNetworkName.put(label,networkName);
+            }
+        }
+        _labelToNetworkName = labelToNetworkName;
+        _networkNameToLabel = networkNameToLabel;
+    }
+
     /**
      * Reverse the label names back to the original (nice human readable) format
      * from the standardized network format.
@@ -214,7 +338,7 @@ public class ESLabelStrings {
     public static String[] reverseStandardizeLabelsFromNetwork(String[] labelsFromNetwork) {
         String[] originalFormatLabels = new String[labelsFromNetwork.length];
         for (int i = 0; i < labelsFromNetwork.length; i ++) {
-            originalFormatLabels[i] = reverseStandardizeLabelFromNetwork(labelsFromNetwork[i]);
+            originalFormatLabels[i] = getLabelFromNetworkName(labelsFromNetwork[i]);
         }
 
         return originalFormatLabels;
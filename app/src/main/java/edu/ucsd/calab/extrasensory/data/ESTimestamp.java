@@ -23,10 +23,10 @@ public class ESTimestamp {
 
     private static final String LOG_TAG = "[ESTimestamp]";
 
-    private static final int SECONDS_IN_24_HOURS = 86400;
+    private static final int SECONDS_IN_24_HOURS = ESEpochSeconds.SECONDS_IN_24_HOURS;
     private static final long MILLISECONDS_IN_SECOND = 1000l;
 
-    private int _secondsSinceEpoch;
+    private final int _secondsSinceEpoch;
 
     /**
      * Construct an ESTimestamp for a given Date object
@@ -43,7 +43,7 @@ public class ESTimestamp {
      * Construct an ESTimestamp for right now
      */
     public ESTimestamp() {
-        this(new Date());
+        this(ESEpochSeconds.now());
     }
 
     /**
@@ -75,13 +75,18 @@ public class ESTimestamp {
     }
 
     public static ESTimestamp getStartOfTodayTimestamp() {
-        Calendar cal = Calendar.getInstance();
-        cal.set(Calendar.HOUR_OF_DAY,00);
-        cal.set(Calendar.MINUTE,00);
-        cal.set(Calendar.SECOND,0);
-        cal.set(Calendar.MILLISECOND,0);
-        Date date = cal.getTime();
-        return new ESTimestamp(date);
+        return new ESTimestamp(ESEpochSeconds.startOfLocalDay(ESEpochSeconds.now()));
+    }
+
+    /**
+     * Get the start (local midnight) of a day relative to today.
+     * Unlike adding whole 24 hours to the start of today, this keeps to local midnight across daylight saving changes.
+     * @param daysRelativeToToday 0 for today, -1 for yesterday, and so on
+     * @return The timestamp of the start of the desired day
+     */
+    public static ESTimestamp getStartOfDayRelativeToToday(int daysRelativeToToday) {
+        int startOfToday = ESEpochSeconds.startOfLocalDay(ESEpochSeconds.now());
+        return new ESTimestamp(ESEpochSeconds.addLocalDays(startOfToday,daysRelativeToToday));
     }
 
     @Override
@@ -96,11 +101,11 @@ public class ESTimestamp {
     }
 
     public int getHourOfDayOutOf24() {
-        return toCalendar().get(Calendar.HOUR_OF_DAY);
+        return ESEpochSeconds.hourOfDay(_secondsSinceEpoch);
     }
 
     public int getMinuteOfHour() {
-        return toCalendar().get(Calendar.MINUTE);
+        return ESEpochSeconds.minuteOfHour(_secondsSinceEpoch);
     }
 
     public String infoString() {
@@ -108,12 +113,25 @@ public class ESTimestamp {
         return "" + _secondsSinceEpoch + " (" + dateFormat.format(this.getDateOfTimestamp()) + ")";
     }
 
-    public boolean equals(ESTimestamp other) {
-        if (other == null) {
+    /**
+     * Two timestamps are equal if they represent the same second.
+     * This is also what makes ESTimestamp usable as a key in hash maps (e.g. the feedback queue),
+     * so hashCode() must agree with it.
+     * @param other The object to compare to
+     * @return true iff other is an ESTimestamp of the same time
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ESTimestamp)) {
             return false;
         }
 
-        return this._secondsSinceEpoch == other._secondsSinceEpoch;
+        return this._secondsSinceEpoch == ((ESTimestamp)other)._secondsSinceEpoch;
+    }
+
+    @Override
+    public int hashCode() {
+        return _secondsSinceEpoch;
     }
 
     public boolean isEarlierThan(ESTimestamp other) {
@@ -0,0 +1,284 @@
+package edu.ucsd.calab.extrasensory.network;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A small client layer for the HTTP(S) calls to the ExtraSensory server (ESS).
+ *
+ * The platform's HttpURLConnection keeps a pool of idle connections, but a pooled connection
+ * is only reused by a call that has the same socket factory and hostname verifier objects,
+ * and only if the previous response was read to the end and the connection was not disconnected.
+ * So this client holds a single socket factory (from the TLS context, with a session cache, so even new sockets
+ * can resume a TLS session instead of a full handshake) and a single hostname verifier,
+ * and releases connections back to the pool after reading their response.
+ *
+ * It also counts the requests, sockets and TLS handshakes, to see how well the reuse works.
+ *
+ * ========================================
+ * The ExtraSensory App
+ * Please see ExtraSensory App website for details and citation requirements:
+ * http://extrasensory.ucsd.edu/ExtraSensoryApp
+ * ========================================
+ */
+public class ESHttpClient {
+
+    private static final String LOG_TAG = "[ESHttpClient]";
+
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+    private static final int TLS_SESSION_CACHE_SIZE = 8;
+    private static final int TLS_SESSION_TIMEOUT_SECONDS = 12 * 60 * 60;
+    private static final int MAX_REMEMBERED_SESSIONS = 64;
+
+    private final String _serverHostname;
+    private final SSLSocketFactory _socketFactory;
+    private final HostnameVerifier _hostnameVerifier;
+
+    private final AtomicInteger _numRequests = new AtomicInteger(0);
+    private final AtomicInteger _numSocketsCreated = new AtomicInteger(0);
+    private final AtomicInteger _numFullHandshakes = new AtomicInteger(0);
+    private final AtomicInteger _numResumedHandshakes = new AtomicInteger(0);
+    private final HashSet<String> _seenSessionIds = new HashSet<>(MAX_REMEMBERED_SESSIONS);
+
+    /**
+     * Create the client.
+     * @param sslContext The TLS context to use for https calls. If null, only http calls can be made.
+     * @param serverHostname The hostname of the server (the only one the https calls will accept)
+     */
+    ESHttpClient(SSLContext sslContext,String serverHostname) {
+        _serverHostname = serverHostname;
+        if (sslContext == null) {
+            _socketFactory = null;
+        }
+        else {
+            SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+            if (sessionContext != null) {
+                sessionContext.setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+                sessionContext.setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+            }
+            _socketFactory = new ESCountingSSLSocketFactory(sslContext.getSocketFactory());
+        }
+        _hostnameVerifier = new HostnameVerifier() {
+            @Override
+            public boolean verify(String hostname, SSLSession session) {
+                return _serverHostname.equals(hostname);
+            }
+        };
+    }
+
+    /**
+     * Open a connection to the given url, prepared for reuse (keep-alive) and with the common timeouts.
+     * @param apiUrl The full url of the api call
+     * @param useHttps Should this connection use TLS (in which case the url should be https)
+     * @return The connection (not connected yet)
+     * @throws IOException
+     */
+    HttpURLConnection openConnection(String apiUrl,boolean useHttps) throws IOException {
+        _numRequests.incrementAndGet();
+        URL url = new URL(apiUrl);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        if (useHttps && _socketFactory != null) {
+            HttpsURLConnection httpsURLConnection = (HttpsURLConnection)conn;
+            httpsURLConnection.setSSLSocketFactory(_socketFactory);
+            httpsURLConnection.setHostnameVerifier(_hostnameVerifier);
+        }
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+        conn.setUseCaches(false); // Don't use a Cached Copy
+        conn.setRequestProperty("Connection", "Keep-Alive");
+
+        return conn;
+    }
+
+    /**
+     * Get the stream of the response body. When done with it, call closeResponseStream().
+     * @param conn The connection, after sending the request
+     * @return The stream of the response body
+     * @throws IOException If the server responded with an error (the connection is then released)
+     */
+    static InputStream getResponseStream(HttpURLConnection conn) throws IOException {
+        try {
+            return conn.getInputStream();
+        }
+        catch (IOException e) {
+            // Error responses come on the error stream, and must be consumed too to reuse the connection:
+            release(conn);
+            throw e;
+        }
+    }
+
+    /**
+     * Read what is left of the response body and close its stream, to release the connection back to the pool.
+     * @param inputStream The stream of the response body
+     */
+    static void closeResponseStream(InputStream inputStream) {
+        try {
+            drain(inputStream);
+            inputStream.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG,"Failed to read the rest of the response: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Release a connection whose response we don't need (e.g. an error response),
+     * by consuming what is left of it. The connection is then free to be reused.
+     * @param conn The connection to release
+     */
+    static void release(HttpURLConnection conn) {
+        InputStream errorStream = conn.getErrorStream();
+        if (errorStream == null) {
+            return;
+        }
+        try {
+            drain(errorStream);
+            errorStream.close();
+        } catch (IOException e) {
+            // Then this connection can't be reused:
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Read and discard the rest of a stream.
+     */
+    private static void drain(InputStream inputStream) throws IOException {
+        byte[] buffer = new byte[4096];
+        while (inputStream.read(buffer) != -1) {
+            // (Discard it)
+        }
+    }
+
+    public int get_numRequests() {
+        return _numRequests.get();
+    }
+
+    /**
+     * How many TLS sockets were opened. With reuse, this should be much smaller than the number of requests.
+     */
+    public int get_numSocketsCreated() {
+        return _numSocketsCreated.get();
+    }
+
+    public int get_numFullHandshakes() {
+        return _numFullHandshakes.get();
+    }
+
+    public int get_numResumedHandshakes() {
+        return _numResumedHandshakes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "<requests: " + _numRequests + ", tls sockets: " + _numSocketsCreated +
+                ", full handshakes: " + _numFullHandshakes + ", resumed handshakes: " + _numResumedHandshakes + ">";
+    }
+
+    private void handshakeCompleted(SSLSession session) {
+        String sessionId = Arrays.toString(session.getId());
+        boolean resumed;
+        synchronized (_seenSessionIds) {
+            resumed = _seenSessionIds.contains(sessionId);
+            if (!resumed) {
+                if (_seenSessionIds.size() >= MAX_REMEMBERED_SESSIONS) {
+                    _seenSessionIds.clear();
+                }
+                _seenSessionIds.add(sessionId);
+            }
+        }
+        if (resumed) {
+            _numResumedHandshakes.incrementAndGet();
+        }
+        else {
+            _numFullHandshakes.incrementAndGet();
+        }
+        Log.v(LOG_TAG,"TLS handshake completed (" + (resumed ? "resumed" : "full") + "). " + this);
+    }
+
+    /**
+     * A socket factory that delegates to the TLS context's factory,
+     * and counts the sockets it creates and their handshakes.
+     */
+    private class ESCountingSSLSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory _delegate;
+        private final HandshakeCompletedListener _handshakeListener = new HandshakeCompletedListener() {
+            @Override
+            public void handshakeCompleted(HandshakeCompletedEvent event) {
+                ESHttpClient.this.handshakeCompleted(event.getSession());
+            }
+        };
+
+        ESCountingSSLSocketFactory(SSLSocketFactory delegate) {
+            _delegate = delegate;
+        }
+
+        private Socket counted(Socket socket) {
+            _numSocketsCreated.incrementAndGet();
+            if (socket instanceof SSLSocket) {
+                ((SSLSocket)socket).addHandshakeCompletedListener(_handshakeListener);
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return _delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return _delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return counted(_delegate.createSocket(socket,host,port,autoClose));
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return counted(_delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return counted(_delegate.createSocket(host,port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return counted(_delegate.createSocket(host,port,localHost,localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return counted(_delegate.createSocket(host,port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return counted(_delegate.createSocket(address,port,localAddress,localPort));
+        }
+    }
+}
@@ -31,7 +31,6 @@ import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
-import java.net.URL;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -44,13 +43,12 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.TimeZone;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSession;
 import javax.net.ssl.TrustManagerFactory;
 
 import edu.ucsd.calab.extrasensory.ESApplication;
@@ -97,62 +95,133 @@ public class ESNetworkAccessor {
     private static final String SERVER_HTTPS_API_PREFIX = HTTPS_PREFIX + SERVER_HOSTNAME + ":" + HTTPS_PORT + "/extrasensory/";
 
     private static final String FEEDBACK_FILE_EXTENSION = ".feedback";
+    private static final int MAX_FEEDBACK_BATCH_SIZE = 120;
 
     private boolean _useHttps = true;
     private SSLContext _sslContext = null;
+    private volatile ESHttpClient _httpClient = null;
     private boolean shouldSendWithHttps() {
         return _useHttps && (_sslContext != null);
     }
 
+    /**
+     * A snapshot of a queued feedback item, as it was when taken out to be sent.
+     * The version lets us know (when the server responds) whether the user edited
+     * the labels of the same minute again while the request was on its way.
+     */
+    private static class ESFeedbackItem {
+        private final ESActivity _activity;
+        private final long _version;
+
+        private ESFeedbackItem(ESActivity activity,long version) {
+            _activity = activity;
+            _version = version;
+        }
+
+        @Override
+        public String toString() {
+            return _activity.get_timestamp() + "(v" + _version + ")";
+        }
+    }
+
+    /**
+     * The queue of minute-activities whose labels need to be sent to the server.
+     * The queue holds a single entry per timestamp: repeated edits of the same minute
+     * replace the queued activity, so only the latest labels of each minute are sent.
+     */
     private static class ESFeedbackQueue {
         private ArrayList<ESTimestamp> _timestampsQueue;
         private HashMap<ESTimestamp,ESActivity> _activitiesToSend;
+        private HashMap<ESTimestamp,Long> _versions;
+        private long _lastVersion = 0;
 
         public ESFeedbackQueue() {
             _timestampsQueue = new ArrayList<>(4);
             _activitiesToSend = new HashMap<>(4);
+            _versions = new HashMap<>(4);
+        }
+
+        public synchronized void addActivityForFeedback(ESActivity activity) {
+            putActivity(activity);
+            // Send notification to other components:
+            Intent intent = new Intent(BROADCAST_FEEDBACK_QUEUE_SIZE_CHANGED);
+            LocalBroadcastManager.getInstance(ESApplication.getTheAppContext()).sendBroadcast(intent);
         }
 
-        public void addActivityForFeedback(ESActivity activity) {
+        /**
+         * Add several activities to the queue, with a single notification of the queue size change.
+         */
+        public synchronized void addActivitiesForFeedback(List<ESActivity> activities) {
+            for (ESActivity activity : activities) {
+                putActivity(activity);
+            }
+            // Send notification to other components:
+            Intent intent = new Intent(BROADCAST_FEEDBACK_QUEUE_SIZE_CHANGED);
+            LocalBroadcastManager.getInstance(ESApplication.getTheAppContext()).sendBroadcast(intent);
+        }
+
+        private void putActivity(ESActivity activity) {
             ESTimestamp timestamp = activity.get_timestamp();
             if (!_activitiesToSend.containsKey(timestamp)) {
                 _timestampsQueue.add(timestamp);
             }
             _activitiesToSend.put(timestamp,activity);
-            // Send notification to other components:
-            Intent intent = new Intent(BROADCAST_FEEDBACK_QUEUE_SIZE_CHANGED);
-            LocalBroadcastManager.getInstance(ESApplication.getTheAppContext()).sendBroadcast(intent);
+            _lastVersion ++;
+            _versions.put(timestamp,_lastVersion);
         }
 
-        public int size() {
+        public synchronized int size() {
             return _timestampsQueue.size();
         }
 
-        public ESActivity getNextInQueue() {
-            if (_timestampsQueue.isEmpty()) {
-                return null;
+        /**
+         * Get the next items to send (up to maxItems of them).
+         * The items are kept in the queue (pushed to the end) until getting response from the server.
+         * @param maxItems The maximal number of items to take
+         * @return Snapshots of the next items in the queue
+         */
+        public synchronized ArrayList<ESFeedbackItem> getNextItemsInQueue(int maxItems) {
+            int numItems = Math.min(maxItems,_timestampsQueue.size());
+            ArrayList<ESFeedbackItem> items = new ArrayList<>(numItems);
+            for (int i = 0; i < numItems; i ++) {
+                ESTimestamp timestamp = _timestampsQueue.remove(0);
+                _timestampsQueue.add(timestamp);
+                items.add(new ESFeedbackItem(_activitiesToSend.get(timestamp),_versions.get(timestamp)));
             }
-            ESTimestamp timestamp = _timestampsQueue.remove(0);
-            _timestampsQueue.add(timestamp);
-            return _activitiesToSend.get(timestamp);
-        }
-
-        public void removeFromQueue(ESTimestamp timestamp) {
-            // Remove from the queue:
-            _timestampsQueue.remove(timestamp);
-            _activitiesToSend.remove(timestamp);
-            // Delete the marking file:
-            File feedbackFile = new File(ESApplication.getFeedbackDir(),timestamp.toString() + FEEDBACK_FILE_EXTENSION);
-            if (feedbackFile.exists()) {
-                feedbackFile.delete();
-                Log.i(LOG_TAG,"Deleted feedback file: " + feedbackFile.getName());
+            return items;
+        }
+
+        /**
+         * Remove the given sent items from the queue.
+         * An item whose minute was edited again after it was taken out to be sent stays in the queue,
+         * so the newer labels will be sent as well.
+         * @param sentItems The items that the server received
+         */
+        public synchronized void removeSentItemsFromQueue(ArrayList<ESFeedbackItem> sentItems) {
+            for (ESFeedbackItem item : sentItems) {
+                ESTimestamp timestamp = item._activity.get_timestamp();
+                Long currentVersion = _versions.get(timestamp);
+                if (currentVersion == null || currentVersion != item._version) {
+                    Log.i(LOG_TAG,"Feedback for " + timestamp + " was updated while being sent. Keeping it in the queue.");
+                    continue;
+                }
+                // Remove from the queue:
+                _timestampsQueue.remove(timestamp);
+                _activitiesToSend.remove(timestamp);
+                _versions.remove(timestamp);
+                // Delete the marking file:
+                File feedbackFile = new File(ESApplication.getFeedbackDir(),timestamp.toString() + FEEDBACK_FILE_EXTENSION);
+                if (feedbackFile.exists()) {
+                    feedbackFile.delete();
+                    Log.i(LOG_TAG,"Deleted feedback file: " + feedbackFile.getName());
+                }
             }
             // Send notification to other components:
             Intent intent = new Intent(BROADCAST_FEEDBACK_QUEUE_SIZE_CHANGED);
             LocalBroadcastManager.getInstance(ESApplication.getTheAppContext()).sendBroadcast(intent);
         }
 
-        public String toString() {
+        public synchronized String toString() {
             String str = "{";
             if (!_timestampsQueue.isEmpty()) {
                 str += _timestampsQueue.get(0);
@@ -184,6 +253,10 @@ public class ESNetworkAccessor {
     private ArrayList<String> _uploadQueue;
     private ESFeedbackQueue _feedbackQueue;
     private long _busyUntilTimeInMillis = 0;
+    private final AtomicBoolean _feedbackInFlight = new AtomicBoolean(false);
+    private volatile boolean _serverSupportsFeedbackBatch = true;
+    private ESNetworkRetryScheduler _uploadRetryScheduler;
+    private ESNetworkRetryScheduler _feedbackRetryScheduler;
     private BroadcastReceiver _broadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -191,10 +264,14 @@ public class ESNetworkAccessor {
                 Log.e(LOG_TAG,"received broadcast with null intent");
                 return;
             }
-            if (WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(intent.getAction())) {
-                Log.i(LOG_TAG,"received broadcast of WiFi connectivity change");
+            if (WifiManager.NETWORK_STATE_CHANGED_ACTION.equals(intent.getAction()) ||
+                    ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())) {
+                Log.i(LOG_TAG,"received broadcast of connectivity change: " + intent.getAction());
                 if (canWeUseNetworkNow()) {
                     Log.i(LOG_TAG,"We now have WiFi. Call upload and send from feedback queue");
+                    // Connectivity changes are the time to retry, rather than waiting for the backoff:
+                    _uploadRetryScheduler.reportConnectivityAvailable();
+                    _feedbackRetryScheduler.reportConnectivityAvailable();
                     uploadWhatYouHave();
                     sendFeedbackFromQueue();
                 }
@@ -215,10 +292,25 @@ public class ESNetworkAccessor {
             prepareTLSContext();
         }
         Log.i(LOG_TAG,"Initializing network accessor. Prepared TLS context: " + _sslContext);
+        _httpClient = new ESHttpClient(_sslContext,SERVER_HOSTNAME);
 
         _uploadQueue = new ArrayList<String>(8);
         _feedbackQueue = new ESFeedbackQueue();
-        ESApplication.getTheAppContext().registerReceiver(_broadcastReceiver,new IntentFilter(WifiManager.NETWORK_STATE_CHANGED_ACTION));
+        _uploadRetryScheduler = new ESNetworkRetryScheduler("upload",new Runnable() {
+            @Override
+            public void run() {
+                uploadWhatYouHave();
+            }
+        });
+        _feedbackRetryScheduler = new ESNetworkRetryScheduler("feedback",new Runnable() {
+            @Override
+            public void run() {
+                sendFeedbackFromQueue();
+            }
+        });
+        IntentFilter connectivityFilter = new IntentFilter(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+        connectivityFilter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+        ESApplication.getTheAppContext().registerReceiver(_broadcastReceiver,connectivityFilter);
         checkZipFilesInDirectory();
         checkFeedbackFilesInDirectory();
     }
@@ -309,6 +401,30 @@ public class ESNetworkAccessor {
         return _theSingleNetworkAccessor;
     }
 
+    /**
+     * Get the retry scheduler of the zip uploads (e.g. to look at its metrics)
+     * @return The upload retry scheduler
+     */
+    public ESNetworkRetryScheduler getUploadRetryScheduler() {
+        return _uploadRetryScheduler;
+    }
+
+    /**
+     * Get the retry scheduler of the labels feedback (e.g. to look at its metrics)
+     * @return The feedback retry scheduler
+     */
+    public ESNetworkRetryScheduler getFeedbackRetryScheduler() {
+        return _feedbackRetryScheduler;
+    }
+
+    /**
+     * Get the http client used for the server api calls (e.g. to look at its connection reuse counts)
+     * @return The http client
+     */
+    public ESHttpClient getHttpClient() {
+        return _httpClient;
+    }
+
     public boolean get_useHttps() {
         return _useHttps;
     }
@@ -317,6 +433,7 @@ public class ESNetworkAccessor {
         _useHttps = useHttps;
         if (_useHttps && _sslContext == null) {
             prepareTLSContext();
+            _httpClient = new ESHttpClient(_sslContext,SERVER_HOSTNAME);
         }
         Log.d(LOG_TAG,"Setting use-https to: " + _useHttps);
     }
@@ -363,6 +480,7 @@ public class ESNetworkAccessor {
             // Add the relevant activity to the feedback queue:
             _feedbackQueue.addActivityForFeedback(activity);
         }
+        _feedbackRetryScheduler.reportQueueSize(_feedbackQueue.size());
         Log.d(LOG_TAG,"Feedback Queue: " + _feedbackQueue);
     }
 
@@ -390,6 +508,7 @@ public class ESNetworkAccessor {
         }
         Log.v(LOG_TAG, "Adding to network queue: " + zipFileName);
         _uploadQueue.add(zipFileName);
+        _uploadRetryScheduler.reportQueueSize(_uploadQueue.size());
 
         // Send notification to other components:
         Intent intent = new Intent(BROADCAST_NETWORK_QUEUE_SIZE_CHANGED);
@@ -415,6 +534,7 @@ public class ESNetworkAccessor {
         File file = new File(ESApplication.getZipDir(),zipFileName);
         file.delete();
         Log.i(LOG_TAG,"Deleted and removed from network queue file: " + zipFileName);
+        _uploadRetryScheduler.reportQueueSize(_uploadQueue.size());
         // Send notification to other components:
         Intent intent = new Intent(BROADCAST_NETWORK_QUEUE_SIZE_CHANGED);
         LocalBroadcastManager.getInstance(ESApplication.getTheAppContext()).sendBroadcast(intent);
@@ -431,6 +551,11 @@ public class ESNetworkAccessor {
             Log.i(LOG_TAG,"There is no WiFi right now. Not uploading.");
             return;
         }
+        // Check if we're backing off after failures:
+        if (!_uploadRetryScheduler.canAttemptNow()) {
+            Log.i(LOG_TAG,"Waiting to retry uploading. Not uploading now. " + _uploadRetryScheduler);
+            return;
+        }
 
         // Check if busy:
         long nowInMillis = new Date().getTime();
@@ -454,6 +579,7 @@ public class ESNetworkAccessor {
         ESApiHandler.ESApiParams params = new ESApiHandler.ESApiParams(
                 ESApiHandler.API_TYPE.API_TYPE_UPLOAD_ZIP,nextZip,null,this);
         Log.d(LOG_TAG,"Created api params: " + params);
+        _uploadRetryScheduler.reportAttemptStarted();
         ESApiHandler api = new ESApiHandler();
         api.execute(params);
     }
@@ -514,11 +640,41 @@ public class ESNetworkAccessor {
         }
 
         _feedbackQueue.addActivityForFeedback(activity);
+        _feedbackRetryScheduler.reportQueueSize(_feedbackQueue.size());
         createFeedbackFile(activity.get_timestamp());
         Log.i(LOG_TAG,"Added activity " + activity.get_timestamp() + " to feedback queue, which is now: " + _feedbackQueue);
         sendFeedbackFromQueue();
     }
 
+    /**
+     * Add several activities (e.g. the minutes of a continuous activity that the user labeled) to the queue of sending feedback,
+     * together, so their labels can go to the server in a single (batch) request.
+     * @param activities The activities whose labels we wish to send
+     */
+    public void addToFeedbackQueue(List<ESActivity> activities) {
+        ArrayList<ESActivity> activitiesToAdd = new ArrayList<>(activities.size());
+        for (ESActivity activity : activities) {
+            // Activities that still have a zip file waiting to be sent will be added when the zip will be sent:
+            String relevantZipFilename = ESSensorManager.getZipFilename(activity.get_timestamp());
+            if (_uploadQueue.indexOf(relevantZipFilename) >= 0) {
+                Log.i(LOG_TAG,"Instance " + activity.get_timestamp() + " has zip file waiting to be sent, so not adding feedback file for it now.");
+                continue;
+            }
+            activitiesToAdd.add(activity);
+        }
+        if (activitiesToAdd.isEmpty()) {
+            return;
+        }
+
+        _feedbackQueue.addActivitiesForFeedback(activitiesToAdd);
+        _feedbackRetryScheduler.reportQueueSize(_feedbackQueue.size());
+        for (ESActivity activity : activitiesToAdd) {
+            createFeedbackFile(activity.get_timestamp());
+        }
+        Log.i(LOG_TAG,"Added " + activitiesToAdd.size() + " activities to feedback queue, which now has " + _feedbackQueue.size() + " items");
+        sendFeedbackFromQueue();
+    }
+
     private void sendFeedbackFromQueue() {
         Log.v(LOG_TAG,"sendFeedbackFromQueue() was called.");
         if (_feedbackQueue.size() <= 0) {
@@ -530,18 +686,63 @@ public class ESNetworkAccessor {
             Log.i(LOG_TAG,"There is no WiFi right now. Not sending.");
             return;
         }
+        // Check if we're backing off after failures:
+        if (!_feedbackRetryScheduler.canAttemptNow()) {
+            Log.i(LOG_TAG,"Waiting to retry sending feedback. Not sending now. " + _feedbackRetryScheduler);
+            return;
+        }
 
-        // Extract the first item in the queue (and push it to the end, to keep until getting response):
-        ESActivity activity = _feedbackQueue.getNextInQueue();
-        Log.i(LOG_TAG,"Popped from feedback queue activity: " + activity);
+        // Only one feedback request at a time (we're called from the main thread and from the api worker thread,
+        // so claim the slot atomically). Whatever gets queued meanwhile will go in the next request:
+        if (!_feedbackInFlight.compareAndSet(false,true)) {
+            Log.v(LOG_TAG,"Feedback request already in flight. Queued labels will be sent after it.");
+            return;
+        }
+
+        // Extract the next items in the queue (and push them to the end, to keep until getting response):
+        int maxItems = _serverSupportsFeedbackBatch ? MAX_FEEDBACK_BATCH_SIZE : 1;
+        ArrayList<ESFeedbackItem> items = _feedbackQueue.getNextItemsInQueue(maxItems);
+        if (items.isEmpty()) {
+            _feedbackInFlight.set(false);
+            return;
+        }
+        Log.i(LOG_TAG,"Popped from feedback queue items: " + items);
         Log.i(LOG_TAG,"Feedback queue now: " + _feedbackQueue);
 
-        ESApiHandler.ESApiParams params = new ESApiHandler.ESApiParams(ESApiHandler.API_TYPE.API_TYPE_FEEDBACK,null,activity,this);
+        ESApiHandler.API_TYPE apiType = items.size() > 1 ?
+                ESApiHandler.API_TYPE.API_TYPE_FEEDBACK_BATCH : ESApiHandler.API_TYPE.API_TYPE_FEEDBACK;
+        ESApiHandler.ESApiParams params = new ESApiHandler.ESApiParams(apiType,null,items,this);
         Log.d(LOG_TAG,"Created api params: " + params);
+        _feedbackRetryScheduler.reportAttemptStarted();
         ESApiHandler api = new ESApiHandler();
         api.execute(params);
     }
 
+    /**
+     * Mark that the feedback request finished (successfully or not).
+     * @param sentItems The items that reached the server, or null if the request failed.
+     */
+    private void handleFeedbackResponse(ArrayList<ESFeedbackItem> sentItems) {
+        try {
+            if (sentItems == null) {
+                // Don't try again right away. The scheduler will call us when it is time to retry:
+                _feedbackRetryScheduler.reportFailure();
+                return;
+            }
+
+            _feedbackQueue.removeSentItemsFromQueue(sentItems);
+            Log.i(LOG_TAG,"Removed " + sentItems.size() + " items from feedback queue. Now: " + _feedbackQueue);
+            _feedbackRetryScheduler.reportSuccess();
+            _feedbackRetryScheduler.reportQueueSize(_feedbackQueue.size());
+        }
+        finally {
+            _feedbackInFlight.set(false);
+        }
+
+        // Now lets call to send more feedbacks if the queue isn't empty:
+        sendFeedbackFromQueue();
+    }
+
 
     private void handleUploadedZip(ESTimestamp timestamp,String zipFilename,String predictedMainActivity,
                                    String[] predictedLabelNames,double[] predictedLabelProbs,
@@ -559,7 +760,6 @@ public class ESNetworkAccessor {
                 Log.e(LOG_TAG,"Response from server refers to non-existing activity record with timestamp: " + timestamp.infoString());
             }
             else {
-                predictedMainActivity = adjustPredictedActivity(predictedMainActivity);
                 dba.setESActivityServerPrediction(activity, predictedMainActivity,predictedLabelNames,predictedLabelProbs,locationLatLong);
                 Log.i(LOG_TAG, "After getting server prediction, activity is now: " + activity);
 
@@ -571,19 +771,34 @@ public class ESNetworkAccessor {
         }
 
         // Mark network is available:
+        _uploadRetryScheduler.reportSuccess();
         markNetworkIsNotBusy();
     }
 
-    private String adjustPredictedActivity(String predictedMainActivity) {
-        predictedMainActivity = ESLabelStrings.reverseStandardizeLabelFromNetwork(predictedMainActivity);
-        return predictedMainActivity;
-    }
-
     private void markNetworkIsNotBusy() {
         this._busyUntilTimeInMillis = 0;
         uploadWhatYouHave();
     }
 
+    /**
+     * Mark the network is available after a failed upload,
+     * but leave it to the retry scheduler to decide when to try uploading again.
+     */
+    private void handleUploadFailure() {
+        this._busyUntilTimeInMillis = 0;
+        _uploadRetryScheduler.reportFailure();
+    }
+
+    /**
+     * Give up on a zip whose file is gone (there is nothing to upload),
+     * without counting it as a network success or failure, and move on to the next zip.
+     */
+    private void handleMissingZip(String zipFilename) {
+        deleteZipFileAndRemoveFromUploadQueue(zipFilename);
+        _uploadRetryScheduler.reportAttemptAbandoned();
+        markNetworkIsNotBusy();
+    }
+
 
     private static class ESApiHandler extends AsyncTask<ESApiHandler.ESApiParams,Void,String> {
 
@@ -597,31 +812,29 @@ public class ESNetworkAccessor {
 
         public enum API_TYPE {
             API_TYPE_UPLOAD_ZIP,
-            API_TYPE_FEEDBACK
+            API_TYPE_FEEDBACK,
+            API_TYPE_FEEDBACK_BATCH
         }
 
         public static class ESApiParams {
             public API_TYPE _apiType;
             public String _zipFilenameForUpload;
-            public ESActivity _activityForFeedback;
+            public ArrayList<ESFeedbackItem> _itemsForFeedback;
             public ESNetworkAccessor _requester;
 
-            public ESApiParams(API_TYPE apiType,String zipFilenameForUpload,ESActivity activity,ESNetworkAccessor requester) {
+            public ESApiParams(API_TYPE apiType,String zipFilenameForUpload,ArrayList<ESFeedbackItem> itemsForFeedback,ESNetworkAccessor requester) {
                 _apiType = apiType;
                 _zipFilenameForUpload = zipFilenameForUpload;
-                _activityForFeedback = activity;
+                _itemsForFeedback = itemsForFeedback;
                 _requester = requester;
             }
 
             @Override
             public String toString() {
-                return "<apiType: " + _apiType + ", zipFilename: " + _zipFilenameForUpload + ", activity: " + _activityForFeedback + ">";
+                return "<apiType: " + _apiType + ", zipFilename: " + _zipFilenameForUpload + ", feedback items: " + _itemsForFeedback + ">";
             }
         }
 
-        private static final int READ_TIMEOUT_MILLIS = 10000;
-        private static final int CONNECT_TIMEOUT_MILLIS = 15000;
-
         private static final String LINE_END = "\r\n";
         private static final String TWO_HYPHENS = "--";
         private static final String BOUNDARY = "0xKhTmLbOuNdArY";
@@ -630,42 +843,19 @@ public class ESNetworkAccessor {
         private static final String REQUEST_FIELD_CLASSIFIER_NAME = "classifier_name";
         private static final String REQUEST_FIELD_TIMEZONE_NAME = "timezone_name";
 
-        private static final String RESPONSE_FIELD_TIMESTAMP = "timestamp";
-        private static final String RESPONSE_FIELD_SUCCESS = "success";
-        private static final String RESPONSE_FIELD_MESSAGE = "msg";
-        private static final String RESPONSE_FIELD_ZIP_FILE = "filename";
-        private static final String RESPONSE_FIELD_PREDICTED_MAIN_ACTIVITY = "predicted_activity";
-        private static final String RESPONSE_FIELD_PREDICTED_LABEL_NAMES = "label_names";
-        private static final String RESPONSE_FIELD_PREDICTED_LABEL_PROBS = "label_probs";
-        private static final String RESPONSE_FIELD_LOCATION_LAT_LONG = "location_lat_long";
-
-        private static String[] parseJSONArrayOfStrings(JSONArray jsona) {
-            try {
-                String[] strings = new String[jsona.length()];
-                for (int i = 0; i < jsona.length(); i++) {
-                    strings[i] = jsona.getString(i);
-                }
-                return strings;
-            }
-            catch (org.json.JSONException exception) {
-                Log.e(LOG_TAG,"Trouble getting array of strings from JSONArray: " + jsona);
-                return new String[]{};
-            }
-        }
-
-        private static double[] parseJSONArrayOfNumbers(JSONArray jsona) {
-            try {
-                double[] numbers = new double[jsona.length()];
-                for (int i = 0; i < jsona.length(); i++) {
-                    numbers[i] = jsona.getDouble(i);
-                }
-                return numbers;
-            }
-            catch (org.json.JSONException exception) {
-                Log.e(LOG_TAG,"Trouble getting array of doubles from JSONArray: " + jsona);
-                return new double[]{};
-            }
-        }
+        private static final String FEEDBACK_FIELD_UUID = "uuid";
+        private static final String FEEDBACK_FIELD_TIMESTAMP = "timestamp";
+        private static final String FEEDBACK_FIELD_LABEL_SOURCE = "label_source";
+        private static final String FEEDBACK_FIELD_PREDICTED_ACTIVITY = "predicted_activity";
+        private static final String FEEDBACK_FIELD_CORRECTED_ACTIVITY = "corrected_activity";
+        private static final String FEEDBACK_FIELD_SECONDARY_ACTIVITIES = "secondary_activities";
+        private static final String FEEDBACK_FIELD_MOODS = "moods";
+        private static final String FEEDBACK_FIELD_SEND_TIME = "timestampOfSendingFeedback";
+        private static final String FEEDBACK_FIELD_OPEN_FORM_TIME = "timestampOfOpeningFeedbackForm";
+        private static final String FEEDBACK_FIELD_SEND_BUTTON_TIME = "timestampOfPressingSendFeedbackButton";
+        private static final String FEEDBACK_FIELD_NOTIFICATION_TIME = "timestampOfNotificationAppear";
+        private static final String FEEDBACK_FIELD_RESPOND_TO_NOTIFICATION_TIME = "timestampOfUserRespondToNotification";
+        private static final String FEEDBACK_FIELD_BATCH_ITEMS = "feedback";
 
         private void doApiRequest(ESApiParams params) {
             Log.v(LOG_TAG,"API params: " + params);
@@ -681,55 +871,38 @@ public class ESNetworkAccessor {
                 case API_TYPE_FEEDBACK:
                     apiFeedback(params);
                     break;
+                case API_TYPE_FEEDBACK_BATCH:
+                    apiFeedbackBatch(params);
+                    break;
                 default:
                     Log.e(LOG_TAG,"Unsupported api type: " + params._apiType);
             }
 
         }
 
-        private void prepareConnectionForHTTPS(HttpURLConnection conn,ESApiParams params) {
-            HttpsURLConnection httpsURLConnection = (HttpsURLConnection)conn;
-            httpsURLConnection.setSSLSocketFactory(params._requester._sslContext.getSocketFactory());
-            httpsURLConnection.setHostnameVerifier(new HostnameVerifier() {
-                @Override
-                public boolean verify(String hostname, SSLSession session) {
-                    return SERVER_HOSTNAME.equals(hostname);
-                }
-            });
-        }
-
         private void apiFeedback(ESApiParams params) {
             Resources resources = ESApplication.getTheAppContext().getResources();
-            String apiSuffix = resources.getString(R.string.api_feedback) + "?" + prepareFeedbackApiParameters(params._activityForFeedback);
+            ESActivity activity = params._itemsForFeedback.get(0)._activity;
+            String apiSuffix = resources.getString(R.string.api_feedback) + "?" + prepareFeedbackApiParameters(activity);
             Log.i(LOG_TAG,"Feedback api call: " + apiSuffix);
 
             String apiUrl = (params._requester.shouldSendWithHttps() ? SERVER_HTTPS_API_PREFIX : SERVER_HTTP_API_PREFIX)
                     + apiSuffix;
             Log.i(LOG_TAG,"Feedback api url: " + apiUrl);
 
+            ArrayList<ESFeedbackItem> sentItems = null;
             try {
-                URL url = new URL(apiUrl);
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                if (params._requester.shouldSendWithHttps()) {
-                    prepareConnectionForHTTPS(conn,params);
-                }
-                conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
-                conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+                HttpURLConnection conn = params._requester._httpClient.openConnection(apiUrl,params._requester.shouldSendWithHttps());
                 conn.setDoOutput(false);
                 conn.setDoInput(true); // Allow Inputs
-                conn.setUseCaches(false); // Don't use a Cached Copy
                 conn.setRequestMethod("GET");
-                //conn.setRequestProperty("Connection", "Keep-Alive");
 
                 conn.connect();
 
-                JSONObject response = getServerResponseAndDisconnect(conn,"feedback");
-                // If we've reached this far, lets remove this activity from the feedback queue:
-                params._requester._feedbackQueue.removeFromQueue(params._activityForFeedback.get_timestamp());
-                Log.i(LOG_TAG,"Removed " + params._activityForFeedback.get_timestamp() + " from feedback queue. Now: " + params._requester._feedbackQueue);
-
-                // Now lets call to send more feedbacks if the queue isn't empty:
-                params._requester.sendFeedbackFromQueue();
+                getServerResponse(conn,"feedback");
+                // If we've reached this far, lets remove this activity from the feedback queue
+                // (and send more feedbacks if the queue isn't empty):
+                sentItems = params._itemsForFeedback;
 
             } catch (MalformedURLException e) {
                 Log.e(LOG_TAG,"Problem with api URL");
@@ -740,10 +913,107 @@ public class ESNetworkAccessor {
             } catch (IOException e) {
                 Log.e(LOG_TAG,"Failed with feedback api");
                 e.printStackTrace();
+            } finally {
+                // Whatever happened (even an unexpected exception), the request is no longer in flight:
+                params._requester.handleFeedbackResponse(sentItems);
             }
         }
 
-        private JSONObject getServerResponseAndDisconnect(HttpURLConnection conn,String api_type) {
+        /**
+         * Send the labels of many minute-activities in a single POST request, with a JSON body.
+         * Each item in the body has the same fields as the parameters of the single feedback api.
+         * If the server doesn't have the batch api (responds 404), we fall back to sending
+         * one activity per request.
+         * @param params The api parameters, holding the feedback items to send
+         */
+        private void apiFeedbackBatch(ESApiParams params) {
+            Resources resources = ESApplication.getTheAppContext().getResources();
+            String apiUrl = (params._requester.shouldSendWithHttps() ? SERVER_HTTPS_API_PREFIX : SERVER_HTTP_API_PREFIX)
+                    + resources.getString(R.string.api_feedback_batch);
+            Log.i(LOG_TAG,"Feedback batch api url: " + apiUrl + ". Sending " + params._itemsForFeedback.size() + " activities.");
+
+            ArrayList<ESFeedbackItem> sentItems = null;
+            try {
+                byte[] body = prepareFeedbackBatchBody(params._itemsForFeedback).toString().getBytes("UTF-8");
+
+                HttpURLConnection conn = params._requester._httpClient.openConnection(apiUrl,params._requester.shouldSendWithHttps());
+                conn.setDoOutput(true);
+                conn.setDoInput(true); // Allow Inputs
+                conn.setRequestMethod("POST");
+                conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+                conn.setFixedLengthStreamingMode(body.length);
+
+                DataOutputStream dos = new DataOutputStream(conn.getOutputStream());
+                dos.write(body);
+                dos.flush();
+                dos.close();
+
+                if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                    Log.w(LOG_TAG,"Server doesn't support the feedback batch api. Falling back to sending single feedbacks.");
+                    ESHttpClient.release(conn);
+                    params._requester._serverSupportsFeedbackBatch = false;
+                    // Nothing was sent, but we can go on sending (one by one):
+                    sentItems = new ArrayList<>(0);
+                    return;
+                }
+
+                ESServerResponseDecoder.ESServerResponse response = getServerResponse(conn,"feedback batch");
+                // The server saves all the batch or none of it, so unless it succeeded, keep all the items in the queue:
+                if (response != null && response._success) {
+                    sentItems = params._itemsForFeedback;
+                }
+            } catch (MalformedURLException e) {
+                Log.e(LOG_TAG,"Problem with api URL");
+                e.printStackTrace();
+            } catch (ProtocolException e) {
+                Log.e(LOG_TAG,"Bad HTTP protocol");
+                e.printStackTrace();
+            } catch (IOException e) {
+                Log.e(LOG_TAG,"Failed with feedback batch api");
+                e.printStackTrace();
+            } catch (JSONException e) {
+                Log.e(LOG_TAG,"Failed preparing feedback batch body");
+                e.printStackTrace();
+            } finally {
+                // Whatever happened (even an unexpected exception), the request is no longer in flight:
+                params._requester.handleFeedbackResponse(sentItems);
+            }
+        }
+
+        private JSONObject prepareFeedbackBatchBody(ArrayList<ESFeedbackItem> items) throws JSONException {
+            JSONArray feedbackArray = new JSONArray();
+            for (ESFeedbackItem item : items) {
+                ESActivity activity = item._activity;
+                JSONObject feedback = new JSONObject();
+                feedback.put(FEEDBACK_FIELD_TIMESTAMP,activity.get_timestamp().get_secondsSinceEpoch());
+                feedback.put(FEEDBACK_FIELD_LABEL_SOURCE,networkValue(activity.get_labelSource()));
+                feedback.put(FEEDBACK_FIELD_PREDICTED_ACTIVITY,networkValue(activity.get_mainActivityServerPrediction()));
+                feedback.put(FEEDBACK_FIELD_CORRECTED_ACTIVITY,networkValue(activity.get_mainActivityUserCorrection()));
+                feedback.put(FEEDBACK_FIELD_SECONDARY_ACTIVITIES,ESLabelStrings.makeCSVForNetwork(activity.get_secondaryActivities()));
+                feedback.put(FEEDBACK_FIELD_MOODS,ESLabelStrings.makeCSVForNetwork(activity.get_moods()));
+                feedback.put(FEEDBACK_FIELD_OPEN_FORM_TIME,networkValue(activity.get_timestampOpenFeedbackForm()));
+                feedback.put(FEEDBACK_FIELD_SEND_BUTTON_TIME,networkValue(activity.get_timestampPressSendButton()));
+                feedback.put(FEEDBACK_FIELD_NOTIFICATION_TIME,networkValue(activity.get_timestampNotification()));
+                feedback.put(FEEDBACK_FIELD_RESPOND_TO_NOTIFICATION_TIME,networkValue(activity.get_timestampUserRespondToNotification()));
+                feedbackArray.put(feedback);
+            }
+
+            JSONObject body = new JSONObject();
+            body.put(FEEDBACK_FIELD_UUID,ESSettings.uuid());
+            body.put(FEEDBACK_FIELD_SEND_TIME,new ESTimestamp().toString());
+            body.put(FEEDBACK_FIELD_BATCH_ITEMS,feedbackArray);
+            return body;
+        }
+
+        /**
+         * Represent a value the same way the single feedback api does in its url parameters
+         * (including "null" for missing values, and underscores instead of spaces).
+         */
+        private static String networkValue(Object value) {
+            return String.valueOf(value).replace(' ','_');
+        }
+
+        private ESServerResponseDecoder.ESServerResponse getServerResponse(HttpURLConnection conn,String api_type) {
             try {
                 // Responses from the server (code and message)
                 int responseCode = conn.getResponseCode();
@@ -751,23 +1021,22 @@ public class ESNetworkAccessor {
                 Log.i(LOG_TAG, "HTTP Response is : "
                         + serverResponseMessage + ": " + responseCode);
 
-                InputStream inputStream = conn.getInputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream));
-                StringBuilder stringBuilder = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    stringBuilder.append(line);
+                // Decode the response straight from the stream
+                // (and read it to the end, so the connection can be reused for the next call):
+                InputStream inputStream = ESHttpClient.getResponseStream(conn);
+                ESServerResponseDecoder.ESServerResponse response;
+                try {
+                    response = ESServerResponseDecoder.decode(inputStream);
                 }
-                String responseStr = stringBuilder.toString();
-                Log.i(LOG_TAG, "ESS server responded: " + responseStr);
-
-                conn.disconnect();
+                finally {
+                    ESHttpClient.closeResponseStream(inputStream);
+                }
+                Log.v(LOG_TAG, "ESS server responded: " + response);
 
                 // Analyze the response:
-                JSONObject response = new JSONObject(responseStr);
-                if (!response.getBoolean(RESPONSE_FIELD_SUCCESS)) {
+                if (!response._success) {
                     Log.e(LOG_TAG, "Server said "+ api_type + " failed.");
-                    Log.e(LOG_TAG, "Server message: " + response.getString(RESPONSE_FIELD_MESSAGE));
+                    Log.e(LOG_TAG, "Server message: " + response._message);
                 }
 
                 return response;
@@ -776,22 +1045,18 @@ public class ESNetworkAccessor {
                 Log.e(LOG_TAG,"Failed with " + api_type + " api");
                 e.printStackTrace();
             }
-            catch (JSONException e) {
-                Log.e(LOG_TAG,"Failed analyze RMW server response");
-                e.printStackTrace();
-            }
 
             return null;
         }
 
         private String prepareFeedbackApiParameters(ESActivity activity) {
-            String uuidStr = "uuid=" + ESSettings.uuid();
-            String timestampStr = "timestamp=" + activity.get_timestamp();
-            String labelSourceStr = "label_source=" + activity.get_labelSource();
-            String mainPredictionStr = "predicted_activity=" + activity.get_mainActivityServerPrediction();
-            String mainUserStr = "corrected_activity=" + activity.get_mainActivityUserCorrection();
-            String secondaryStr = "secondary_activities=" + ESLabelStrings.makeCSVForNetwork(activity.get_secondaryActivities());
-            String moodStr = "moods=" + ESLabelStrings.makeCSVForNetwork(activity.get_moods());
+            String uuidStr = FEEDBACK_FIELD_UUID + "=" + ESSettings.uuid();
+            String timestampStr = FEEDBACK_FIELD_TIMESTAMP + "=" + activity.get_timestamp();
+            String labelSourceStr = FEEDBACK_FIELD_LABEL_SOURCE + "=" + activity.get_labelSource();
+            String mainPredictionStr = FEEDBACK_FIELD_PREDICTED_ACTIVITY + "=" + activity.get_mainActivityServerPrediction();
+            String mainUserStr = FEEDBACK_FIELD_CORRECTED_ACTIVITY + "=" + activity.get_mainActivityUserCorrection();
+            String secondaryStr = FEEDBACK_FIELD_SECONDARY_ACTIVITIES + "=" + ESLabelStrings.makeCSVForNetwork(activity.get_secondaryActivities());
+            String moodStr = FEEDBACK_FIELD_MOODS + "=" + ESLabelStrings.makeCSVForNetwork(activity.get_moods());
 
             String apiParams = uuidStr + "&" +
                     timestampStr + "&" +
@@ -802,13 +1067,13 @@ public class ESNetworkAccessor {
                     moodStr;
 
             // Adding more information (including about interaction of the user with the app):
-            String sendTimeStr = "timestampOfSendingFeedback=" + new ESTimestamp().toString();
+            String sendTimeStr = FEEDBACK_FIELD_SEND_TIME + "=" + new ESTimestamp().toString();
             apiParams += "&" + sendTimeStr;
             // Adding information about user interaction with the app:
-            String openFeedbackFormTimeStr = "timestampOfOpeningFeedbackForm=" + activity.get_timestampOpenFeedbackForm();
-            String sendButtonPressTimeStr = "timestampOfPressingSendFeedbackButton=" + activity.get_timestampPressSendButton();
-            String notificationTimeStr = "timestampOfNotificationAppear=" + activity.get_timestampNotification();
-            String userResToNotifTimeStr = "timestampOfUserRespondToNotification=" + activity.get_timestampUserRespondToNotification();
+            String openFeedbackFormTimeStr = FEEDBACK_FIELD_OPEN_FORM_TIME + "=" + activity.get_timestampOpenFeedbackForm();
+            String sendButtonPressTimeStr = FEEDBACK_FIELD_SEND_BUTTON_TIME + "=" + activity.get_timestampPressSendButton();
+            String notificationTimeStr = FEEDBACK_FIELD_NOTIFICATION_TIME + "=" + activity.get_timestampNotification();
+            String userResToNotifTimeStr = FEEDBACK_FIELD_RESPOND_TO_NOTIFICATION_TIME + "=" + activity.get_timestampUserRespondToNotification();
 
             apiParams += "&" + openFeedbackFormTimeStr + "&" + sendButtonPressTimeStr + "&" + notificationTimeStr + "&" + userResToNotifTimeStr;
 
@@ -827,6 +1092,7 @@ public class ESNetworkAccessor {
                 File zipFile = new File(ESApplication.getZipDir(),zipFilename);
                 if (!zipFile.exists()) {
                     Log.e(LOG_TAG,"Zip file doesn't exist: " + zipFilename);
+                    params._requester.handleMissingZip(zipFilename);
                     return;
                 }
 
@@ -834,23 +1100,15 @@ public class ESNetworkAccessor {
                         + resources.getString(R.string.api_upload_zip) +
                         "?" + REQUEST_FIELD_CLASSIFIER_TYPE + "=" + ESSettings.classifierType() +
                         "&" + REQUEST_FIELD_CLASSIFIER_NAME + "=" + ESSettings.classifierName();
-                URL url = new URL(urlString);
-                Log.i(LOG_TAG,"Api url: " + url);
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                if (params._requester.shouldSendWithHttps()) {
-                    prepareConnectionForHTTPS(conn,params);
-                }
-                conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
-                conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+                Log.i(LOG_TAG,"Api url: " + urlString);
+                HttpURLConnection conn = params._requester._httpClient.openConnection(urlString,params._requester.shouldSendWithHttps());
                 conn.setDoOutput(true);
                 conn.setDoInput(true); // Allow Inputs
-                conn.setUseCaches(false); // Don't use a Cached Copy
                 conn.setRequestMethod("POST");
 
                 conn.setRequestProperty(REQUEST_FIELD_CLASSIFIER_TYPE,ESSettings.classifierType());
                 conn.setRequestProperty(REQUEST_FIELD_CLASSIFIER_NAME,ESSettings.classifierName());
 
-                conn.setRequestProperty("Connection", "Keep-Alive");
                 conn.setRequestProperty("ENCTYPE", "multipart/form-data");
                 conn.setRequestProperty("Content-Type", "multipart/form-data;boundary=" + BOUNDARY);
                 conn.setRequestProperty("uploaded_file", zipFilename);
@@ -885,6 +1143,9 @@ public class ESNetworkAccessor {
                 // send multipart form data necesssary after file data...
                 dos.writeBytes(LINE_END);
                 dos.writeBytes(TWO_HYPHENS + BOUNDARY + TWO_HYPHENS + LINE_END);
+                fileInputStream.close();
+                dos.flush();
+                dos.close();
 
                 // Send the request:
                 conn.connect();
@@ -896,42 +1157,42 @@ public class ESNetworkAccessor {
                 String[] predictedLabelNames = null;
                 double[] predictedLabelProbs = null;
                 double[] locationLatLong = null;
-                JSONObject response = getServerResponseAndDisconnect(conn,"upload");
-                if (response != null) {
-                    timestamp = new ESTimestamp(response.getInt(RESPONSE_FIELD_TIMESTAMP));
-                    responseZipFilename = response.getString(RESPONSE_FIELD_ZIP_FILE);
-                    predictedMainActivity = response.getString(RESPONSE_FIELD_PREDICTED_MAIN_ACTIVITY);
-
-                    predictedLabelNames = ESLabelStrings.reverseStandardizeLabelsFromNetwork(parseJSONArrayOfStrings(response.getJSONArray(RESPONSE_FIELD_PREDICTED_LABEL_NAMES)));
-                    predictedLabelProbs = parseJSONArrayOfNumbers(response.getJSONArray(RESPONSE_FIELD_PREDICTED_LABEL_PROBS));
+                ESServerResponseDecoder.ESServerResponse response = getServerResponse(conn,"upload");
+                if (response == null || !response.hasTimestamp() || response._zipFilename == null ||
+                        response._predictedLabelNames == null || response._predictedLabelProbs == null) {
+                    // Keep the zip in the queue and try again later:
+                    Log.e(LOG_TAG,"Got no valid response for uploading " + zipFilename);
+                    params._requester.handleUploadFailure();
+                    return;
+                }
+                else {
+                    // The decoder already mapped the label names back from their network format:
+                    timestamp = new ESTimestamp(response._timestamp);
+                    responseZipFilename = response._zipFilename;
+                    predictedMainActivity = response._predictedMainActivity;
+
+                    predictedLabelNames = response._predictedLabelNames;
+                    predictedLabelProbs = response._predictedLabelProbs;
                     if (predictedLabelNames.length != predictedLabelProbs.length) {
                         Log.e(LOG_TAG,"Server responded with prediction label names and label probabilities of inconsistent sizes. Changing them both to empty.");
+                        predictedLabelNames = new String[]{};
+                        predictedLabelProbs = new double[]{};
                     }
 
-                    if (response.isNull(RESPONSE_FIELD_LOCATION_LAT_LONG)) {
-                        locationLatLong = null;
-                    }
-                    else {
-                        locationLatLong = parseJSONArrayOfNumbers(response.getJSONArray(RESPONSE_FIELD_LOCATION_LAT_LONG));
-                    }
+                    locationLatLong = response._locationLatLong;
                 }
 
-                conn.disconnect();
                 params._requester.handleUploadedZip(timestamp, responseZipFilename, predictedMainActivity,
                         predictedLabelNames,predictedLabelProbs,locationLatLong);
 
             } catch (MalformedURLException e) {
                 Log.e(LOG_TAG,"Failed with creating URI for uploading zip");
                 e.printStackTrace();
-                params._requester.markNetworkIsNotBusy();
+                params._requester.handleUploadFailure();
             } catch (IOException e) {
                 Log.e(LOG_TAG,"Failed with uploading zip");
                 e.printStackTrace();
-                params._requester.markNetworkIsNotBusy();
-            } catch (JSONException e) {
-                Log.e(LOG_TAG,"Error parsing the server response");
-                e.printStackTrace();
-                params._requester.markNetworkIsNotBusy();
+                params._requester.handleUploadFailure();
             }
 
         }
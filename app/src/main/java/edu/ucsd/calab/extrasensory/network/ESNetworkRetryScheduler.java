@@ -0,0 +1,243 @@
+package edu.ucsd.calab.extrasensory.network;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * This class decides when to retry a failed network operation (uploading a zip, sending feedback).
+ * After a failure, the retry is scheduled with exponential backoff (with random jitter),
+ * and while waiting for it, no other attempts are made (e.g. by new recordings being added to the queue).
+ * After too many consecutive failures the circuit "opens": we assume the server is down,
+ * and only try again after a long cool-down, or when the connectivity changes.
+ * Then the circuit is "half-open": a single probe attempt is let through, and until it reports back
+ * (or takes too long to), no other attempts are made.
+ *
+ * The scheduler also keeps some metrics about the retries, failures and the time it takes to drain the queue.
+ *
+ * ========================================
+ * The ExtraSensory App
+ * Please see ExtraSensory App website for details and citation requirements:
+ * http://extrasensory.ucsd.edu/ExtraSensoryApp
+ * ========================================
+ */
+public class ESNetworkRetryScheduler {
+
+    private static final String LOG_TAG = "[ESNetworkRetryScheduler]";
+
+    private static final long BASE_BACKOFF_MILLIS = 5000;
+    private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+    private static final int FAILURES_TO_OPEN_CIRCUIT = 6;
+    private static final long OPEN_CIRCUIT_COOL_DOWN_MILLIS = 15 * 60 * 1000;
+    // A probe that didn't report back after this long (e.g. its request was never made) no longer blocks other attempts:
+    private static final long PROBE_TIMEOUT_MILLIS = 2 * 60 * 1000;
+
+    private enum CircuitState {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String _name;
+    private final Runnable _retryAction;
+    private final Handler _handler;
+    private final Random _random;
+
+    private CircuitState _circuitState = CircuitState.CLOSED;
+    private int _consecutiveFailures = 0;
+    private boolean _retryPending = false;
+    // When the half-open probe attempt started (or -1 if no probe is in flight):
+    private long _probeStartTimeMillis = -1;
+
+    // Metrics:
+    private int _numSuccesses = 0;
+    private int _numFailures = 0;
+    private int _numRetriesScheduled = 0;
+    private int _numTimesCircuitOpened = 0;
+    private long _backlogStartTimeMillis = -1;
+    private long _lastDrainTimeMillis = -1;
+
+    private final Runnable _retryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ESNetworkRetryScheduler.this) {
+                _retryPending = false;
+                if (_circuitState == CircuitState.OPEN) {
+                    Log.i(LOG_TAG,_name + ": cool-down is over. Letting a probe attempt through.");
+                    _circuitState = CircuitState.HALF_OPEN;
+                }
+            }
+            Log.i(LOG_TAG,_name + ": retrying.");
+            _retryAction.run();
+        }
+    };
+
+    /**
+     * Create a retry scheduler.
+     * @param name A name for the log messages
+     * @param retryAction What to do when it is time to retry. It runs on the main thread.
+     */
+    ESNetworkRetryScheduler(String name,Runnable retryAction) {
+        _name = name;
+        _retryAction = retryAction;
+        _handler = new Handler(Looper.getMainLooper());
+        _random = new Random();
+    }
+
+    /**
+     * Should an attempt be made now?
+     * Not while waiting for a scheduled retry, not while the circuit is open,
+     * and not while the probe attempt of a half-open circuit is in flight.
+     * @return true iff it is ok to use the network for this operation now
+     */
+    public synchronized boolean canAttemptNow() {
+        if (_retryPending || _circuitState == CircuitState.OPEN) {
+            return false;
+        }
+        return _circuitState != CircuitState.HALF_OPEN || !isProbeInFlight();
+    }
+
+    private boolean isProbeInFlight() {
+        return _probeStartTimeMillis >= 0 &&
+                SystemClock.elapsedRealtime() - _probeStartTimeMillis < PROBE_TIMEOUT_MILLIS;
+    }
+
+    /**
+     * Report that an attempt is being made (after canAttemptNow() allowed it).
+     * If the circuit is half-open, this attempt is the probe, and it blocks other attempts until it reports back.
+     */
+    public synchronized void reportAttemptStarted() {
+        if (_circuitState == CircuitState.HALF_OPEN) {
+            _probeStartTimeMillis = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Report that an attempt was given up before using the network (e.g. there was nothing to send after all).
+     * It counts as neither a success nor a failure, but if it was the probe, another attempt may now be the probe.
+     */
+    public synchronized void reportAttemptAbandoned() {
+        _probeStartTimeMillis = -1;
+    }
+
+    /**
+     * Report that an attempt succeeded.
+     */
+    public synchronized void reportSuccess() {
+        _probeStartTimeMillis = -1;
+        _numSuccesses ++;
+        _consecutiveFailures = 0;
+        if (_circuitState != CircuitState.CLOSED) {
+            Log.i(LOG_TAG,_name + ": attempt succeeded. Closing the circuit.");
+            _circuitState = CircuitState.CLOSED;
+        }
+    }
+
+    /**
+     * Report that an attempt failed, and schedule the retry.
+     */
+    public synchronized void reportFailure() {
+        _probeStartTimeMillis = -1;
+        _numFailures ++;
+        _consecutiveFailures ++;
+
+        if (_circuitState == CircuitState.HALF_OPEN || _consecutiveFailures >= FAILURES_TO_OPEN_CIRCUIT) {
+            if (_circuitState != CircuitState.OPEN) {
+                _numTimesCircuitOpened ++;
+            }
+            _circuitState = CircuitState.OPEN;
+            Log.w(LOG_TAG,_name + ": " + _consecutiveFailures + " consecutive failures. Opening the circuit for " +
+                    (OPEN_CIRCUIT_COOL_DOWN_MILLIS / 1000) + " seconds.");
+            scheduleRetry(OPEN_CIRCUIT_COOL_DOWN_MILLIS);
+            return;
+        }
+
+        scheduleRetry(backoffWithJitter(_consecutiveFailures));
+    }
+
+    /**
+     * Report that the network connectivity changed and we can use the network now.
+     * Any waiting retry is cancelled (the caller should attempt right away),
+     * and an open circuit moves to half-open, to let a single probe attempt through.
+     */
+    public synchronized void reportConnectivityAvailable() {
+        if (_retryPending) {
+            _handler.removeCallbacks(_retryRunnable);
+            _retryPending = false;
+        }
+        if (_circuitState == CircuitState.OPEN) {
+            Log.i(LOG_TAG,_name + ": connectivity changed. Letting a probe attempt through.");
+            _circuitState = CircuitState.HALF_OPEN;
+        }
+    }
+
+    /**
+     * Update the size of the queue this scheduler is in charge of,
+     * to measure how long it takes to drain the queue.
+     * @param queueSize The current number of items in the queue
+     */
+    public synchronized void reportQueueSize(int queueSize) {
+        long now = SystemClock.elapsedRealtime();
+        if (queueSize > 0 && _backlogStartTimeMillis < 0) {
+            _backlogStartTimeMillis = now;
+        }
+        else if (queueSize <= 0 && _backlogStartTimeMillis >= 0) {
+            _lastDrainTimeMillis = now - _backlogStartTimeMillis;
+            _backlogStartTimeMillis = -1;
+            Log.i(LOG_TAG,_name + ": queue drained in " + _lastDrainTimeMillis + "ms. " + this);
+        }
+    }
+
+    private long backoffWithJitter(int failures) {
+        long backoff = BASE_BACKOFF_MILLIS;
+        for (int i = 1; i < failures && backoff < MAX_BACKOFF_MILLIS; i ++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff,MAX_BACKOFF_MILLIS);
+        // Random jitter (in the upper half of the backoff), so retries don't come in lockstep:
+        return backoff / 2 + (long)(_random.nextDouble() * (backoff / 2));
+    }
+
+    private void scheduleRetry(long delayMillis) {
+        _handler.removeCallbacks(_retryRunnable);
+        _handler.postDelayed(_retryRunnable,delayMillis);
+        _retryPending = true;
+        _numRetriesScheduled ++;
+        Log.i(LOG_TAG,_name + ": scheduled retry in " + delayMillis + "ms.");
+    }
+
+    public synchronized int get_numSuccesses() {
+        return _numSuccesses;
+    }
+
+    public synchronized int get_numFailures() {
+        return _numFailures;
+    }
+
+    public synchronized int get_numRetriesScheduled() {
+        return _numRetriesScheduled;
+    }
+
+    public synchronized int get_numTimesCircuitOpened() {
+        return _numTimesCircuitOpened;
+    }
+
+    /**
+     * Get the time it took to drain the queue, the last time it got drained.
+     * @return The drain time in milliseconds, or -1 if the queue was never drained.
+     */
+    public synchronized long get_lastDrainTimeMillis() {
+        return _lastDrainTimeMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "<" + _name + ": circuit " + _circuitState + (isProbeInFlight() ? " (probe in flight)" : "") + ", consecutive failures: " + _consecutiveFailures +
+                ", successes: " + _numSuccesses + ", failures: " + _numFailures +
+                ", retries scheduled: " + _numRetriesScheduled + ", circuit opened: " + _numTimesCircuitOpened +
+                ", last drain time: " + _lastDrainTimeMillis + "ms>";
+    }
+}
@@ -0,0 +1,157 @@
+package edu.ucsd.calab.extrasensory.network;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+import edu.ucsd.calab.extrasensory.data.ESLabelStrings;
+
+/**
+ * This class decodes the JSON responses of the ExtraSensory server (ESS) straight from the response stream,
+ * without first reading the whole body into a String and a JSONObject.
+ * The predicted label names and probabilities are pulled directly into arrays,
+ * and the network label names are mapped back to our label names through a lookup table
+ * (see ESLabelStrings.getLabelFromNetworkName()).
+ *
+ * ========================================
+ * The ExtraSensory App
+ * Please see ExtraSensory App website for details and citation requirements:
+ * http://extrasensory.ucsd.edu/ExtraSensoryApp
+ * ========================================
+ */
+class ESServerResponseDecoder {
+
+    private static final String LOG_TAG = "[ESServerResponseDecoder]";
+
+    static final String RESPONSE_FIELD_TIMESTAMP = "timestamp";
+    static final String RESPONSE_FIELD_SUCCESS = "success";
+    static final String RESPONSE_FIELD_MESSAGE = "msg";
+    static final String RESPONSE_FIELD_ZIP_FILE = "filename";
+    static final String RESPONSE_FIELD_PREDICTED_MAIN_ACTIVITY = "predicted_activity";
+    static final String RESPONSE_FIELD_PREDICTED_LABEL_NAMES = "label_names";
+    static final String RESPONSE_FIELD_PREDICTED_LABEL_PROBS = "label_probs";
+    static final String RESPONSE_FIELD_LOCATION_LAT_LONG = "location_lat_long";
+
+    private static final int INITIAL_ARRAY_CAPACITY = 64;
+
+    /**
+     * The decoded content of a server response.
+     * Fields that were missing from the response are left as null (or false / -1).
+     */
+    static class ESServerResponse {
+        boolean _success = false;
+        String _message = null;
+        int _timestamp = -1;
+        String _zipFilename = null;
+        String _predictedMainActivity = null;
+        String[] _predictedLabelNames = null;
+        double[] _predictedLabelProbs = null;
+        double[] _locationLatLong = null;
+
+        boolean hasTimestamp() {
+            return _timestamp >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return "<success: " + _success + ", msg: " + _message + ", timestamp: " + _timestamp +
+                    ", filename: " + _zipFilename + ", predicted: " + _predictedMainActivity +
+                    ", labels: " + (_predictedLabelNames == null ? 0 : _predictedLabelNames.length) +
+                    ", lat/long: " + Arrays.toString(_locationLatLong) + ">";
+        }
+    }
+
+    /**
+     * Decode a server response from the given stream.
+     * The stream is read up to the end of the response object, but not closed.
+     * @param inputStream The stream of the response body (assumed UTF-8)
+     * @return The decoded response
+     * @throws IOException If the stream fails, or the body is not a well formed response object
+     */
+    static ESServerResponse decode(InputStream inputStream) throws IOException {
+        long startNanos = System.nanoTime();
+        ESServerResponse response = new ESServerResponse();
+        JsonReader reader = new JsonReader(new InputStreamReader(inputStream,"UTF-8"));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String field = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+                switch (field) {
+                    case RESPONSE_FIELD_SUCCESS:
+                        response._success = reader.nextBoolean();
+                        break;
+                    case RESPONSE_FIELD_MESSAGE:
+                        response._message = reader.nextString();
+                        break;
+                    case RESPONSE_FIELD_TIMESTAMP:
+                        response._timestamp = reader.nextInt();
+                        break;
+                    case RESPONSE_FIELD_ZIP_FILE:
+                        response._zipFilename = reader.nextString();
+                        break;
+                    case RESPONSE_FIELD_PREDICTED_MAIN_ACTIVITY:
+                        response._predictedMainActivity = ESLabelStrings.getLabelFromNetworkName(reader.nextString());
+                        break;
+                    case RESPONSE_FIELD_PREDICTED_LABEL_NAMES:
+                        response._predictedLabelNames = readLabelNames(reader);
+                        break;
+                    case RESPONSE_FIELD_PREDICTED_LABEL_PROBS:
+                        response._predictedLabelProbs = readNumbers(reader);
+                        break;
+                    case RESPONSE_FIELD_LOCATION_LAT_LONG:
+                        response._locationLatLong = readNumbers(reader);
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        catch (IllegalStateException | NumberFormatException e) {
+            // JsonReader reports unexpected tokens with these:
+            throw new IOException("Malformed server response: " + e.getMessage());
+        }
+
+        Log.v(LOG_TAG,"Decoded server response in " + (System.nanoTime() - startNanos)/1000 + "us: " + response);
+        return response;
+    }
+
+    private static String[] readLabelNames(JsonReader reader) throws IOException {
+        String[] labels = new String[INITIAL_ARRAY_CAPACITY];
+        int count = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (count == labels.length) {
+                labels = Arrays.copyOf(labels,2*count);
+            }
+            labels[count] = ESLabelStrings.getLabelFromNetworkName(reader.nextString());
+            count ++;
+        }
+        reader.endArray();
+        return count == labels.length ? labels : Arrays.copyOf(labels,count);
+    }
+
+    private static double[] readNumbers(JsonReader reader) throws IOException {
+        double[] numbers = new double[INITIAL_ARRAY_CAPACITY];
+        int count = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (count == numbers.length) {
+                numbers = Arrays.copyOf(numbers,2*count);
+            }
+            numbers[count] = reader.nextDouble();
+            count ++;
+        }
+        reader.endArray();
+        return count == numbers.length ? numbers : Arrays.copyOf(numbers,count);
+    }
+}
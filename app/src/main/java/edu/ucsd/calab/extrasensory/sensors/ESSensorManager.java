@@ -44,6 +44,7 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import edu.ucsd.calab.extrasensory.ESApplication;
+import edu.ucsd.calab.extrasensory.data.ESEpochSeconds;
 import edu.ucsd.calab.extrasensory.data.ESSettings;
 import edu.ucsd.calab.extrasensory.data.ESTimestamp;
 import edu.ucsd.calab.extrasensory.network.ESNetworkAccessor;
@@ -661,8 +662,8 @@ public class ESSensorManager
     }
 
     private void finishIfTooMuchTimeRecording() {
-        ESTimestamp now = new ESTimestamp();
-        int timeRecording = now.differenceInSeconds(_timestamp);
+        // (This is called for every sensor sample, so it shouldn't allocate):
+        int timeRecording = ESEpochSeconds.now() - _timestamp.get_secondsSinceEpoch();
         if (timeRecording >= MAX_TIME_RECORDING_IN_SECONDS) {
             Log.d(LOG_TAG,"Finishing this recording because it is already too long, num seconds: " + timeRecording);
             finishSession();
@@ -1033,8 +1034,8 @@ public class ESSensorManager
         // Time:
         try {
             String timeZoneName = TimeZone.getDefault().getDisplayName(false,TimeZone.LONG);
-            int hour = _timestamp.getHourOfDayOutOf24();
-            int minute = _timestamp.getMinuteOfHour();
+            int hour = ESEpochSeconds.hourOfDay(_timestamp.get_secondsSinceEpoch());
+            int minute = ESEpochSeconds.minuteOfHour(_timestamp.get_secondsSinceEpoch());
             _lowFreqData.put(HOUR_OF_DAY,hour);
             _lowFreqData.put(MINUTE_IN_HOUR,minute);
             _lowFreqData.put(TIMEZONE_LONG_NAME,timeZoneName);
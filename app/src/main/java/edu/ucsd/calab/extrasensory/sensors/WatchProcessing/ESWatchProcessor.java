@@ -334,17 +334,15 @@ public class ESWatchProcessor {
                 latestVerified.get_timestamp(),
                 _theApplication.get_dataForAlertForPastFeedback().get_untilTimestamp());
         // Apply the labels of latestVerified to all minutes in the range:
-        for (ESActivity minuteActivity : entireRange.getMinuteActivities()) {
-            ESDatabaseAccessor.getESDatabaseAccessor().setESActivityValues(
-                    minuteActivity,
-                    ESActivity.ESLabelSource.ES_LABEL_SOURCE_NOTIFICATION_ANSWER_CORRECT_FROM_WATCH,
-                    latestVerified.get_mainActivityUserCorrection(),
-                    latestVerified.get_secondaryActivities(),
-                    latestVerified.get_moods(),
-                    null, null,
-                    _timestampLatestNotification,timestampUserRespondToWatchNotification
-            );
-        }
+        ESDatabaseAccessor.getESDatabaseAccessor().setESActivitiesValues(
+                entireRange.getMinuteActivities(),
+                ESActivity.ESLabelSource.ES_LABEL_SOURCE_NOTIFICATION_ANSWER_CORRECT_FROM_WATCH,
+                latestVerified.get_mainActivityUserCorrection(),
+                latestVerified.get_secondaryActivities(),
+                latestVerified.get_moods(),
+                null, null,
+                _timestampLatestNotification,timestampUserRespondToWatchNotification
+        );
     }
 
     /* Function to open the ExtraSensory watch app */
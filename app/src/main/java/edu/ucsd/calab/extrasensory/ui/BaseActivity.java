@@ -210,16 +210,14 @@ public class BaseActivity extends ActionBarActivity {
             public void onClick(DialogInterface dialog, int which) {
                 ESTimestamp timestampUserRespondToNotification = new ESTimestamp();
                 // Update the labels (and send feedback) of all the minutes in the range:
-                for (ESActivity minuteActivity : entireRange.getMinuteActivities()) {
-                    ESDatabaseAccessor.getESDatabaseAccessor().setESActivityValues(
-                            minuteActivity,
-                            ESActivity.ESLabelSource.ES_LABEL_SOURCE_NOTIFICATION_ANSWER_CORRECT,
-                            latestVerifiedActivity.get_mainActivityUserCorrection(),
-                            latestVerifiedActivity.get_secondaryActivities(),
-                            latestVerifiedActivity.get_moods(),
-                            null,null,
-                            timestampNotification,timestampUserRespondToNotification);
-                }
+                ESDatabaseAccessor.getESDatabaseAccessor().setESActivitiesValues(
+                        entireRange.getMinuteActivities(),
+                        ESActivity.ESLabelSource.ES_LABEL_SOURCE_NOTIFICATION_ANSWER_CORRECT,
+                        latestVerifiedActivity.get_mainActivityUserCorrection(),
+                        latestVerifiedActivity.get_secondaryActivities(),
+                        latestVerifiedActivity.get_moods(),
+                        null,null,
+                        timestampNotification,timestampUserRespondToNotification);
                 getTheESApplication().clearDataForAlertForPastFeedback();
                 dialog.dismiss();
             }
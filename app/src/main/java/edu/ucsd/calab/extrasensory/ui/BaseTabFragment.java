@@ -10,6 +10,7 @@ import android.util.Log;
 
 import edu.ucsd.calab.extrasensory.ESApplication;
 import edu.ucsd.calab.extrasensory.data.ESDatabaseAccessor;
+import edu.ucsd.calab.extrasensory.data.ESDatabaseChangeEvent;
 import edu.ucsd.calab.extrasensory.network.ESNetworkAccessor;
 import edu.ucsd.calab.extrasensory.sensors.ESSensorManager;
 
@@ -28,6 +29,9 @@ public class BaseTabFragment extends Fragment {
 
     private static final String LOG_TAG = "[ESBaseTabFragment]";
 
+    // How many records-updated events didn't need a refresh of the fragment that caught them:
+    private static int _numRefreshesAvoided = 0;
+
     private BroadcastReceiver _broadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -36,8 +40,9 @@ public class BaseTabFragment extends Fragment {
                 return;
             }
             if (ESDatabaseAccessor.BROADCAST_DATABASE_RECORDS_UPDATED.equals(intent.getAction())) {
-                Log.v(LOG_TAG,"Caught database records-updated broadcast");
-                reactToRecordsUpdatedEvent();
+                ESDatabaseChangeEvent change = ESDatabaseChangeEvent.fromIntent(intent);
+                Log.v(LOG_TAG,"Caught database records-updated broadcast: " + change);
+                reactToRecordsUpdatedEvent(change);
                 return;
             }
             if (ESNetworkAccessor.BROADCAST_NETWORK_QUEUE_SIZE_CHANGED.equals(intent.getAction())) {
@@ -61,10 +66,26 @@ public class BaseTabFragment extends Fragment {
         Log.d(LOG_TAG,"reacting to feedback queue size change");
     }
 
-    protected void reactToRecordsUpdatedEvent() {
+    /**
+     * React to a change in the activity records.
+     * @param change The change, with the time range of the affected records and the kinds of changes
+     */
+    protected void reactToRecordsUpdatedEvent(ESDatabaseChangeEvent change) {
         Log.d(LOG_TAG,"reacting to records-update");
     }
 
+    /**
+     * Note that a records-updated event didn't need a refresh (the change doesn't affect what the fragment presents).
+     */
+    protected static void noteRefreshAvoided() {
+        _numRefreshesAvoided ++;
+        Log.v(LOG_TAG,"Refreshes avoided so far: " + _numRefreshesAvoided);
+    }
+
+    public static int get_numRefreshesAvoided() {
+        return _numRefreshesAvoided;
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -65,6 +65,8 @@ public class FeedbackActivity extends BaseActivity {
     private static final int ROW_SECONDARY = 1;
     private static final int ROW_MOOD = 2;
     private static final int ROW_VALID = 3;
+    // How many of the frequently used labels to suggest in the selection screen:
+    private static final int MAX_FREQUENT_LABELS = 15;
 
     private static final String[] ROW_HEADERS = new String[] { "Main Activity", "Secondary Activities", "Mood", "Valid for" };
 
@@ -302,7 +304,7 @@ public class FeedbackActivity extends BaseActivity {
                         intent = new Intent(ESApplication.getTheAppContext(), SelectionFromListActivity.class);
                         intent.putExtra(SelectionFromListActivity.LIST_TYPE_KEY, SelectionFromListActivity.LIST_TYPE_SECONDARY_ACTIVITIES);
                         intent.putExtra(SelectionFromListActivity.PRESELECTED_LABELS_KEY,_labelStruct._secondaryActivities);
-                        frequentLabels = ESDatabaseAccessor.getESDatabaseAccessor().getFrequentlyUsedLabels(null , ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_SECONDARY);
+                        frequentLabels = ESDatabaseAccessor.getESDatabaseAccessor().getFrequentlyUsedLabels(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_SECONDARY,MAX_FREQUENT_LABELS);
                         intent.putExtra(SelectionFromListActivity.FREQUENTLY_USED_LABELS_KEY, frequentLabels);
                         if (_parameters != null && _parameters._continuousActivityToEdit != null) {
                             List<Map.Entry<String, Double>> sortedPredLabelsAndProbs = _parameters._continuousActivityToEdit.getPredictionLabelsSortedByProb();
@@ -316,7 +318,7 @@ public class FeedbackActivity extends BaseActivity {
                         intent = new Intent(ESApplication.getTheAppContext(), SelectionFromListActivity.class);
                         intent.putExtra(SelectionFromListActivity.LIST_TYPE_KEY, SelectionFromListActivity.LIST_TYPE_MOODS);
                         intent.putExtra(SelectionFromListActivity.PRESELECTED_LABELS_KEY,_labelStruct._moods);
-                        frequentLabels = ESDatabaseAccessor.getESDatabaseAccessor().getFrequentlyUsedLabels(null , ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MOOD);
+                        frequentLabels = ESDatabaseAccessor.getESDatabaseAccessor().getFrequentlyUsedLabels(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MOOD,MAX_FREQUENT_LABELS);
                         intent.putExtra(SelectionFromListActivity.FREQUENTLY_USED_LABELS_KEY,frequentLabels);
                         startActivityForResult(intent, ROW_MOOD);
                         break;
@@ -391,17 +393,14 @@ public class FeedbackActivity extends BaseActivity {
                     ESActivity.ESLabelSource labelSource = initiatedByNotification ?
                             ESActivity.ESLabelSource.ES_LABEL_SOURCE_NOTIFICATION_ANSWER_NOT_EXACTLY :
                             ESActivity.ESLabelSource.ES_LABEL_SOURCE_HISTORY;
-                    //for each minute activity in the continuous activity
-                    //call setESActivityValues()
-                    for (ESActivity minute : esActivityArr){
-                        getESDatabaseAccessor().setESActivityValues(minute,
-                                labelSource,
-                                _labelStruct._mainActivity,
-                                _labelStruct._secondaryActivities,
-                                _labelStruct._moods,
-                                _timestampOpenFeedbackForm,timestampPressSendButton,
-                                _parameters._timestampNotification,_parameters._timestampUserRespondToNotification);
-                    }
+                    // Apply the labels to all the minute activities in the continuous activity (in a single transaction):
+                    getESDatabaseAccessor().setESActivitiesValues(esActivityArr,
+                            labelSource,
+                            _labelStruct._mainActivity,
+                            _labelStruct._secondaryActivities,
+                            _labelStruct._moods,
+                            _timestampOpenFeedbackForm,timestampPressSendButton,
+                            _parameters._timestampNotification,_parameters._timestampUserRespondToNotification);
 
                     finish();
                     return;
@@ -4,11 +4,15 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Debug;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
@@ -27,11 +31,13 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 
+import edu.ucsd.calab.extrasensory.BuildConfig;
 import edu.ucsd.calab.extrasensory.ESApplication;
 import edu.ucsd.calab.extrasensory.R;
 import edu.ucsd.calab.extrasensory.data.ESActivity;
 import edu.ucsd.calab.extrasensory.data.ESContinuousActivity;
 import edu.ucsd.calab.extrasensory.data.ESDatabaseAccessor;
+import edu.ucsd.calab.extrasensory.data.ESDatabaseChangeEvent;
 import edu.ucsd.calab.extrasensory.data.ESLabelStrings;
 import edu.ucsd.calab.extrasensory.data.ESSettings;
 import edu.ucsd.calab.extrasensory.data.ESTimestamp;
@@ -60,6 +66,10 @@ public class HistoryFragment extends BaseTabFragment {
     private boolean _justGotBackFromFeedback = false;
     private ESTimestamp _markZoneStartTimestamp = null;
     private ESTimestamp _markZoneEndTimestamp = null;
+    // Loading days in the background (each request gets a new number, so results of older requests are dropped):
+    private int _dayLoadRequestNumber = 0;
+    private DayLoader _dayLoader = null;
+    private AdjacentDaysPrefetcher _adjacentDaysPrefetcher = null;
     private void clearMergeMarkZone() {
         _markZoneStartTimestamp = null;
         _markZoneEndTimestamp = null;
@@ -95,6 +105,12 @@ public class HistoryFragment extends BaseTabFragment {
         calculateAndPresentDaysHistory();
     }
 
+    @Override
+    public void onStop() {
+        cancelDayLoading();
+        super.onStop();
+    }
+
     @Override
     public void onActivityResult (int requestCode, int resultCode, Intent data) {
         if (requestCode == FEEDBACK_FROM_HISTORY_REQUEST_CODE) {
@@ -109,15 +125,18 @@ public class HistoryFragment extends BaseTabFragment {
     }
 
     /**
-     * Calculate the history of a single day and present it as a list of continuous activities
+     * Calculate the history of a single day and present it as a list of continuous activities.
+     * If the day is not already cached, it is calculated in the background (see DayLoader),
+     * and the list is presented when it is ready.
      */
-    private synchronized void calculateAndPresentDaysHistory() {
+    private void calculateAndPresentDaysHistory() {
         _presentingSplitContinuousActivity = false;
+        long requestNanos = System.nanoTime();
+        cancelDayLoading();
 
         //getting today's activities
-        ESTimestamp todayStartTime = ESTimestamp.getStartOfTodayTimestamp();
-        ESTimestamp focusDayStartTime = new ESTimestamp(todayStartTime,_dayRelativeToToday);
-        ESTimestamp focusDayEndTime = new ESTimestamp(focusDayStartTime, 1);
+        ESTimestamp focusDayStartTime = ESTimestamp.getStartOfDayRelativeToToday(_dayRelativeToToday);
+        ESTimestamp focusDayEndTime = ESTimestamp.getStartOfDayRelativeToToday(_dayRelativeToToday + 1);
 
         SimpleDateFormat dateFormat = new SimpleDateFormat("EE MMM dd", Locale.US);
         _headerText = dateFormat.format(focusDayStartTime.getDateOfTimestamp());
@@ -133,8 +152,130 @@ public class HistoryFragment extends BaseTabFragment {
 
         boolean addGapDummies = true;
         _activityArray = ESDatabaseAccessor.getESDatabaseAccessor().
-                getContinuousActivitiesFromTimeRange(focusDayStartTime, focusDayEndTime, addGapDummies);
+                getCachedContinuousActivitiesFromTimeRange(focusDayStartTime, focusDayEndTime, addGapDummies);
+        if (_activityArray != null) {
+            presentDayAndPrefetchAdjacentDays(requestNanos);
+            return;
+        }
+
+        // Present the new day's header (with an empty list) right away, and the day's activities once they're loaded:
+        presentHistoryContent();
+        _dayLoader = new DayLoader(_dayLoadRequestNumber,focusDayStartTime,focusDayEndTime,requestNanos);
+        _dayLoader.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Stop waiting for any day that is being loaded or prefetched (for instance, when the user moved on to another day).
+     */
+    private void cancelDayLoading() {
+        _dayLoadRequestNumber ++;
+        if (_dayLoader != null) {
+            _dayLoader.cancel(false);
+            _dayLoader = null;
+        }
+        if (_adjacentDaysPrefetcher != null) {
+            _adjacentDaysPrefetcher.cancel(false);
+            _adjacentDaysPrefetcher = null;
+        }
+    }
+
+    private void presentDayAndPrefetchAdjacentDays(long requestNanos) {
         presentHistoryContent();
+        logTimeToFirstFrame(requestNanos);
+
+        // Prepare the previous day and the next day (if it's not in the future), so navigating to them won't wait for the DB:
+        ArrayList<ESTimestamp> dayBoundaries = new ArrayList<>(4);
+        dayBoundaries.add(ESTimestamp.getStartOfDayRelativeToToday(_dayRelativeToToday - 1));
+        dayBoundaries.add(ESTimestamp.getStartOfDayRelativeToToday(_dayRelativeToToday));
+        if (_dayRelativeToToday < 0) {
+            dayBoundaries.add(ESTimestamp.getStartOfDayRelativeToToday(_dayRelativeToToday + 1));
+            dayBoundaries.add(ESTimestamp.getStartOfDayRelativeToToday(_dayRelativeToToday + 2));
+        }
+        _adjacentDaysPrefetcher = new AdjacentDaysPrefetcher();
+        _adjacentDaysPrefetcher.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR,
+                dayBoundaries.toArray(new ESTimestamp[dayBoundaries.size()]));
+    }
+
+    /**
+     * Log the time from the request to present a day until the first frame that shows it is drawn.
+     */
+    private void logTimeToFirstFrame(final long requestNanos) {
+        final View view = getView();
+        if (view == null) {
+            return;
+        }
+        view.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                if (view.getViewTreeObserver().isAlive()) {
+                    view.getViewTreeObserver().removeOnPreDrawListener(this);
+                }
+                Log.i(LOG_TAG, String.format(Locale.US, "Day presented, to first frame in %.1fms",
+                        (System.nanoTime() - requestNanos) / 1e6));
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Calculates the continuous activities of a day in the background, and presents them,
+     * unless another day was requested meanwhile.
+     */
+    private class DayLoader extends AsyncTask<Void,Void,ESContinuousActivity[]> {
+
+        private final int _requestNumber;
+        private final ESTimestamp _dayStartTime;
+        private final ESTimestamp _dayEndTime;
+        private final long _requestNanos;
+
+        DayLoader(int requestNumber,ESTimestamp dayStartTime,ESTimestamp dayEndTime,long requestNanos) {
+            _requestNumber = requestNumber;
+            _dayStartTime = dayStartTime;
+            _dayEndTime = dayEndTime;
+            _requestNanos = requestNanos;
+        }
+
+        @Override
+        protected ESContinuousActivity[] doInBackground(Void... params) {
+            if (isCancelled()) {
+                return null;
+            }
+            long startNanos = System.nanoTime();
+            ESContinuousActivity[] continuousActivities = ESDatabaseAccessor.getESDatabaseAccessor().
+                    getContinuousActivitiesFromTimeRange(_dayStartTime, _dayEndTime, true);
+            // Build the rows here too (presenting the day will find them in the row cache):
+            HistoryRow.forContinuousActivities(continuousActivities);
+            Log.d(LOG_TAG, String.format(Locale.US, "Got the day's continuous activities in %.1fms",
+                    (System.nanoTime() - startNanos) / 1e6));
+            return continuousActivities;
+        }
+
+        @Override
+        protected void onPostExecute(ESContinuousActivity[] continuousActivities) {
+            if (_requestNumber != _dayLoadRequestNumber || !isAdded() || getView() == null) {
+                Log.v(LOG_TAG, "A newer day was requested. Dropping the loaded day.");
+                return;
+            }
+            _dayLoader = null;
+            _activityArray = continuousActivities;
+            presentDayAndPrefetchAdjacentDays(_requestNanos);
+        }
+    }
+
+    /**
+     * Calculates the continuous activities of days (and their history rows) in the background,
+     * only so they'll be in the database accessor's (bounded) history cache and in the row cache when they are needed.
+     * The parameters are pairs of day start and end times.
+     */
+    private static class AdjacentDaysPrefetcher extends AsyncTask<ESTimestamp,Void,Void> {
+        @Override
+        protected Void doInBackground(ESTimestamp... dayBoundaries) {
+            for (int i = 0; i + 1 < dayBoundaries.length && !isCancelled(); i += 2) {
+                HistoryRow.forContinuousActivities(ESDatabaseAccessor.getESDatabaseAccessor().
+                        getContinuousActivitiesFromTimeRange(dayBoundaries[i], dayBoundaries[i + 1], true));
+            }
+            return null;
+        }
     }
 
     private static final String[] TIME_UNIT_LABELS = new String[]{"1 minute","5 minutes","10 minutes","15 minutes","20 minutes","30 minutes"};
@@ -204,29 +345,44 @@ public class HistoryFragment extends BaseTabFragment {
             }
         });
 
-        Log.d(LOG_TAG,"==== Got " + _activityArray.length + " cont activities: ");
-        for (int i= 0; i < _activityArray.length; i++) {
-            Log.d(LOG_TAG, _activityArray[i].toString());
+        if (_activityArray != null) {
+            Log.d(LOG_TAG,"==== Got " + _activityArray.length + " cont activities: ");
+            for (int i= 0; i < _activityArray.length; i++) {
+                Log.d(LOG_TAG, _activityArray[i].toString());
+            }
         }
-        ArrayList<ESContinuousActivity> activityList = getArrayList(_activityArray);
+        ArrayList<HistoryRow> rowList = getArrayList(HistoryRow.forContinuousActivities(_activityArray));
 
         // Get the list view and set it using this adapter
         ListView listView = (ListView) getView().findViewById(R.id.listview_history_items);
         if (listView.getAdapter() == null) {
-            HistoryAdapter histAdapter = new HistoryAdapter(getActivity().getBaseContext(), R.layout.history_rowlayout, activityList,this);
+            final HistoryAdapter histAdapter = new HistoryAdapter(getActivity().getBaseContext(), R.layout.history_rowlayout, rowList,this);
             listView.setAdapter(histAdapter);
+            listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+                @Override
+                public void onScrollStateChanged(AbsListView view, int scrollState) {
+                    if (scrollState == SCROLL_STATE_IDLE) {
+                        histAdapter.endScrollMeasurement();
+                    }
+                    else {
+                        histAdapter.startScrollMeasurement();
+                    }
+                }
+
+                @Override
+                public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+                    // Do nothing
+                }
+            });
         }
         else {
-            ((HistoryAdapter)listView.getAdapter()).resetItems(activityList);
+            ((HistoryAdapter)listView.getAdapter()).resetItems(rowList);
         }
 
     }
 
-    private ArrayList<ESContinuousActivity> getArrayList(ESContinuousActivity[] items) {
-        if (items == null) {
-            return new ArrayList<>(0);
-        }
-        ArrayList<ESContinuousActivity> arrayList = new ArrayList<>(items.length);
+    private ArrayList<HistoryRow> getArrayList(HistoryRow[] items) {
+        ArrayList<HistoryRow> arrayList = new ArrayList<>(items.length);
         for (int i=0; i<items.length; i++) {
             arrayList.add(items[i]);
         }
@@ -234,13 +390,19 @@ public class HistoryFragment extends BaseTabFragment {
     }
 
     @Override
-    protected void reactToRecordsUpdatedEvent() {
-        super.reactToRecordsUpdatedEvent();
+    protected void reactToRecordsUpdatedEvent(ESDatabaseChangeEvent change) {
+        super.reactToRecordsUpdatedEvent(change);
         Log.v(LOG_TAG,"reacting to records-update");
         if (_presentingSplitContinuousActivity) {
             Log.v(LOG_TAG,"Since presenting split continuous activity, not refreshing the history page.");
             return;
         }
+        ESTimestamp focusDayStartTime = ESTimestamp.getStartOfDayRelativeToToday(_dayRelativeToToday);
+        if (!change.overlaps(focusDayStartTime,ESTimestamp.getStartOfDayRelativeToToday(_dayRelativeToToday + 1))) {
+            Log.v(LOG_TAG,"The change is not in the presented day. Not refreshing the history page.");
+            noteRefreshAvoided();
+            return;
+        }
         calculateAndPresentDaysHistory();
     }
 
@@ -267,6 +429,10 @@ public class HistoryFragment extends BaseTabFragment {
             return false;
         }
 
+        if (_activityArray == null) {
+            return false;
+        }
+
         boolean foundUserProvidedLabels = false;
         for (ESContinuousActivity continuousActivity : _activityArray) {
             if (continuousActivity.isUnrecordedGap()) {
@@ -380,6 +546,7 @@ public class HistoryFragment extends BaseTabFragment {
     private synchronized void rowSwipedLeft(ESContinuousActivity continuousActivity) {
         // Split the chosen continuous activity and present it as separate minute activities:
         _presentingSplitContinuousActivity = true;
+        cancelDayLoading();
 
         Date startTime = continuousActivity.getStartTimestamp().getDateOfTimestamp();
         Date endTime = continuousActivity.getEndTimestamp().getDateOfTimestamp();
@@ -397,22 +564,27 @@ public class HistoryFragment extends BaseTabFragment {
      * Created by Jennifer on 2/18/2015.
      */
 
-    private static class HistoryAdapter extends ArrayAdapter {
+    private static class HistoryAdapter extends ArrayAdapter<HistoryRow> {
 
         private static final int ITEM_TYPE_DUMMY = 0;
         private static final int ITEM_TYPE_ACTUAL = 1;
 
-        private ArrayList<ESContinuousActivity> _items;
+        private ArrayList<HistoryRow> _items;
         private HistoryFragment _handler;
 
+        // Measuring the binding of rows (per scroll gesture):
+        private int _numBinds = 0;
+        private long _bindNanos = 0;
+        private boolean _measuringScroll = false;
+
         /**
          * Constructor for History Adapter
          * @param context context from activity
          * @param layoutResourceId The xml rowlayout
-         * @param items The list of ESContinuousActivity with the values we want to display
+         * @param items The list of history rows (already formatted) we want to display
          * @param handler The HistoryFragment that uses this adapter
          */
-        public HistoryAdapter(Context context, int layoutResourceId, ArrayList<ESContinuousActivity> items,HistoryFragment handler) {
+        public HistoryAdapter(Context context, int layoutResourceId, ArrayList<HistoryRow> items,HistoryFragment handler) {
             super(context,layoutResourceId,R.id.text_main_activity_in_history_row,items);
             this._items = items;
             this._handler = handler;
@@ -423,11 +595,12 @@ public class HistoryFragment extends BaseTabFragment {
 
         @Override
         public int getItemViewType(int position) {
-            return _items.get(position).isUnrecordedGap() ? ITEM_TYPE_DUMMY : ITEM_TYPE_ACTUAL;
+            return _items.get(position).isGap() ? ITEM_TYPE_DUMMY : ITEM_TYPE_ACTUAL;
         }
 
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
+            long startNanos = System.nanoTime();
             int rowType = getItemViewType(position);
             ESContinuousActivityHolder holder = null;
 
@@ -445,6 +618,8 @@ public class HistoryFragment extends BaseTabFragment {
                         holder.time = (TextView)row.findViewById(R.id.text_time_in_history_row);
                         holder.mainActivity = (TextView)row.findViewById(R.id.text_main_activity_in_history_row);
                         holder.details = (TextView)row.findViewById(R.id.text_details_in_history_row);
+                        holder.checkmark = (ImageView)row.findViewById(R.id.image_mark_for_merge_in_history);
+                        createRowListeners(holder);
                         break;
                     default:
                         throw new InvalidParameterException("Got unsupported history row type: " + rowType);
@@ -456,99 +631,35 @@ public class HistoryFragment extends BaseTabFragment {
                 holder = (ESContinuousActivityHolder)row.getTag();
             }
 
-            //get one activity from the array
-            final ESContinuousActivity continuousActivity = _items.get(position);
+            //get one (already formatted) row from the array
+            HistoryRow historyRow = _items.get(position);
+            holder.historyRow = historyRow;
 
             // Set the values for the row:
             if (rowType == ITEM_TYPE_DUMMY) {
-                int gapSeconds = continuousActivity.gapDurationSeconds();
-                int gapMinutes = gapSeconds / 60;
-                int gapHours = gapSeconds / 3600;
-                String gapDurStr = (gapHours >= 1) ? "" + gapHours + " hours" : "" + gapMinutes + " minutes";
-                String gapStr = "Gap ~" + gapDurStr;
-
-                holder.gapTime.setText(gapStr);
+                holder.gapTime.setText(historyRow.get_gapText());
+                noteBind(startNanos);
                 return row;
             }
 
             // Assume now we have a regular actual continuous activity row:
-            String activityLabel = "";
-            String mainActivityForColor = "";
-            String timeLabel = "";
-            String endTimeLabel = "";
-            Date date;
-
-            if(continuousActivity.getMainActivityUserCorrection() != null){
-                activityLabel = continuousActivity.getMainActivityUserCorrection();
-                mainActivityForColor = activityLabel;
-            }
-            else{
-                mainActivityForColor = continuousActivity.getMainActivityServerPrediction();
-                if (mainActivityForColor == null) {
-                    activityLabel = "in process...";
-                }
-                else {
-                    activityLabel = mainActivityForColor + "?";
-                }
-            }
+            holder.mainActivity.setText(historyRow.get_mainActivityText());
+            holder.time.setText(historyRow.get_timeText());
+            holder.details.setText(historyRow.get_detailsText());
+            row.setBackgroundColor(historyRow.get_color());
 
-            // Add location coordinates (each instance may have a representative location point):
-//            activityLabel += " loc: " + ESLabelStrings.makeCSV(continuousActivity.getLocationLatLongFromFirstInstance());
-
-            //setting time label
-            date = continuousActivity.getStartTimestamp().getDateOfTimestamp();
-            timeLabel = new SimpleDateFormat("hh:mm a").format(date);
-            date = continuousActivity.getEndTimestamp().getDateOfTimestamp();
-            endTimeLabel = new SimpleDateFormat("hh:mm a").format(date);
-            if (!endTimeLabel.equals(timeLabel)) {
-                timeLabel = timeLabel + " - " + endTimeLabel;
-            }
-
-            //setting activity label
-            holder.mainActivity.setText(activityLabel);
-            holder.time.setText(timeLabel);
-
-            // Setting the details label:
-            holder.details.setText(getDetailsString(continuousActivity));
-
-            row.setBackgroundColor(ESLabelStrings.getColorForMainActivity(mainActivityForColor));
-            
             // Is this row marked for merging?
-            ImageView chckmarkView = (ImageView)row.findViewById(R.id.image_mark_for_merge_in_history);
-            if (_handler.isActivityInTheMergeMarkZone(continuousActivity)) {
-                chckmarkView.setImageResource(R.drawable.checkmark_in_circle);
+            if (_handler.isActivityInTheMergeMarkZone(historyRow.get_continuousActivity())) {
+                holder.checkmark.setImageResource(R.drawable.checkmark_in_circle);
             }
             else {
-                chckmarkView.setImageBitmap(null);
+                holder.checkmark.setImageBitmap(null);
             }
 
-            // If allowed to edit activities, define the listener for click and swipes:
+            // If allowed to edit activities, use the listeners for click and swipes:
             if (_handler.allowedToEditDaysActivities()) {
-                // Setting the click listener:
-                row.setOnClickListener(new View.OnClickListener() {
-                    @Override
-                    public void onClick(View v) {
-                        Log.i(LOG_TAG, "row clicked");
-                        _handler.rowClicked(continuousActivity);
-                    }
-                });
-
-                // Setting the gesture detections:
-                row.setOnTouchListener(new OnSwipeTouchListener(getContext()) {
-                    @Override
-                    public boolean onSwipeRight() {
-                        Log.i(LOG_TAG, "Swiped row to the right");
-                        _handler.rowSwipedRight(continuousActivity);
-                        return true;
-                    }
-
-                    @Override
-                    public boolean onSwipeLeft() {
-                        Log.i(LOG_TAG, "Swiped row to the left");
-                        _handler.rowSwipedLeft(continuousActivity);
-                        return true;
-                    }
-                });
+                row.setOnClickListener(holder.clickListener);
+                row.setOnTouchListener(holder.swipeListener);
             }
             else {
                 // Make sure this row has no response to click or swipes:
@@ -556,46 +667,76 @@ public class HistoryFragment extends BaseTabFragment {
                 row.setOnTouchListener(null);
             }
 
+            noteBind(startNanos);
             return row;
         }
 
-        private String getDetailsString(ESContinuousActivity continuousActivity) {
-            String details = "";
-
-            String[] moods = continuousActivity.getMoods();
-            if (moods != null && moods.length > 0) {
-                details += moods[0];
-                for (int i=1; i<moods.length; i++) {
-                    details += ", " + moods[i];
+        /**
+         * Create the click and swipe listeners of a row view once, when the view is created.
+         * They act on whatever row the view presents at the time (the holder's current row).
+         */
+        private void createRowListeners(final ESContinuousActivityHolder holder) {
+            holder.clickListener = new View.OnClickListener() {
+                @Override
+                public void onClick(View v) {
+                    Log.i(LOG_TAG, "row clicked");
+                    _handler.rowClicked(holder.historyRow.get_continuousActivity());
+                }
+            };
+
+            holder.swipeListener = new OnSwipeTouchListener(getContext()) {
+                @Override
+                public boolean onSwipeRight() {
+                    Log.i(LOG_TAG, "Swiped row to the right");
+                    _handler.rowSwipedRight(holder.historyRow.get_continuousActivity());
+                    return true;
                 }
-            }
 
-            String[] sec;
-            String delim = ",";
-            String suffix = "";
-            if (continuousActivity.hasUserProvidedLabels()) {
-                sec = continuousActivity.getSecondaryActivities();
-            }
-            else {
-                sec = continuousActivity.getSecondaryActivitiesOrServerGuesses();
-                delim = "";
-                suffix = "?";
-            }
-            if (sec != null && sec.length > 0) {
-                details += " (" + sec[0] + suffix;
-                for (int i=1; i<sec.length; i++) {
-                    details += delim + " " + sec[i] + suffix;
+                @Override
+                public boolean onSwipeLeft() {
+                    Log.i(LOG_TAG, "Swiped row to the left");
+                    _handler.rowSwipedLeft(holder.historyRow.get_continuousActivity());
+                    return true;
                 }
-                details += ")";
+            };
+        }
+
+        private void noteBind(long startNanos) {
+            _numBinds ++;
+            _bindNanos += System.nanoTime() - startNanos;
+        }
+
+        /**
+         * Start counting the row binds and the allocations (garbage) of the UI thread, for a scroll gesture.
+         * Only in debug builds, since allocation counting itself slows down the scrolling.
+         */
+        void startScrollMeasurement() {
+            if (!BuildConfig.DEBUG || _measuringScroll) {
+                return;
             }
+            _measuringScroll = true;
+            _numBinds = 0;
+            _bindNanos = 0;
+            Debug.resetThreadAllocCount();
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+        }
 
-            if (details.length() > 100) {
-                details = details.substring(0,100) + "...";
+        /**
+         * Stop counting and report the binds and allocations of the scroll gesture that just ended.
+         */
+        void endScrollMeasurement() {
+            if (!_measuringScroll) {
+                return;
             }
-            return details;
+            _measuringScroll = false;
+            Debug.stopAllocCounting();
+            Log.d(LOG_TAG, String.format(Locale.US, "Scroll: bound %d rows, %.3fms per row. Allocated %d objects (%d bytes)",
+                    _numBinds, (_numBinds > 0) ? _bindNanos / 1e6 / _numBinds : 0.0,
+                    Debug.getThreadAllocCount(), Debug.getThreadAllocSize()));
         }
 
-        public void resetItems(ArrayList<ESContinuousActivity> items) {
+        public void resetItems(ArrayList<HistoryRow> items) {
             this._items.clear();
             this._items.addAll(items);
             notifyDataSetChanged();
@@ -607,6 +748,10 @@ public class HistoryFragment extends BaseTabFragment {
             TextView mainActivity;
             TextView details;
             TextView gapTime;
+            ImageView checkmark;
+            View.OnClickListener clickListener;
+            OnSwipeTouchListener swipeListener;
+            HistoryRow historyRow;
 
             public String toString() {
                 return "time: " + time + ". main: " + mainActivity + ". details: " + details + ". gap: " + gapTime;
@@ -0,0 +1,186 @@
+package edu.ucsd.calab.extrasensory.ui;
+
+import android.util.LruCache;
+
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+
+import edu.ucsd.calab.extrasensory.data.ESContinuousActivity;
+import edu.ucsd.calab.extrasensory.data.ESLabelStrings;
+
+/**
+ * This class holds what a row of the history list presents for a continuous activity (or a gap):
+ * the texts and the background color, already formatted, so binding a row to its view only sets them.
+ *
+ * Rows are immutable, and so are the continuous activities they present (they are shared with the history cache),
+ * so the rows are kept in a bounded cache keyed by the continuous activity object.
+ * The history loader builds the rows of a day in the background, and presenting the day then finds them in the cache.
+ * When records change, the affected continuous activities are re-merged into new objects, which get new rows.
+ *
+ * ========================================
+ * The ExtraSensory App
+ * Please see ExtraSensory App website for details and citation requirements:
+ * http://extrasensory.ucsd.edu/ExtraSensoryApp
+ * ========================================
+ */
+final class HistoryRow {
+
+    private static final int MAX_CACHED_ROWS = 4096;
+    private static final int MAX_DETAILS_LENGTH = 100;
+    private static final String TIME_FORMAT = "hh:mm a";
+
+    // (ESContinuousActivity doesn't override equals() and hashCode(), so the cache is keyed by object identity):
+    private static final LruCache<ESContinuousActivity,HistoryRow> _rowCache = new LruCache<>(MAX_CACHED_ROWS);
+
+    private final ESContinuousActivity _continuousActivity;
+    private final String _timeText;
+    private final String _mainActivityText;
+    private final String _detailsText;
+    private final int _color;
+    private final String _gapText;
+
+    private HistoryRow(ESContinuousActivity continuousActivity,String timeText,String mainActivityText,
+                       String detailsText,int color,String gapText) {
+        _continuousActivity = continuousActivity;
+        _timeText = timeText;
+        _mainActivityText = mainActivityText;
+        _detailsText = detailsText;
+        _color = color;
+        _gapText = gapText;
+    }
+
+    public ESContinuousActivity get_continuousActivity() {
+        return _continuousActivity;
+    }
+
+    public boolean isGap() {
+        return _continuousActivity.isUnrecordedGap();
+    }
+
+    public String get_timeText() {
+        return _timeText;
+    }
+
+    public String get_mainActivityText() {
+        return _mainActivityText;
+    }
+
+    public String get_detailsText() {
+        return _detailsText;
+    }
+
+    public int get_color() {
+        return _color;
+    }
+
+    /**
+     * @return The text of a gap row (null for a row of an actual continuous activity)
+     */
+    public String get_gapText() {
+        return _gapText;
+    }
+
+    /**
+     * Get the rows for an array of continuous activities, building (and caching) the rows that are not cached yet.
+     * This may be called from a background thread.
+     * @param continuousActivities The continuous activities (may be null)
+     * @return The rows, in the same order
+     */
+    static HistoryRow[] forContinuousActivities(ESContinuousActivity[] continuousActivities) {
+        if (continuousActivities == null) {
+            return new HistoryRow[0];
+        }
+        HistoryRow[] rows = new HistoryRow[continuousActivities.length];
+        // (SimpleDateFormat isn't thread safe, so each call formats with its own):
+        SimpleDateFormat timeFormat = null;
+        for (int i = 0; i < continuousActivities.length; i ++) {
+            HistoryRow row = _rowCache.get(continuousActivities[i]);
+            if (row == null) {
+                if (timeFormat == null) {
+                    timeFormat = new SimpleDateFormat(TIME_FORMAT,Locale.getDefault());
+                }
+                row = build(continuousActivities[i],timeFormat);
+                _rowCache.put(continuousActivities[i],row);
+            }
+            rows[i] = row;
+        }
+        return rows;
+    }
+
+    private static HistoryRow build(ESContinuousActivity continuousActivity,SimpleDateFormat timeFormat) {
+        if (continuousActivity.isUnrecordedGap()) {
+            int gapSeconds = continuousActivity.gapDurationSeconds();
+            int gapMinutes = gapSeconds / 60;
+            int gapHours = gapSeconds / 3600;
+            String gapDurStr = (gapHours >= 1) ? "" + gapHours + " hours" : "" + gapMinutes + " minutes";
+            return new HistoryRow(continuousActivity,null,null,null,0,"Gap ~" + gapDurStr);
+        }
+
+        String activityLabel;
+        String mainActivityForColor;
+        if (continuousActivity.getMainActivityUserCorrection() != null) {
+            activityLabel = continuousActivity.getMainActivityUserCorrection();
+            mainActivityForColor = activityLabel;
+        }
+        else {
+            mainActivityForColor = continuousActivity.getMainActivityServerPrediction();
+            if (mainActivityForColor == null) {
+                activityLabel = "in process...";
+            }
+            else {
+                activityLabel = mainActivityForColor + "?";
+            }
+        }
+
+        String timeLabel = timeFormat.format(continuousActivity.getStartTimestamp().getDateOfTimestamp());
+        String endTimeLabel = timeFormat.format(continuousActivity.getEndTimestamp().getDateOfTimestamp());
+        if (!endTimeLabel.equals(timeLabel)) {
+            timeLabel = timeLabel + " - " + endTimeLabel;
+        }
+
+        return new HistoryRow(continuousActivity,timeLabel,activityLabel,getDetailsString(continuousActivity),
+                ESLabelStrings.getColorForMainActivity(mainActivityForColor),null);
+    }
+
+    private static String getDetailsString(ESContinuousActivity continuousActivity) {
+        StringBuilder details = new StringBuilder(2 * MAX_DETAILS_LENGTH);
+
+        String[] moods = continuousActivity.getMoods();
+        if (moods != null && moods.length > 0) {
+            details.append(moods[0]);
+            for (int i=1; i<moods.length; i++) {
+                details.append(", ").append(moods[i]);
+            }
+        }
+
+        String[] sec;
+        String delim = ",";
+        String suffix = "";
+        if (continuousActivity.hasUserProvidedLabels()) {
+            sec = continuousActivity.getSecondaryActivities();
+        }
+        else {
+            sec = continuousActivity.getSecondaryActivitiesOrServerGuesses();
+            delim = "";
+            suffix = "?";
+        }
+        if (sec != null && sec.length > 0) {
+            details.append(" (").append(sec[0]).append(suffix);
+            for (int i=1; i<sec.length; i++) {
+                details.append(delim).append(" ").append(sec[i]).append(suffix);
+            }
+            details.append(")");
+        }
+
+        if (details.length() > MAX_DETAILS_LENGTH) {
+            details.setLength(MAX_DETAILS_LENGTH);
+            details.append("...");
+        }
+        return details.toString();
+    }
+
+    @Override
+    public String toString() {
+        return isGap() ? _gapText : _mainActivityText;
+    }
+}
@@ -18,6 +18,7 @@ import android.widget.TextView;
 
 import edu.ucsd.calab.extrasensory.ESApplication;
 import edu.ucsd.calab.extrasensory.R;
+import edu.ucsd.calab.extrasensory.data.ESDatabaseChangeEvent;
 import edu.ucsd.calab.extrasensory.network.ESNetworkAccessor;
 import edu.ucsd.calab.extrasensory.sensors.AudioProcessing.MFCC;
 import edu.ucsd.calab.extrasensory.sensors.WatchProcessing.ESWatchProcessor;
@@ -160,8 +161,8 @@ public class HomeFragment extends BaseTabFragment {
     }
 
     @Override
-    protected void reactToRecordsUpdatedEvent() {
-        super.reactToRecordsUpdatedEvent();
+    protected void reactToRecordsUpdatedEvent(ESDatabaseChangeEvent change) {
+        super.reactToRecordsUpdatedEvent(change);
         Log.d(LOG_TAG,"reacting to records-update");
         //TODO: redraw the relevant image to the latest activity
     }
@@ -4,12 +4,15 @@ import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.ListView;
@@ -24,6 +27,7 @@ import java.util.Map;
 import edu.ucsd.calab.extrasensory.ESApplication;
 import edu.ucsd.calab.extrasensory.R;
 import edu.ucsd.calab.extrasensory.data.ESDatabaseAccessor;
+import edu.ucsd.calab.extrasensory.data.ESLabelSearchIndex;
 import edu.ucsd.calab.extrasensory.data.ESLabelStrings;
 import edu.ucsd.calab.extrasensory.data.ESSettings;
 
@@ -75,6 +79,9 @@ public class SelectionFromListActivity extends BaseActivity {
     private static final String MOODS_HEADER = "Mood";
     private static final String VALID_FOR_HEADER = "Valid For";
     private static final String ALL_LABELS = "All labels";
+    private static final String SEARCH_RESULTS_HEADER = "Search results";
+    private static final String SEARCH_RESULTS_INDEX_TITLE = "Results";
+    private static final int MAX_SEARCH_RESULTS = 50;
 
     private static final int LIST_TYPE_MISSING = -1;
     public static final int LIST_TYPE_MAIN_ACTIVITY = 0;
@@ -97,6 +104,11 @@ public class SelectionFromListActivity extends BaseActivity {
     private boolean _useIndex = false;
     private List<String> _sortedPredLabelNames = new ArrayList<>();
     private Map<String,Double> _predLabelNameToProbMap = new HashMap<>();
+    private ESLabelSearchIndex _searchIndex = null;
+    private String _searchQuery = "";
+    // The sections currently in the list, in order (the "selected" section, if present, is always the first):
+    private ArrayList<ChoicesSection> _sections = new ArrayList<>();
+    private ChoicesSection _selectedLabelsSection = null;
 
     private View.OnClickListener _onClickListener = new View.OnClickListener() {
         @Override
@@ -104,7 +116,6 @@ public class SelectionFromListActivity extends BaseActivity {
             TextView textView = (TextView)view.findViewById(R.id.text_label_name_in_selection_choice);
             String clickedLabel = textView.getText().toString();
             int currentPositionBeforeChanging = _choicesListView.getFirstVisiblePosition();
-            int numSelectedBeforeChanging = _selectedLabels.size();
 
             if (_selectedLabels.contains(clickedLabel)) {
                 if (_allowMultiSelection) {
@@ -123,25 +134,11 @@ public class SelectionFromListActivity extends BaseActivity {
                 _selectedLabels.add(clickedLabel);
             }
 
-            // After re-arranging the selected labels, refresh the list:
-            refreshListContent();
+            // After re-arranging the selected labels, update just the "selected" section (the other rows keep their items):
+            int numRowsAdded = updateSelectedLabelsSection();
 
             // Did we have rows added/removed from the list:
             if (_useIndex) {
-                int numSelectedNow = _selectedLabels.size();
-                int numRowsAdded = 0;
-                if (numSelectedBeforeChanging == 0) {
-                    // Then we started without "selected" section and now we have this section, with one item:
-                    numRowsAdded = 2;
-                }
-                else if (numSelectedNow == 0) {
-                    // Then we started with "selected" section with one item, and now we have none:
-                    numRowsAdded = -2;
-                }
-                else {
-                    // Then we had a "selected" section and we still have it now:
-                    numRowsAdded = numSelectedNow - numSelectedBeforeChanging;
-                }
                 // Jump ahead from previous position according to how many rows were added/removed:
                 _choicesListView.setSelection(currentPositionBeforeChanging + numRowsAdded);
             }
@@ -182,12 +179,14 @@ public class SelectionFromListActivity extends BaseActivity {
             case LIST_TYPE_SECONDARY_ACTIVITIES:
                 _labelChoices = ESLabelStrings.getSecondaryActivities();
                 _labelsPerSubject = ESLabelStrings.getSecondaryActivitiesPerSubject();
+                _searchIndex = ESLabelSearchIndex.getIndex(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_SECONDARY);
                 _allowMultiSelection = true;
                 _useIndex = true;
                 _allLabelsSectionHeader = SECONDARY_ACTIVITIES_HEADER;
                 break;
             case LIST_TYPE_MOODS:
                 _labelChoices = ESLabelStrings.getMoods();
+                _searchIndex = ESLabelSearchIndex.getIndex(ESDatabaseAccessor.ESLabelType.ES_LABEL_TYPE_MOOD);
                 _allowMultiSelection = true;
                 _useIndex = true;
                 _allLabelsSectionHeader = MOODS_HEADER;
@@ -251,18 +250,61 @@ public class SelectionFromListActivity extends BaseActivity {
             _choicesListView.setLayoutParams(params);
         }
 
+        if (_searchIndex != null) {
+            EditText searchText = (EditText)findViewById(R.id.edittext_selection_search);
+            searchText.setVisibility(View.VISIBLE);
+            searchText.addTextChangedListener(new TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+                @Override
+                public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+                @Override
+                public void afterTextChanged(Editable s) {
+                    _searchQuery = s.toString().trim();
+                    refreshListContent();
+                    _choicesListView.setSelection(0);
+                }
+            });
+        }
 
         refreshListContent();
     }
 
+    /**
+     * A section of the list: its header row and label rows, and its entry in the side index.
+     */
+    private static class ChoicesSection {
+        private int _firstRow;
+        private int _numRows;
+        private TextView _indexItem;
+    }
+
+    /**
+     * Build the whole list (all the sections) from scratch.
+     * Selecting and de-selecting labels doesn't need this (see updateSelectedLabelsSection()),
+     * only changing the search query does.
+     */
     private void refreshListContent() {
 
         _sideIndex.removeAllViews();
+        _sections.clear();
+        _selectedLabelsSection = null;
 
         ArrayList<ChoiceItem> itemsList = new ArrayList<>(10);
         if (_useIndex && !_selectedLabels.isEmpty()) {
-            addLabelsSection(itemsList,_selectedLabels.toArray(new String[_selectedLabels.size()]),SELECTED_LABELS_HEADER,SELECTED_LABELS_INDEX_TITLE);
+            _selectedLabelsSection = addLabelsSection(itemsList,_selectedLabels.toArray(new String[_selectedLabels.size()]),SELECTED_LABELS_HEADER,SELECTED_LABELS_INDEX_TITLE);
+        }
+
+        if (_searchIndex != null && !_searchQuery.isEmpty()) {
+            // Then present the (ranked) search results instead of the usual sections:
+            List<String> results = _searchIndex.search(_searchQuery,MAX_SEARCH_RESULTS,_frequentlyUsedLabels,_predLabelNameToProbMap);
+            addLabelsSection(itemsList,results.toArray(new String[results.size()]),SEARCH_RESULTS_HEADER,SEARCH_RESULTS_INDEX_TITLE);
+            setAdapterChoices(itemsList);
+            return;
         }
+
         if (_useIndex && _frequentlyUsedLabels != null && !_frequentlyUsedLabels.isEmpty()) {
             addLabelsSection(itemsList,_frequentlyUsedLabels.toArray(new String[_frequentlyUsedLabels.size()]),FREQUENT_LABELS_HEADER,FREQUENT_LABELS_INDEX_TITLE);
         }
@@ -281,31 +323,97 @@ public class SelectionFromListActivity extends BaseActivity {
         setAdapterChoices(itemsList);
     }
 
-    private void addLabelsSection(ArrayList<ChoiceItem> itemsList,String[] labels,String sectionHeader,String indexTitle) {
+    /**
+     * After the selected labels changed, replace only the rows of the "selected" section
+     * (adding or removing the section if needed), and shift the positions of the other sections.
+     * @return The number of rows that were added to the list (negative if rows were removed)
+     */
+    private int updateSelectedLabelsSection() {
+        ChoicesListAdapter adapter = (ChoicesListAdapter)_choicesListView.getAdapter();
+        if (!_useIndex) {
+            // Then there is no "selected" section. Just re-bind the rows, to update their check marks:
+            adapter.notifyDataSetChanged();
+            return 0;
+        }
+
+        ChoicesSection oldSection = _selectedLabelsSection;
+        int numOldRows = (oldSection == null) ? 0 : oldSection._numRows;
+
+        ArrayList<ChoiceItem> newRows = new ArrayList<>(_selectedLabels.size() + 1);
+        ChoicesSection newSection = null;
+        if (!_selectedLabels.isEmpty()) {
+            newSection = (oldSection != null) ? oldSection : createSection(SELECTED_LABELS_INDEX_TITLE,0);
+            newRows.add(new ChoiceItem(SELECTED_LABELS_HEADER,true));
+            addLabelItems(newRows,_selectedLabels.toArray(new String[_selectedLabels.size()]));
+            newSection._numRows = newRows.size();
+        }
+        _selectedLabelsSection = newSection;
+
+        if (oldSection != null && newSection == null) {
+            _sections.remove(0);
+            _sideIndex.removeView(oldSection._indexItem);
+        }
+        else if (oldSection == null && newSection != null) {
+            _sections.add(0,newSection);
+            _sideIndex.addView(newSection._indexItem,0);
+        }
+        int numRowsAdded = newRows.size() - numOldRows;
+        for (ChoicesSection section : _sections) {
+            if (section != newSection) {
+                section._firstRow += numRowsAdded;
+            }
+        }
+
+        adapter.replaceChoiceItems(0,numOldRows,newRows);
+        return numRowsAdded;
+    }
+
+    private ChoicesSection createSection(String indexTitle,int firstRow) {
+        final ChoicesSection section = new ChoicesSection();
+        section._firstRow = firstRow;
+        TextView indexItem = new TextView(this);
+        indexItem.setText(indexTitle);
+        indexItem.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                jumpToRow(section._firstRow);
+            }
+        });
+        indexItem.setPadding(0,10,0,10);
+        section._indexItem = indexItem;
+        return section;
+    }
+
+    /**
+     * Add a section to the list.
+     * @return The section (null if it has no entry in the side index)
+     */
+    private ChoicesSection addLabelsSection(ArrayList<ChoiceItem> itemsList,String[] labels,String sectionHeader,String indexTitle) {
         final int nextRowInd = itemsList.size();
         // Add subject header:
         if (sectionHeader != null) {
             itemsList.add(new ChoiceItem(sectionHeader, true));
         }
         // Add index item:
+        ChoicesSection section = null;
         if (_useIndex && indexTitle != null) {
-            TextView indexItem = new TextView(this);
-            indexItem.setText(indexTitle);
-            indexItem.setOnClickListener(new View.OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    jumpToRow(nextRowInd);
-                }
-            });
-            indexItem.setPadding(0,10,0,10);
-            _sideIndex.addView(indexItem);
+            section = createSection(indexTitle,nextRowInd);
+            _sideIndex.addView(section._indexItem);
+            section._numRows = (sectionHeader != null ? 1 : 0) + labels.length;
+            _sections.add(section);
         }
 
         // Add the subject's labels:
+        addLabelItems(itemsList,labels);
+        return section;
+    }
+
+    private void addLabelItems(ArrayList<ChoiceItem> itemsList,String[] labels) {
         for (String label : labels) {
-            if (_sortedPredLabelNames.contains(label)) {
+            Double predictionProbability = _predLabelNameToProbMap.get(label);
+            if (predictionProbability != null) {
                 // Then this label has a prediction from the server.
-                itemsList.add(new ChoiceItem(label,false,_predLabelNameToProbMap.get(label)));
+                itemsList.add(new ChoiceItem(label,false,predictionProbability));
             }
             else {
                 itemsList.add(new ChoiceItem(label));
@@ -420,6 +528,18 @@ public class SelectionFromListActivity extends BaseActivity {
             notifyDataSetChanged();
         }
 
+        /**
+         * Replace a range of the items (keeping all the items outside of it).
+         * @param start The position of the first item to replace
+         * @param numOldItems How many items to remove from the start position
+         * @param newItems The items to put in their place
+         */
+        public void replaceChoiceItems(int start,int numOldItems,List<ChoiceItem> newItems) {
+            _items.subList(start,start + numOldItems).clear();
+            _items.addAll(start,newItems);
+            notifyDataSetChanged();
+        }
+
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
             View rowView =  super.getView(position,convertView,parent);
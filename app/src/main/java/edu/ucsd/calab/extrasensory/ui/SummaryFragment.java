@@ -24,6 +24,7 @@ import java.util.Map;
 import edu.ucsd.calab.extrasensory.ESApplication;
 import edu.ucsd.calab.extrasensory.R;
 import edu.ucsd.calab.extrasensory.data.ESDatabaseAccessor;
+import edu.ucsd.calab.extrasensory.data.ESDatabaseChangeEvent;
 import edu.ucsd.calab.extrasensory.data.ESLabelStrings;
 
 /**
@@ -62,9 +63,14 @@ public class SummaryFragment extends BaseTabFragment {
     }
 
     @Override
-    protected void reactToRecordsUpdatedEvent() {
-        super.reactToRecordsUpdatedEvent();
+    protected void reactToRecordsUpdatedEvent(ESDatabaseChangeEvent change) {
+        super.reactToRecordsUpdatedEvent(change);
         Log.d(LOG_TAG, "reacting to records-update");
+        if (!change.includes(ESDatabaseChangeEvent.ESChangeKind.ES_CHANGE_KIND_LABELS_CHANGED)) {
+            // The summary counts only user-reported labels:
+            noteRefreshAvoided();
+            return;
+        }
         calculateAndPresentSummary();
     }
 